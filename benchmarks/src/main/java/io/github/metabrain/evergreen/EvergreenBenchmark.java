@@ -0,0 +1,136 @@
+package io.github.metabrain.evergreen;
+
+import io.github.metabrain.evergreen.codec.Codecs;
+import io.github.metabrain.evergreen.codec.EvergreenCodec;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * get(), put() and getAndPut() of an EvergreenImpl holding a byte[] of the given size.
+ *
+ * Every benchmark thread opens its own instance on the same file, like separate processes would, so running with more
+ * than one thread measures contention on the file lock (and on the write sequence for optimistic readers). With
+ * combining on, or an exclusive open mode, threads share a single instance instead. Lives in
+ * the library package to reach the constructor that picks between the safe and fast IUnsafe.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EvergreenBenchmark {
+
+    @Param({"16", "1024", "65536"})
+    int payloadSize;
+
+    /** "safe" uses volatile accesses, "ordered" acquire/release ones and "fast" plain ones. */
+    @Param({"safe", "ordered", "fast"})
+    String unsafe;
+
+    /** "binary" is Codecs.byteArrays(), "java" is Java serialization. */
+    @Param({"binary", "java"})
+    String codec;
+
+    @Param({"OPTIMISTIC", "LOCKED"})
+    ReadMode readMode;
+
+    @Param({"1"})
+    int payloadSlots;
+
+    /** Flat combining of concurrent getAndPut calls, only matters with more than one thread. */
+    @Param({"false"})
+    boolean combining;
+
+    /** JOURNALED only works on files created with it, which they are since every trial creates its own. */
+    @Param({"NONE"})
+    Durability durability;
+
+    /** EXCLUSIVE skips the file lock, SINGLE_WRITER every lock, so it only makes sense with a single thread. */
+    @Param({"SHARED"})
+    OpenMode openMode;
+
+    File file;
+    // Only when combining or not SHARED.
+    EvergreenImpl<byte[]> shared;
+
+    @Setup(Level.Trial)
+    public void createFile() throws IOException {
+        file = File.createTempFile("EvergreenBenchmark_"+UUID.randomUUID(), "mmf");
+        file.deleteOnExit();
+        if(combining || openMode!=OpenMode.SHARED) {
+            shared = open();
+        }
+    }
+
+    EvergreenImpl<byte[]> open() throws IOException {
+        final int size = payloadSize;
+        final EvergreenOptions options = new EvergreenOptions()
+                .withReadMode(readMode)
+                .withPayloadSlots(payloadSlots)
+                .withCombining(combining)
+                .withDurability(durability)
+                .withOpenMode(openMode)
+                .withMemoryOrdering(unsafe.equals("ordered") ? MemoryOrdering.ACQUIRE_RELEASE : MemoryOrdering.VOLATILE);
+        final FileChannel fc = new RandomAccessFile(file, "rw").getChannel();
+        // Java serialization headers fit in the class declaration overhead EvergreenImpl already adds.
+        return new EvergreenImpl<>(fc, OpenFiles.fileKey(file.getPath()), size+4, () -> new byte[size], codec(), options, !unsafe.equals("fast"));
+    }
+
+    private EvergreenCodec<byte[]> codec() {
+        return codec.equals("java") ? Codecs.javaSerialization() : Codecs.byteArrays();
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteFile() throws IOException {
+        if(shared!=null) {
+            shared.close();
+        }
+        file.delete();
+    }
+
+    @State(Scope.Thread)
+    public static class Handle {
+        EvergreenImpl<byte[]> evergreen;
+        byte[] payload;
+        final Function<byte[], byte[]> increment = (got) -> {
+            got[0]++;
+            return got;
+        };
+
+        @Setup(Level.Trial)
+        public void open(EvergreenBenchmark benchmark) throws IOException {
+            evergreen = benchmark.shared!=null ? benchmark.shared : benchmark.open();
+            payload = new byte[benchmark.payloadSize];
+        }
+
+        @TearDown(Level.Trial)
+        public void close(EvergreenBenchmark benchmark) throws IOException {
+            if(evergreen!=benchmark.shared) {
+                evergreen.close();
+            }
+        }
+    }
+
+    @Benchmark
+    public byte[] get(Handle handle) throws IOException, ClassNotFoundException {
+        return handle.evergreen.get();
+    }
+
+    @Benchmark
+    public void put(Handle handle) throws IOException {
+        handle.evergreen.put(handle.payload);
+    }
+
+    @Benchmark
+    public byte[] getAndPut(Handle handle) throws IOException, ClassNotFoundException {
+        return handle.evergreen.getAndPut(handle.increment);
+    }
+}
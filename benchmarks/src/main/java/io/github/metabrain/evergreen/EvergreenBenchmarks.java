@@ -0,0 +1,45 @@
+package io.github.metabrain.evergreen;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Entry point of benchmarks.jar. Takes the usual JMH command line, and on top of it:
+ * - runs every selected benchmark once per thread count (1, 2 and 4 unless -t is given), single threaded runs being
+ *   the uncontended case;
+ * - always attaches the GC profiler, so allocation rate (gc.alloc.rate.norm) is reported next to the timings.
+ *
+ * e.g. java -jar target/benchmarks.jar EvergreenBenchmark.get -p payloadSize=1024 -p unsafe=safe
+ */
+public final class EvergreenBenchmarks {
+
+    private static final int[] DEFAULT_THREAD_COUNTS = {1, 2, 4};
+
+    private EvergreenBenchmarks() {
+        throw new AssertionError("No instance for you!");
+    }
+
+    public static void main(String[] args) throws Exception {
+        final CommandLineOptions commandLine = new CommandLineOptions(args);
+        if(commandLine.shouldHelp() || commandLine.shouldList() || commandLine.shouldListProfilers()
+                || commandLine.shouldListWithParams() || commandLine.shouldListResultFormats()) {
+            // Nothing to run, let JMH's own main do the talking.
+            org.openjdk.jmh.Main.main(args);
+            return;
+        }
+
+        final int[] threadCounts = commandLine.getThreads().hasValue()
+                ? new int[]{commandLine.getThreads().get()}
+                : DEFAULT_THREAD_COUNTS;
+        for(int threads : threadCounts) {
+            ChainedOptionsBuilder options = new OptionsBuilder().parent(commandLine).threads(threads);
+            if(commandLine.getProfilers().isEmpty()) {
+                options = options.addProfiler(GCProfiler.class);
+            }
+            new Runner(options.build()).run();
+        }
+    }
+}
@@ -0,0 +1,393 @@
+package io.github.metabrain.evergreen;
+
+import io.github.metabrain.evergreen.codec.Codecs;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+
+/**
+ * Load harness forking several JVMs against the same file, the way Evergreen is meant to be used, where JMH only ever
+ * runs threads of a single JVM.
+ *
+ * Every process opens its own EvergreenImpl on the file and its threads fire get, put and getAndPut (picked at random
+ * by the given mix) at a fixed rate. Operations follow a schedule decided upfront, so when one of them stalls the ones
+ * due meanwhile are late rather than never sent. Latency is measured from when an operation was due, not from when
+ * it actually started, which is what a caller arriving at that rate would see: measuring from the actual start hides
+ * stalls (coordinated omission). Both are reported, the latter as service time.
+ *
+ * The coordinating process waits for every worker to have its file open before telling them all to go, collects the
+ * histograms each of them writes once done and merges them into a single report.
+ *
+ * e.g. java -cp target/benchmarks.jar io.github.metabrain.evergreen.LoadHarness --processes 4 --rate 20000
+ *      --mix get:80,put:10,getAndPut:10 --duration 30
+ */
+public final class LoadHarness {
+
+    private static final String[] OPS = {"get", "put", "getAndPut"};
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9, 99.99};
+    /** Waits longer than this park, shorter ones spin, parking being far too coarse for microsecond schedules. */
+    private static final long SPIN_THRESHOLD_NANOS = 50000;
+
+    private LoadHarness() {
+        throw new AssertionError("No instance for you!");
+    }
+
+    public static void main(String[] args) throws Exception {
+        final Settings settings = Settings.parse(args);
+        if(settings.worker>=0) {
+            runWorker(settings);
+        } else {
+            coordinate(settings, args);
+        }
+    }
+
+    private static void coordinate(Settings settings, String[] args) throws Exception {
+        final File file = settings.file!=null ? new File(settings.file) : File.createTempFile("LoadHarness_"+UUID.randomUUID(), "mmf");
+        if(settings.file==null) {
+            file.deleteOnExit();
+        }
+        // Initialize the file upfront, so workers only ever open an existing one.
+        open(file, settings);
+
+        final File resultDir = Files.createTempDirectory("LoadHarness").toFile();
+        final String java = System.getProperty("java.home")+File.separator+"bin"+File.separator+"java";
+        final List<Process> workers = new ArrayList<>();
+        final List<File> results = new ArrayList<>();
+        try {
+            for(int i=0 ; i<settings.processes ; i++) {
+                final File result = new File(resultDir, "worker-"+i);
+                result.deleteOnExit();
+                final List<String> command = new ArrayList<>();
+                command.add(java);
+                command.add("-cp");
+                command.add(System.getProperty("java.class.path"));
+                command.add(LoadHarness.class.getName());
+                for(String arg : args) {
+                    command.add(arg);
+                }
+                command.add("--file");
+                command.add(file.getPath());
+                command.add("--worker");
+                command.add(Integer.toString(i));
+                command.add("--result");
+                command.add(result.getPath());
+                workers.add(new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start());
+                results.add(result);
+            }
+
+            for(Process worker : workers) {
+                final BufferedReader out = new BufferedReader(new InputStreamReader(worker.getInputStream(), StandardCharsets.UTF_8));
+                if(!"READY".equals(out.readLine())) {
+                    throw new IOException("Worker died before opening the file.");
+                }
+            }
+            for(Process worker : workers) {
+                final OutputStream in = worker.getOutputStream();
+                in.write("GO\n".getBytes(StandardCharsets.UTF_8));
+                in.flush();
+            }
+            System.out.println("Running "+settings.processes+" processes x "+settings.threads+" threads at "
+                    +settings.rate+" ops/s per process, "+settings.warmupSeconds+"s warmup then "
+                    +settings.durationSeconds+"s measured...");
+
+            for(int i=0 ; i<workers.size() ; i++) {
+                final int exitCode = workers.get(i).waitFor();
+                if(exitCode!=0) {
+                    throw new IOException("Worker "+i+" exited with "+exitCode+".");
+                }
+            }
+        } finally {
+            for(Process worker : workers) {
+                worker.destroy();
+            }
+        }
+
+        report(settings, results);
+        resultDir.delete();
+    }
+
+    private static void report(Settings settings, List<File> results) throws IOException {
+        final Map<String, LoadHistogram> merged = new LinkedHashMap<>();
+        System.out.println();
+        System.out.println("Per process, latency in microseconds from when operations were due:");
+        for(int i=0 ; i<results.size() ; i++) {
+            final Map<String, LoadHistogram> histograms = new LinkedHashMap<>();
+            final long elapsedNanos;
+            try(BufferedReader in = new BufferedReader(new FileReader(results.get(i)))) {
+                elapsedNanos = Long.parseLong(in.readLine());
+                String name;
+                while((name = in.readLine())!=null) {
+                    histograms.put(name, LoadHistogram.readFrom(in));
+                }
+            }
+            final LoadHistogram all = new LoadHistogram();
+            for(Map.Entry<String, LoadHistogram> entry : histograms.entrySet()) {
+                if(entry.getKey().endsWith(".latency")) {
+                    all.add(entry.getValue());
+                }
+                merged.computeIfAbsent(entry.getKey(), (key) -> new LoadHistogram()).add(entry.getValue());
+            }
+            System.out.printf("  process %d: %d ops in %.2fs (%.0f ops/s), p50=%s p99=%s p99.99=%s max=%s%n", i,
+                    all.count(), elapsedNanos/1e9, all.count()*1e9/elapsedNanos, micros(all.percentile(50)),
+                    micros(all.percentile(99)), micros(all.percentile(99.99)), micros(all.max()));
+        }
+
+        System.out.println();
+        System.out.println("Merged, in microseconds:");
+        final StringBuilder header = new StringBuilder(String.format("  %-22s %10s %9s", "", "count", "mean"));
+        for(double percentile : PERCENTILES) {
+            header.append(String.format(" %9s", "p"+new DecimalFormat("0.##").format(percentile)));
+        }
+        System.out.println(header.append(String.format(" %9s", "max")));
+        for(String op : OPS) {
+            for(String kind : new String[]{"latency", "service"}) {
+                final LoadHistogram histogram = merged.get(op+"."+kind);
+                if(histogram!=null && histogram.count()>0) {
+                    final StringBuilder line = new StringBuilder(String.format("  %-22s %10d %9s", op+" "+kind,
+                            histogram.count(), micros(histogram.mean())));
+                    for(double percentile : PERCENTILES) {
+                        line.append(String.format(" %9s", micros(histogram.percentile(percentile))));
+                    }
+                    System.out.println(line.append(String.format(" %9s", micros(histogram.max()))));
+                }
+            }
+        }
+        long done = 0;
+        for(String op : OPS) {
+            final LoadHistogram histogram = merged.get(op+".latency");
+            done += histogram==null ? 0 : histogram.count();
+        }
+        System.out.println();
+        System.out.println("Target was "+(long) settings.processes*settings.rate*settings.durationSeconds+" ops, "+done+" done.");
+    }
+
+    private static String micros(long nanos) {
+        return String.format("%.1f", nanos/1e3);
+    }
+
+    private static EvergreenImpl<byte[]> open(File file, Settings settings) throws IOException {
+        final int size = settings.payloadSize;
+        return EvergreenFactory.create(file.getPath(), size, () -> new byte[size], Codecs.byteArrays(),
+                new EvergreenOptions()
+                        .withReadMode(settings.readMode)
+                        .withMemoryOrdering(settings.memoryOrdering));
+    }
+
+    private static void runWorker(Settings settings) throws Exception {
+        final EvergreenImpl<byte[]> evergreen = open(new File(settings.file), settings);
+        System.out.println("READY");
+        System.out.flush();
+        final BufferedReader in = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+        if(!"GO".equals(in.readLine())) {
+            throw new IOException("Coordinator went away.");
+        }
+
+        final long start = System.nanoTime();
+        final long measureFrom = start+TimeUnit.SECONDS.toNanos(settings.warmupSeconds);
+        final long measureUntil = measureFrom+TimeUnit.SECONDS.toNanos(settings.durationSeconds);
+        final LoadThread[] threads = new LoadThread[settings.threads];
+        for(int i=0 ; i<threads.length ; i++) {
+            threads[i] = new LoadThread(evergreen, settings, i, start, measureFrom, measureUntil);
+            threads[i].start();
+        }
+        final Map<String, LoadHistogram> merged = new LinkedHashMap<>();
+        long lastDone = measureFrom;
+        for(LoadThread thread : threads) {
+            thread.join();
+            if(thread.failure!=null) {
+                throw thread.failure;
+            }
+            lastDone = Math.max(lastDone, thread.lastDone);
+            for(int op=0 ; op<OPS.length ; op++) {
+                merged.computeIfAbsent(OPS[op]+".latency", (key) -> new LoadHistogram()).add(thread.latency[op]);
+                merged.computeIfAbsent(OPS[op]+".service", (key) -> new LoadHistogram()).add(thread.service[op]);
+            }
+        }
+
+        try(PrintWriter out = new PrintWriter(new FileWriter(settings.result))) {
+            // The measured window stretches if the last operations were late.
+            out.println(Math.max(1L, lastDone-measureFrom));
+            for(Map.Entry<String, LoadHistogram> entry : merged.entrySet()) {
+                out.println(entry.getKey());
+                entry.getValue().writeTo(out);
+            }
+        }
+    }
+
+    private static final class LoadThread extends Thread {
+        private final EvergreenImpl<byte[]> evergreen;
+        private final byte[] payload;
+        private final int[] mix;
+        private final SplittableRandom random;
+        private final long intervalNanos;
+        private final long firstDue;
+        private final long measureFrom;
+        private final long measureUntil;
+        private final Function<byte[], byte[]> increment = (got) -> {
+            got[0]++;
+            return got;
+        };
+
+        final LoadHistogram[] latency = new LoadHistogram[OPS.length];
+        final LoadHistogram[] service = new LoadHistogram[OPS.length];
+        long lastDone;
+        Exception failure;
+
+        LoadThread(EvergreenImpl<byte[]> evergreen, Settings settings, int index, long start, long measureFrom, long measureUntil) {
+            super("load-"+settings.worker+"-"+index);
+            this.evergreen = evergreen;
+            this.payload = new byte[settings.payloadSize];
+            this.mix = settings.mix;
+            this.random = new SplittableRandom(31L*settings.worker+index);
+            // Each thread does its share of the process rate, staggered so they don't all fire at once.
+            this.intervalNanos = (long) (1e9*settings.threads/settings.rate);
+            this.firstDue = start+index*intervalNanos/settings.threads;
+            this.measureFrom = measureFrom;
+            this.measureUntil = measureUntil;
+            for(int op=0 ; op<OPS.length ; op++) {
+                latency[op] = new LoadHistogram();
+                service[op] = new LoadHistogram();
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                for(long due=firstDue ; due<measureUntil ; due+=intervalNanos) {
+                    waitUntil(due);
+                    final int op = pick();
+                    final long started = System.nanoTime();
+                    execute(op);
+                    final long done = System.nanoTime();
+                    if(due>=measureFrom) {
+                        latency[op].record(done-due);
+                        service[op].record(done-started);
+                        lastDone = done;
+                    }
+                }
+            } catch (Exception e) {
+                failure = e;
+            }
+        }
+
+        private int pick() {
+            int roll = random.nextInt(100);
+            for(int op=0 ; op<OPS.length ; op++) {
+                roll -= mix[op];
+                if(roll<0) {
+                    return op;
+                }
+            }
+            return OPS.length-1;
+        }
+
+        private void execute(int op) throws IOException, ClassNotFoundException {
+            switch(op) {
+                case 0: evergreen.get(); break;
+                case 1: evergreen.put(payload); break;
+                default: evergreen.getAndPut(increment); break;
+            }
+        }
+
+        private static void waitUntil(long due) {
+            long left;
+            while((left = due-System.nanoTime())>0) {
+                if(left>SPIN_THRESHOLD_NANOS) {
+                    LockSupport.parkNanos(left-SPIN_THRESHOLD_NANOS);
+                }
+            }
+        }
+    }
+
+    private static final class Settings {
+        int processes = 2;
+        int threads = 1;
+        int rate = 10000;
+        int warmupSeconds = 5;
+        int durationSeconds = 30;
+        int payloadSize = 16;
+        /** Percentage of get, put and getAndPut, in the order of OPS. */
+        int[] mix = {90, 0, 10};
+        ReadMode readMode = ReadMode.OPTIMISTIC;
+        MemoryOrdering memoryOrdering = MemoryOrdering.VOLATILE;
+        String file;
+        // Only set in worker processes.
+        int worker = -1;
+        String result;
+
+        static Settings parse(String[] args) {
+            final Settings settings = new Settings();
+            for(int i=0 ; i<args.length ; i+=2) {
+                if(i+1>=args.length) {
+                    throw usage("Missing value for "+args[i]+".");
+                }
+                final String value = args[i+1];
+                switch(args[i]) {
+                    case "--processes": settings.processes = Integer.parseInt(value); break;
+                    case "--threads": settings.threads = Integer.parseInt(value); break;
+                    case "--rate": settings.rate = Integer.parseInt(value); break;
+                    case "--warmup": settings.warmupSeconds = Integer.parseInt(value); break;
+                    case "--duration": settings.durationSeconds = Integer.parseInt(value); break;
+                    case "--payload": settings.payloadSize = Integer.parseInt(value); break;
+                    case "--mix": settings.mix = parseMix(value); break;
+                    case "--read-mode": settings.readMode = ReadMode.valueOf(value); break;
+                    case "--memory-ordering": settings.memoryOrdering = MemoryOrdering.valueOf(value); break;
+                    case "--file": settings.file = value; break;
+                    case "--worker": settings.worker = Integer.parseInt(value); break;
+                    case "--result": settings.result = value; break;
+                    default: throw usage("Unknown option "+args[i]+".");
+                }
+            }
+            if(settings.processes<1 || settings.threads<1 || settings.rate<settings.threads) {
+                throw usage("Need at least one process, one thread, and a rate of one op/s per thread.");
+            }
+            return settings;
+        }
+
+        private static int[] parseMix(String value) {
+            final int[] mix = new int[OPS.length];
+            int total = 0;
+            for(String part : value.split(",")) {
+                final String[] opAndWeight = part.split(":");
+                int op = 0;
+                while(op<OPS.length && !OPS[op].equals(opAndWeight[0])) {
+                    op++;
+                }
+                if(op==OPS.length || opAndWeight.length!=2) {
+                    throw usage("Bad mix entry "+part+", expected op:percentage with op one of get, put or getAndPut.");
+                }
+                mix[op] = Integer.parseInt(opAndWeight[1]);
+                total += mix[op];
+            }
+            if(total!=100) {
+                throw usage("Mix percentages add up to "+total+" rather than 100.");
+            }
+            return mix;
+        }
+
+        private static IllegalArgumentException usage(String problem) {
+            return new IllegalArgumentException(problem+" Options: --processes N, --threads N (per process),"
+                    +" --rate OPS_PER_SECOND (per process), --warmup SECONDS, --duration SECONDS, --payload BYTES,"
+                    +" --mix get:90,getAndPut:10, --read-mode OPTIMISTIC|LOCKED, --memory-ordering VOLATILE|ACQUIRE_RELEASE,"
+                    +" --file PATH (defaults to a temp file)");
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package io.github.metabrain.evergreen;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+/**
+ * Histogram of durations in nanos for LoadHarness. Buckets split every power of two in 128, so any value is reported
+ * within 1% of what was recorded, which is fine enough to tell p99.9 from p99.99 (the library's LatencyHistogram
+ * settles for 25% to stay small). Not thread safe, every load thread records into its own and they get merged.
+ */
+final class LoadHistogram {
+
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = SUB_BUCKETS*(64-SUB_BUCKET_BITS);
+
+    private final long[] counts = new long[BUCKETS];
+    private long count;
+    private long sum;
+    private long max;
+
+    void record(long nanos) {
+        final long value = Math.max(0L, nanos);
+        counts[indexOf(value)]++;
+        count++;
+        sum += value;
+        max = Math.max(max, value);
+    }
+
+    void add(LoadHistogram other) {
+        for(int i=0 ; i<BUCKETS ; i++) {
+            counts[i] += other.counts[i];
+        }
+        count += other.count;
+        sum += other.sum;
+        max = Math.max(max, other.max);
+    }
+
+    long count() {
+        return count;
+    }
+
+    long mean() {
+        return count==0 ? 0L : sum/count;
+    }
+
+    long max() {
+        return max;
+    }
+
+    /**
+     * @return the highest value the bucket holding the given percentile (0 to 100) may contain, never more than the
+     * max seen.
+     */
+    long percentile(double percentile) {
+        if(count==0) {
+            return 0L;
+        }
+        final long rank = Math.max(1L, (long) Math.ceil(percentile/100*count));
+        long seen = 0;
+        for(int i=0 ; i<BUCKETS ; i++) {
+            seen += counts[i];
+            if(seen>=rank) {
+                return Math.min(highestValueIn(i), max);
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Two lines: count, sum and max, then index:count of every bucket that isn't empty.
+     */
+    void writeTo(PrintWriter out) {
+        out.println(count+" "+sum+" "+max);
+        final StringBuilder sb = new StringBuilder();
+        for(int i=0 ; i<BUCKETS ; i++) {
+            if(counts[i]!=0) {
+                if(sb.length()>0) {
+                    sb.append(' ');
+                }
+                sb.append(i).append(':').append(counts[i]);
+            }
+        }
+        out.println(sb);
+    }
+
+    static LoadHistogram readFrom(BufferedReader in) throws IOException {
+        final String totals = in.readLine();
+        final String buckets = in.readLine();
+        if(totals==null || buckets==null) {
+            throw new IOException("Histogram cut short.");
+        }
+        final LoadHistogram histogram = new LoadHistogram();
+        final String[] fields = totals.split(" ");
+        histogram.count = Long.parseLong(fields[0]);
+        histogram.sum = Long.parseLong(fields[1]);
+        histogram.max = Long.parseLong(fields[2]);
+        if(!buckets.isEmpty()) {
+            for(String bucket : buckets.split(" ")) {
+                final int colon = bucket.indexOf(':');
+                histogram.counts[Integer.parseInt(bucket.substring(0, colon))] = Long.parseLong(bucket.substring(colon+1));
+            }
+        }
+        return histogram;
+    }
+
+    static int indexOf(long value) {
+        if(value<SUB_BUCKETS) {
+            return (int) value;
+        }
+        final int exponent = 63-Long.numberOfLeadingZeros(value);
+        final int subBucket = (int) (value >>> (exponent-SUB_BUCKET_BITS)) & (SUB_BUCKETS-1);
+        return SUB_BUCKETS*(exponent-SUB_BUCKET_BITS+1)+subBucket;
+    }
+
+    static long highestValueIn(int index) {
+        if(index<SUB_BUCKETS) {
+            return index;
+        }
+        final int exponent = index/SUB_BUCKETS+SUB_BUCKET_BITS-1;
+        final long lowest = (long) (SUB_BUCKETS+index%SUB_BUCKETS) << (exponent-SUB_BUCKET_BITS);
+        return lowest+(1L << (exponent-SUB_BUCKET_BITS))-1;
+    }
+}
@@ -0,0 +1,80 @@
+package io.github.metabrain.evergreen;
+
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.io.StringWriter;
+
+public class LoadHistogramTest {
+
+    // 1us to 100ms, one of each, so the percentiles are known exactly.
+    private static final int VALUES = 100000;
+    private static final long STEP = 1000;
+
+    @Test
+    public void percentilesWithinOnePercentTest() {
+        LoadHistogram histogram = new LoadHistogram();
+        for(int i=1 ; i<=VALUES ; i++) {
+            histogram.record(i*STEP);
+        }
+        assertKnownValues(histogram);
+    }
+
+    @Test
+    public void smallValuesAreExactTest() {
+        LoadHistogram histogram = new LoadHistogram();
+        for(int i=1 ; i<=100 ; i++) {
+            histogram.record(i);
+        }
+        Assert.assertEquals(50, histogram.percentile(50));
+        Assert.assertEquals(99, histogram.percentile(99));
+        Assert.assertEquals(100, histogram.max());
+    }
+
+    @Test
+    public void mergedRoundTripTest() throws IOException {
+        // Two load threads recording every other value, written out and read back like LoadHarness does.
+        LoadHistogram even = new LoadHistogram();
+        LoadHistogram odd = new LoadHistogram();
+        for(int i=1 ; i<=VALUES ; i++) {
+            (i%2==0 ? even : odd).record(i*STEP);
+        }
+        StringWriter written = new StringWriter();
+        try (PrintWriter out = new PrintWriter(written)) {
+            even.writeTo(out);
+            odd.writeTo(out);
+            new LoadHistogram().writeTo(out);
+        }
+        BufferedReader in = new BufferedReader(new StringReader(written.toString()));
+        LoadHistogram merged = new LoadHistogram();
+        merged.add(LoadHistogram.readFrom(in));
+        merged.add(LoadHistogram.readFrom(in));
+        LoadHistogram empty = LoadHistogram.readFrom(in);
+        Assert.assertEquals(0, empty.count());
+        merged.add(empty);
+        assertKnownValues(merged);
+    }
+
+    @Test(expected = IOException.class)
+    public void cutShortFailsTest() throws IOException {
+        LoadHistogram.readFrom(new BufferedReader(new StringReader("1 1000 1000\n")));
+    }
+
+    private static void assertKnownValues(LoadHistogram histogram) {
+        Assert.assertEquals(VALUES, histogram.count());
+        Assert.assertEquals((VALUES+1)*STEP/2, histogram.mean());
+        Assert.assertEquals(VALUES*STEP, histogram.max());
+        assertWithinOnePercent(50000*STEP, histogram.percentile(50));
+        assertWithinOnePercent(99000*STEP, histogram.percentile(99));
+        assertWithinOnePercent(99990*STEP, histogram.percentile(99.99));
+        Assert.assertEquals(VALUES*STEP, histogram.percentile(100));
+    }
+
+    private static void assertWithinOnePercent(long expected, long actual) {
+        Assert.assertTrue("Expected "+expected+" within 1%, got "+actual, Math.abs(actual-expected)<=expected/100);
+    }
+}
@@ -0,0 +1,200 @@
+package io.github.metabrain.evergreen;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * CompletableFuture flavour of an Evergreen, for callers that can't block: virtual threads, reactive pipelines or
+ * thousands of logical callers that shouldn't each need a platform thread waiting for the lock.
+ *
+ * Every operation runs on an executor, a small shared pool of daemon threads unless another one is given. Writes are
+ * queued and drained in batches: whichever task drains the queue applies every pending put and getAndPut with a single
+ * getAndPutAll(...), so the lock is taken once per batch rather than once per caller, and at most one executor thread
+ * per object ever waits for it. A function that throws only fails its own future, the rest of the batch goes on from
+ * the instance it was given.
+ *
+ * Keep one AsyncEvergreen per Evergreen around, writes are only batched within the same one.
+ */
+public final class AsyncEvergreen<T> {
+
+    /** Most writes applied under a single lock, so one batch can't keep the lock (and its executor thread) forever. */
+    private static final int MAX_BATCH_SIZE = 256;
+
+    private final Evergreen<T> evergreen;
+    private final Executor executor;
+    private final ConcurrentLinkedQueue<PendingWrite<T>> pendingWrites = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private final Runnable drainTask = this::drain;
+
+    AsyncEvergreen(Evergreen<T> evergreen, Executor executor) {
+        this.evergreen = evergreen;
+        this.executor = executor;
+    }
+
+    AsyncEvergreen(Evergreen<T> evergreen) {
+        this(evergreen, SharedExecutor.INSTANCE);
+    }
+
+    public Evergreen<T> getEvergreen() {
+        return evergreen;
+    }
+
+    /**
+     * @return completes with the stored instance, see Evergreen.get().
+     */
+    public CompletableFuture<T> get() {
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        try {
+            executor.execute(() -> {
+                try {
+                    future.complete(evergreen.get());
+                } catch (Throwable t) {
+                    future.completeExceptionally(t);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * @return completes once the instance is stored, see Evergreen.put(...). Writes of the same AsyncEvergreen are
+     * applied in the order they were called.
+     */
+    public CompletableFuture<Void> put(T instance) {
+        final CompletableFuture<T> written = enqueue((got) -> instance);
+        return written.thenApply((result) -> null);
+    }
+
+    /**
+     * @return completes with the result of the function once it is stored, see Evergreen.getAndPut(...).
+     */
+    public CompletableFuture<T> getAndPut(Function<T, T> getAndPutFunction) {
+        return enqueue(getAndPutFunction);
+    }
+
+    private CompletableFuture<T> enqueue(Function<T, T> function) {
+        final PendingWrite<T> write = new PendingWrite<>(function);
+        pendingWrites.add(write);
+        if(draining.compareAndSet(false, true)) {
+            scheduleDrain();
+        }
+        return write.future;
+    }
+
+    private void drain() {
+        final List<PendingWrite<T>> batch = new ArrayList<>();
+        PendingWrite<T> write;
+        while(batch.size()<MAX_BATCH_SIZE && (write = pendingWrites.poll())!=null) {
+            batch.add(write);
+        }
+        try {
+            apply(batch);
+        } finally {
+            draining.set(false);
+            // Whatever got queued after our poll is someone else's to drain, or ours again if nobody claimed it.
+            if(!pendingWrites.isEmpty() && draining.compareAndSet(false, true)) {
+                scheduleDrain();
+            }
+        }
+    }
+
+    /**
+     * Hands the drain task to the executor, draining must already be claimed. If the executor rejects it (say it was
+     * shut down) nobody would ever drain, so the claim is given up and every queued write fails instead.
+     */
+    private void scheduleDrain() {
+        while(true) {
+            try {
+                executor.execute(drainTask);
+                return;
+            } catch (RejectedExecutionException e) {
+                draining.set(false);
+                PendingWrite<T> write;
+                while((write = pendingWrites.poll())!=null) {
+                    write.future.completeExceptionally(e);
+                }
+                // Writes queued while we weren't looking saw draining claimed and left them to us.
+                if(pendingWrites.isEmpty() || !draining.compareAndSet(false, true)) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private void apply(List<PendingWrite<T>> batch) {
+        if(batch.isEmpty()) {
+            return;
+        }
+        final List<Function<T, T>> functions = new ArrayList<>(batch.size());
+        for(PendingWrite<T> write : batch) {
+            functions.add(write::apply);
+        }
+        final List<T> results;
+        try {
+            results = evergreen.getAndPutAll(functions);
+        } catch (Throwable t) {
+            for(PendingWrite<T> write : batch) {
+                write.future.completeExceptionally(t);
+            }
+            return;
+        }
+        for(int i=0 ; i<batch.size() ; i++) {
+            final PendingWrite<T> write = batch.get(i);
+            if(write.failure!=null) {
+                write.future.completeExceptionally(write.failure);
+            } else {
+                write.future.complete(results.get(i));
+            }
+        }
+    }
+
+    private static final class PendingWrite<T> {
+        final Function<T, T> function;
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        // Only touched by the draining thread.
+        Throwable failure;
+
+        PendingWrite(Function<T, T> function) {
+            this.function = function;
+        }
+
+        /**
+         * Runs the function, or passes the instance on untouched if it throws.
+         */
+        T apply(T got) {
+            try {
+                return function.apply(got);
+            } catch (RuntimeException e) {
+                failure = e;
+                return got;
+            }
+        }
+    }
+
+    /**
+     * Default executor, created on first use. Threads mostly wait for the lock or the disk, a few of them are enough.
+     */
+    private static final class SharedExecutor {
+        static final ExecutorService INSTANCE;
+
+        static {
+            final AtomicInteger threads = new AtomicInteger();
+            INSTANCE = Executors.newFixedThreadPool(Math.min(4, Runtime.getRuntime().availableProcessors()), (task) -> {
+                final Thread thread = new Thread(task, "evergreen-async-"+threads.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package io.github.metabrain.evergreen;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodically forces an EvergreenImpl to disk, see Durability.PERIODIC. A single daemon thread serves every instance
+ * of the JVM. Instances are only weakly referenced, so forgetting about an instance is enough for its task to stop.
+ */
+final class BackgroundForce implements Runnable {
+
+    private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor((runnable) -> {
+        final Thread thread = new Thread(runnable, "evergreen-background-force");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final WeakReference<EvergreenImpl<?>> evergreen;
+    private volatile ScheduledFuture<?> future;
+
+    private BackgroundForce(EvergreenImpl<?> evergreen) {
+        this.evergreen = new WeakReference<>(evergreen);
+    }
+
+    static void schedule(EvergreenImpl<?> evergreen, long intervalMillis) {
+        final BackgroundForce task = new BackgroundForce(evergreen);
+        task.future = SCHEDULER.scheduleWithFixedDelay(task, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void run() {
+        final EvergreenImpl<?> evergreen = this.evergreen.get();
+        if(evergreen==null || evergreen.isClosed()) {
+            final ScheduledFuture<?> future = this.future;
+            if(future!=null) {
+                future.cancel(false);
+            }
+            return;
+        }
+        try {
+            evergreen.forceIfWritten();
+        } catch (RuntimeException e) {
+            // Keep trying on the next run, an exception would cancel the task for good.
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package io.github.metabrain.evergreen;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Touches every page of a freshly opened EvergreenImpl, see EvergreenOptions.withPrefault(...), so the first reads
+ * and writes on the hot path don't stall on page faults. A single daemon thread serves every instance of the JVM, one
+ * file after the other. Instances are only weakly referenced, an instance nobody uses anymore isn't prefaulted.
+ */
+final class BackgroundPrefault implements Runnable {
+
+    private static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor((runnable) -> {
+        final Thread thread = new Thread(runnable, "evergreen-background-prefault");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final WeakReference<EvergreenImpl<?>> evergreen;
+
+    private BackgroundPrefault(EvergreenImpl<?> evergreen) {
+        this.evergreen = new WeakReference<>(evergreen);
+    }
+
+    static void schedule(EvergreenImpl<?> evergreen) {
+        EXECUTOR.execute(new BackgroundPrefault(evergreen));
+    }
+
+    @Override
+    public void run() {
+        final EvergreenImpl<?> evergreen = this.evergreen.get();
+        if(evergreen==null || evergreen.isClosed()) {
+            return;
+        }
+        try {
+            evergreen.prefault();
+        } catch (RuntimeException e) {
+            // Only an optimization.
+        }
+    }
+}
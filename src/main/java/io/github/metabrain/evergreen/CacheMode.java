@@ -0,0 +1,24 @@
+package io.github.metabrain.evergreen;
+
+/**
+ * Whether Evergreen.get() keeps the last instance it decoded around, and how it hands it out.
+ *
+ * The cache is keyed on the write sequence of the file, so as long as nobody writes, get() costs a single volatile
+ * read no matter how big the instance is.
+ */
+public enum CacheMode {
+    /**
+     * Every get() decodes a brand new instance.
+     */
+    NONE,
+    /**
+     * get() returns the very same instance until someone writes. Callers must treat it as immutable, mutating it
+     * changes what every other caller of get() sees (but not what is stored in the file).
+     */
+    SHARED_INSTANCE,
+    /**
+     * get() decodes a new instance from a private copy of the bytes it last read, so callers may mutate it. Still
+     * skips every cross-process synchronization while nobody writes.
+     */
+    DEFENSIVE_COPY
+}
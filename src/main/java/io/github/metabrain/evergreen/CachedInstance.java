@@ -0,0 +1,38 @@
+package io.github.metabrain.evergreen;
+
+import io.github.metabrain.evergreen.codec.EvergreenCodec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Last instance decoded by an EvergreenImpl, together with the write sequence it was read at. Immutable, so it can be
+ * handed between threads through a plain field.
+ */
+final class CachedInstance<T> {
+    final long sequence;
+    private final T instance;
+    // Only kept for CacheMode.DEFENSIVE_COPY
+    private final byte[] bytes;
+
+    private CachedInstance(long sequence, T instance, byte[] bytes) {
+        this.sequence = sequence;
+        this.instance = instance;
+        this.bytes = bytes;
+    }
+
+    static <T> CachedInstance<T> shared(long sequence, T instance) {
+        return new CachedInstance<>(sequence, instance, null);
+    }
+
+    static <T> CachedInstance<T> copied(long sequence, byte[] bytes) {
+        return new CachedInstance<>(sequence, null, bytes);
+    }
+
+    T get(EvergreenCodec<T> codec) throws IOException, ClassNotFoundException {
+        if(bytes==null) {
+            return instance;
+        }
+        return codec.decode(ByteBuffer.wrap(bytes));
+    }
+}
@@ -0,0 +1,13 @@
+package io.github.metabrain.evergreen;
+
+/**
+ * Called whenever the instance of an EvergreenImpl is written, see EvergreenImpl.addChangeListener(...).
+ */
+@FunctionalInterface
+public interface ChangeListener<T> {
+    /**
+     * @param instance the instance as read right after the change was seen, possibly newer than the version.
+     * @param version the write sequence the change was seen at.
+     */
+    void changed(T instance, long version);
+}
@@ -0,0 +1,52 @@
+package io.github.metabrain.evergreen;
+
+import java.io.InterruptedIOException;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Waits for changes of an EvergreenImpl and calls its listeners, see EvergreenImpl.addChangeListener(...). The
+ * instance is only weakly referenced between waits, so forgetting about an instance is enough for its watcher to stop.
+ */
+final class ChangeWatcher implements Runnable {
+
+    /** How long a single wait lasts, which is how late the watcher may notice it should stop. */
+    private static final long WAIT_MILLIS = 100;
+
+    private final WeakReference<EvergreenImpl<?>> evergreen;
+    private long version;
+
+    private ChangeWatcher(EvergreenImpl<?> evergreen, long version) {
+        this.evergreen = new WeakReference<>(evergreen);
+        this.version = version;
+    }
+
+    static Thread start(EvergreenImpl<?> evergreen, long version) {
+        final Thread thread = new Thread(new ChangeWatcher(evergreen, version), "evergreen-change-watcher");
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    @Override
+    public void run() {
+        while(true) {
+            final EvergreenImpl<?> evergreen = this.evergreen.get();
+            if(evergreen==null) {
+                return;
+            }
+            if(evergreen.stopWatching(Thread.currentThread())) {
+                return;
+            }
+            try {
+                version = evergreen.awaitChange(version, WAIT_MILLIS, TimeUnit.MILLISECONDS);
+                evergreen.fireChange(version);
+            } catch (TimeoutException e) {
+                // Nothing written, check whether anyone is still listening.
+            } catch (InterruptedIOException e) {
+                // Nobody but us knows about this thread, carry on.
+            }
+        }
+    }
+}
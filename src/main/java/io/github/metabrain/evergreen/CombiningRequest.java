@@ -0,0 +1,63 @@
+package io.github.metabrain.evergreen;
+
+import java.io.IOException;
+import java.util.function.Function;
+
+/**
+ * A getAndPut(...) waiting for whichever thread holds the lock to apply it on its behalf, see
+ * EvergreenOptions.withCombining(...).
+ */
+final class CombiningRequest<T> {
+    final Function<T, T> function;
+    final Thread waiter = Thread.currentThread();
+    // Written by the combiner before done, read by the waiter after it.
+    private T result;
+    private Throwable failure;
+    private volatile boolean done;
+
+    CombiningRequest(Function<T, T> function) {
+        this.function = function;
+    }
+
+    boolean isDone() {
+        return done;
+    }
+
+    void complete(T result) {
+        this.result = result;
+    }
+
+    void fail(Throwable failure) {
+        this.failure = failure;
+    }
+
+    boolean failed() {
+        return failure!=null;
+    }
+
+    /**
+     * Publishes the result (or failure) to the waiter.
+     */
+    void done() {
+        done = true;
+    }
+
+    /**
+     * @return the result of the function, or rethrows whatever it (or reading/writing the instance) threw.
+     */
+    T get() throws IOException, ClassNotFoundException {
+        if(failure==null) {
+            return result;
+        }
+        if(failure instanceof IOException) {
+            throw (IOException) failure;
+        }
+        if(failure instanceof ClassNotFoundException) {
+            throw (ClassNotFoundException) failure;
+        }
+        if(failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        }
+        throw (Error) failure;
+    }
+}
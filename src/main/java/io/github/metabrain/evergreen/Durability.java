@@ -0,0 +1,30 @@
+package io.github.metabrain.evergreen;
+
+/**
+ * What an Evergreen does to make its writes survive the machine crashing (power loss, kernel panic). A JVM crashing
+ * is never a problem for writes that completed, the OS still has them and writes them back eventually.
+ */
+public enum Durability {
+    /**
+     * Writes reach the disk whenever the OS decides to write the mapped pages back.
+     */
+    NONE,
+    /**
+     * A background thread forces the mapping to disk every interval (see EvergreenOptions.withForceInterval), if
+     * anything was written since the last time. At most one interval worth of writes is lost.
+     */
+    PERIODIC,
+    /**
+     * put(...) and getAndPut(...) only return once their write is on disk. Writers of the same instance that finish
+     * while a force is in progress share the next one (group commit), and the lock is not held while forcing.
+     */
+    GROUP_COMMIT,
+    /**
+     * Every write first goes to a journal in the file, sealed by a checksummed commit record, and is forced to disk
+     * before the instance itself is touched. Opening the file replays a complete commit record whose write may not
+     * have made it to disk, and drops an incomplete one, so a torn write is rolled back instead of leaving a corrupted
+     * instance behind. Writes return once on disk, and cost two forces under the lock. Only available on files created
+     * with it, since the journal takes room in the file.
+     */
+    JOURNALED
+}
@@ -1,13 +1,15 @@
 package io.github.metabrain.evergreen;
 
 import java.io.IOException;
-import java.io.Serializable;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.function.Function;
 
 /**
  * Created by meta on 10/10/2015.
  */
-public interface Evergreen<T extends Serializable> {
+public interface Evergreen<T> {
     /**
      * Attains the instance that is currently being stored in Evergreen.
      * @return the instance stored.
@@ -22,4 +24,43 @@ public interface Evergreen<T extends Serializable> {
     void put(T instance) throws IOException;
 
     T getAndPut(Function<T, T> getAndPutFunction) throws IOException, ClassNotFoundException;
+
+    /**
+     * Same as get(), but gives up if the instance can't be read before the timeout elapses.
+     * @throws TimeoutException if the lock needed couldn't be taken in time.
+     * @throws java.io.InterruptedIOException if interrupted while waiting.
+     */
+    T get(long timeout, TimeUnit unit) throws IOException, ClassNotFoundException, TimeoutException;
+
+    /**
+     * Same as put(...), but gives up if the lock can't be taken before the timeout elapses.
+     * @throws TimeoutException if the lock couldn't be taken in time, the stored instance is left untouched.
+     * @throws java.io.InterruptedIOException if interrupted while waiting.
+     */
+    void put(T instance, long timeout, TimeUnit unit) throws IOException, TimeoutException;
+
+    /**
+     * Same as getAndPut(...), but gives up if the lock can't be taken before the timeout elapses.
+     * @throws TimeoutException if the lock couldn't be taken in time, the function was not applied.
+     * @throws java.io.InterruptedIOException if interrupted while waiting.
+     */
+    T getAndPut(Function<T, T> getAndPutFunction, long timeout, TimeUnit unit) throws IOException, ClassNotFoundException, TimeoutException;
+
+    /**
+     * Applies the functions one after the other under a single lock, each one getting the result of the previous one,
+     * and stores only the last result. The instance is read and written once for the whole batch.
+     * If any function throws, nothing is stored and the exception is rethrown: the batch is all or nothing, since its
+     * functions come from a single caller and may depend on each other. Combining getAndPut(...) calls (see
+     * EvergreenOptions.withCombining) batch independent callers instead, so there a function that throws only fails
+     * its own caller and the rest of the batch goes on from the instance it was given.
+     * @return the result of each function, in order.
+     */
+    List<T> getAndPutAll(List<Function<T, T>> getAndPutFunctions) throws IOException, ClassNotFoundException;
+
+    /**
+     * Same as getAndPutAll(...), but gives up if the lock can't be taken before the timeout elapses.
+     * @throws TimeoutException if the lock couldn't be taken in time, no function was applied.
+     * @throws java.io.InterruptedIOException if interrupted while waiting.
+     */
+    List<T> getAndPutAll(List<Function<T, T>> getAndPutFunctions, long timeout, TimeUnit unit) throws IOException, ClassNotFoundException, TimeoutException;
 }
@@ -0,0 +1,85 @@
+package io.github.metabrain.evergreen;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.function.DoubleUnaryOperator;
+
+import static java.lang.Double.doubleToRawLongBits;
+import static java.lang.Double.longBitsToDouble;
+
+/**
+ * A double living in a memory mapped file, updated atomically across threads, processes and JVMs. It is stored as its
+ * raw long bits, so compareAndSet(...) compares bits rather than using ==, like Guava's AtomicDouble does.
+ * No locking, boxing or allocation is involved in any of its operations.
+ */
+public final class EvergreenDouble extends MappedPrimitive {
+
+    private static final int MAGIC = 0x45564744; // "EVGD"
+
+    protected EvergreenDouble(FileChannel fc, double initialValue) throws IOException {
+        super(fc, MAGIC, (address) -> theUnsafe.putLong(address, doubleToRawLongBits(initialValue)));
+    }
+
+    public double get() {
+        return longBitsToDouble(theUnsafe.getLong(valueAddress));
+    }
+
+    public void set(double newValue) {
+        theUnsafe.putLong(valueAddress, doubleToRawLongBits(newValue));
+    }
+
+    public boolean compareAndSet(double expect, double update) {
+        return theUnsafe.compareAndSwapLong(valueAddress, doubleToRawLongBits(expect), doubleToRawLongBits(update));
+    }
+
+    public double getAndAdd(double delta) {
+        long prevBits;
+        double prev;
+        do {
+            prevBits = theUnsafe.getLong(valueAddress);
+            prev = longBitsToDouble(prevBits);
+        } while(!theUnsafe.compareAndSwapLong(valueAddress, prevBits, doubleToRawLongBits(prev+delta)));
+        return prev;
+    }
+
+    public double addAndGet(double delta) {
+        return getAndAdd(delta)+delta;
+    }
+
+    public double incrementAndGet() {
+        return addAndGet(1.0);
+    }
+
+    /**
+     * Atomically replaces the value with the result of the function. The function may be applied more than once if
+     * other threads/processes update the value meanwhile, so it should be side-effect free.
+     * @return the previous value.
+     */
+    public double getAndUpdate(DoubleUnaryOperator updateFunction) {
+        long prevBits;
+        double prev;
+        do {
+            prevBits = theUnsafe.getLong(valueAddress);
+            prev = longBitsToDouble(prevBits);
+        } while(!theUnsafe.compareAndSwapLong(valueAddress, prevBits, doubleToRawLongBits(updateFunction.applyAsDouble(prev))));
+        return prev;
+    }
+
+    /**
+     * Same as getAndUpdate(...) but returns the updated value.
+     */
+    public double updateAndGet(DoubleUnaryOperator updateFunction) {
+        long prevBits;
+        double next;
+        do {
+            prevBits = theUnsafe.getLong(valueAddress);
+            next = updateFunction.applyAsDouble(longBitsToDouble(prevBits));
+        } while(!theUnsafe.compareAndSwapLong(valueAddress, prevBits, doubleToRawLongBits(next)));
+        return next;
+    }
+
+    @Override
+    public String toString() {
+        return Double.toString(get());
+    }
+}
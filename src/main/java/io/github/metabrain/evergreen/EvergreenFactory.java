@@ -1,12 +1,22 @@
 package io.github.metabrain.evergreen;
 
-import sun.misc.Unsafe;
-import sun.nio.ch.DirectBuffer;
+import io.github.metabrain.evergreen.codec.Codecs;
+import io.github.metabrain.evergreen.codec.EvergreenCodec;
 
 import java.io.*;
 import java.lang.reflect.Field;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.function.Supplier;
 
@@ -14,12 +24,15 @@ import java.util.function.Supplier;
  * Created by meta on 10/10/2015.
  */
 final public class EvergreenFactory {
+    private static final int OPEN_ALL_THREADS = Math.max(4, 2*Runtime.getRuntime().availableProcessors());
+
     // prevents instantiation
     private EvergreenFactory() {
         throw new AssertionError("No instance for you!");
     }
 
-    /** No garbage created approach. The object returned is cached and updated when get(...) is used.
+    /** Evergreen whose instance is written with Java serialization. See EvergreenOptions.withCacheMode(...) for
+     * having the instance returned by get() cached until someone writes.
      *
      * @param <T> class the object that will get saved on the file.
      * @param filepath
@@ -29,18 +42,302 @@ final public class EvergreenFactory {
      * @throws IOException
      */
     public static <T extends Serializable> EvergreenImpl<T> create(String filepath, int maxInstanceSizeInBytes, Supplier<T> initializer) throws IOException{
+        return create(filepath, maxInstanceSizeInBytes, initializer, Codecs.javaSerialization());
+    }
+
+    /** Same as create(filepath, maxInstanceSizeInBytes, initializer) but the instance is written to and read from the
+     * file using the given codec instead of Java serialization.
+     *
+     * @param <T> class the object that will get saved on the file.
+     * @param filepath
+     * @param maxInstanceSizeInBytes
+     * @param initializer lambda function that will provide a clean instance of the object in case none exists yet.
+     * @param codec used to encode/decode the instance directly against the memory mapped file. See Codecs for the built-in ones.
+     * @return the previously mapped instance or a new instance constructed using the initializer supplied, in case none exists yet.
+     * @throws IOException
+     */
+    public static <T> EvergreenImpl<T> create(String filepath, int maxInstanceSizeInBytes, Supplier<T> initializer, EvergreenCodec<T> codec) throws IOException{
+        return create(filepath, maxInstanceSizeInBytes, initializer, codec, new EvergreenOptions());
+    }
+
+    /** Same as create(filepath, maxInstanceSizeInBytes, initializer, codec) with extra settings for the file.
+     *
+     * @param <T> class the object that will get saved on the file.
+     * @param filepath
+     * @param maxInstanceSizeInBytes must match the size the file was created with, if it already exists.
+     * @param initializer lambda function that will provide a clean instance of the object in case none exists yet.
+     * @param codec used to encode/decode the instance directly against the memory mapped file. See Codecs for the built-in ones.
+     * @param options see EvergreenOptions.
+     * @return the previously mapped instance or a new instance constructed using the initializer supplied, in case none exists yet.
+     * @throws IOException if the file can't be mapped or its header doesn't match the requested settings.
+     */
+    public static <T> EvergreenImpl<T> create(String filepath, int maxInstanceSizeInBytes, Supplier<T> initializer, EvergreenCodec<T> codec, EvergreenOptions options) throws IOException{
+        return new EvergreenImpl<>(open(filepath), OpenFiles.fileKey(filepath), maxInstanceSizeInBytes, initializer, codec, options);
+    }
+
+    /** Opens many files at once, in parallel. Meant for startup, combined with EvergreenOptions.withLazyOpen(true) so
+     * existing instances aren't decoded yet and withPrefault(true) so their pages get loaded in the background.
+     *
+     * @param <T> class the object that will get saved on the files.
+     * @param filepaths
+     * @param maxInstanceSizeInBytes must match the size each file was created with, if it already exists.
+     * @param initializer lambda function that will provide a clean instance for files that don't exist yet.
+     * @param codec used to encode/decode the instances.
+     * @param options see EvergreenOptions, the same for every file.
+     * @return one instance per file, in the same order as the paths.
+     * @throws IOException if any of the files can't be opened, see create(...). Whichever did open are closed first.
+     */
+    public static <T> List<EvergreenImpl<T>> openAll(List<String> filepaths, int maxInstanceSizeInBytes, Supplier<T> initializer, EvergreenCodec<T> codec, EvergreenOptions options) throws IOException {
+        if(filepaths.isEmpty()) {
+            return new ArrayList<>();
+        }
+        final AtomicInteger threads = new AtomicInteger();
+        // Opening is mostly waiting on the file system, so more threads than cores still help.
+        final ExecutorService executor = Executors.newFixedThreadPool(Math.min(filepaths.size(), OPEN_ALL_THREADS), (task) -> {
+            final Thread thread = new Thread(task, "evergreen-open-"+threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        // Once set, files not being opened yet are skipped. Cancelling instead could drop an instance that opened anyway.
+        final AtomicBoolean failed = new AtomicBoolean();
+        final List<Future<EvergreenImpl<T>>> opening = new ArrayList<>(filepaths.size());
+        try {
+            for(String filepath : filepaths) {
+                opening.add(executor.submit(() -> failed.get() ? null : create(filepath, maxInstanceSizeInBytes, initializer, codec, options)));
+            }
+            final List<EvergreenImpl<T>> opened = new ArrayList<>(filepaths.size());
+            for(Future<EvergreenImpl<T>> future : opening) {
+                opened.add(future.get());
+            }
+            return opened;
+        } catch (InterruptedException e) {
+            final InterruptedIOException interrupted = new InterruptedIOException("Interrupted while opening files.");
+            failed.set(true);
+            closeOpened(opening, interrupted);
+            Thread.currentThread().interrupt();
+            throw interrupted;
+        } catch (ExecutionException e) {
+            failed.set(true);
+            final Throwable cause = e.getCause();
+            closeOpened(opening, cause);
+            if(cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if(cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if(cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        } finally {
+            // Not shutdownNow(), interrupting a thread in the middle of FileChannel I/O closes the channel.
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * After openAll(...) failed, waits for every file still being opened and closes whatever did open, so none is left
+     * holding its lock. Waits even if interrupted, the interrupt is kept for the caller.
+     * @param failure what openAll(...) is about to throw, failures to close are added to it as suppressed.
+     */
+    private static <T> void closeOpened(List<Future<EvergreenImpl<T>>> opening, Throwable failure) {
+        boolean interrupted = false;
+        for(Future<EvergreenImpl<T>> future : opening) {
+            while(true) {
+                try {
+                    final EvergreenImpl<T> opened = future.get();
+                    if(opened!=null) {
+                        opened.close();
+                    }
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    // Failed to open, nothing to close.
+                    break;
+                } catch (IOException e) {
+                    failure.addSuppressed(e);
+                    break;
+                }
+            }
+        }
+        if(interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** A long updated atomically straight in the memory mapped file, no lock, codec or allocation involved.
+     *
+     * @param filepath
+     * @param initialValue value stored in case the file doesn't exist yet.
+     * @return the long mapped from the file.
+     * @throws IOException if the file can't be mapped or holds something else.
+     */
+    public static EvergreenLong createLong(String filepath, long initialValue) throws IOException {
+        return new EvergreenLong(open(filepath), initialValue);
+    }
+
+    /** An int updated atomically straight in the memory mapped file, no lock, codec or allocation involved.
+     *
+     * @param filepath
+     * @param initialValue value stored in case the file doesn't exist yet.
+     * @return the int mapped from the file.
+     * @throws IOException if the file can't be mapped or holds something else.
+     */
+    public static EvergreenInt createInt(String filepath, int initialValue) throws IOException {
+        return new EvergreenInt(open(filepath), initialValue);
+    }
+
+    /** A double updated atomically straight in the memory mapped file, no lock, codec or allocation involved.
+     *
+     * @param filepath
+     * @param initialValue value stored in case the file doesn't exist yet.
+     * @return the double mapped from the file.
+     * @throws IOException if the file can't be mapped or holds something else.
+     */
+    public static EvergreenDouble createDouble(String filepath, double initialValue) throws IOException {
+        return new EvergreenDouble(open(filepath), initialValue);
+    }
+
+    /** A long sum striped over padded cells in the memory mapped file, for counters many threads and processes add to.
+     *
+     * @param filepath
+     * @return the adder mapped from the file, with as many cells as it was created with (64 for a new file).
+     * @throws IOException if the file can't be mapped or holds something else.
+     */
+    public static EvergreenLongAdder createLongAdder(String filepath) throws IOException {
+        return new EvergreenLongAdder(open(filepath), 0);
+    }
+
+    /** A long sum striped over padded cells in the memory mapped file, for counters many threads and processes add to.
+     *
+     * @param filepath
+     * @param cellCount power of two, about the number of threads (across every process) expected to add at once.
+     * @return the adder mapped from the file.
+     * @throws IOException if the file can't be mapped, holds something else or was created with another cell count.
+     */
+    public static EvergreenLongAdder createLongAdder(String filepath, int cellCount) throws IOException {
+        if(cellCount==0) {
+            throw new IllegalArgumentException("Cell count must be a power of two, not 0.");
+        }
+        return new EvergreenLongAdder(open(filepath), cellCount);
+    }
+
+    /** Hash map living in a single memory mapped file, keys and values written with Java serialization.
+     *
+     * @param <K> class of the keys.
+     * @param <V> class of the values.
+     * @param filepath
+     * @param capacity how many entries the map must be able to hold.
+     * @param maxKeySizeInBytes
+     * @param maxValueSizeInBytes
+     * @return the map mapped from the file, with whatever entries it already had.
+     * @throws IOException if the file can't be mapped or was created with other sizes.
+     */
+    public static <K extends Serializable, V extends Serializable> EvergreenMap<K, V> createMap(String filepath, int capacity, int maxKeySizeInBytes, int maxValueSizeInBytes) throws IOException {
+        return createMap(filepath, capacity, maxKeySizeInBytes, maxValueSizeInBytes, Codecs.javaSerialization(), Codecs.javaSerialization());
+    }
+
+    /** Hash map living in a single memory mapped file.
+     *
+     * @param <K> class of the keys.
+     * @param <V> class of the values.
+     * @param filepath
+     * @param capacity how many entries the map must be able to hold.
+     * @param maxKeySizeInBytes
+     * @param maxValueSizeInBytes
+     * @param keyCodec used to encode/decode the keys. Keys are compared by their encoded bytes.
+     * @param valueCodec used to encode/decode the values.
+     * @return the map mapped from the file, with whatever entries it already had.
+     * @throws IOException if the file can't be mapped or was created with other sizes.
+     */
+    public static <K, V> EvergreenMap<K, V> createMap(String filepath, int capacity, int maxKeySizeInBytes, int maxValueSizeInBytes, EvergreenCodec<K> keyCodec, EvergreenCodec<V> valueCodec) throws IOException {
+        return new EvergreenMap<>(open(filepath), OpenFiles.fileKey(filepath), capacity, maxKeySizeInBytes, maxValueSizeInBytes, keyCodec, valueCodec);
+    }
+
+    /** Bounded queue living in a memory mapped file, for passing messages between processes.
+     *
+     * @param <T> class of the messages.
+     * @param filepath
+     * @param capacity how many messages fit in the queue, must be a power of two.
+     * @param maxMessageSizeInBytes
+     * @param codec used to encode/decode messages straight into/from their slot.
+     * @param mode SPSC or MPSC, must match the mode the file was created with.
+     * @return the queue mapped from the file, with whatever messages were not consumed yet.
+     * @throws IOException if the file can't be mapped or was created with other settings.
+     */
+    public static <T> EvergreenQueue<T> createQueue(String filepath, int capacity, int maxMessageSizeInBytes, EvergreenCodec<T> codec, QueueMode mode) throws IOException {
+        return new EvergreenQueue<>(open(filepath), OpenFiles.fileKey(filepath), capacity, maxMessageSizeInBytes, codec, mode);
+    }
+
+    /** Many named objects sharing a single memory mapped file, see EvergreenStore.
+     *
+     * @param filepath
+     * @param capacity how many objects the store has room for in its directory.
+     * @param maxNameSizeInBytes longest object name allowed, encoded as UTF-8.
+     * @param dataSizeInBytes room for the objects themselves, rounded up to whole slabs.
+     * @return the store mapped from the file, with whatever objects it already had.
+     * @throws IOException if the file can't be mapped or was created with other settings.
+     */
+    public static EvergreenStore createStore(String filepath, int capacity, int maxNameSizeInBytes, long dataSizeInBytes) throws IOException {
+        return new EvergreenStore(open(filepath), OpenFiles.fileKey(filepath), capacity, maxNameSizeInBytes, dataSizeInBytes);
+    }
+
+    /** A fixed layout record whose fields are read and written straight in the memory mapped file, see EvergreenRecord.
+     *
+     * @param filepath
+     * @param schema layout of the record, must match the one the file was created with.
+     * @return the record mapped from the file, with all fields zeroed in case the file doesn't exist yet.
+     * @throws IOException if the file can't be mapped or was created with another schema.
+     */
+    public static EvergreenRecord createRecord(String filepath, RecordSchema schema) throws IOException {
+        return createRecord(filepath, schema, (record) -> {});
+    }
+
+    /** Same as createRecord(filepath, schema) but the initializer sets the initial field values.
+     *
+     * @param filepath
+     * @param schema layout of the record, must match the one the file was created with.
+     * @param initializer lambda function that sets the initial fields in case the file doesn't exist yet.
+     * @return the record mapped from the file.
+     * @throws IOException if the file can't be mapped or was created with another schema.
+     */
+    public static EvergreenRecord createRecord(String filepath, RecordSchema schema, Consumer<EvergreenRecord> initializer) throws IOException {
+        return new EvergreenRecord(open(filepath), OpenFiles.fileKey(filepath), schema, initializer);
+    }
+
+    /** CompletableFuture flavour of the given Evergreen, running on a small shared pool of daemon threads.
+     *
+     * @param <T> class the object that is saved on the file.
+     * @param evergreen object every operation is delegated to.
+     * @return a new AsyncEvergreen, keep it around since writes are only batched within the same one.
+     */
+    public static <T> AsyncEvergreen<T> async(Evergreen<T> evergreen) {
+        return new AsyncEvergreen<>(evergreen);
+    }
+
+    /** Same as async(evergreen), running on the given executor instead, e.g. one starting a virtual thread per task.
+     *
+     * @param <T> class the object that is saved on the file.
+     * @param evergreen object every operation is delegated to.
+     * @param executor where reads and write batches run.
+     * @return a new AsyncEvergreen, keep it around since writes are only batched within the same one.
+     */
+    public static <T> AsyncEvergreen<T> async(Evergreen<T> evergreen, Executor executor) {
+        return new AsyncEvergreen<>(evergreen, executor);
+    }
+
+    private static FileChannel open(String filepath) throws IOException {
         // Create the memory mapped file to be used to represent this object
         File f = new File(filepath);
         if(!f.exists()) {
-            if(!f.createNewFile()) {
+            // Someone else may be creating it at the same time, which is fine.
+            if(!f.createNewFile() && !f.exists()) {
                 throw new IOException("File '"+filepath+"' creation failed.");
             }
         }
 
-        FileChannel fc = new RandomAccessFile(f, "rw").getChannel();
-
-        return new EvergreenImpl<>(fc, maxInstanceSizeInBytes, initializer);
+        return new RandomAccessFile(f, "rw").getChannel();
     }
 }
-
-
@@ -1,160 +1,1646 @@
 package io.github.metabrain.evergreen;
 
+import io.github.metabrain.evergreen.codec.EvergreenCodec;
 import io.github.metabrain.evergreen.unsafe.IUnsafe;
 import io.github.metabrain.evergreen.unsafe.UnsafeUtils;
-import sun.misc.Unsafe;
-import sun.nio.ch.DirectBuffer;
 
 import java.io.*;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Function;
 import java.util.function.Supplier;
-
-import static java.util.concurrent.locks.LockSupport.parkNanos;
+import java.util.zip.CRC32;
 
 /**
  * Created by meta on 10/10/2015.
  */
 
-public final class EvergreenImpl<T extends Serializable> implements Evergreen<T> {
+public final class EvergreenImpl<T> implements Evergreen<T>, Closeable {
 
     // SPECIAL CONSTANTS
-    private static final int LOCKED = (int)1;
-    private static final int UNLOCKED = (int)0;
+    /** Optimistic reads that keep racing with writers give up and take the lock after this many attempts. */
+    private static final int MAX_OPTIMISTIC_READ_ATTEMPTS = 64;
+    /** A combining thread stops picking up other threads' functions after this many, so it gets to return too. */
+    private static final int MAX_COMBINED_BATCH = 256;
+    /** Threads waiting for a combiner recheck whether they should combine themselves at least this often. */
+    private static final int COMBINING_YIELDS = 16;
+    private static final long COMBINING_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+    /** Threads waiting for a change spin (only worth it with another core to write meanwhile), yield, then park. */
+    private static final int AWAIT_SPINS = Runtime.getRuntime().availableProcessors()>1 ? 256 : 0;
+    private static final int AWAIT_YIELDS = 16;
+    private static final long AWAIT_MIN_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(1);
+    private static final long AWAIT_MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private static final int MAGIC = 0x45564752; // "EVGR"
+    private static final int FORMAT_VERSION = 1;
+    // Evergreen 1.0 files have no magic, just their lock word and then a Java serialization stream at 0x10.
+    private static final int LEGACY_STREAM_OFFSET = 0x10;
+
+    private static final int FLAG_CHECKSUM = 0x1;
+    private static final int FLAG_JOURNAL = 0x2;
+
+    /** Growing never takes the file past what a single MappedByteBuffer can map. */
+    private static final long MAX_FILE_SIZE = Integer.MAX_VALUE;
+
+    /** The lengths and checksums of all payload slots have to fit in the rest of the sequence cache line. */
+    static final int MAX_PAYLOAD_SLOTS = 7;
 
     // OFFSETS FOR MEMORY MAPPED FILE
-    private static final int LOCK_OFFSET = 0x0;
-//        private static final int MAX_SIZE_OFFSET = 0x4;
-    // private static final int FREE_HEADER_FLD_OFFSET = 0x8;
-    // private static final int FREE_HEADER_FLD_OFFSET = 0xB;
+    // Cache line 0, written when the file is initialized and again whenever it is resized.
+    private static final int MAGIC_OFFSET = 0x0;
+    private static final int VERSION_OFFSET = 0x4;
+    private static final int MAX_SIZE_OFFSET = 0x8;
+    private static final int FLAGS_OFFSET = 0xC;
+    private static final int PAYLOAD_SLOTS_OFFSET = 0x10; // 0 in files created before it existed, meaning 1.
+    private static final int MAPPING_EPOCH_OFFSET = 0x18; // how many times the file was resized.
+    private static final int EXCLUSIVE_OWNER_OFFSET = 0x20; // pid of the process holding the file exclusively, or 0.
+    private static final int FILE_ID_OFFSET = 0x28; // random, orders the file locks taken by EvergreenTransaction.
+
+    // Cache line 1, the lock word (and its lease, see MappedLock) gets hammered by CAS so it's kept away from
+    // everything else.
+    private static final int LOCK_OFFSET = 0x40;
 
-    private static final int OBJ_START_OFFSET = 0x10; //0xF (16) bytes for total header and then object bytes start.
+    // Cache line 2, updated on every write. Length and checksum of each payload slot follow the sequence, 8 bytes
+    // per slot (slot 0 at 0x88, slot 1 at 0x90...).
+    private static final int SEQUENCE_OFFSET = 0x80;
+    private static final int SLOT_TABLE_OFFSET = 0x88;
+    private static final int SLOT_LENGTH_OFFSET = 0x0;
+    private static final int SLOT_CHECKSUM_OFFSET = 0x4;
+    private static final int SLOT_TABLE_ENTRY_SIZE = 8;
 
-    private static final int HEADER_SIZE = OBJ_START_OFFSET-1;
+    private static final int OBJ_START_OFFSET = 0xC0; // 3 cache lines of header and then object bytes start.
+    private static final int CACHE_LINE_SIZE = 64;
 
-    private final int bufSize;
-    private final MappedByteBuffer mmb;
-    private final long lockByteOffHeapAddress;
-    private final byte[] buf;
+    // Journal, only in files created with Durability.JOURNALED. Right after the last payload slot, a cache line with
+    // the commit record followed by room for one payload. Offsets relative to the start of the journal.
+    private static final int JOURNAL_SEQUENCE_OFFSET = 0x0; // sequence the write publishes, 0 when nothing pending.
+    private static final int JOURNAL_LENGTH_OFFSET = 0x8;
+    private static final int JOURNAL_CHECKSUM_OFFSET = 0xC; // CRC32 of the journaled payload.
+    private static final int JOURNAL_RECORD_CHECKSUM_OFFSET = 0x10; // CRC32 of the three above.
+    private static final int JOURNAL_PAYLOAD_OFFSET = 0x40;
 
-    private static IUnsafe theUnsafe;
+    private static final int CLASS_DECLARATION_OVERHEAD = 128;
 
-    // TODO THE HEADERS:
-    // TODO locked bit
-    // TODO initialized bit
-    // TODO bufSize of the file stored to ensure no two instances are pointing to same file and requested different sizes
+    private final int payloadSlots;
+    // How far the sequence may move during an optimistic read before the slot being copied could have been rewritten.
+    private final long overwriteDistance;
+    private final FileChannel fc;
+    // The header never moves, so the lock and sequence keep their address no matter how the file is resized.
+    private final MappedByteBuffer header;
+    private final long baseAddress;
+    // Payload slots and journal, swapped whenever the mapping epoch in the header changes.
+    private volatile PayloadMapping mapping;
+    private final ReentrantLock remapLock = new ReentrantLock();
+    private final boolean growable;
+    private final MappedLock fileLock;
+    private final OpenMode openMode;
+    private final long fileId;
+    // Identifies the file in OpenFiles, which holds the OS level lock until close().
+    private final Object fileKey;
+    private volatile boolean closed;
+    // Threads of this JVM sharing the instance queue here, the file lock doesn't tell them apart.
+    private final ReentrantLock guard = new ReentrantLock();
+    private final EvergreenCodec<T> codec;
+    private final CRC32 crc = new CRC32();
+    private final ReadMode readMode;
+    private final ThreadLocal<ReadBuffer> readBuffers;
+    private final CacheMode cacheMode;
+    // Not volatile on purpose, CachedInstance is immutable and a stale one only costs a decode.
+    private CachedInstance<T> cached;
+    // Null unless enabled, every hot path checks before touching it or reading the clock.
+    private final EvergreenMetrics metrics;
+    // getAndPut(...) calls waiting to be applied by whoever holds the lock, null unless combining.
+    private final ConcurrentLinkedQueue<CombiningRequest<T>> pending;
+    // When the lock was taken, only touched by whoever holds it.
+    private long lockedAt;
+    private final Durability durability;
+    // Whether the file has a journal, which is up to whoever created it.
+    private final boolean journal;
+    private final ByteBuffer commitRecord = ByteBuffer.allocate(16);
+    // Everything up to this sequence is known to be on disk, see forceUpTo(...).
+    private volatile long durableSequence;
+    private final ReentrantLock forceLock = new ReentrantLock();
+    private boolean checksum;
+    private final CopyOnWriteArrayList<ChangeListener<T>> listeners = new CopyOnWriteArrayList<>();
+    // A j.u.c lock rather than a monitor, so virtual threads registering listeners don't pin their carrier.
+    private final ReentrantLock listenersLock = new ReentrantLock();
+    // Thread calling the listeners, only running while there are any. Guarded by listenersLock.
+    private Thread changeWatcher;
 
-    protected EvergreenImpl(FileChannel fc, int maxInstanceSizeInBytes, Supplier<T> initializer) throws IOException {
-        this(fc, maxInstanceSizeInBytes, initializer, true);
+    private final IUnsafe theUnsafe;
+
+    /**
+     * @param fileKey what OpenFiles.fileKey(...) returns for the file fc was opened on.
+     */
+    protected EvergreenImpl(FileChannel fc, Object fileKey, int maxInstanceSizeInBytes, Supplier<T> initializer, EvergreenCodec<T> codec, EvergreenOptions options) throws IOException {
+        this(fc, fileKey, maxInstanceSizeInBytes, initializer, codec, options, true);
     }
 
-    protected EvergreenImpl(FileChannel fc, int maxInstanceSizeInBytes, Supplier<T> initializer, boolean safe) throws IOException {
+    protected EvergreenImpl(FileChannel fc, Object fileKey, int maxInstanceSizeInBytes, Supplier<T> initializer, EvergreenCodec<T> codec, EvergreenOptions options, boolean safe) throws IOException {
         if(safe) {
-            theUnsafe = UnsafeUtils.getSafeUnsafe();
+            theUnsafe = options.getMemoryOrdering()==MemoryOrdering.ACQUIRE_RELEASE
+                    ? UnsafeUtils.getOrderedUnsafe()
+                    : UnsafeUtils.getSafeUnsafe();
         } else {
             // maximum throughput, operations are not-volatile hence not mandatory to be seen by other concurrent threads.
             theUnsafe = UnsafeUtils.getFastUnsafe();
         }
 
-        bufSize = HEADER_SIZE+maxInstanceSizeInBytes+128/*class declaration overhead etc*/;
-        this.buf = new byte[bufSize];
-        this.mmb = fc.map(FileChannel.MapMode.READ_WRITE, 0, bufSize+16/*class header size??*/);
+        this.openMode = options.getOpenMode();
+        if(openMode==OpenMode.SINGLE_WRITER && options.getReadMode()==ReadMode.LOCKED) {
+            throw new IllegalArgumentException("A single writer never takes the lock, readers must read optimistically.");
+        }
+        if(options.getPayloadSlots()<1 || options.getPayloadSlots()>MAX_PAYLOAD_SLOTS) {
+            throw new IllegalArgumentException("Payload slots must be between 1 and "+MAX_PAYLOAD_SLOTS+", got "+options.getPayloadSlots()+".");
+        }
+        this.codec = codec;
+        this.readMode = options.getReadMode();
+        this.cacheMode = options.getCacheMode();
+        this.metrics = options.isMetrics() ? new EvergreenMetrics() : null;
+        this.pending = options.isCombining() ? new ConcurrentLinkedQueue<>() : null;
+        this.fc = fc;
+        this.growable = options.isGrowable();
+        this.durability = options.getDurability();
+        this.fileKey = fileKey;
+        // Before anything gets mapped or written, and held until close().
+        OpenFiles.open(fileKey, fc, openMode==OpenMode.SHARED);
+        try {
+            // The layout decides how much to map, so for files that were already initialized it comes from the header.
+            final ByteBuffer storedHeader = readStoredHeader(fc);
+            int mappedMaxSize = maxInstanceSizeInBytes;
+            long mappedEpoch = 0L;
+            if(storedHeader==null) {
+                this.payloadSlots = options.getPayloadSlots();
+                this.journal = durability==Durability.JOURNALED;
+            } else {
+                // 0 in files created before payload slots existed.
+                this.payloadSlots = Math.max(1, storedHeader.getInt(PAYLOAD_SLOTS_OFFSET));
+                this.journal = (storedHeader.getInt(FLAGS_OFFSET) & FLAG_JOURNAL)!=0;
+                mappedEpoch = storedHeader.getLong(MAPPING_EPOCH_OFFSET);
+                if(growable || mappedEpoch!=0L) {
+                    mappedMaxSize = storedHeader.getInt(MAX_SIZE_OFFSET);
+                }
+            }
+            if(durability==Durability.JOURNALED && !journal) {
+                throw new IOException("File was created without a journal, it can't be written with "+durability+" durability.");
+            }
+            // A single slot is rewritten in place by the very next write (classic seqlock), with N slots it takes the
+            // publication of N-1 other writes before a writer gets back to the one we are reading.
+            this.overwriteDistance = payloadSlots==1 ? 1 : 2L*(payloadSlots-1);
+            this.mapping = new PayloadMapping(fc, mappedEpoch, mappedMaxSize, payloadSlots, journal);
+            this.commitRecord.order(ByteOrder.nativeOrder());
+
+            this.header = fc.map(FileChannel.MapMode.READ_WRITE, 0, OBJ_START_OFFSET);
+            this.baseAddress = UnsafeUtils.getAddress(header);
+            this.fileLock = new MappedLock(theUnsafe, baseAddress+LOCK_OFFSET, options.getLockLeaseMillis(), metrics);
+            this.readBuffers = ThreadLocal.withInitial(() -> new ReadBuffer(mapping.payloadCapacity));
+
+            // Even exclusive instances lock while opening, it's what keeps shared ones from initializing the file meanwhile.
+            fileLock.lock();
+            try {
+                if(theUnsafe.getInt(baseAddress+MAGIC_OFFSET)!=MAGIC) {
+                    // Never initialized (or a previous initialization didn't get to the end).
+                    this.checksum = options.isChecksum();
+                    theUnsafe.putInt(baseAddress+PAYLOAD_SLOTS_OFFSET, payloadSlots);
+                    theUnsafe.putInt(baseAddress+FLAGS_OFFSET, (checksum ? FLAG_CHECKSUM : 0) | (journal ? FLAG_JOURNAL : 0));
+                    put0(initializer.get(), false);
+                    theUnsafe.putInt(baseAddress+VERSION_OFFSET, FORMAT_VERSION);
+                    theUnsafe.putInt(baseAddress+MAX_SIZE_OFFSET, mapping.maxInstanceSizeInBytes);
+                    // Magic goes last, so it is only there once everything else is.
+                    theUnsafe.putInt(baseAddress+MAGIC_OFFSET, MAGIC);
+                } else {
+                    validateHeader(maxInstanceSizeInBytes);
+                    // Whatever we mapped before taking the lock may be out of date by now.
+                    final long epoch = theUnsafe.getLong(baseAddress+MAPPING_EPOCH_OFFSET);
+                    final int storedMaxSize = theUnsafe.getInt(baseAddress+MAX_SIZE_OFFSET);
+                    if(mapping.epoch!=epoch || mapping.maxInstanceSizeInBytes!=storedMaxSize) {
+                        this.mapping = new PayloadMapping(fc, epoch, storedMaxSize, payloadSlots, journal);
+                    }
+                    if(journal) {
+                        recoverJournal();
+                    }
+                    // Try to get the preexisting instance in the file. If it is corrupted, insert a newly created one.
+                    // Lazy opens leave that to the first read, which fails if it is.
+                    if(!options.isLazyOpen()) {
+                        try {
+                            get0(false);
+                        } catch (Exception e) {
+                            put0(initializer.get(), false);
+                        }
+                    }
+                }
+                claimOpenMode();
+                this.fileId = claimFileId();
+                trimToLayout();
+            } finally {
+                fileLock.unlock();
+            }
+        } catch (IOException | RuntimeException | Error e) {
+            try {
+                OpenFiles.close(fileKey);
+            } catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            throw e;
+        }
+
+        if(durability==Durability.PERIODIC) {
+            BackgroundForce.schedule(this, options.getForceIntervalMillis());
+        }
+        if(options.isPrefault()) {
+            BackgroundPrefault.schedule(this);
+        }
+    }
+
+    /**
+     * Reads the first cache line of the header straight from the file, before anything is mapped or locked.
+     * @return the header, or null if the file isn't initialized yet.
+     * @throws IOException if the file holds something else, which must not be overwritten.
+     */
+    private static ByteBuffer readStoredHeader(FileChannel fc) throws IOException {
+        final ByteBuffer header = ByteBuffer.allocate(CACHE_LINE_SIZE).order(ByteOrder.nativeOrder());
+        while(header.hasRemaining()) {
+            if(fc.read(header, header.position())<0) {
+                // Whatever the file is short of reads as zeros.
+                break;
+            }
+        }
+        if(header.getInt(MAGIC_OFFSET)==MAGIC) {
+            return header;
+        }
+        checkUninitialized(header);
+        return null;
+    }
+
+    /**
+     * A header without magic is either all zeros, or that of an initialization in progress (or that died halfway),
+     * which only ever leaves valid values in the fields written before the magic. Anything else is someone else's
+     * data, including Evergreen 1.0 files, and initializing would destroy it.
+     */
+    private static void checkUninitialized(ByteBuffer header) throws IOException {
+        if((header.get(LEGACY_STREAM_OFFSET) & 0xFF)==0xAC && (header.get(LEGACY_STREAM_OFFSET+1) & 0xFF)==0xED) {
+            throw new IOException("File holds an Evergreen 1.0 instance (Java serialization right after a 16 byte "
+                    +"header, no magic), which this version can't open. Read it with 1.0 and put it in a new file.");
+        }
+        final int magic = header.getInt(MAGIC_OFFSET);
+        if(magic!=0) {
+            throw new IOException("File holds another kind of Evergreen or no Evergreen at all (magic 0x"+Integer.toHexString(magic)+").");
+        }
+        final int version = header.getInt(VERSION_OFFSET);
+        final int payloadSlots = header.getInt(PAYLOAD_SLOTS_OFFSET);
+        if((version!=0 && version!=FORMAT_VERSION) || header.getInt(MAX_SIZE_OFFSET)<0
+                || (header.getInt(FLAGS_OFFSET) & ~(FLAG_CHECKSUM | FLAG_JOURNAL))!=0
+                || payloadSlots<0 || payloadSlots>MAX_PAYLOAD_SLOTS) {
+            throw new IOException("File has no magic but its header isn't empty, it isn't an Evergreen file.");
+        }
+    }
+
+    /**
+     * Must hold the file lock. Exclusive instances leave their pid in the header for whoever looks at the file, the
+     * OS level lock taken by OpenFiles is what actually keeps everyone else out. Shared instances hold their part of
+     * that same lock, so no exclusive instance can have the file open and any pid left there is stale.
+     */
+    private void claimOpenMode() {
+        theUnsafe.putInt(baseAddress+EXCLUSIVE_OWNER_OFFSET, openMode==OpenMode.SHARED ? 0 : Processes.pid());
+    }
+
+    /**
+     * Must hold the file lock. Gives back whatever lies past the current layout, left there by compact(). Only
+     * exclusive instances do: nobody else can have the file open, so no mapping of an older layout is still read.
+     */
+    private void trimToLayout() throws IOException {
+        if(openMode!=OpenMode.SHARED && fc.size()>mapping.fileSize) {
+            fc.truncate(mapping.fileSize);
+        }
+    }
+
+    /**
+     * Must hold the file lock. Files created before transactions existed get their id the first time they're opened.
+     */
+    private long claimFileId() {
+        final long fileIdAddress = baseAddress+FILE_ID_OFFSET;
+        long id = theUnsafe.getLong(fileIdAddress);
+        while(id==0L) {
+            id = ThreadLocalRandom.current().nextLong();
+        }
+        theUnsafe.putLong(fileIdAddress, id);
+        return id;
+    }
+
+    /**
+     * Loads every page of the current mapping into memory, see BackgroundPrefault.
+     */
+    void prefault() {
+        mapping.mmb.load();
+    }
+
+    /**
+     * Identifies the file, whatever path or process it is opened from.
+     */
+    long fileId() {
+        return fileId;
+    }
+
+    private void validateHeader(int maxInstanceSizeInBytes) throws IOException {
+        final int version = theUnsafe.getInt(baseAddress+VERSION_OFFSET);
+        if(version!=FORMAT_VERSION) {
+            throw new IOException("Unsupported file format version "+version+", expected "+FORMAT_VERSION+".");
+        }
+        final int storedMaxSize = theUnsafe.getInt(baseAddress+MAX_SIZE_OFFSET);
+        // Once resized (or when we are ready to resize it ourselves) the max size is whatever the file says.
+        if(storedMaxSize!=maxInstanceSizeInBytes && !growable && theUnsafe.getLong(baseAddress+MAPPING_EPOCH_OFFSET)==0L) {
+            throw new IOException("File was created with a max instance size of "+storedMaxSize+" bytes but "
+                    +maxInstanceSizeInBytes+" bytes were requested.");
+        }
+        final int storedSlots = Math.max(1, theUnsafe.getInt(baseAddress+PAYLOAD_SLOTS_OFFSET));
+        if(storedSlots!=payloadSlots) {
+            // Only possible when racing with whoever initialized the file using other options.
+            throw new IOException("File was created with "+storedSlots+" payload slots but "+payloadSlots+" were mapped.");
+        }
+        final int flags = theUnsafe.getInt(baseAddress+FLAGS_OFFSET);
+        if(((flags & FLAG_JOURNAL)!=0)!=journal) {
+            throw new IOException("File was created "+(journal ? "without" : "with")+" a journal, unlike what was mapped.");
+        }
+        // Checksumming is a property of the file, whoever created it decided.
+        this.checksum = (flags & FLAG_CHECKSUM)!=0;
+    }
+
+    /**
+     * @return how many writes were completed on the file since it was created.
+     */
+    public long getWriteSequence() {
+        // The sequence goes up by 2 on every write, and is odd while the write is in progress.
+        return theUnsafe.getLong(baseAddress+SEQUENCE_OFFSET) >>> 1;
+    }
+
+    /**
+     * @return the largest instance the file currently has room for. Only changes when the file is resized, see
+     *         EvergreenOptions.withGrowable(...) and compact().
+     */
+    public int getMaxInstanceSizeInBytes() {
+        return theUnsafe.getInt(baseAddress+MAX_SIZE_OFFSET);
+    }
 
-        this.lockByteOffHeapAddress = ((DirectBuffer) mmb).address()+LOCK_OFFSET;
+    /**
+     * Clears the file lock no matter who holds it. Only meant for recovering a file locked by a JVM that crashed,
+     * stale locks are also recovered automatically once their lease expires and their owner process is gone.
+     * @return the pid of the process that was holding the lock, or 0 if it wasn't locked.
+     */
+    public int forceClearLock() {
+        return fileLock.forceUnlock();
+    }
 
+    /**
+     * Waits until somebody, in this or any other process, writes the instance. Checking costs a single volatile read
+     * of the write sequence: waiters spin briefly, then yield, then park with a bounded backoff, and never touch the
+     * lock or decode anything.
+     * @param lastSeenVersion a version as returned by getWriteSequence() or a previous call.
+     * @return the version now, which differs from lastSeenVersion. Several writes may have happened meanwhile.
+     * @throws InterruptedIOException if interrupted while waiting.
+     */
+    public long awaitChange(long lastSeenVersion) throws InterruptedIOException {
         try {
-            lock();
-            // Try to get the preexisting instance in the file. If it doesn't exist, insert a newly created one.
+            return awaitChange(lastSeenVersion, false, 0L);
+        } catch (TimeoutException e) {
+            throw new AssertionError("Untimed operations never time out.", e);
+        }
+    }
+
+    /**
+     * Same as awaitChange(lastSeenVersion), but gives up once the timeout elapses.
+     * @throws TimeoutException if nobody wrote in time.
+     */
+    public long awaitChange(long lastSeenVersion, long timeout, TimeUnit unit) throws InterruptedIOException, TimeoutException {
+        return awaitChange(lastSeenVersion, true, System.nanoTime()+unit.toNanos(timeout));
+    }
+
+    private long awaitChange(long lastSeenVersion, boolean timed, long deadline) throws InterruptedIOException, TimeoutException {
+        final long sequenceAddress = baseAddress+SEQUENCE_OFFSET;
+        long parkNanos = AWAIT_MIN_PARK_NANOS;
+        for(int attempt=0 ; ; attempt++) {
+            // A write in progress leaves the sequence odd, which still reads as the version before it.
+            final long version = theUnsafe.getLong(sequenceAddress) >>> 1;
+            if(version!=lastSeenVersion) {
+                return version;
+            }
+            if(timed && System.nanoTime()-deadline>=0) {
+                throw new TimeoutException("Nothing was written since version "+lastSeenVersion+".");
+            }
+
+            if(attempt<AWAIT_SPINS) {
+                Processes.onSpinWait();
+            } else if(attempt<AWAIT_SPINS+AWAIT_YIELDS) {
+                Thread.yield();
+            } else {
+                if(Thread.interrupted()) {
+                    throw new InterruptedIOException("Interrupted while waiting for a change.");
+                }
+                LockSupport.parkNanos(this, timed ? Math.min(parkNanos, Math.max(1L, deadline-System.nanoTime())) : parkNanos);
+                parkNanos = Math.min(parkNanos<<1, AWAIT_MAX_PARK_NANOS);
+            }
+        }
+    }
+
+    /**
+     * Registers a listener called with the new instance whenever the write sequence advances, no matter which process
+     * wrote. Listeners are called one after the other from a daemon thread of their own, which only runs while this
+     * instance has listeners and waits like awaitChange(...) does. Changes in quick succession may be coalesced.
+     */
+    public void addChangeListener(ChangeListener<T> listener) {
+        listenersLock.lock();
+        try {
+            listeners.add(listener);
+            if(changeWatcher==null) {
+                changeWatcher = ChangeWatcher.start(this, getWriteSequence());
+            }
+        } finally {
+            listenersLock.unlock();
+        }
+    }
+
+    /**
+     * @return false if the listener wasn't registered.
+     */
+    public boolean removeChangeListener(ChangeListener<T> listener) {
+        return listeners.remove(listener);
+    }
+
+    /**
+     * Called by the change watcher once it saw the given version. A listener throwing doesn't keep the others from
+     * being called, and if the new instance can't be read the change is skipped.
+     */
+    void fireChange(long version) {
+        final T instance;
+        try {
+            instance = get();
+        } catch (IOException | ClassNotFoundException | RuntimeException e) {
+            return;
+        }
+        for(ChangeListener<T> listener : listeners) {
             try {
-                get0(false);
-            } catch (Exception e) {
-//                System.out.println("Previous instance did not exist or was corrupted. Assigning new one...");
-                put0(initializer.get(), false);
+                listener.changed(instance, version);
+            } catch (RuntimeException e) {
+                // Not our business, the next change is still delivered.
+            }
+        }
+    }
+
+    /**
+     * Called by the change watcher when it is about to stop waiting, it only does if nobody is listening anymore.
+     * @return true if the watcher should stop.
+     */
+    boolean stopWatching(Thread watcher) {
+        listenersLock.lock();
+        try {
+            if(!listeners.isEmpty() || changeWatcher!=watcher) {
+                return false;
             }
+            changeWatcher = null;
+            return true;
         } finally {
-            unlock();
+            listenersLock.unlock();
+        }
+    }
+
+    /**
+     * Lets go of the file: exclusive instances clear their pid from the header, the OS level lock is released once
+     * no other instance of this JVM has the file open, and so are the channels. PERIODIC writes not forced yet are
+     * forced first and listeners are dropped. The instance must not be used afterwards. Closing again does nothing.
+     */
+    @Override
+    public void close() throws IOException {
+        guard.lock();
+        try {
+            if(closed) {
+                return;
+            }
+            closed = true;
+        } finally {
+            guard.unlock();
+        }
+        listeners.clear();
+        try {
+            if(durability==Durability.PERIODIC) {
+                forceIfWritten();
+            }
+            if(openMode!=OpenMode.SHARED) {
+                // Only while it still is ours, the OS level lock is the authority anyway.
+                theUnsafe.compareAndSwapInt(baseAddress+EXCLUSIVE_OWNER_OFFSET, Processes.pid(), 0);
+            }
+        } finally {
+            OpenFiles.close(fileKey);
+        }
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * @return the metrics of this instance, or null unless enabled with EvergreenOptions.withMetrics(true).
+     */
+    public EvergreenMetrics getMetrics() {
+        return metrics;
+    }
+
+    public T get() throws IOException, ClassNotFoundException {
+        try {
+            return get(false, 0L);
+        } catch (TimeoutException e) {
+            throw new AssertionError("Untimed operations never time out.", e);
+        }
+    }
+
+    public T get(long timeout, TimeUnit unit) throws IOException, ClassNotFoundException, TimeoutException {
+        return get(true, System.nanoTime()+unit.toNanos(timeout));
+    }
+
+    private T get(boolean timed, long deadline) throws IOException, ClassNotFoundException, TimeoutException {
+        if(metrics!=null) {
+            metrics.gets.increment();
+        }
+        if(cacheMode!=CacheMode.NONE) {
+            final CachedInstance<T> cachedNow = cached;
+            if(cachedNow!=null && cachedNow.sequence==theUnsafe.getLong(baseAddress+SEQUENCE_OFFSET)) {
+                // Nobody wrote since we last decoded.
+                if(metrics!=null) {
+                    metrics.cacheHits.increment();
+                }
+                return cachedNow.get(codec);
+            }
+        }
+        if(readMode==ReadMode.OPTIMISTIC) {
+            return getOptimistic(timed, deadline);
+        }
+        return getLocked(timed, deadline);
+    }
+
+    private T getLocked(boolean timed, long deadline) throws IOException, ClassNotFoundException, TimeoutException {
+        acquire(timed, deadline);
+        try {
+            if(cacheMode==CacheMode.NONE) {
+                return get0(false);
+            }
+            final PayloadMapping mapping = lockedMapping();
+            final long sequence = theUnsafe.getLong(baseAddress+SEQUENCE_OFFSET);
+            final int slot = slotOf(sequence);
+            final int length = theUnsafe.getInt(slotTableAddress(slot)+SLOT_LENGTH_OFFSET);
+            if(length<0 || length>mapping.payloadCapacity) {
+                throw new IOException("Corrupted header, stored length is "+length+".");
+            }
+            final ReadBuffer readBuffer = readBuffer(mapping.payloadCapacity);
+            theUnsafe.copyMemory(mapping.address+mapping.payloadOffset(slot), readBuffer.bytes, 0, length);
+            if(metrics!=null) {
+                metrics.bytesRead.add(length);
+            }
+            if(checksum && readBuffer.checksum(length)!=theUnsafe.getInt(slotTableAddress(slot)+SLOT_CHECKSUM_OFFSET)) {
+                throw new IOException("Checksum mismatch, stored instance is corrupted.");
+            }
+            return decodeAndCache(sequence, readBuffer, length);
+        } finally {
+            release();
+        }
+    }
+
+    private T decodeAndCache(long sequence, ReadBuffer readBuffer, int length) throws IOException, ClassNotFoundException {
+        if(metrics==null) {
+            return decodeAndCache0(sequence, readBuffer, length);
+        }
+        final long start = System.nanoTime();
+        try {
+            return decodeAndCache0(sequence, readBuffer, length);
+        } finally {
+            metrics.decode.record(System.nanoTime()-start);
+        }
+    }
+
+    private T decodeAndCache0(long sequence, ReadBuffer readBuffer, int length) throws IOException, ClassNotFoundException {
+        switch(cacheMode) {
+            case SHARED_INSTANCE:
+                final T instance = codec.decode(readBuffer.view(length));
+                cached = CachedInstance.shared(sequence, instance);
+                return instance;
+            case DEFENSIVE_COPY:
+                final byte[] bytes = Arrays.copyOf(readBuffer.bytes, length);
+                cached = CachedInstance.copied(sequence, bytes);
+                return codec.decode(ByteBuffer.wrap(bytes));
+            default:
+                return codec.decode(readBuffer.view(length));
+        }
+    }
+
+    /**
+     * Seqlock read. Copies the instance out of the file without taking any lock and only retries if a writer touched
+     * the sequence meanwhile. After too many retries we stop being polite and take the lock, or with a single writer
+     * (which takes no lock) yield and keep retrying.
+     *
+     * With more than one payload slot writers never touch the slot being read until enough other writes got
+     * published, so readers neither wait for a write in progress nor retry because of it.
+     *
+     * Resizing the file bumps the mapping epoch while the sequence is odd, so a read that raced with it is retried
+     * on the new mapping.
+     */
+    private T getOptimistic(boolean timed, long deadline) throws IOException, ClassNotFoundException, TimeoutException {
+        final long sequenceAddress = baseAddress+SEQUENCE_OFFSET;
+        final long epochAddress = baseAddress+MAPPING_EPOCH_OFFSET;
+
+        while(true) {
+            for(int attempt=0 ; attempt<MAX_OPTIMISTIC_READ_ATTEMPTS ; attempt++) {
+                final long before = theUnsafe.getLong(sequenceAddress);
+                if((before & 1)!=0) {
+                    // Write in progress (single slot) or file being resized.
+                    theUnsafe.loadFence();
+                    continue;
+                }
+                theUnsafe.loadFence();
+                final long epoch = theUnsafe.getLong(epochAddress);
+                final PayloadMapping mapping = mappingOf(epoch);
+                if(mapping==null) {
+                    continue;
+                }
+
+                final int slot = slotOf(before);
+                final long slotTableAddress = slotTableAddress(slot);
+                final int length = theUnsafe.getInt(slotTableAddress+SLOT_LENGTH_OFFSET);
+                final int storedChecksum = theUnsafe.getInt(slotTableAddress+SLOT_CHECKSUM_OFFSET);
+                if(length<0 || length>mapping.payloadCapacity) {
+                    // Torn header, the sequence check below would tell us anyway but we can't copy garbage lengths.
+                    continue;
+                }
+                final ReadBuffer readBuffer = readBuffer(mapping.payloadCapacity);
+                theUnsafe.copyMemory(mapping.address+mapping.payloadOffset(slot), readBuffer.bytes, 0, length);
+
+                theUnsafe.loadFence();
+                final long after = theUnsafe.getLong(sequenceAddress);
+                if((after & 1)!=0 || after-before>=overwriteDistance || theUnsafe.getLong(epochAddress)!=epoch) {
+                    continue;
+                }
+                if(metrics!=null) {
+                    metrics.optimisticReadRetries.add(attempt);
+                    metrics.bytesRead.add(length);
+                }
+
+                // Whatever was copied is consistent, decode it at our leisure.
+                if(checksum && readBuffer.checksum(length)!=storedChecksum) {
+                    throw new IOException("Checksum mismatch, stored instance is corrupted.");
+                }
+                return decodeAndCache(before, readBuffer, length);
+            }
+
+            if(openMode!=OpenMode.SINGLE_WRITER) {
+                break;
+            }
+            if(timed && System.nanoTime()-deadline>=0) {
+                throw new TimeoutException("Timed out waiting for the writer to leave the instance alone.");
+            }
+            Thread.yield();
+        }
+
+        if(metrics!=null) {
+            metrics.optimisticReadRetries.add(MAX_OPTIMISTIC_READ_ATTEMPTS);
+            metrics.optimisticReadFallbacks.increment();
+        }
+        return getLocked(timed, deadline);
+    }
+
+    public void put(T instance) throws IOException {
+        try {
+            put(instance, false, 0L);
+        } catch (TimeoutException e) {
+            throw new AssertionError("Untimed operations never time out.", e);
+        }
+    }
+
+    public void put(T instance, long timeout, TimeUnit unit) throws IOException, TimeoutException {
+        put(instance, true, System.nanoTime()+unit.toNanos(timeout));
+    }
+
+    private void put(T instance, boolean timed, long deadline) throws IOException, TimeoutException {
+        if(metrics!=null) {
+            metrics.puts.increment();
+        }
+        acquire(timed, deadline);
+        final long sequence;
+        try {
+            sequence = write(instance);
+        } finally {
+            release();
+        }
+        written(sequence);
+    }
+
+    public T getAndPut(Function<T, T> getAndPutFunction) throws IOException, ClassNotFoundException {
+        try {
+            return getAndPut(getAndPutFunction, false, 0L);
+        } catch (TimeoutException e) {
+            throw new AssertionError("Untimed operations never time out.", e);
+        }
+    }
+
+    public T getAndPut(Function<T, T> getAndPutFunction, long timeout, TimeUnit unit) throws IOException, ClassNotFoundException, TimeoutException {
+        return getAndPut(getAndPutFunction, true, System.nanoTime()+unit.toNanos(timeout));
+    }
+
+    private T getAndPut(Function<T, T> getAndPutFunction, boolean timed, long deadline) throws IOException, ClassNotFoundException, TimeoutException {
+        if(metrics!=null) {
+            metrics.getAndPuts.increment();
+        }
+        if(pending!=null) {
+            return getAndPutCombining(getAndPutFunction, timed, deadline);
+        }
+        acquire(timed, deadline);
+        final T result;
+        final long sequence;
+        try {
+            T got = get0(false);
+            result = getAndPutFunction.apply(got);
+            sequence = write(result);
+        } finally {
+            release();
+        }
+        written(sequence);
+        return result;
+    }
+
+    public List<T> getAndPutAll(List<Function<T, T>> getAndPutFunctions) throws IOException, ClassNotFoundException {
+        try {
+            return getAndPutAll(getAndPutFunctions, false, 0L);
+        } catch (TimeoutException e) {
+            throw new AssertionError("Untimed operations never time out.", e);
+        }
+    }
+
+    public List<T> getAndPutAll(List<Function<T, T>> getAndPutFunctions, long timeout, TimeUnit unit) throws IOException, ClassNotFoundException, TimeoutException {
+        return getAndPutAll(getAndPutFunctions, true, System.nanoTime()+unit.toNanos(timeout));
+    }
+
+    private List<T> getAndPutAll(List<Function<T, T>> getAndPutFunctions, boolean timed, long deadline) throws IOException, ClassNotFoundException, TimeoutException {
+        if(getAndPutFunctions.isEmpty()) {
+            return new ArrayList<>();
+        }
+        if(metrics!=null) {
+            metrics.getAndPuts.add(getAndPutFunctions.size());
+        }
+        final List<T> results = new ArrayList<>(getAndPutFunctions.size());
+        acquire(timed, deadline);
+        final long sequence;
+        try {
+            T current = get0(false);
+            for(Function<T, T> getAndPutFunction : getAndPutFunctions) {
+                current = getAndPutFunction.apply(current);
+                results.add(current);
+            }
+            sequence = write(current);
+        } finally {
+            release();
+        }
+        written(sequence);
+        return results;
+    }
+
+    /**
+     * Flat combining. The function is queued, and whichever thread gets the in-JVM guard applies every queued
+     * function in order on a single read of the instance, writes the last result once, and hands every waiter the
+     * result of its own function. Waiters park until done, or until they can combine themselves.
+     */
+    private T getAndPutCombining(Function<T, T> getAndPutFunction, boolean timed, long deadline) throws IOException, ClassNotFoundException, TimeoutException {
+        final CombiningRequest<T> request = new CombiningRequest<>(getAndPutFunction);
+        pending.add(request);
+        boolean interrupted = false;
+        try {
+            for(int attempt=0 ; !request.isDone() ; attempt++) {
+                if(guard.tryLock()) {
+                    try {
+                        // Only threads holding the guard take requests, so if ours isn't done it is still queued.
+                        if(!request.isDone()) {
+                            combine(request, timed, deadline);
+                        }
+                    } finally {
+                        guard.unlock();
+                    }
+                    // Whoever queued after we stopped taking requests shouldn't wait for its park to time out.
+                    final CombiningRequest<T> next = pending.peek();
+                    if(next!=null) {
+                        LockSupport.unpark(next.waiter);
+                    }
+                    continue;
+                }
+                if(attempt<COMBINING_YIELDS) {
+                    // The combiner is most likely about to be done, parking costs more than letting it finish.
+                    Thread.yield();
+                    continue;
+                }
+
+                long parkNanos = COMBINING_PARK_NANOS;
+                if(timed) {
+                    final long remaining = deadline-System.nanoTime();
+                    if(remaining<=0 && pending.remove(request)) {
+                        throw new TimeoutException("Timed out waiting for other threads of this JVM using the same instance.");
+                    }
+                    parkNanos = Math.max(1L, Math.min(parkNanos, remaining));
+                }
+                if(Thread.interrupted()) {
+                    if(pending.remove(request)) {
+                        throw new InterruptedIOException("Interrupted while waiting for other threads of this JVM using the same instance.");
+                    }
+                    // Too late, somebody is applying it already.
+                    interrupted = true;
+                }
+                LockSupport.parkNanos(this, parkNanos);
+            }
+        } finally {
+            if(interrupted) {
+                Thread.currentThread().interrupt();
+            }
         }
+        return request.get();
     }
 
-    public synchronized T get() throws IOException, ClassNotFoundException {
-        return get0(true);
+    /**
+     * Must hold the guard. Takes the file lock and applies as many queued functions as allowed.
+     * @param own the request of the combining thread, dropped from the queue if the file lock can't be taken in time.
+     */
+    private void combine(CombiningRequest<T> own, boolean timed, long deadline) throws IOException, TimeoutException {
+        final long start = metrics==null ? 0L : System.nanoTime();
+        final boolean locked;
+        try {
+            if(timed) {
+                locked = tryLockUntil(deadline);
+            } else {
+                lock();
+                locked = true;
+            }
+        } catch (IOException | RuntimeException | Error e) {
+            pending.remove(own);
+            throw e;
+        }
+        if(!locked) {
+            pending.remove(own);
+            throw new TimeoutException("Timed out waiting for the file lock, currently held by process "+fileLock.owner()+".");
+        }
+        if(metrics!=null) {
+            lockedAt = System.nanoTime();
+            metrics.lockWait.record(lockedAt-start);
+        }
+
+        final List<CombiningRequest<T>> batch = new ArrayList<>();
+        long sequence = 0L;
+        try {
+            CombiningRequest<T> next;
+            while(batch.size()<MAX_COMBINED_BATCH && (next = pending.poll())!=null) {
+                batch.add(next);
+            }
+            sequence = applyCombined(batch);
+        } finally {
+            if(metrics!=null) {
+                metrics.lockHold.record(System.nanoTime()-lockedAt);
+            }
+            unlock();
+            try {
+                if(sequence!=0L) {
+                    written(sequence);
+                }
+            } finally {
+                for(CombiningRequest<T> request : batch) {
+                    request.done();
+                    LockSupport.unpark(request.waiter);
+                }
+            }
+        }
     }
 
-    public synchronized void put(T instance) throws IOException {
-        put0(instance, true);
+    /**
+     * A function throwing only fails its own caller and is skipped, failing to read or write the instance fails
+     * every caller whose function got applied.
+     * @return the sequence written, or 0 if nothing was.
+     */
+    private long applyCombined(List<CombiningRequest<T>> batch) {
+        T current;
+        try {
+            current = get0(false);
+        } catch (IOException | ClassNotFoundException | RuntimeException | Error e) {
+            for(CombiningRequest<T> request : batch) {
+                request.fail(e);
+            }
+            return 0L;
+        }
+        boolean changed = false;
+        for(CombiningRequest<T> request : batch) {
+            try {
+                current = request.function.apply(current);
+                request.complete(current);
+                changed = true;
+            } catch (RuntimeException | Error e) {
+                request.fail(e);
+            }
+        }
+        if(!changed) {
+            return 0L;
+        }
+        try {
+            return write(current);
+        } catch (IOException | RuntimeException | Error e) {
+            for(CombiningRequest<T> request : batch) {
+                if(!request.failed()) {
+                    request.fail(e);
+                }
+            }
+            return 0L;
+        }
     }
 
-    public synchronized T getAndPut(Function<T, T> getAndPutFunction) throws IOException, ClassNotFoundException {
-        return getAndPut0(getAndPutFunction);
+    /**
+     * Takes the in-JVM guard and then the file lock. Also used by EvergreenTransaction.
+     * @param timed if false, waits for as long as it takes and never throws TimeoutException.
+     * @param deadline as given by System.nanoTime().
+     */
+    void acquire(boolean timed, long deadline) throws IOException, TimeoutException {
+        if(metrics==null) {
+            acquire0(timed, deadline);
+            return;
+        }
+        final long start = System.nanoTime();
+        acquire0(timed, deadline);
+        lockedAt = System.nanoTime();
+        metrics.lockWait.record(lockedAt-start);
     }
 
-    private void lock() {
-        boolean casSucess = false;
-        while(!casSucess) {
-            final int originalLockByteVal = theUnsafe.getInt(lockByteOffHeapAddress);
-            if(originalLockByteVal!=UNLOCKED) {
-                // Need to wait till its unlocked...
-//                    System.out.println("WAS LOCKED!!!");
-                continue;
+    private void acquire0(boolean timed, long deadline) throws IOException, TimeoutException {
+        if(openMode==OpenMode.SINGLE_WRITER) {
+            return;
+        }
+        if(!timed) {
+            guard.lock();
+            try {
+                lock();
+            } catch (IOException | RuntimeException | Error e) {
+                guard.unlock();
+                throw e;
             }
-            casSucess = theUnsafe.compareAndSwapInt(lockByteOffHeapAddress, originalLockByteVal, LOCKED);
-            if(!casSucess) {
-//                    System.out.println("CAS FAILED!!!");
+            return;
+        }
+
+        try {
+            if(!guard.tryLock(deadline-System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                throw new TimeoutException("Timed out waiting for other threads of this JVM using the same instance.");
             }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while waiting for other threads of this JVM using the same instance.");
+        }
+        final boolean locked;
+        try {
+            locked = tryLockUntil(deadline);
+        } catch (IOException | RuntimeException | Error e) {
+            guard.unlock();
+            throw e;
+        }
+        if(!locked) {
+            guard.unlock();
+            throw new TimeoutException("Timed out waiting for the file lock, currently held by process "+fileLock.owner()+".");
+        }
+    }
+
+    void release() {
+        if(metrics!=null) {
+            metrics.lockHold.record(System.nanoTime()-lockedAt);
+        }
+        if(openMode==OpenMode.SINGLE_WRITER) {
+            return;
+        }
+        unlock();
+        guard.unlock();
+    }
+
+    /**
+     * The file lock, unless nobody else can have the file open. Throws without holding it if taking over from a dead
+     * owner and cleaning up after it failed.
+     */
+    private void lock() throws IOException {
+        if(openMode==OpenMode.SHARED) {
+            fileLock.lock();
+            recoverIfTakenOver();
+        }
+    }
+
+    private boolean tryLockUntil(long deadline) throws IOException {
+        if(openMode!=OpenMode.SHARED) {
+            return true;
+        }
+        if(!fileLock.tryLockUntil(deadline)) {
+            return false;
+        }
+        recoverIfTakenOver();
+        return true;
+    }
+
+    /**
+     * Must have just taken the file lock. A journaled writer that died holding it may have been halfway through
+     * copying its committed instance to the slot, which the journal still has a complete record of. Opening the file
+     * replays it too, but instances that already had the file open would otherwise read and build on the torn copy.
+     */
+    private void recoverIfTakenOver() throws IOException {
+        if(!journal || !fileLock.tookOverFromDeadOwner()) {
+            return;
+        }
+        try {
+            recoverJournal();
+        } catch (IOException | RuntimeException | Error e) {
+            fileLock.unlock();
+            throw e;
         }
     }
 
     private void unlock() {
-        // no need to check previous value since it was locked to us so nobody could have touched it... In theory...
-        theUnsafe.putInt(lockByteOffHeapAddress, UNLOCKED);
+        if(openMode==OpenMode.SHARED) {
+            fileLock.unlock();
+        }
     }
 
-    private T get0(boolean shouldLock) throws IOException, ClassNotFoundException {
-        mmb.position(OBJ_START_OFFSET);
+    T get0(boolean shouldLock) throws IOException, ClassNotFoundException {
         if(shouldLock) {
+            lock();
             try {
-                lock();
-                mmb.get(buf);
+                return decode();
             } finally {
                 // Ensure we always leave it unlocked no mather what happens
                 unlock();
             }
         } else {
-            mmb.get(buf);
+            return decode();
         }
-
-        ByteArrayInputStream in = new ByteArrayInputStream(buf);
-        ObjectInputStream is = new ObjectInputStream(in);
-        return (T) is.readObject();
     }
 
     public void put0(T instance, boolean shouldLock) throws IOException {
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-        ObjectOutputStream os = new ObjectOutputStream(out);
-        os.writeObject(instance);
-        mmb.position(OBJ_START_OFFSET);
-
         if(shouldLock) {
+            lock();
             try {
-                lock();
-                mmb.put(out.toByteArray());
+                write(instance);
             } finally {
                 // Ensure we always leave it unlocked no mather what happens
                 unlock();
             }
         } else {
-            mmb.put(out.toByteArray());
+            write(instance);
+        }
+    }
+
+    /**
+     * Writer side, must hold the lock.
+     *
+     * With a single slot this is the writer side of the seqlock: the sequence is odd while the instance is being
+     * written so optimistic readers know they have to retry.
+     *
+     * With several slots the instance is written to the slot after the current one, which nobody reads, and then
+     * published by moving the sequence forward with one CAS. A writer dying halfway leaves the current slot untouched.
+     *
+     * An instance too big for the file grows it if the instance is growable, see grow(...).
+     *
+     * @return the sequence the instance was published with.
+     */
+    long write(T instance) throws IOException {
+        final PayloadMapping mapping = lockedMapping();
+        try {
+            return write(mapping, instance);
+        } catch (BufferOverflowException e) {
+            if(!growable) {
+                throw e;
+            }
+            return grow(mapping, instance);
+        }
+    }
+
+    private long write(PayloadMapping mapping, T instance) throws IOException {
+        if(durability==Durability.JOURNALED) {
+            return writeJournaled(mapping, instance);
+        }
+        final long sequenceAddress = baseAddress+SEQUENCE_OFFSET;
+        if(payloadSlots>1) {
+            final long sequence = theUnsafe.getLong(sequenceAddress);
+            encode(mapping, instance, slotOf(sequence+2));
+            theUnsafe.storeFence();
+            if(!theUnsafe.compareAndSwapLong(sequenceAddress, sequence, sequence+2)) {
+                throw new IOException("Write sequence changed while holding the file lock, was it forcibly cleared?");
+            }
+            return sequence+2;
+        }
+        // A writer that died mid-write leaves the sequence odd, round it down so we still end up even.
+        final long sequence = theUnsafe.getLong(sequenceAddress) & ~1L;
+        theUnsafe.putLong(sequenceAddress, sequence+1);
+        theUnsafe.storeFence();
+        boolean publish = true;
+        try {
+            encode(mapping, instance, 0);
+        } catch (BufferOverflowException e) {
+            // Growing publishes the instance itself, whatever got encoded so far must not be.
+            publish = !growable;
+            throw e;
+        } finally {
+            if(publish) {
+                theUnsafe.storeFence();
+                theUnsafe.putLong(sequenceAddress, sequence+2);
+            }
+        }
+        return sequence+2;
+    }
+
+    /**
+     * Must hold the lock. Encodes the instance that didn't fit on the heap to learn how big it is, and resizes the
+     * file for at least twice the current max instance size with the instance published in it.
+     */
+    private long grow(PayloadMapping mapping, T instance) throws IOException {
+        final ByteBuffer buffer = encodeGrowing(mapping, instance);
+        final int length = buffer.position();
+        if(metrics!=null) {
+            metrics.bytesWritten.add(length);
+        }
+        return relayout(mapping, grownMaxSize(mapping, length), buffer.array(), length);
+    }
+
+    /**
+     * Encodes the instance on the heap, in a buffer as big as it takes up to what the largest file can hold.
+     * @return the buffer, positioned right after the instance.
+     * @throws BufferOverflowException if the instance doesn't fit even the largest file.
+     */
+    private ByteBuffer encodeGrowing(PayloadMapping mapping, T instance) throws IOException {
+        final int largestMaxSize = PayloadMapping.largestMaxSize(payloadSlots, journal);
+        ByteBuffer buffer = ByteBuffer.allocate(Math.min(2*mapping.payloadCapacity, largestMaxSize+CLASS_DECLARATION_OVERHEAD));
+        while(true) {
+            try {
+                codec.encode(instance, buffer);
+                return buffer;
+            } catch (BufferOverflowException e) {
+                if(buffer.capacity()>=largestMaxSize) {
+                    throw e;
+                }
+                buffer = ByteBuffer.allocate((int) Math.min(2L*buffer.capacity(), largestMaxSize+CLASS_DECLARATION_OVERHEAD));
+            }
+        }
+    }
+
+    /**
+     * @return the max instance size to grow the file to for an instance of the given length, at least twice the
+     * current one.
+     */
+    private int grownMaxSize(PayloadMapping mapping, int length) {
+        return (int) Math.min(Math.max(length, 2L*mapping.maxInstanceSizeInBytes), PayloadMapping.largestMaxSize(payloadSlots, journal));
+    }
+
+    /**
+     * Must hold the lock. Gets out of the way whatever would make write(...) fail or resize the file for the instance,
+     * so callers writing several instances can fail before writing any of them. The instance is encoded on the heap
+     * to find out whether it fits, and if it doesn't but is growable the file grows right away, republishing the
+     * current instance like compact() does. What's left for write(...) is I/O failing (e.g. forcing the journal).
+     * @throws BufferOverflowException if the instance is too big for the file, or for any file if growable.
+     */
+    void prepareWrite(T instance) throws IOException {
+        final PayloadMapping mapping = lockedMapping();
+        if(!growable) {
+            codec.encode(instance, readBuffer(mapping.payloadCapacity).view(mapping.payloadCapacity));
+            return;
+        }
+        final int length = encodeGrowing(mapping, instance).position();
+        if(length>mapping.payloadCapacity) {
+            final byte[] current = currentBytes(mapping);
+            relayout(mapping, grownMaxSize(mapping, length), current, current.length);
+        }
+    }
+
+    /**
+     * Lays the file out again for just what the current instance needs, so its slots stop spreading over the room it
+     * took while growing for bigger instances. Other instances on the file remap on their next operation. The file
+     * keeps its length for as long as it may be shared, the disk space is only given back by the next exclusive open.
+     * @throws IllegalStateException unless this instance is growable, since the next write of a bigger instance
+     *                               would not fit anymore.
+     */
+    public void compact() throws IOException {
+        if(!growable) {
+            throw new IllegalStateException("Only growable instances can compact their file.");
+        }
+        try {
+            acquire(false, 0L);
+        } catch (TimeoutException e) {
+            throw new AssertionError("Untimed operations never time out.", e);
+        }
+        final long sequence;
+        try {
+            final PayloadMapping mapping = lockedMapping();
+            final byte[] bytes = currentBytes(mapping);
+            if(bytes.length>=mapping.maxInstanceSizeInBytes) {
+                return;
+            }
+            sequence = relayout(mapping, bytes.length, bytes, bytes.length);
+        } finally {
+            release();
+        }
+        written(sequence);
+    }
+
+    /**
+     * Must hold the lock.
+     * @return a copy of the encoded bytes of the current instance.
+     */
+    private byte[] currentBytes(PayloadMapping mapping) throws IOException {
+        final int slot = slotOf(theUnsafe.getLong(baseAddress+SEQUENCE_OFFSET));
+        final int length = theUnsafe.getInt(slotTableAddress(slot)+SLOT_LENGTH_OFFSET);
+        if(length<0 || length>mapping.payloadCapacity) {
+            throw new IOException("Corrupted header, stored length is "+length+".");
+        }
+        final byte[] bytes = new byte[length];
+        theUnsafe.copyMemory(mapping.address+mapping.payloadOffset(slot), bytes, 0, length);
+        return bytes;
+    }
+
+    /**
+     * Must hold the lock. Maps the file laid out for another max instance size (extending it if needed) and publishes
+     * the given instance bytes in it. The sequence stays odd meanwhile and the mapping epoch is bumped before the new
+     * sequence is published, so optimistic readers of the old mapping retry and remap, and everyone else remaps on
+     * their next operation. The file is never shrunk here, others may still be copying out of the old mapping and
+     * touching a truncated page kills the process (SIGBUS), see trimToLayout(). Not crash safe: the file is forced
+     * afterwards with JOURNALED durability, not journaled.
+     * @return the sequence the instance was published with.
+     */
+    private long relayout(PayloadMapping mapping, int maxInstanceSizeInBytes, byte[] bytes, int length) throws IOException {
+        final long sequenceAddress = baseAddress+SEQUENCE_OFFSET;
+        final long sequence = theUnsafe.getLong(sequenceAddress) & ~1L;
+        final PayloadMapping resized = new PayloadMapping(fc, mapping.epoch+1, maxInstanceSizeInBytes, payloadSlots, journal);
+        theUnsafe.putLong(sequenceAddress, sequence+1);
+        theUnsafe.storeFence();
+
+        final int slot = slotOf(sequence+2);
+        theUnsafe.copyMemory(bytes, 0, resized.address+resized.payloadOffset(slot), length);
+        final long slotTableAddress = slotTableAddress(slot);
+        theUnsafe.putInt(slotTableAddress+SLOT_LENGTH_OFFSET, length);
+        if(checksum) {
+            crc.reset();
+            crc.update(bytes, 0, length);
+            theUnsafe.putInt(slotTableAddress+SLOT_CHECKSUM_OFFSET, (int) crc.getValue());
+        }
+        theUnsafe.putInt(baseAddress+MAX_SIZE_OFFSET, maxInstanceSizeInBytes);
+        theUnsafe.storeFence();
+        theUnsafe.putLong(baseAddress+MAPPING_EPOCH_OFFSET, resized.epoch);
+        remapLock.lock();
+        try {
+            this.mapping = resized;
+        } finally {
+            remapLock.unlock();
+        }
+        theUnsafe.storeFence();
+        theUnsafe.putLong(sequenceAddress, sequence+2);
+
+        if(durability==Durability.JOURNALED) {
+            force(resized);
+            durableSequence = sequence+2;
+        }
+        return sequence+2;
+    }
+
+    /**
+     * Must hold the lock, so the header can't change meanwhile.
+     * @return the mapping of the current layout, remapping first if another instance resized the file.
+     */
+    private PayloadMapping lockedMapping() throws IOException {
+        final PayloadMapping current = mapping;
+        final long epoch = theUnsafe.getLong(baseAddress+MAPPING_EPOCH_OFFSET);
+        return current.epoch==epoch ? current : remap(epoch, true);
+    }
+
+    /**
+     * Lock free side of lockedMapping(), for optimistic reads.
+     * @return the mapping for the given epoch, or null if the header is changing and the read should be retried.
+     */
+    private PayloadMapping mappingOf(long epoch) throws IOException {
+        final PayloadMapping current = mapping;
+        return current.epoch==epoch ? current : remap(epoch, false);
+    }
+
+    private PayloadMapping remap(long epoch, boolean locked) throws IOException {
+        remapLock.lock();
+        try {
+            final PayloadMapping current = mapping;
+            if(current.epoch>=epoch) {
+                // Somebody else remapped meanwhile, or the epoch we read is already gone.
+                return current.epoch==epoch ? current : null;
+            }
+            theUnsafe.loadFence();
+            final int maxInstanceSizeInBytes = theUnsafe.getInt(baseAddress+MAX_SIZE_OFFSET);
+            // Without the lock the header may be changing, and mapping past the end of the file would extend it.
+            if(!locked && (theUnsafe.getLong(baseAddress+MAPPING_EPOCH_OFFSET)!=epoch
+                    || PayloadMapping.fileSize(maxInstanceSizeInBytes, payloadSlots, journal)>fc.size())) {
+                return null;
+            }
+            final PayloadMapping remapped = new PayloadMapping(fc, epoch, maxInstanceSizeInBytes, payloadSlots, journal);
+            this.mapping = remapped;
+            return remapped;
+        } finally {
+            remapLock.unlock();
+        }
+    }
+
+    /**
+     * @return this thread's read buffer, replaced by a bigger one if the file grew past it.
+     */
+    private ReadBuffer readBuffer(int capacity) {
+        ReadBuffer readBuffer = readBuffers.get();
+        if(readBuffer.bytes.length<capacity) {
+            readBuffer = new ReadBuffer(capacity);
+            readBuffers.set(readBuffer);
+        }
+        return readBuffer;
+    }
+
+    /**
+     * Write-ahead journaling, must hold the lock. The instance is encoded into the journal and sealed with the commit
+     * record, which is forced to disk before the instance is applied to its slot (and forced again). Whatever the
+     * disk ends up holding after a crash, recoverJournal() either has a complete record to replay or the untouched
+     * previous instance.
+     */
+    private long writeJournaled(PayloadMapping mapping, T instance) throws IOException {
+        final long journalAddress = mapping.address+mapping.journalOffset;
+        final int journalPayloadOffset = mapping.journalOffset+JOURNAL_PAYLOAD_OFFSET;
+        final long sequence = (theUnsafe.getLong(baseAddress+SEQUENCE_OFFSET) & ~1L)+2;
+
+        final int length = encodeAt(mapping, journalPayloadOffset, instance);
+        mapping.mmb.limit(journalPayloadOffset+length);
+        mapping.mmb.position(journalPayloadOffset);
+        final int payloadChecksum = checksum(mapping.mmb, journalPayloadOffset);
+        theUnsafe.putInt(journalAddress+JOURNAL_LENGTH_OFFSET, length);
+        theUnsafe.putInt(journalAddress+JOURNAL_CHECKSUM_OFFSET, payloadChecksum);
+        theUnsafe.putLong(journalAddress+JOURNAL_SEQUENCE_OFFSET, sequence);
+        theUnsafe.putInt(journalAddress+JOURNAL_RECORD_CHECKSUM_OFFSET, commitRecordChecksum(sequence, length, payloadChecksum));
+        force(mapping);
+
+        applyJournal(mapping, sequence, length, payloadChecksum);
+        force(mapping);
+
+        // Nothing left to replay. Not forced, replaying an applied record is harmless.
+        theUnsafe.putLong(journalAddress+JOURNAL_SEQUENCE_OFFSET, 0L);
+        durableSequence = sequence;
+        return sequence;
+    }
+
+    /**
+     * Copies the journaled payload to the slot it is published in, like write(...) would have encoded it there.
+     */
+    private void applyJournal(PayloadMapping mapping, long sequence, int length, int payloadChecksum) {
+        final long sequenceAddress = baseAddress+SEQUENCE_OFFSET;
+        final int slot = slotOf(sequence);
+        if(payloadSlots==1) {
+            theUnsafe.putLong(sequenceAddress, sequence-1);
+            theUnsafe.storeFence();
+        }
+        theUnsafe.copyMemory(mapping.address+mapping.journalOffset+JOURNAL_PAYLOAD_OFFSET, mapping.address+mapping.payloadOffset(slot), length);
+        final long slotTableAddress = slotTableAddress(slot);
+        theUnsafe.putInt(slotTableAddress+SLOT_LENGTH_OFFSET, length);
+        // Same CRC32 as the slot checksum, harmless if the file doesn't use them.
+        theUnsafe.putInt(slotTableAddress+SLOT_CHECKSUM_OFFSET, payloadChecksum);
+        theUnsafe.storeFence();
+        theUnsafe.putLong(sequenceAddress, sequence);
+    }
+
+    /**
+     * Must hold the lock, so a commit record still there can only belong to a writer that crashed. A complete one that
+     * wasn't applied yet gets replayed. An incomplete one means the crash happened before the instance was touched,
+     * so it is dropped and the previous instance stays: the torn write is rolled back.
+     */
+    private void recoverJournal() throws IOException {
+        final PayloadMapping mapping = lockedMapping();
+        final long journalAddress = mapping.address+mapping.journalOffset;
+        final long sequence = theUnsafe.getLong(journalAddress+JOURNAL_SEQUENCE_OFFSET);
+        if(sequence==0L) {
+            return;
+        }
+        final int length = theUnsafe.getInt(journalAddress+JOURNAL_LENGTH_OFFSET);
+        final int payloadChecksum = theUnsafe.getInt(journalAddress+JOURNAL_CHECKSUM_OFFSET);
+        boolean complete = theUnsafe.getInt(journalAddress+JOURNAL_RECORD_CHECKSUM_OFFSET)==commitRecordChecksum(sequence, length, payloadChecksum)
+                && length>=0 && length<=mapping.payloadCapacity;
+        if(complete) {
+            final int journalPayloadOffset = mapping.journalOffset+JOURNAL_PAYLOAD_OFFSET;
+            mapping.mmb.limit(journalPayloadOffset+length);
+            mapping.mmb.position(journalPayloadOffset);
+            complete = checksum(mapping.mmb, journalPayloadOffset)==payloadChecksum;
+        }
+        // A record older than what is published was applied already, and maybe written over since.
+        if(complete && sequence>(theUnsafe.getLong(baseAddress+SEQUENCE_OFFSET) & ~1L)) {
+            applyJournal(mapping, sequence, length, payloadChecksum);
+            force(mapping);
+        }
+        theUnsafe.putLong(journalAddress+JOURNAL_SEQUENCE_OFFSET, 0L);
+    }
+
+    private int commitRecordChecksum(long sequence, int length, int payloadChecksum) {
+        commitRecord.clear();
+        commitRecord.putLong(sequence).putInt(length).putInt(payloadChecksum);
+        commitRecord.flip();
+        crc.reset();
+        crc.update(commitRecord);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Called once a write released the lock, makes it durable as requested.
+     */
+    void written(long sequence) {
+        if(durability==Durability.GROUP_COMMIT) {
+            forceUpTo(sequence);
+        }
+    }
+
+    /**
+     * Group commit. Whoever gets to force covers every write published so far, so writers that were waiting for
+     * that force to end usually find their own write covered already.
+     */
+    private void forceUpTo(long sequence) {
+        if(durableSequence-sequence>=0) {
+            return;
         }
+        forceLock.lock();
+        try {
+            if(durableSequence-sequence>=0) {
+                return;
+            }
+            final long covered = theUnsafe.getLong(baseAddress+SEQUENCE_OFFSET);
+            // The payload mapping starts at the beginning of the file, so it covers the header too.
+            force(mapping);
+            durableSequence = covered;
+        } finally {
+            forceLock.unlock();
+        }
+    }
+
+    /**
+     * Forces the mapping if anything was written since the last time, see Durability.PERIODIC.
+     */
+    void forceIfWritten() {
+        final long sequence = theUnsafe.getLong(baseAddress+SEQUENCE_OFFSET);
+        if(sequence!=durableSequence) {
+            forceUpTo(sequence);
+        }
+    }
+
+    private void force(PayloadMapping mapping) {
+        if(metrics==null) {
+            mapping.mmb.force();
+            return;
+        }
+        final long start = System.nanoTime();
+        mapping.mmb.force();
+        metrics.force.record(System.nanoTime()-start);
+    }
+
+    private T decode() throws IOException, ClassNotFoundException {
+        final PayloadMapping mapping = lockedMapping();
+        final MappedByteBuffer mmb = mapping.mmb;
+        final int slot = slotOf(theUnsafe.getLong(baseAddress+SEQUENCE_OFFSET));
+        final long slotTableAddress = slotTableAddress(slot);
+        final int length = theUnsafe.getInt(slotTableAddress+SLOT_LENGTH_OFFSET);
+        if(length<0 || length>mapping.payloadCapacity) {
+            throw new IOException("Corrupted header, stored length is "+length+".");
+        }
+        // Only the bytes actually written are exposed to the codec.
+        final int payloadOffset = mapping.payloadOffset(slot);
+        mmb.limit(payloadOffset+length);
+        mmb.position(payloadOffset);
+        if(checksum && checksum(mmb, payloadOffset)!=theUnsafe.getInt(slotTableAddress+SLOT_CHECKSUM_OFFSET)) {
+            throw new IOException("Checksum mismatch, stored instance is corrupted.");
+        }
+        if(metrics==null) {
+            return codec.decode(mmb);
+        }
+        final long start = System.nanoTime();
+        try {
+            return codec.decode(mmb);
+        } finally {
+            metrics.decode.record(System.nanoTime()-start);
+            metrics.bytesRead.add(length);
+        }
+    }
+
+    private void encode(PayloadMapping mapping, T instance, int slot) throws IOException {
+        final int payloadOffset = mapping.payloadOffset(slot);
+        final int length = encodeAt(mapping, payloadOffset, instance);
+        final long slotTableAddress = slotTableAddress(slot);
+        theUnsafe.putInt(slotTableAddress+SLOT_LENGTH_OFFSET, length);
+        if(checksum) {
+            mapping.mmb.limit(payloadOffset+length);
+            mapping.mmb.position(payloadOffset);
+            theUnsafe.putInt(slotTableAddress+SLOT_CHECKSUM_OFFSET, checksum(mapping.mmb, payloadOffset));
+        }
+    }
+
+    /**
+     * @return how many bytes the instance took, starting at the given offset.
+     */
+    private int encodeAt(PayloadMapping mapping, int offset, T instance) throws IOException {
+        final MappedByteBuffer mmb = mapping.mmb;
+        final long start = metrics==null ? 0L : System.nanoTime();
+        mmb.limit(offset+mapping.payloadCapacity);
+        mmb.position(offset);
+        codec.encode(instance, mmb);
+        final int length = mmb.position()-offset;
+        if(metrics!=null) {
+            metrics.encode.record(System.nanoTime()-start);
+            metrics.bytesWritten.add(length);
+        }
+        return length;
+    }
+
+    /**
+     * CRC32 of the payload between the given offset and the current limit of the mapped buffer.
+     */
+    private int checksum(MappedByteBuffer mmb, int payloadOffset) {
+        crc.reset();
+        crc.update(mmb);
+        mmb.position(payloadOffset);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * @return the slot holding the instance published with the given sequence.
+     */
+    private int slotOf(long sequence) {
+        return payloadSlots==1 ? 0 : (int) ((sequence >>> 1) % payloadSlots);
+    }
+
+    private long slotTableAddress(int slot) {
+        return baseAddress+SLOT_TABLE_OFFSET+slot*SLOT_TABLE_ENTRY_SIZE;
     }
 
     public T getAndPut0(Function<T, T> getAndPutFunction) throws IOException, ClassNotFoundException {
         lock();
-        T got = get0(false);
-        T result = getAndPutFunction.apply(got);
-        put0(result, false);
-        unlock();
-        return result;
+        try {
+            T got = get0(false);
+            T result = getAndPutFunction.apply(got);
+            put0(result, false);
+            return result;
+        } finally {
+            // A throwing function must not leave the file locked forever
+            unlock();
+        }
+    }
+
+    /**
+     * One mapping of the file laid out for a given max instance size, swapped as a whole whenever the file is resized.
+     * Maps the file from its very beginning, so payload offsets are file offsets and forcing it covers the header.
+     */
+    private static final class PayloadMapping {
+        final long epoch;
+        final int maxInstanceSizeInBytes;
+        final int payloadCapacity;
+        // Distance between the payload of consecutive slots, a whole number of cache lines.
+        final int slotStride;
+        final int journalOffset;
+        final long fileSize;
+        final MappedByteBuffer mmb;
+        final long address;
+
+        PayloadMapping(FileChannel fc, long epoch, int maxInstanceSizeInBytes, int payloadSlots, boolean journal) throws IOException {
+            this.epoch = epoch;
+            this.maxInstanceSizeInBytes = maxInstanceSizeInBytes;
+            this.payloadCapacity = maxInstanceSizeInBytes+CLASS_DECLARATION_OVERHEAD;
+            this.slotStride = stride(maxInstanceSizeInBytes);
+            this.journalOffset = OBJ_START_OFFSET+payloadSlots*slotStride;
+            this.fileSize = fileSize(maxInstanceSizeInBytes, payloadSlots, journal);
+            // Mapping past the end of the file extends it.
+            this.mmb = fc.map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+            this.address = UnsafeUtils.getAddress(mmb);
+        }
+
+        int payloadOffset(int slot) {
+            return OBJ_START_OFFSET+slot*slotStride;
+        }
+
+        private static int stride(int maxInstanceSizeInBytes) {
+            return (maxInstanceSizeInBytes+CLASS_DECLARATION_OVERHEAD+CACHE_LINE_SIZE-1) & -CACHE_LINE_SIZE;
+        }
+
+        static long fileSize(int maxInstanceSizeInBytes, int payloadSlots, boolean journal) {
+            final long payloadCapacity = maxInstanceSizeInBytes+CLASS_DECLARATION_OVERHEAD;
+            final long slotStride = stride(maxInstanceSizeInBytes);
+            return journal
+                    ? OBJ_START_OFFSET+payloadSlots*slotStride+JOURNAL_PAYLOAD_OFFSET+payloadCapacity
+                    : OBJ_START_OFFSET+(payloadSlots-1)*slotStride+payloadCapacity;
+        }
+
+        /**
+         * @return the biggest max instance size a file with this layout can grow to and still be mapped at once.
+         */
+        static int largestMaxSize(int payloadSlots, boolean journal) {
+            final long perPayload = (MAX_FILE_SIZE-OBJ_START_OFFSET-JOURNAL_PAYLOAD_OFFSET)/(payloadSlots+(journal ? 1 : 0));
+            return (int) ((perPayload & -CACHE_LINE_SIZE)-CLASS_DECLARATION_OVERHEAD);
+        }
     }
 
 }
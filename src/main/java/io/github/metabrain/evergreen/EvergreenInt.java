@@ -0,0 +1,76 @@
+package io.github.metabrain.evergreen;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * An int living in a memory mapped file, updated atomically across threads, processes and JVMs. Think of it as an
+ * AtomicInteger that survives restarts. No locking, boxing or allocation is involved in any of its operations.
+ */
+public final class EvergreenInt extends MappedPrimitive {
+
+    private static final int MAGIC = 0x45564749; // "EVGI"
+
+    protected EvergreenInt(FileChannel fc, int initialValue) throws IOException {
+        super(fc, MAGIC, (address) -> theUnsafe.putInt(address, initialValue));
+    }
+
+    public int get() {
+        return theUnsafe.getInt(valueAddress);
+    }
+
+    public void set(int newValue) {
+        theUnsafe.putInt(valueAddress, newValue);
+    }
+
+    public boolean compareAndSet(int expect, int update) {
+        return theUnsafe.compareAndSwapInt(valueAddress, expect, update);
+    }
+
+    public int getAndAdd(int delta) {
+        return theUnsafe.getAndAddInt(valueAddress, delta);
+    }
+
+    public int addAndGet(int delta) {
+        return theUnsafe.getAndAddInt(valueAddress, delta)+delta;
+    }
+
+    public int incrementAndGet() {
+        return addAndGet(1);
+    }
+
+    public int decrementAndGet() {
+        return addAndGet(-1);
+    }
+
+    /**
+     * Atomically replaces the value with the result of the function. The function may be applied more than once if
+     * other threads/processes update the value meanwhile, so it should be side-effect free.
+     * @return the previous value.
+     */
+    public int getAndUpdate(IntUnaryOperator updateFunction) {
+        int prev;
+        do {
+            prev = get();
+        } while(!compareAndSet(prev, updateFunction.applyAsInt(prev)));
+        return prev;
+    }
+
+    /**
+     * Same as getAndUpdate(...) but returns the updated value.
+     */
+    public int updateAndGet(IntUnaryOperator updateFunction) {
+        int prev, next;
+        do {
+            prev = get();
+            next = updateFunction.applyAsInt(prev);
+        } while(!compareAndSet(prev, next));
+        return next;
+    }
+
+    @Override
+    public String toString() {
+        return Integer.toString(get());
+    }
+}
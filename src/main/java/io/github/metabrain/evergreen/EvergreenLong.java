@@ -0,0 +1,76 @@
+package io.github.metabrain.evergreen;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.function.LongUnaryOperator;
+
+/**
+ * A long living in a memory mapped file, updated atomically across threads, processes and JVMs. Think of it as an
+ * AtomicLong that survives restarts. No locking, boxing or allocation is involved in any of its operations.
+ */
+public final class EvergreenLong extends MappedPrimitive {
+
+    private static final int MAGIC = 0x4556474C; // "EVGL"
+
+    protected EvergreenLong(FileChannel fc, long initialValue) throws IOException {
+        super(fc, MAGIC, (address) -> theUnsafe.putLong(address, initialValue));
+    }
+
+    public long get() {
+        return theUnsafe.getLong(valueAddress);
+    }
+
+    public void set(long newValue) {
+        theUnsafe.putLong(valueAddress, newValue);
+    }
+
+    public boolean compareAndSet(long expect, long update) {
+        return theUnsafe.compareAndSwapLong(valueAddress, expect, update);
+    }
+
+    public long getAndAdd(long delta) {
+        return theUnsafe.getAndAddLong(valueAddress, delta);
+    }
+
+    public long addAndGet(long delta) {
+        return theUnsafe.getAndAddLong(valueAddress, delta)+delta;
+    }
+
+    public long incrementAndGet() {
+        return addAndGet(1L);
+    }
+
+    public long decrementAndGet() {
+        return addAndGet(-1L);
+    }
+
+    /**
+     * Atomically replaces the value with the result of the function. The function may be applied more than once if
+     * other threads/processes update the value meanwhile, so it should be side-effect free.
+     * @return the previous value.
+     */
+    public long getAndUpdate(LongUnaryOperator updateFunction) {
+        long prev;
+        do {
+            prev = get();
+        } while(!compareAndSet(prev, updateFunction.applyAsLong(prev)));
+        return prev;
+    }
+
+    /**
+     * Same as getAndUpdate(...) but returns the updated value.
+     */
+    public long updateAndGet(LongUnaryOperator updateFunction) {
+        long prev, next;
+        do {
+            prev = get();
+            next = updateFunction.applyAsLong(prev);
+        } while(!compareAndSet(prev, next));
+        return next;
+    }
+
+    @Override
+    public String toString() {
+        return Long.toString(get());
+    }
+}
@@ -0,0 +1,218 @@
+package io.github.metabrain.evergreen;
+
+import io.github.metabrain.evergreen.unsafe.IUnsafe;
+import io.github.metabrain.evergreen.unsafe.UnsafeUtils;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A striped long sum living in a memory mapped file, the cross process counterpart of LongAdder, for counters many
+ * threads of many JVMs increment all the time. An EvergreenLong would have every one of them CAS the same word, which
+ * then bounces from core to core. Here the value is split over cells, each alone in its own cache line, and each
+ * thread adds to the cell its probe points at. A thread whose CAS fails rehashes its probe and moves on to another
+ * cell, so threads that contend spread out and then stay out of each other's way.
+ *
+ * Probes are seeded from the pid and the thread id, so threads of different JVMs don't all start on the same cell.
+ *
+ * sum() reads every cell, so it costs more than EvergreenLong.get() and isn't an atomic snapshot: additions made
+ * while it runs may or may not be counted. Like any Evergreen file, the cells survive restarts.
+ */
+public final class EvergreenLongAdder {
+
+    // SPECIAL CONSTANTS
+    private static final int MAGIC = 0x45564741; // "EVGA"
+    private static final int FORMAT_VERSION = 1;
+
+    static final int DEFAULT_CELL_COUNT = 64;
+    private static final int MAX_CELL_COUNT = 1 << 16;
+
+    private static final long INIT_LOCK_LEASE_MILLIS = 10000;
+
+    // OFFSETS FOR MEMORY MAPPED FILE
+    // Cache line 0, written once when the file is initialized.
+    private static final int MAGIC_OFFSET = 0x0;
+    private static final int VERSION_OFFSET = 0x4;
+    private static final int CELL_COUNT_OFFSET = 0x8;
+    // Cache line 1, only taken to initialize the file.
+    private static final int LOCK_OFFSET = 0x40;
+    // One cell per cache line from there on.
+    private static final int CELLS_OFFSET = 0x80;
+    private static final int CELL_SIZE = 0x40;
+
+    private static final IUnsafe theUnsafe = UnsafeUtils.getSafeUnsafe();
+
+    // Shared by every adder of this JVM, a thread that had to move away from one is likely contended on the others.
+    private static final ThreadLocal<int[]> probe = ThreadLocal.withInitial(() -> new int[]{initialProbe()});
+
+    // Keeps the mapping alive for as long as this object is.
+    private final MappedByteBuffer mmb;
+    private final long cellsAddress;
+    private final int cellMask;
+
+    /**
+     * @param cellCount power of two, or 0 to take whatever the file has (DEFAULT_CELL_COUNT for a new file).
+     */
+    protected EvergreenLongAdder(FileChannel fc, int cellCount) throws IOException {
+        if(cellCount<0 || cellCount>MAX_CELL_COUNT || Integer.bitCount(cellCount)>1) {
+            throw new IllegalArgumentException("Cell count must be a power of two up to "+MAX_CELL_COUNT+", not "+cellCount+".");
+        }
+        final int storedCellCount = storedCellCount(fc);
+        if(storedCellCount<0 || storedCellCount>MAX_CELL_COUNT || Integer.bitCount(storedCellCount)>1) {
+            throw new IOException("File header holds an invalid cell count "+storedCellCount+".");
+        }
+        final int cells = storedCellCount!=0 ? storedCellCount : cellCount!=0 ? cellCount : DEFAULT_CELL_COUNT;
+        if(cellCount!=0 && cells!=cellCount) {
+            throw new IOException("File was created with "+cells+" cells rather than "+cellCount+".");
+        }
+        this.mmb = fc.map(FileChannel.MapMode.READ_WRITE, 0, CELLS_OFFSET+(long)cells*CELL_SIZE);
+        final long baseAddress = UnsafeUtils.getAddress(mmb);
+        this.cellsAddress = baseAddress+CELLS_OFFSET;
+        this.cellMask = cells-1;
+
+        if(theUnsafe.getInt(baseAddress+MAGIC_OFFSET)==MAGIC) {
+            // Already initialized, which is the common case and needs no locking at all.
+            validateHeader(baseAddress, cells);
+            return;
+        }
+
+        final MappedLock initLock = new MappedLock(theUnsafe, baseAddress+LOCK_OFFSET, INIT_LOCK_LEASE_MILLIS);
+        initLock.lock();
+        try {
+            final int magic = theUnsafe.getInt(baseAddress+MAGIC_OFFSET);
+            if(magic==0) {
+                // Cells of a new file are already zeroed.
+                theUnsafe.putInt(baseAddress+VERSION_OFFSET, FORMAT_VERSION);
+                theUnsafe.putInt(baseAddress+CELL_COUNT_OFFSET, cells);
+                // Magic goes last, so it is only there once everything else is.
+                theUnsafe.putInt(baseAddress+MAGIC_OFFSET, MAGIC);
+            } else if(magic!=MAGIC) {
+                throw new IOException("File holds another kind of Evergreen (magic 0x"+Integer.toHexString(magic)+").");
+            } else {
+                validateHeader(baseAddress, cells);
+            }
+        } finally {
+            initLock.unlock();
+        }
+    }
+
+    /**
+     * @return the cell count in the header, or 0 if the file isn't initialized yet. Read before mapping, since it
+     * decides how much to map.
+     */
+    private static int storedCellCount(FileChannel fc) throws IOException {
+        if(fc.size()<CELLS_OFFSET) {
+            return 0;
+        }
+        final MappedByteBuffer header = fc.map(FileChannel.MapMode.READ_ONLY, 0, CELLS_OFFSET);
+        final long headerAddress = UnsafeUtils.getAddress(header);
+        return theUnsafe.getInt(headerAddress+MAGIC_OFFSET)==MAGIC ? theUnsafe.getInt(headerAddress+CELL_COUNT_OFFSET) : 0;
+    }
+
+    private static void validateHeader(long baseAddress, int cells) throws IOException {
+        final int version = theUnsafe.getInt(baseAddress+VERSION_OFFSET);
+        if(version!=FORMAT_VERSION) {
+            throw new IOException("Unsupported file format version "+version+", expected "+FORMAT_VERSION+".");
+        }
+        final int storedCells = theUnsafe.getInt(baseAddress+CELL_COUNT_OFFSET);
+        if(storedCells!=cells) {
+            throw new IOException("File was created with "+storedCells+" cells rather than "+cells+".");
+        }
+    }
+
+    public void add(long delta) {
+        final int[] threadProbe = probe.get();
+        int h = threadProbe[0];
+        while(true) {
+            final long address = cellsAddress+(long)(h & cellMask)*CELL_SIZE;
+            final long prev = theUnsafe.getLong(address);
+            if(theUnsafe.compareAndSwapLong(address, prev, prev+delta)) {
+                break;
+            }
+            h = rehash(h);
+        }
+        threadProbe[0] = h;
+    }
+
+    public void increment() {
+        add(1L);
+    }
+
+    public void decrement() {
+        add(-1L);
+    }
+
+    /**
+     * @return the sum of every cell, see the class comment about concurrent additions.
+     */
+    public long sum() {
+        long sum = 0L;
+        for(int cell=0 ; cell<=cellMask ; cell++) {
+            sum += theUnsafe.getLong(cellsAddress+(long)cell*CELL_SIZE);
+        }
+        return sum;
+    }
+
+    /**
+     * Zeroes every cell. Additions made while it runs may or may not be lost, only use it while nobody adds.
+     */
+    public void reset() {
+        for(int cell=0 ; cell<=cellMask ; cell++) {
+            theUnsafe.putLong(cellsAddress+(long)cell*CELL_SIZE, 0L);
+        }
+    }
+
+    /**
+     * Same as sum() then reset(), but takes each cell out atomically, so concurrent additions are never lost: they
+     * are either in the returned sum or left in the cells.
+     */
+    public long sumThenReset() {
+        long sum = 0L;
+        for(int cell=0 ; cell<=cellMask ; cell++) {
+            final long address = cellsAddress+(long)cell*CELL_SIZE;
+            long value;
+            do {
+                value = theUnsafe.getLong(address);
+            } while(!theUnsafe.compareAndSwapLong(address, value, 0L));
+            sum += value;
+        }
+        return sum;
+    }
+
+    public int getCellCount() {
+        return cellMask+1;
+    }
+
+    private static int initialProbe() {
+        final int seed = mix((long) Processes.pid() << 32 ^ Thread.currentThread().getId());
+        return seed!=0 ? seed : 1;
+    }
+
+    /**
+     * Murmur3 finalizer, folded down to an int.
+     */
+    private static int mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /**
+     * Marsaglia xorshift, same as LongAdder's, never turns a non zero probe into 0.
+     */
+    private static int rehash(int h) {
+        h ^= h << 13;
+        h ^= h >>> 17;
+        h ^= h << 5;
+        return h;
+    }
+
+    @Override
+    public String toString() {
+        return Long.toString(sum());
+    }
+}
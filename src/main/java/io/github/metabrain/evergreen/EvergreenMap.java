@@ -0,0 +1,607 @@
+package io.github.metabrain.evergreen;
+
+import io.github.metabrain.evergreen.codec.EvergreenCodec;
+import io.github.metabrain.evergreen.unsafe.IUnsafe;
+import io.github.metabrain.evergreen.unsafe.UnsafeUtils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+
+/**
+ * Hash map living in a single memory mapped file, safe to use across threads, processes and JVMs.
+ *
+ * Entries are split in a fixed number of segments, each one with its own lock word and write sequence in the file, so
+ * writers on different segments don't get in each other's way. Inside a segment, entries are kept in fixed size slots
+ * with open addressing (linear probing, backward shift on removal). Keys and values are encoded with codecs, and a
+ * point operation only ever touches the bytes of the entries it probes, no matter how big the map is.
+ *
+ * Readers never lock: they probe optimistically and retry if the segment sequence moved, just like EvergreenImpl does
+ * in ReadMode.OPTIMISTIC.
+ *
+ * The capacity is fixed when the file is created. Since keys are spread over the segments by hash, a segment may fill
+ * up slightly before the map as a whole reaches its capacity.
+ */
+public final class EvergreenMap<K, V> implements Closeable {
+
+    // SPECIAL CONSTANTS
+    private static final int MAGIC = 0x4556474D; // "EVGM"
+    private static final int FORMAT_VERSION = 1;
+
+    private static final int MAX_OPTIMISTIC_READ_ATTEMPTS = 64;
+    private static final int MAX_SEGMENTS = 64;
+    private static final int TARGET_ENTRIES_PER_SEGMENT = 256;
+    private static final double LOAD_FACTOR = 0.7;
+    private static final long LOCK_LEASE_MILLIS = 10000;
+
+    private static final int EMPTY = 0;
+    private static final int FULL = 1;
+
+    // OFFSETS FOR MEMORY MAPPED FILE
+    // Cache line 0, written once when the file is initialized.
+    private static final int MAGIC_OFFSET = 0x0;
+    private static final int VERSION_OFFSET = 0x4;
+    private static final int CAPACITY_OFFSET = 0x8;
+    private static final int MAX_KEY_SIZE_OFFSET = 0xC;
+    private static final int MAX_VALUE_SIZE_OFFSET = 0x10;
+    private static final int SEGMENTS_OFFSET = 0x14;
+    private static final int SLOTS_PER_SEGMENT_OFFSET = 0x18;
+    // Cache line 1, only used while initializing the file.
+    private static final int INIT_LOCK_OFFSET = 0x40;
+    // Then one cache line per segment, and then the slots of every segment.
+    private static final int SEGMENT_HEADERS_OFFSET = 0x80;
+
+    // OFFSETS INSIDE A SEGMENT HEADER
+    private static final int SEGMENT_HEADER_SIZE = 0x40;
+    private static final int SEGMENT_LOCK_OFFSET = 0x0;
+    private static final int SEGMENT_SEQUENCE_OFFSET = 0x10;
+    private static final int SEGMENT_SIZE_OFFSET = 0x18;
+
+    // OFFSETS INSIDE A SLOT
+    private static final int SLOT_STATE_OFFSET = 0x0;
+    private static final int SLOT_HASH_OFFSET = 0x4;
+    private static final int SLOT_KEY_LENGTH_OFFSET = 0x8;
+    private static final int SLOT_VALUE_LENGTH_OFFSET = 0xC;
+    private static final int SLOT_KEY_OFFSET = 0x10;
+
+    private static final IUnsafe theUnsafe = UnsafeUtils.getSafeUnsafe();
+
+    // Keeps the mapping alive for as long as this object is.
+    private final MappedByteBuffer mmb;
+    private final long baseAddress;
+    private final EvergreenCodec<K> keyCodec;
+    private final EvergreenCodec<V> valueCodec;
+    private final int maxKeySizeInBytes;
+    private final int maxValueSizeInBytes;
+    private final int segments;
+    private final int slotsPerSegment;
+    private final int slotSize;
+    private final long slotsAddress;
+    private final MappedLock[] segmentLocks;
+    private final ThreadLocal<Scratch> scratches;
+    // Identifies the file in OpenFiles, which holds the OS level lock until close().
+    private final Object fileKey;
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    /**
+     * @param fileKey what OpenFiles.fileKey(...) returns for the file fc was opened on.
+     */
+    protected EvergreenMap(FileChannel fc, Object fileKey, int capacity, int maxKeySizeInBytes, int maxValueSizeInBytes,
+                           EvergreenCodec<K> keyCodec, EvergreenCodec<V> valueCodec) throws IOException {
+        this.fileKey = fileKey;
+        // Always shared, so EXCLUSIVE and SINGLE_WRITER opens of the file fail while this is open.
+        OpenFiles.open(fileKey, fc, true);
+        try {
+            if(capacity<=0 || maxKeySizeInBytes<=0 || maxValueSizeInBytes<0) {
+                throw new IllegalArgumentException("Capacity and max key size must be positive, max value size can't be negative.");
+            }
+            this.keyCodec = keyCodec;
+            this.valueCodec = valueCodec;
+            this.maxKeySizeInBytes = maxKeySizeInBytes;
+            this.maxValueSizeInBytes = maxValueSizeInBytes;
+
+            this.segments = Math.min(MAX_SEGMENTS, nextPowerOfTwo(Math.max(1, capacity/TARGET_ENTRIES_PER_SEGMENT)));
+            final int entriesPerSegment = (capacity+segments-1)/segments;
+            // +1 so that probing always finds an empty slot.
+            this.slotsPerSegment = nextPowerOfTwo((int) Math.ceil(entriesPerSegment/LOAD_FACTOR)+1);
+            this.slotSize = align8(SLOT_KEY_OFFSET+maxKeySizeInBytes+maxValueSizeInBytes);
+
+            final long slotsOffset = SEGMENT_HEADERS_OFFSET+(long)segments*SEGMENT_HEADER_SIZE;
+            final long fileSize = slotsOffset+(long)segments*slotsPerSegment*slotSize;
+            if(fileSize>Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Map would take "+fileSize+" bytes, more than can be mapped at once.");
+            }
+
+            this.mmb = fc.map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+            this.baseAddress = UnsafeUtils.getAddress(mmb);
+            this.slotsAddress = baseAddress+slotsOffset;
+
+            initialize(capacity);
+
+            this.segmentLocks = new MappedLock[segments];
+            for(int i=0 ; i<segments ; i++) {
+                segmentLocks[i] = new MappedLock(theUnsafe, segmentAddress(i)+SEGMENT_LOCK_OFFSET, LOCK_LEASE_MILLIS);
+            }
+            this.scratches = ThreadLocal.withInitial(() -> new Scratch(maxKeySizeInBytes, maxValueSizeInBytes));
+        } catch (IOException | RuntimeException | Error e) {
+            try {
+                OpenFiles.close(fileKey);
+            } catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Lets go of the file: the OS level lock is released once no other instance of this JVM has the file open, and
+     * so is the channel. The map must not be used afterwards. Closing again does nothing.
+     */
+    @Override
+    public void close() throws IOException {
+        if(closed.compareAndSet(false, true)) {
+            OpenFiles.close(fileKey);
+        }
+    }
+
+    private void initialize(int capacity) throws IOException {
+        MappedLock initLock = new MappedLock(theUnsafe, baseAddress+INIT_LOCK_OFFSET, LOCK_LEASE_MILLIS);
+        initLock.lock();
+        try {
+            final int magic = theUnsafe.getInt(baseAddress+MAGIC_OFFSET);
+            if(magic==0) {
+                // Zeroed slots are empty slots and zeroed locks are unlocked, only the header needs writing.
+                theUnsafe.putInt(baseAddress+VERSION_OFFSET, FORMAT_VERSION);
+                theUnsafe.putInt(baseAddress+CAPACITY_OFFSET, capacity);
+                theUnsafe.putInt(baseAddress+MAX_KEY_SIZE_OFFSET, maxKeySizeInBytes);
+                theUnsafe.putInt(baseAddress+MAX_VALUE_SIZE_OFFSET, maxValueSizeInBytes);
+                theUnsafe.putInt(baseAddress+SEGMENTS_OFFSET, segments);
+                theUnsafe.putInt(baseAddress+SLOTS_PER_SEGMENT_OFFSET, slotsPerSegment);
+                // Magic goes last, so it is only there once everything else is.
+                theUnsafe.putInt(baseAddress+MAGIC_OFFSET, MAGIC);
+                return;
+            }
+            if(magic!=MAGIC) {
+                throw new IOException("File holds another kind of Evergreen (magic 0x"+Integer.toHexString(magic)+").");
+            }
+            final int version = theUnsafe.getInt(baseAddress+VERSION_OFFSET);
+            if(version!=FORMAT_VERSION) {
+                throw new IOException("Unsupported file format version "+version+", expected "+FORMAT_VERSION+".");
+            }
+            if(theUnsafe.getInt(baseAddress+CAPACITY_OFFSET)!=capacity
+                    || theUnsafe.getInt(baseAddress+MAX_KEY_SIZE_OFFSET)!=maxKeySizeInBytes
+                    || theUnsafe.getInt(baseAddress+MAX_VALUE_SIZE_OFFSET)!=maxValueSizeInBytes
+                    || theUnsafe.getInt(baseAddress+SEGMENTS_OFFSET)!=segments
+                    || theUnsafe.getInt(baseAddress+SLOTS_PER_SEGMENT_OFFSET)!=slotsPerSegment) {
+                throw new IOException("File was created with a capacity of "+theUnsafe.getInt(baseAddress+CAPACITY_OFFSET)
+                        +", max key size of "+theUnsafe.getInt(baseAddress+MAX_KEY_SIZE_OFFSET)
+                        +" and max value size of "+theUnsafe.getInt(baseAddress+MAX_VALUE_SIZE_OFFSET)
+                        +", which don't match the ones requested.");
+            }
+        } finally {
+            initLock.unlock();
+        }
+    }
+
+    /**
+     * @return the value mapped to the key, or null if there is none.
+     */
+    public V get(K key) throws IOException, ClassNotFoundException {
+        final Scratch scratch = scratch();
+        final int keyLength = scratch.encodeKey(keyCodec, key);
+        final int hash = hash(scratch.key, keyLength);
+        final int segment = segmentOf(hash);
+        final long sequenceAddress = segmentAddress(segment)+SEGMENT_SEQUENCE_OFFSET;
+
+        for(int attempt=0 ; attempt<MAX_OPTIMISTIC_READ_ATTEMPTS ; attempt++) {
+            final long before = theUnsafe.getLong(sequenceAddress);
+            if((before & 1)!=0) {
+                // Write in progress.
+                theUnsafe.loadFence();
+                continue;
+            }
+            theUnsafe.loadFence();
+
+            final int index = find(segment, hash, scratch, keyLength);
+            int valueLength = -1;
+            if(index>=0) {
+                final long slot = slotAddress(segment, index);
+                valueLength = theUnsafe.getInt(slot+SLOT_VALUE_LENGTH_OFFSET);
+                if(valueLength<0 || valueLength>maxValueSizeInBytes) {
+                    // Torn slot, the sequence check would tell us anyway but we can't copy garbage lengths.
+                    continue;
+                }
+                theUnsafe.copyMemory(slot+SLOT_KEY_OFFSET+maxKeySizeInBytes, scratch.value, 0, valueLength);
+            }
+
+            theUnsafe.loadFence();
+            if(theUnsafe.getLong(sequenceAddress)!=before) {
+                continue;
+            }
+            return index<0 ? null : valueCodec.decode(scratch.valueView(valueLength));
+        }
+
+        final MappedLock lock = segmentLocks[segment];
+        lock.lock();
+        try {
+            final int index = find(segment, hash, scratch, keyLength);
+            return index<0 ? null : readValue(segment, index, scratch);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean containsKey(K key) throws IOException, ClassNotFoundException {
+        final Scratch scratch = scratch();
+        final int keyLength = scratch.encodeKey(keyCodec, key);
+        final int hash = hash(scratch.key, keyLength);
+        final int segment = segmentOf(hash);
+        final long sequenceAddress = segmentAddress(segment)+SEGMENT_SEQUENCE_OFFSET;
+
+        for(int attempt=0 ; attempt<MAX_OPTIMISTIC_READ_ATTEMPTS ; attempt++) {
+            final long before = theUnsafe.getLong(sequenceAddress);
+            if((before & 1)!=0) {
+                theUnsafe.loadFence();
+                continue;
+            }
+            theUnsafe.loadFence();
+            final int index = find(segment, hash, scratch, keyLength);
+            theUnsafe.loadFence();
+            if(theUnsafe.getLong(sequenceAddress)==before) {
+                return index>=0;
+            }
+        }
+
+        final MappedLock lock = segmentLocks[segment];
+        lock.lock();
+        try {
+            return find(segment, hash, scratch, keyLength)>=0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Maps the key to the value, replacing whatever value it had.
+     * @throws java.nio.BufferOverflowException if the key or value don't fit their max size.
+     * @throws IllegalStateException if the segment the key falls in is full.
+     */
+    public void put(K key, V value) throws IOException {
+        final Scratch scratch = scratch();
+        final int keyLength = scratch.encodeKey(keyCodec, key);
+        final int valueLength = scratch.encodeValue(valueCodec, value);
+        final int hash = hash(scratch.key, keyLength);
+        final int segment = segmentOf(hash);
+
+        final MappedLock lock = segmentLocks[segment];
+        lock.lock();
+        try {
+            write(segment, hash, scratch, keyLength, valueLength, find(segment, hash, scratch, keyLength));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return true if the key was mapped to something.
+     */
+    public boolean remove(K key) throws IOException {
+        final Scratch scratch = scratch();
+        final int keyLength = scratch.encodeKey(keyCodec, key);
+        final int hash = hash(scratch.key, keyLength);
+        final int segment = segmentOf(hash);
+
+        final MappedLock lock = segmentLocks[segment];
+        lock.lock();
+        try {
+            final int index = find(segment, hash, scratch, keyLength);
+            if(index<0) {
+                return false;
+            }
+            delete(segment, index);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Atomically maps the key to the result of the function, which gets the current value (or null if there is none).
+     * A null result removes the mapping. The function is applied exactly once while the segment is locked, so it can
+     * have side-effects, but it must not operate on this map: the key it is computing is still in this thread's
+     * scratch buffers, and its segment lock is held.
+     * @return the new value.
+     * @throws IllegalStateException if the function calls this map from the same thread.
+     */
+    public V compute(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction) throws IOException, ClassNotFoundException {
+        final Scratch scratch = scratch();
+        final int keyLength = scratch.encodeKey(keyCodec, key);
+        final int hash = hash(scratch.key, keyLength);
+        final int segment = segmentOf(hash);
+
+        final MappedLock lock = segmentLocks[segment];
+        lock.lock();
+        try {
+            final int index = find(segment, hash, scratch, keyLength);
+            final V oldValue = index<0 ? null : readValue(segment, index, scratch);
+            final V newValue;
+            scratch.computing = true;
+            try {
+                newValue = remappingFunction.apply(key, oldValue);
+            } finally {
+                scratch.computing = false;
+            }
+            if(newValue==null) {
+                if(index>=0) {
+                    delete(segment, index);
+                }
+            } else {
+                // Encoded before touching the file, if it doesn't fit the old value stays.
+                final int valueLength = scratch.encodeValue(valueCodec, newValue);
+                write(segment, hash, scratch, keyLength, valueLength, index);
+            }
+            return newValue;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return how many entries are in the map. Not a snapshot, segments are summed one by one.
+     */
+    public int size() {
+        int size = 0;
+        for(int i=0 ; i<segments ; i++) {
+            size += theUnsafe.getInt(segmentAddress(i)+SEGMENT_SIZE_OFFSET);
+        }
+        return size;
+    }
+
+    /**
+     * Calls the action for every entry. Each segment is locked while its entries are decoded, and the action is
+     * called after it is unlocked, so it may operate on this map.
+     */
+    public void forEach(BiConsumer<? super K, ? super V> action) throws IOException, ClassNotFoundException {
+        final Scratch scratch = scratch();
+        final List<K> keys = new ArrayList<>();
+        final List<V> values = new ArrayList<>();
+        for(int segment=0 ; segment<segments ; segment++) {
+            keys.clear();
+            values.clear();
+            final MappedLock lock = segmentLocks[segment];
+            lock.lock();
+            try {
+                for(int index=0 ; index<slotsPerSegment ; index++) {
+                    final long slot = slotAddress(segment, index);
+                    if(theUnsafe.getInt(slot+SLOT_STATE_OFFSET)==FULL) {
+                        final int keyLength = theUnsafe.getInt(slot+SLOT_KEY_LENGTH_OFFSET);
+                        theUnsafe.copyMemory(slot+SLOT_KEY_OFFSET, scratch.keyCompare, 0, keyLength);
+                        keys.add(keyCodec.decode(ByteBuffer.wrap(scratch.keyCompare, 0, keyLength)));
+                        values.add(readValue(segment, index, scratch));
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+            for(int i=0 ; i<keys.size() ; i++) {
+                action.accept(keys.get(i), values.get(i));
+            }
+        }
+    }
+
+    /**
+     * Probes the segment for the encoded key in the scratch.
+     * @return the index of the slot holding the key, or -(index of the first empty slot)-1 if it is not there.
+     */
+    private int find(int segment, int hash, Scratch scratch, int keyLength) {
+        final int mask = slotsPerSegment-1;
+        int index = hash & mask;
+        // Bounded, optimistic readers may be probing a segment that is being rewritten under their feet.
+        for(int probe=0 ; probe<slotsPerSegment ; probe++) {
+            final long slot = slotAddress(segment, index);
+            if(theUnsafe.getInt(slot+SLOT_STATE_OFFSET)==EMPTY) {
+                return -index-1;
+            }
+            if(theUnsafe.getInt(slot+SLOT_HASH_OFFSET)==hash
+                    && theUnsafe.getInt(slot+SLOT_KEY_LENGTH_OFFSET)==keyLength
+                    && keyEquals(slot, scratch, keyLength)) {
+                return index;
+            }
+            index = (index+1) & mask;
+        }
+        return -slotsPerSegment-1;
+    }
+
+    private boolean keyEquals(long slot, Scratch scratch, int keyLength) {
+        theUnsafe.copyMemory(slot+SLOT_KEY_OFFSET, scratch.keyCompare, 0, keyLength);
+        for(int i=0 ; i<keyLength ; i++) {
+            if(scratch.keyCompare[i]!=scratch.key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Must hold the segment lock.
+     */
+    private V readValue(int segment, int index, Scratch scratch) throws IOException, ClassNotFoundException {
+        final long slot = slotAddress(segment, index);
+        final int valueLength = theUnsafe.getInt(slot+SLOT_VALUE_LENGTH_OFFSET);
+        theUnsafe.copyMemory(slot+SLOT_KEY_OFFSET+maxKeySizeInBytes, scratch.value, 0, valueLength);
+        return valueCodec.decode(scratch.valueView(valueLength));
+    }
+
+    /**
+     * Writes the encoded key and value in the scratch, must hold the segment lock.
+     * @param index as returned by find(...).
+     */
+    private void write(int segment, int hash, Scratch scratch, int keyLength, int valueLength, int index) {
+        final long segmentAddress = segmentAddress(segment);
+        final long sizeAddress = segmentAddress+SEGMENT_SIZE_OFFSET;
+        final boolean insert = index<0;
+        // Keep at least one empty slot, probing relies on it.
+        if(insert && theUnsafe.getInt(sizeAddress)>=slotsPerSegment-1) {
+            throw new IllegalStateException("Segment "+segment+" of the map is full.");
+        }
+        final long slot = slotAddress(segment, insert ? -index-1 : index);
+
+        beginWrite(segmentAddress);
+        try {
+            theUnsafe.copyMemory(scratch.value, 0, slot+SLOT_KEY_OFFSET+maxKeySizeInBytes, valueLength);
+            theUnsafe.putInt(slot+SLOT_VALUE_LENGTH_OFFSET, valueLength);
+            if(insert) {
+                theUnsafe.copyMemory(scratch.key, 0, slot+SLOT_KEY_OFFSET, keyLength);
+                theUnsafe.putInt(slot+SLOT_KEY_LENGTH_OFFSET, keyLength);
+                theUnsafe.putInt(slot+SLOT_HASH_OFFSET, hash);
+                theUnsafe.putInt(slot+SLOT_STATE_OFFSET, FULL);
+                theUnsafe.putInt(sizeAddress, theUnsafe.getInt(sizeAddress)+1);
+            }
+        } finally {
+            endWrite(segmentAddress);
+        }
+    }
+
+    /**
+     * Empties the slot and shifts back the entries probed after it, so no tombstones are needed. Must hold the segment
+     * lock.
+     */
+    private void delete(int segment, int index) {
+        final long segmentAddress = segmentAddress(segment);
+        final int mask = slotsPerSegment-1;
+
+        beginWrite(segmentAddress);
+        try {
+            int hole = index;
+            int next = index;
+            while(true) {
+                next = (next+1) & mask;
+                final long nextSlot = slotAddress(segment, next);
+                if(theUnsafe.getInt(nextSlot+SLOT_STATE_OFFSET)==EMPTY) {
+                    break;
+                }
+                // The entry can fill the hole unless its ideal slot lies cyclically in (hole, next].
+                final int ideal = theUnsafe.getInt(nextSlot+SLOT_HASH_OFFSET) & mask;
+                final boolean movable = hole<=next ? (ideal<=hole || ideal>next) : (ideal<=hole && ideal>next);
+                if(movable) {
+                    theUnsafe.copyMemory(nextSlot, slotAddress(segment, hole), slotSize);
+                    hole = next;
+                }
+            }
+            theUnsafe.putInt(slotAddress(segment, hole)+SLOT_STATE_OFFSET, EMPTY);
+            final long sizeAddress = segmentAddress+SEGMENT_SIZE_OFFSET;
+            theUnsafe.putInt(sizeAddress, theUnsafe.getInt(sizeAddress)-1);
+        } finally {
+            endWrite(segmentAddress);
+        }
+    }
+
+    private void beginWrite(long segmentAddress) {
+        final long sequenceAddress = segmentAddress+SEGMENT_SEQUENCE_OFFSET;
+        // A writer that died mid-write leaves the sequence odd, round it down so we still end up even.
+        theUnsafe.putLong(sequenceAddress, (theUnsafe.getLong(sequenceAddress) & ~1L)+1);
+        theUnsafe.storeFence();
+    }
+
+    private void endWrite(long segmentAddress) {
+        final long sequenceAddress = segmentAddress+SEGMENT_SEQUENCE_OFFSET;
+        theUnsafe.storeFence();
+        theUnsafe.putLong(sequenceAddress, theUnsafe.getLong(sequenceAddress)+1);
+    }
+
+    private int segmentOf(int hash) {
+        // High bits pick the segment, low bits pick the slot inside it.
+        return (int) (((hash & 0xFFFFFFFFL)*segments) >>> 32);
+    }
+
+    private long segmentAddress(int segment) {
+        return baseAddress+SEGMENT_HEADERS_OFFSET+(long)segment*SEGMENT_HEADER_SIZE;
+    }
+
+    private long slotAddress(int segment, int index) {
+        return slotsAddress+((long)segment*slotsPerSegment+index)*slotSize;
+    }
+
+    /**
+     * Hash of the encoded key, so it is the same on every JVM no matter what hashCode() the key has.
+     */
+    static int hash(byte[] bytes, int length) {
+        int h = length;
+        for(int i=0 ; i<length ; i++) {
+            h = 31*h+bytes[i];
+        }
+        // murmur3 finalizer, spreads the bits so both ends of the hash are usable.
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    private static int nextPowerOfTwo(int value) {
+        return value<=1 ? 1 : Integer.highestOneBit(value-1)<<1;
+    }
+
+    private static int align8(int value) {
+        return (value+7) & ~7;
+    }
+
+    /**
+     * @throws IllegalStateException if called from within a compute(...) function, which would overwrite the buffers
+     * its caller is still using (or wait forever on the segment lock it holds).
+     */
+    private Scratch scratch() {
+        final Scratch scratch = scratches.get();
+        if(scratch.computing) {
+            throw new IllegalStateException("The function given to compute(...) must not call the map.");
+        }
+        return scratch;
+    }
+
+    /**
+     * Per thread buffers where keys and values are encoded/decoded, so the file is only touched under the right lock.
+     */
+    private static final class Scratch {
+        final byte[] key;
+        final byte[] keyCompare;
+        final byte[] value;
+        private final ByteBuffer keyBuffer;
+        private final ByteBuffer valueBuffer;
+        // Set while a compute(...) function runs on this thread.
+        boolean computing;
+
+        Scratch(int maxKeySizeInBytes, int maxValueSizeInBytes) {
+            this.key = new byte[maxKeySizeInBytes];
+            this.keyCompare = new byte[maxKeySizeInBytes];
+            this.value = new byte[maxValueSizeInBytes];
+            this.keyBuffer = ByteBuffer.wrap(key);
+            this.valueBuffer = ByteBuffer.wrap(value);
+        }
+
+        <K> int encodeKey(EvergreenCodec<K> keyCodec, K key) throws IOException {
+            keyBuffer.clear();
+            keyCodec.encode(key, keyBuffer);
+            return keyBuffer.position();
+        }
+
+        <V> int encodeValue(EvergreenCodec<V> valueCodec, V value) throws IOException {
+            valueBuffer.clear();
+            valueCodec.encode(value, valueBuffer);
+            return valueBuffer.position();
+        }
+
+        ByteBuffer valueView(int length) {
+            valueBuffer.clear();
+            valueBuffer.limit(length);
+            return valueBuffer;
+        }
+    }
+}
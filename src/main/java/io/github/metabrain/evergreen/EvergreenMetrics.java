@@ -0,0 +1,194 @@
+package io.github.metabrain.evergreen;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms of a single Evergreen instance, only collected when enabled with
+ * EvergreenOptions.withMetrics(true). Everything is kept in LongAdders, so recording from many threads doesn't
+ * introduce contention of its own, and instances with metrics disabled don't even call System.nanoTime().
+ *
+ * Metrics are per instance, not per file: other processes' operations on the same file are not counted.
+ */
+public final class EvergreenMetrics implements EvergreenMetricsMXBean {
+
+    private static final String DOMAIN = "io.github.metabrain.evergreen";
+
+    final LongAdder gets = new LongAdder();
+    final LongAdder puts = new LongAdder();
+    final LongAdder getAndPuts = new LongAdder();
+    final LongAdder cacheHits = new LongAdder();
+    final LongAdder optimisticReadRetries = new LongAdder();
+    final LongAdder optimisticReadFallbacks = new LongAdder();
+    final LongAdder bytesRead = new LongAdder();
+    final LongAdder bytesWritten = new LongAdder();
+    private final LongAdder lockCasFailures = new LongAdder();
+    private final LongAdder lockSpins = new LongAdder();
+    private final LongAdder lockYields = new LongAdder();
+    private final LongAdder lockParks = new LongAdder();
+    final LatencyHistogram lockWait = new LatencyHistogram();
+    final LatencyHistogram lockHold = new LatencyHistogram();
+    final LatencyHistogram encode = new LatencyHistogram();
+    final LatencyHistogram decode = new LatencyHistogram();
+    final LatencyHistogram force = new LatencyHistogram();
+
+    private volatile ObjectName objectName;
+
+    EvergreenMetrics() {
+    }
+
+    /**
+     * Called by MappedLock once it took the lock (or gave up), only if it had to wait for it.
+     */
+    void lockContended(long casFailures, long spins, long yields, long parks) {
+        lockCasFailures.add(casFailures);
+        lockSpins.add(spins);
+        lockYields.add(yields);
+        lockParks.add(parks);
+    }
+
+    /**
+     * Registers these metrics in the platform MBean server as io.github.metabrain.evergreen:type=Evergreen,name=...
+     * @param name tells this instance apart from others, e.g. the file path.
+     * @return the name it was registered with.
+     * @throws IllegalStateException if another instance is already registered with the same name.
+     */
+    public ObjectName register(String name) {
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            final ObjectName objectName = new ObjectName(DOMAIN+":type=Evergreen,name="+ObjectName.quote(name));
+            server.registerMBean(this, objectName);
+            this.objectName = objectName;
+            return objectName;
+        } catch (InstanceAlreadyExistsException e) {
+            throw new IllegalStateException("Metrics named "+name+" are already registered.", e);
+        } catch (JMException e) {
+            throw new IllegalStateException("Couldn't register metrics named "+name+".", e);
+        }
+    }
+
+    /**
+     * Removes these metrics from the platform MBean server, if they were registered.
+     */
+    public void unregister() {
+        final ObjectName objectName = this.objectName;
+        if(objectName==null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException e) {
+            // Somebody else unregistered it already.
+        }
+        this.objectName = null;
+    }
+
+    @Override
+    public long getGets() {
+        return gets.sum();
+    }
+
+    @Override
+    public long getPuts() {
+        return puts.sum();
+    }
+
+    @Override
+    public long getGetAndPuts() {
+        return getAndPuts.sum();
+    }
+
+    @Override
+    public long getCacheHits() {
+        return cacheHits.sum();
+    }
+
+    @Override
+    public long getOptimisticReadRetries() {
+        return optimisticReadRetries.sum();
+    }
+
+    @Override
+    public long getOptimisticReadFallbacks() {
+        return optimisticReadFallbacks.sum();
+    }
+
+    @Override
+    public long getLockCasFailures() {
+        return lockCasFailures.sum();
+    }
+
+    @Override
+    public long getLockSpins() {
+        return lockSpins.sum();
+    }
+
+    @Override
+    public long getLockYields() {
+        return lockYields.sum();
+    }
+
+    @Override
+    public long getLockParks() {
+        return lockParks.sum();
+    }
+
+    @Override
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    @Override
+    public LatencySnapshot getLockWait() {
+        return lockWait.snapshot();
+    }
+
+    @Override
+    public LatencySnapshot getLockHold() {
+        return lockHold.snapshot();
+    }
+
+    @Override
+    public LatencySnapshot getEncode() {
+        return encode.snapshot();
+    }
+
+    @Override
+    public LatencySnapshot getDecode() {
+        return decode.snapshot();
+    }
+
+    @Override
+    public LatencySnapshot getForce() {
+        return force.snapshot();
+    }
+
+    @Override
+    public void reset() {
+        for(LongAdder counter : new LongAdder[]{gets, puts, getAndPuts, cacheHits, optimisticReadRetries,
+                optimisticReadFallbacks, bytesRead, bytesWritten, lockCasFailures, lockSpins, lockYields, lockParks}) {
+            counter.reset();
+        }
+        for(LatencyHistogram histogram : new LatencyHistogram[]{lockWait, lockHold, encode, decode, force}) {
+            histogram.reset();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "gets="+getGets()+" puts="+getPuts()+" getAndPuts="+getGetAndPuts()+" cacheHits="+getCacheHits()
+                +" optimisticReadRetries="+getOptimisticReadRetries()+" optimisticReadFallbacks="+getOptimisticReadFallbacks()
+                +" lockCasFailures="+getLockCasFailures()+" lockSpins="+getLockSpins()+" lockYields="+getLockYields()
+                +" lockParks="+getLockParks()+" bytesRead="+getBytesRead()+" bytesWritten="+getBytesWritten()
+                +"\nlockWait: "+getLockWait()+"\nlockHold: "+getLockHold()+"\nencode: "+getEncode()+"\ndecode: "+getDecode()+"\nforce: "+getForce();
+    }
+}
@@ -0,0 +1,50 @@
+package io.github.metabrain.evergreen;
+
+/**
+ * JMX view of EvergreenMetrics, see EvergreenMetrics.register(...).
+ */
+public interface EvergreenMetricsMXBean {
+
+    long getGets();
+
+    long getPuts();
+
+    long getGetAndPuts();
+
+    /** get() calls answered by the instance cache, see CacheMode. */
+    long getCacheHits();
+
+    /** Optimistic reads that had to copy the instance again because a writer got in the way. */
+    long getOptimisticReadRetries();
+
+    /** Optimistic reads that gave up and took the lock. */
+    long getOptimisticReadFallbacks();
+
+    /** Times the file lock was found free but someone else won the CAS. */
+    long getLockCasFailures();
+
+    long getLockSpins();
+
+    long getLockYields();
+
+    long getLockParks();
+
+    long getBytesRead();
+
+    long getBytesWritten();
+
+    /** Time spent waiting for the lock (in-JVM guard and file lock), by get/put/getAndPut. */
+    LatencySnapshot getLockWait();
+
+    /** Time the lock was held, by get/put/getAndPut. */
+    LatencySnapshot getLockHold();
+
+    LatencySnapshot getEncode();
+
+    LatencySnapshot getDecode();
+
+    /** Time spent forcing the file to disk, see Durability. */
+    LatencySnapshot getForce();
+
+    void reset();
+}
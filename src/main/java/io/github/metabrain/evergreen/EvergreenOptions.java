@@ -0,0 +1,214 @@
+package io.github.metabrain.evergreen;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Optional settings used when an Evergreen file is created. Every setter returns the same instance so they can be
+ * chained, e.g. new EvergreenOptions().withChecksum(true).
+ *
+ * Settings that describe the file layout are only used when the file is initialized. Whoever opens it afterwards
+ * gets whatever is stored in the file header.
+ */
+public final class EvergreenOptions {
+
+    private boolean checksum = false;
+    private int payloadSlots = 1;
+    private ReadMode readMode = ReadMode.OPTIMISTIC;
+    private CacheMode cacheMode = CacheMode.NONE;
+    private boolean metrics = false;
+    private boolean combining = false;
+    private Durability durability = Durability.NONE;
+    private long forceIntervalMillis = TimeUnit.SECONDS.toMillis(1);
+    private long lockLeaseMillis = TimeUnit.SECONDS.toMillis(10);
+    private boolean growable = false;
+    private MemoryOrdering memoryOrdering = MemoryOrdering.VOLATILE;
+    private OpenMode openMode = OpenMode.SHARED;
+    private boolean lazyOpen = false;
+    private boolean prefault = false;
+
+    /**
+     * @param checksum if true, a CRC32 of the instance is stored with every write and verified on every read.
+     */
+    public EvergreenOptions withChecksum(boolean checksum) {
+        this.checksum = checksum;
+        return this;
+    }
+
+    public boolean isChecksum() {
+        return checksum;
+    }
+
+    /**
+     * @param payloadSlots how many copies of the instance the file has room for, 1 by default and at most 7. With 2 or
+     *                     more, writers write to a slot nobody is reading and then publish it with a single CAS, so
+     *                     readers are never held back by a write in progress and a writer crashing halfway can't
+     *                     leave a torn instance behind. Costs one payload worth of file per extra slot.
+     */
+    public EvergreenOptions withPayloadSlots(int payloadSlots) {
+        this.payloadSlots = payloadSlots;
+        return this;
+    }
+
+    public int getPayloadSlots() {
+        return payloadSlots;
+    }
+
+    /**
+     * @param readMode how get() synchronizes with writers, OPTIMISTIC by default. This one is per instance, different
+     *                 processes may use different modes on the same file.
+     */
+    public EvergreenOptions withReadMode(ReadMode readMode) {
+        this.readMode = readMode;
+        return this;
+    }
+
+    public ReadMode getReadMode() {
+        return readMode;
+    }
+
+    /**
+     * @param lease how long a process may hold the file lock before waiters start checking whether it is still alive,
+     *              10 seconds by default. A lock whose lease expired and whose owner process is gone gets cleared.
+     */
+    public EvergreenOptions withLockLease(long lease, TimeUnit unit) {
+        this.lockLeaseMillis = unit.toMillis(lease);
+        return this;
+    }
+
+    public long getLockLeaseMillis() {
+        return lockLeaseMillis;
+    }
+
+    /**
+     * @param cacheMode whether get() reuses the last decoded instance while nobody writes, NONE by default. Per
+     *                  instance, like the read mode.
+     */
+    public EvergreenOptions withCacheMode(CacheMode cacheMode) {
+        this.cacheMode = cacheMode;
+        return this;
+    }
+
+    public CacheMode getCacheMode() {
+        return cacheMode;
+    }
+
+    /**
+     * @param metrics if true, the instance keeps counters and latency histograms of its operations, see
+     *                EvergreenImpl.getMetrics(). Off by default, per instance.
+     */
+    public EvergreenOptions withMetrics(boolean metrics) {
+        this.metrics = metrics;
+        return this;
+    }
+
+    public boolean isMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @param combining if true, threads of this JVM calling getAndPut(...) concurrently on the same instance get their
+     *                  functions applied in a single batch by whichever of them holds the lock (flat combining): one
+     *                  lock, one read and one write for the whole batch, each caller still getting the result of its
+     *                  own function. A function that throws only fails its own caller, unlike in getAndPutAll(...)
+     *                  where it aborts the whole batch. Pays off on contended counters and accumulators. Off by
+     *                  default, per instance.
+     */
+    public EvergreenOptions withCombining(boolean combining) {
+        this.combining = combining;
+        return this;
+    }
+
+    public boolean isCombining() {
+        return combining;
+    }
+
+    /**
+     * @param durability what writes do to survive a machine crash, NONE by default. Per instance, except for
+     *                   JOURNALED which needs the file to be created with it.
+     */
+    public EvergreenOptions withDurability(Durability durability) {
+        this.durability = durability;
+        return this;
+    }
+
+    public Durability getDurability() {
+        return durability;
+    }
+
+    /**
+     * @param interval how often Durability.PERIODIC forces the file to disk, 1 second by default.
+     */
+    public EvergreenOptions withForceInterval(long interval, TimeUnit unit) {
+        this.forceIntervalMillis = unit.toMillis(interval);
+        return this;
+    }
+
+    public long getForceIntervalMillis() {
+        return forceIntervalMillis;
+    }
+
+    /**
+     * @param growable if true, writing an instance bigger than the max instance size grows the file instead of
+     *                 throwing BufferOverflowException, and the instance adopts whatever max size the file has when
+     *                 opened. Other instances on the file, in this or other processes, remap on their next
+     *                 operation. Off by default, per instance. See also EvergreenImpl.compact().
+     */
+    public EvergreenOptions withGrowable(boolean growable) {
+        this.growable = growable;
+        return this;
+    }
+
+    public boolean isGrowable() {
+        return growable;
+    }
+
+    /**
+     * @param memoryOrdering how accesses to the file are ordered, VOLATILE by default. Per instance.
+     */
+    public EvergreenOptions withMemoryOrdering(MemoryOrdering memoryOrdering) {
+        this.memoryOrdering = memoryOrdering;
+        return this;
+    }
+
+    public MemoryOrdering getMemoryOrdering() {
+        return memoryOrdering;
+    }
+
+    /**
+     * @param openMode who else may have the file open, SHARED by default. See OpenMode.
+     */
+    public EvergreenOptions withOpenMode(OpenMode openMode) {
+        this.openMode = openMode;
+        return this;
+    }
+
+    public OpenMode getOpenMode() {
+        return openMode;
+    }
+
+    /**
+     * @param lazyOpen if true, opening a file that already exists doesn't decode its instance to check it, the first
+     *                 read does (and fails if it's corrupted, instead of the initializer replacing it). Off by default.
+     */
+    public EvergreenOptions withLazyOpen(boolean lazyOpen) {
+        this.lazyOpen = lazyOpen;
+        return this;
+    }
+
+    public boolean isLazyOpen() {
+        return lazyOpen;
+    }
+
+    /**
+     * @param prefault if true, every page of the file gets loaded into memory by a background thread once it is
+     *                 opened, so the first operations don't stall on page faults. Off by default.
+     */
+    public EvergreenOptions withPrefault(boolean prefault) {
+        this.prefault = prefault;
+        return this;
+    }
+
+    public boolean isPrefault() {
+        return prefault;
+    }
+}
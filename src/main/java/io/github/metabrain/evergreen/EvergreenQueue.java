@@ -0,0 +1,301 @@
+package io.github.metabrain.evergreen;
+
+import io.github.metabrain.evergreen.codec.EvergreenCodec;
+import io.github.metabrain.evergreen.unsafe.IUnsafe;
+import io.github.metabrain.evergreen.unsafe.UnsafeUtils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Bounded queue living in a memory mapped file, for passing messages between threads, processes and JVMs.
+ *
+ * Messages are kept in a power of two ring of fixed size slots, each one prefixed by the sequence it was published
+ * with and the length of the message. The tail (next sequence producers claim) and head (next sequence the consumer
+ * reads) live in the file header on cache lines of their own. Since the head is persistent, a consumer that restarts
+ * resumes right where the previous one stopped.
+ *
+ * Producers encode straight into the claimed slot and the consumer decodes straight from it, no copies involved.
+ * Only one consumer may poll at a time, which is enforced with a lock in the file. A message is considered consumed
+ * as soon as it is decoded (at-most-once delivery), even if decoding fails.
+ *
+ * A producer that dies after claiming a slot but before publishing it will block the consumer at that slot.
+ */
+public final class EvergreenQueue<T> implements Closeable {
+
+    // SPECIAL CONSTANTS
+    private static final int MAGIC = 0x45564751; // "EVGQ"
+    private static final int FORMAT_VERSION = 1;
+
+    private static final int SKIPPED = -1;
+    private static final long LOCK_LEASE_MILLIS = 10000;
+
+    // OFFSETS FOR MEMORY MAPPED FILE
+    // Cache line 0, written once when the file is initialized.
+    private static final int MAGIC_OFFSET = 0x0;
+    private static final int VERSION_OFFSET = 0x4;
+    private static final int CAPACITY_OFFSET = 0x8;
+    private static final int MAX_MESSAGE_SIZE_OFFSET = 0xC;
+    private static final int MODE_OFFSET = 0x10;
+    // Cache line 1, only used while initializing the file.
+    private static final int INIT_LOCK_OFFSET = 0x40;
+    // Cache line 2, producers side.
+    private static final int TAIL_OFFSET = 0x80;
+    // Cache line 3, consumer side.
+    private static final int HEAD_OFFSET = 0xC0;
+    private static final int CONSUMER_LOCK_OFFSET = 0xD0;
+
+    private static final int SLOTS_OFFSET = 0x100;
+
+    // OFFSETS INSIDE A SLOT
+    private static final int SLOT_PUBLISHED_OFFSET = 0x0;
+    private static final int SLOT_LENGTH_OFFSET = 0x8;
+    private static final int SLOT_MESSAGE_OFFSET = 0x10;
+
+    private static final IUnsafe theUnsafe = UnsafeUtils.getSafeUnsafe();
+
+    private final MappedByteBuffer mmb;
+    private final long baseAddress;
+    private final long tailAddress;
+    private final long headAddress;
+    private final EvergreenCodec<T> codec;
+    private final QueueMode mode;
+    private final int capacity;
+    private final int maxMessageSizeInBytes;
+    private final int slotSize;
+    private final MappedLock consumerLock;
+    // Each thread gets its own view of the mapping, so they can move position/limit around freely.
+    private final ThreadLocal<ByteBuffer> views;
+    // Identifies the file in OpenFiles, which holds the OS level lock until close().
+    private final Object fileKey;
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    /**
+     * @param fileKey what OpenFiles.fileKey(...) returns for the file fc was opened on.
+     */
+    protected EvergreenQueue(FileChannel fc, Object fileKey, int capacity, int maxMessageSizeInBytes, EvergreenCodec<T> codec, QueueMode mode) throws IOException {
+        this.fileKey = fileKey;
+        // Always shared, so EXCLUSIVE and SINGLE_WRITER opens of the file fail while this is open.
+        OpenFiles.open(fileKey, fc, true);
+        try {
+            if(capacity<=0 || Integer.bitCount(capacity)!=1) {
+                throw new IllegalArgumentException("Capacity must be a power of two, got "+capacity+".");
+            }
+            if(maxMessageSizeInBytes<0) {
+                throw new IllegalArgumentException("Max message size can't be negative.");
+            }
+            this.codec = codec;
+            this.mode = mode;
+            this.capacity = capacity;
+            this.maxMessageSizeInBytes = maxMessageSizeInBytes;
+            this.slotSize = (SLOT_MESSAGE_OFFSET+maxMessageSizeInBytes+7) & ~7;
+
+            final long fileSize = SLOTS_OFFSET+(long)capacity*slotSize;
+            if(fileSize>Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Queue would take "+fileSize+" bytes, more than can be mapped at once.");
+            }
+            this.mmb = fc.map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+            this.baseAddress = UnsafeUtils.getAddress(mmb);
+            this.tailAddress = baseAddress+TAIL_OFFSET;
+            this.headAddress = baseAddress+HEAD_OFFSET;
+            this.consumerLock = new MappedLock(theUnsafe, baseAddress+CONSUMER_LOCK_OFFSET, LOCK_LEASE_MILLIS);
+            this.views = ThreadLocal.withInitial(mmb::duplicate);
+
+            initialize();
+        } catch (IOException | RuntimeException | Error e) {
+            try {
+                OpenFiles.close(fileKey);
+            } catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Lets go of the file: the OS level lock is released once no other instance of this JVM has the file open, and
+     * so is the channel. Messages not polled yet stay in the file, but the queue must not be used afterwards. Closing
+     * again does nothing.
+     */
+    @Override
+    public void close() throws IOException {
+        if(closed.compareAndSet(false, true)) {
+            OpenFiles.close(fileKey);
+        }
+    }
+
+    private void initialize() throws IOException {
+        MappedLock initLock = new MappedLock(theUnsafe, baseAddress+INIT_LOCK_OFFSET, LOCK_LEASE_MILLIS);
+        initLock.lock();
+        try {
+            final int magic = theUnsafe.getInt(baseAddress+MAGIC_OFFSET);
+            if(magic==0) {
+                // Zeroed slots were never published and head/tail start at 0, only the header needs writing.
+                theUnsafe.putInt(baseAddress+VERSION_OFFSET, FORMAT_VERSION);
+                theUnsafe.putInt(baseAddress+CAPACITY_OFFSET, capacity);
+                theUnsafe.putInt(baseAddress+MAX_MESSAGE_SIZE_OFFSET, maxMessageSizeInBytes);
+                theUnsafe.putInt(baseAddress+MODE_OFFSET, mode.ordinal());
+                // Magic goes last, so it is only there once everything else is.
+                theUnsafe.putInt(baseAddress+MAGIC_OFFSET, MAGIC);
+                return;
+            }
+            if(magic!=MAGIC) {
+                throw new IOException("File holds another kind of Evergreen (magic 0x"+Integer.toHexString(magic)+").");
+            }
+            final int version = theUnsafe.getInt(baseAddress+VERSION_OFFSET);
+            if(version!=FORMAT_VERSION) {
+                throw new IOException("Unsupported file format version "+version+", expected "+FORMAT_VERSION+".");
+            }
+            if(theUnsafe.getInt(baseAddress+CAPACITY_OFFSET)!=capacity
+                    || theUnsafe.getInt(baseAddress+MAX_MESSAGE_SIZE_OFFSET)!=maxMessageSizeInBytes) {
+                throw new IOException("File was created with a capacity of "+theUnsafe.getInt(baseAddress+CAPACITY_OFFSET)
+                        +" and max message size of "+theUnsafe.getInt(baseAddress+MAX_MESSAGE_SIZE_OFFSET)
+                        +", which don't match the ones requested.");
+            }
+            // Mixing a SPSC producer with MPSC ones would corrupt the queue.
+            if(theUnsafe.getInt(baseAddress+MODE_OFFSET)!=mode.ordinal()) {
+                throw new IOException("File was created in "+QueueMode.values()[theUnsafe.getInt(baseAddress+MODE_OFFSET)]
+                        +" mode but "+mode+" was requested.");
+            }
+        } finally {
+            initLock.unlock();
+        }
+    }
+
+    /**
+     * Appends the message to the queue, unless it is full.
+     * @return false if the queue is full.
+     * @throws java.nio.BufferOverflowException if the message doesn't fit the max message size. The slot claimed for
+     *                                          it is skipped by the consumer.
+     */
+    public boolean offer(T message) throws IOException {
+        final long sequence;
+        if(mode==QueueMode.SPSC) {
+            sequence = theUnsafe.getLong(tailAddress);
+            if(sequence-theUnsafe.getLong(headAddress)>=capacity) {
+                return false;
+            }
+        } else {
+            long tail;
+            do {
+                tail = theUnsafe.getLong(tailAddress);
+                if(tail-theUnsafe.getLong(headAddress)>=capacity) {
+                    return false;
+                }
+            } while(!theUnsafe.compareAndSwapLong(tailAddress, tail, tail+1));
+            sequence = tail;
+        }
+
+        final long slot = slotAddress(sequence);
+        final int slotOffset = (int) (slot-baseAddress);
+        final ByteBuffer view = views.get();
+        view.limit(slotOffset+SLOT_MESSAGE_OFFSET+maxMessageSizeInBytes);
+        view.position(slotOffset+SLOT_MESSAGE_OFFSET);
+        int length = SKIPPED;
+        try {
+            codec.encode(message, view);
+            length = view.position()-slotOffset-SLOT_MESSAGE_OFFSET;
+        } finally {
+            // Publish even if encoding failed, or the consumer would wait for this slot forever.
+            theUnsafe.putInt(slot+SLOT_LENGTH_OFFSET, length);
+            theUnsafe.storeFence();
+            theUnsafe.putLong(slot+SLOT_PUBLISHED_OFFSET, sequence+1);
+            if(mode==QueueMode.SPSC) {
+                theUnsafe.putLong(tailAddress, sequence+1);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the next message, or null if there is none.
+     */
+    public T poll() throws IOException, ClassNotFoundException {
+        consumerLock.lock();
+        try {
+            while(true) {
+                final long head = theUnsafe.getLong(headAddress);
+                final long slot = slotAddress(head);
+                if(theUnsafe.getLong(slot+SLOT_PUBLISHED_OFFSET)!=head+1) {
+                    return null;
+                }
+                final int length = theUnsafe.getInt(slot+SLOT_LENGTH_OFFSET);
+                try {
+                    if(length!=SKIPPED) {
+                        return decode(slot, length);
+                    }
+                } finally {
+                    theUnsafe.putLong(headAddress, head+1);
+                }
+            }
+        } finally {
+            consumerLock.unlock();
+        }
+    }
+
+    /**
+     * Removes up to maxMessages messages and adds them to the collection, in order. The head is only written once
+     * for the whole batch.
+     * @return how many messages were added.
+     */
+    public int drainTo(Collection<? super T> collection, int maxMessages) throws IOException, ClassNotFoundException {
+        consumerLock.lock();
+        try {
+            long head = theUnsafe.getLong(headAddress);
+            int drained = 0;
+            try {
+                while(drained<maxMessages) {
+                    final long slot = slotAddress(head);
+                    if(theUnsafe.getLong(slot+SLOT_PUBLISHED_OFFSET)!=head+1) {
+                        break;
+                    }
+                    final int length = theUnsafe.getInt(slot+SLOT_LENGTH_OFFSET);
+                    // Consumed even if decoding throws.
+                    head++;
+                    if(length!=SKIPPED) {
+                        collection.add(decode(slot, length));
+                        drained++;
+                    }
+                }
+            } finally {
+                theUnsafe.putLong(headAddress, head);
+            }
+            return drained;
+        } finally {
+            consumerLock.unlock();
+        }
+    }
+
+    /**
+     * @return how many messages were claimed by producers but not consumed yet. Only an estimate while in use.
+     */
+    public int size() {
+        final long head = theUnsafe.getLong(headAddress);
+        return (int) Math.max(0L, Math.min(capacity, theUnsafe.getLong(tailAddress)-head));
+    }
+
+    public boolean isEmpty() {
+        return size()==0;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    private T decode(long slot, int length) throws IOException, ClassNotFoundException {
+        final int slotOffset = (int) (slot-baseAddress);
+        final ByteBuffer view = views.get();
+        view.limit(slotOffset+SLOT_MESSAGE_OFFSET+length);
+        view.position(slotOffset+SLOT_MESSAGE_OFFSET);
+        return codec.decode(view);
+    }
+
+    private long slotAddress(long sequence) {
+        return baseAddress+SLOTS_OFFSET+(sequence & (capacity-1))*slotSize;
+    }
+}
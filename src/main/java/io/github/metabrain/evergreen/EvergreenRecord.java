@@ -0,0 +1,325 @@
+package io.github.metabrain.evergreen;
+
+import io.github.metabrain.evergreen.unsafe.IUnsafe;
+import io.github.metabrain.evergreen.unsafe.UnsafeUtils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import static java.lang.Double.doubleToRawLongBits;
+import static java.lang.Double.longBitsToDouble;
+
+/**
+ * Flyweight over a fixed layout record living in a memory mapped file, see RecordSchema. Fields are read and written
+ * straight at their offset in the mapping, so nothing is encoded, decoded or allocated, and a single field change
+ * doesn't rewrite the rest of the record.
+ *
+ * Every int, long and double access is atomic on its own, across threads, processes and JVMs, and they can be CAS'd
+ * or added to like EvergreenInt/EvergreenLong/EvergreenDouble. Bytes fields are plain copies instead.
+ *
+ * For changes spanning several fields (or bytes fields), update(...) runs under the record lock and bumps a sequence
+ * that read(...) checks, the same seqlock EvergreenImpl uses for whole instances. Single field writes done outside
+ * update(...) don't bump the sequence, so read(...) only guards against update(...) writers.
+ */
+public final class EvergreenRecord implements Closeable {
+
+    // SPECIAL CONSTANTS
+    private static final int MAGIC = 0x45564752; // "EVGR"
+    private static final int FORMAT_VERSION = 1;
+
+    private static final int MAX_OPTIMISTIC_READ_ATTEMPTS = 64;
+    private static final long LOCK_LEASE_MILLIS = 10000;
+
+    // OFFSETS FOR MEMORY MAPPED FILE
+    // Cache line 0, written once when the file is initialized.
+    private static final int MAGIC_OFFSET = 0x0;
+    private static final int VERSION_OFFSET = 0x4;
+    private static final int FINGERPRINT_OFFSET = 0x8;
+    private static final int SIZE_OFFSET = 0xC;
+    // Cache line 1, record lock (also taken to initialize the file) and update(...) sequence.
+    private static final int LOCK_OFFSET = 0x40;
+    private static final int SEQUENCE_OFFSET = 0x50;
+
+    private static final int FIELDS_OFFSET = 0x80;
+
+    private static final IUnsafe theUnsafe = UnsafeUtils.getSafeUnsafe();
+
+    // Keeps the mapping alive for as long as this object is.
+    private final MappedByteBuffer mmb;
+    private final long fieldsAddress;
+    private final long sequenceAddress;
+    private final RecordSchema schema;
+    private final MappedLock fileLock;
+    // Threads of this JVM using the record queue here, the lock word doesn't tell them apart.
+    private final ReentrantLock guard = new ReentrantLock();
+    // Identifies the file in OpenFiles, which holds the OS level lock until close().
+    private final Object fileKey;
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    /**
+     * @param initializer sets the initial field values, only called if the file wasn't initialized yet. Fields not set
+     *                    by it start zeroed. Runs under the record lock, so it must not call update(...).
+     * @param fileKey what OpenFiles.fileKey(...) returns for the file fc was opened on.
+     */
+    protected EvergreenRecord(FileChannel fc, Object fileKey, RecordSchema schema, Consumer<EvergreenRecord> initializer) throws IOException {
+        this.fileKey = fileKey;
+        // Always shared, so EXCLUSIVE and SINGLE_WRITER opens of the file fail while this is open.
+        OpenFiles.open(fileKey, fc, true);
+        try {
+            final long fileSize = FIELDS_OFFSET+(long)schema.size();
+            if(fileSize>Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Record would take "+fileSize+" bytes, more than can be mapped at once.");
+            }
+            this.schema = schema;
+            this.mmb = fc.map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+            final long baseAddress = UnsafeUtils.getAddress(mmb);
+            this.fieldsAddress = baseAddress+FIELDS_OFFSET;
+            this.sequenceAddress = baseAddress+SEQUENCE_OFFSET;
+            this.fileLock = new MappedLock(theUnsafe, baseAddress+LOCK_OFFSET, LOCK_LEASE_MILLIS);
+
+            if(theUnsafe.getInt(baseAddress+MAGIC_OFFSET)==MAGIC) {
+                // Already initialized, which is the common case and needs no locking at all.
+                validateHeader(baseAddress);
+                return;
+            }
+
+            fileLock.lock();
+            try {
+                final int magic = theUnsafe.getInt(baseAddress+MAGIC_OFFSET);
+                if(magic==0) {
+                    initializer.accept(this);
+                    theUnsafe.putInt(baseAddress+VERSION_OFFSET, FORMAT_VERSION);
+                    theUnsafe.putInt(baseAddress+FINGERPRINT_OFFSET, schema.fingerprint());
+                    theUnsafe.putInt(baseAddress+SIZE_OFFSET, schema.size());
+                    // Magic goes last, so it is only there once everything else is.
+                    theUnsafe.putInt(baseAddress+MAGIC_OFFSET, MAGIC);
+                } else if(magic!=MAGIC) {
+                    throw new IOException("File holds another kind of Evergreen (magic 0x"+Integer.toHexString(magic)+").");
+                } else {
+                    validateHeader(baseAddress);
+                }
+            } finally {
+                fileLock.unlock();
+            }
+        } catch (IOException | RuntimeException | Error e) {
+            try {
+                OpenFiles.close(fileKey);
+            } catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Lets go of the file: the OS level lock is released once no other instance of this JVM has the file open, and
+     * so is the channel. The record must not be used afterwards. Closing again does nothing.
+     */
+    @Override
+    public void close() throws IOException {
+        if(closed.compareAndSet(false, true)) {
+            OpenFiles.close(fileKey);
+        }
+    }
+
+    private void validateHeader(long baseAddress) throws IOException {
+        final int version = theUnsafe.getInt(baseAddress+VERSION_OFFSET);
+        if(version!=FORMAT_VERSION) {
+            throw new IOException("Unsupported file format version "+version+", expected "+FORMAT_VERSION+".");
+        }
+        // Reading a record with another layout would silently return garbage, so any difference fails.
+        if(theUnsafe.getInt(baseAddress+FINGERPRINT_OFFSET)!=schema.fingerprint()
+                || theUnsafe.getInt(baseAddress+SIZE_OFFSET)!=schema.size()) {
+            throw new IOException("File was created with another schema than "+schema+".");
+        }
+    }
+
+    public RecordSchema getSchema() {
+        return schema;
+    }
+
+    public int getInt(RecordSchema.Field field) {
+        return theUnsafe.getInt(address(field, RecordSchema.FieldType.INT));
+    }
+
+    public void setInt(RecordSchema.Field field, int newValue) {
+        theUnsafe.putInt(address(field, RecordSchema.FieldType.INT), newValue);
+    }
+
+    public boolean compareAndSetInt(RecordSchema.Field field, int expect, int update) {
+        return theUnsafe.compareAndSwapInt(address(field, RecordSchema.FieldType.INT), expect, update);
+    }
+
+    /**
+     * @return the previous value.
+     */
+    public int getAndAddInt(RecordSchema.Field field, int delta) {
+        return theUnsafe.getAndAddInt(address(field, RecordSchema.FieldType.INT), delta);
+    }
+
+    public long getLong(RecordSchema.Field field) {
+        return theUnsafe.getLong(address(field, RecordSchema.FieldType.LONG));
+    }
+
+    public void setLong(RecordSchema.Field field, long newValue) {
+        theUnsafe.putLong(address(field, RecordSchema.FieldType.LONG), newValue);
+    }
+
+    public boolean compareAndSetLong(RecordSchema.Field field, long expect, long update) {
+        return theUnsafe.compareAndSwapLong(address(field, RecordSchema.FieldType.LONG), expect, update);
+    }
+
+    /**
+     * @return the previous value.
+     */
+    public long getAndAddLong(RecordSchema.Field field, long delta) {
+        return theUnsafe.getAndAddLong(address(field, RecordSchema.FieldType.LONG), delta);
+    }
+
+    public double getDouble(RecordSchema.Field field) {
+        return longBitsToDouble(theUnsafe.getLong(address(field, RecordSchema.FieldType.DOUBLE)));
+    }
+
+    public void setDouble(RecordSchema.Field field, double newValue) {
+        theUnsafe.putLong(address(field, RecordSchema.FieldType.DOUBLE), doubleToRawLongBits(newValue));
+    }
+
+    /**
+     * Compares raw bits rather than using ==, see EvergreenDouble.
+     */
+    public boolean compareAndSetDouble(RecordSchema.Field field, double expect, double update) {
+        return theUnsafe.compareAndSwapLong(address(field, RecordSchema.FieldType.DOUBLE), doubleToRawLongBits(expect), doubleToRawLongBits(update));
+    }
+
+    /**
+     * @return the previous value.
+     */
+    public double getAndAddDouble(RecordSchema.Field field, double delta) {
+        final long address = address(field, RecordSchema.FieldType.DOUBLE);
+        long prevBits;
+        double prev;
+        do {
+            prevBits = theUnsafe.getLong(address);
+            prev = longBitsToDouble(prevBits);
+        } while(!theUnsafe.compareAndSwapLong(address, prevBits, doubleToRawLongBits(prev+delta)));
+        return prev;
+    }
+
+    /**
+     * Copies the whole field into dst, starting at dstOffset.
+     */
+    public void getBytes(RecordSchema.Field field, byte[] dst, int dstOffset) {
+        final long address = address(field, RecordSchema.FieldType.BYTES);
+        checkBounds(dst, dstOffset, field.length);
+        theUnsafe.copyMemory(address, dst, dstOffset, field.length);
+    }
+
+    /**
+     * Overwrites the whole field with the bytes of src starting at srcOffset.
+     */
+    public void setBytes(RecordSchema.Field field, byte[] src, int srcOffset) {
+        final long address = address(field, RecordSchema.FieldType.BYTES);
+        checkBounds(src, srcOffset, field.length);
+        theUnsafe.copyMemory(src, srcOffset, address, field.length);
+    }
+
+    /**
+     * Runs the reader against a consistent view of the record, one no update(...) is halfway through. The reader is
+     * run optimistically and may be run several times if updates happen meanwhile, so it should be side-effect free.
+     * If it keeps losing against writers, it runs once more under the record lock.
+     */
+    public <R> R read(Function<EvergreenRecord, R> reader) {
+        for(int attempt=0 ; attempt<MAX_OPTIMISTIC_READ_ATTEMPTS ; attempt++) {
+            final long before = theUnsafe.getLong(sequenceAddress);
+            if((before & 1)!=0) {
+                // Update in progress.
+                continue;
+            }
+            theUnsafe.loadFence();
+            final R result = reader.apply(this);
+            theUnsafe.loadFence();
+            if(theUnsafe.getLong(sequenceAddress)==before) {
+                return result;
+            }
+        }
+
+        lock();
+        try {
+            return reader.apply(this);
+        } finally {
+            unlock();
+        }
+    }
+
+    /**
+     * Runs the updater under the record lock. read(...) never sees the record halfway through it, even if it throws.
+     */
+    public void update(Consumer<EvergreenRecord> updater) {
+        lock();
+        try {
+            // An updater that died mid-update leaves the sequence odd, round it down so we still end up even.
+            final long sequence = theUnsafe.getLong(sequenceAddress) & ~1L;
+            theUnsafe.putLong(sequenceAddress, sequence+1);
+            theUnsafe.storeFence();
+            try {
+                updater.accept(this);
+            } finally {
+                theUnsafe.storeFence();
+                theUnsafe.putLong(sequenceAddress, sequence+2);
+            }
+        } finally {
+            unlock();
+        }
+    }
+
+    private long address(RecordSchema.Field field, RecordSchema.FieldType type) {
+        if(field.schema!=schema) {
+            throw new IllegalArgumentException("Field "+field+" belongs to another schema.");
+        }
+        if(field.type!=type) {
+            throw new IllegalArgumentException("Field "+field+" is not of type "+type+".");
+        }
+        return fieldsAddress+field.offset;
+    }
+
+    private static void checkBounds(byte[] bytes, int offset, int length) {
+        if(offset<0 || offset>bytes.length-length) {
+            throw new IndexOutOfBoundsException("Field of "+length+" bytes doesn't fit in an array of "+bytes.length
+                    +" bytes at offset "+offset+".");
+        }
+    }
+
+    private void lock() {
+        guard.lock();
+        fileLock.lock();
+    }
+
+    private void unlock() {
+        fileLock.unlock();
+        guard.unlock();
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("{");
+        for(RecordSchema.Field field : schema.fields()) {
+            if(sb.length()>1) {
+                sb.append(", ");
+            }
+            sb.append(field.getName()).append('=');
+            switch(field.type) {
+                case INT: sb.append(getInt(field)); break;
+                case LONG: sb.append(getLong(field)); break;
+                case DOUBLE: sb.append(getDouble(field)); break;
+                default: sb.append(field.length).append(" bytes"); break;
+            }
+        }
+        return sb.append('}').toString();
+    }
+}
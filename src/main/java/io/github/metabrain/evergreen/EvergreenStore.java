@@ -0,0 +1,458 @@
+package io.github.metabrain.evergreen;
+
+import io.github.metabrain.evergreen.codec.Codecs;
+import io.github.metabrain.evergreen.codec.EvergreenCodec;
+import io.github.metabrain.evergreen.unsafe.IUnsafe;
+import io.github.metabrain.evergreen.unsafe.UnsafeUtils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+/**
+ * Many named Evergreen objects sharing a single memory mapped file, so thousands of them cost one file descriptor and
+ * one mapping instead of one each.
+ *
+ * Objects are allocated from slabs: the data area is split in fixed size slabs, and each slab is carved into equal
+ * blocks of a single power of two size class the first time that class needs room. Every block starts with the
+ * object's own lock word and write sequence, so objects don't get in each other's way. A directory in the file maps
+ * names to blocks (open addressing, like EvergreenMap), looked up once per name and JVM since handles are kept.
+ *
+ * Objects live as long as the store does, there is no removal. Capacity and data size are fixed when the file is
+ * created.
+ */
+public final class EvergreenStore implements Closeable {
+
+    // SPECIAL CONSTANTS
+    private static final int MAGIC = 0x45564753; // "EVGS"
+    private static final int FORMAT_VERSION = 1;
+
+    private static final int MAX_OPTIMISTIC_READ_ATTEMPTS = 64;
+    private static final double LOAD_FACTOR = 0.7;
+    private static final long LOCK_LEASE_MILLIS = 10000;
+
+    private static final int SLAB_SIZE = 64*1024;
+    private static final int MIN_BLOCK_SIZE = 256;
+    // Same allowance EvergreenImpl makes for Java serialization class declarations.
+    private static final int CLASS_DECLARATION_OVERHEAD = 128;
+
+    private static final int EMPTY = 0;
+    private static final int FULL = 1;
+
+    // OFFSETS FOR MEMORY MAPPED FILE
+    // Cache line 0, written once when the file is initialized.
+    private static final int MAGIC_OFFSET = 0x0;
+    private static final int VERSION_OFFSET = 0x4;
+    private static final int CAPACITY_OFFSET = 0x8;
+    private static final int MAX_NAME_SIZE_OFFSET = 0xC;
+    private static final int SLABS_OFFSET = 0x10;
+    private static final int DIRECTORY_SLOTS_OFFSET = 0x14;
+    // Cache line 1, taken to initialize the file and to allocate objects.
+    private static final int STORE_LOCK_OFFSET = 0x40;
+    // Cache line 2, allocation state.
+    private static final int DIRECTORY_SEQUENCE_OFFSET = 0x80;
+    private static final int DIRECTORY_SIZE_OFFSET = 0x88;
+    private static final int NEXT_FREE_SLAB_OFFSET = 0x8C;
+    // Cache lines 3 and 4, one entry per size class (256 bytes, 512 bytes... up to a whole slab): the slab being
+    // carved (+1, 0 when none) and its next free block.
+    private static final int SIZE_CLASSES_OFFSET = 0xC0;
+    private static final int SIZE_CLASS_ENTRY_SIZE = 8;
+    private static final int SIZE_CLASS_SLAB_OFFSET = 0x0;
+    private static final int SIZE_CLASS_NEXT_BLOCK_OFFSET = 0x4;
+    // Then the directory, and then the slabs.
+    private static final int DIRECTORY_OFFSET = 0x140;
+
+    // OFFSETS INSIDE A DIRECTORY SLOT
+    private static final int ENTRY_STATE_OFFSET = 0x0;
+    private static final int ENTRY_HASH_OFFSET = 0x4;
+    private static final int ENTRY_NAME_LENGTH_OFFSET = 0x8;
+    private static final int ENTRY_MAX_SIZE_OFFSET = 0xC;
+    private static final int ENTRY_BLOCK_OFFSET = 0x10;
+    private static final int ENTRY_NAME_OFFSET = 0x18;
+
+    private static final IUnsafe theUnsafe = UnsafeUtils.getSafeUnsafe();
+
+    // Keeps the mapping alive for as long as this object is.
+    private final MappedByteBuffer mmb;
+    private final long baseAddress;
+    private final int capacity;
+    private final int maxNameSizeInBytes;
+    private final int slabs;
+    private final int directorySlots;
+    private final int entrySize;
+    private final long slabsOffset;
+    private final MappedLock storeLock;
+    // One handle per name and JVM, so their threads share the in-JVM guard.
+    private final ConcurrentHashMap<String, StoredEvergreen<?>> handles = new ConcurrentHashMap<>();
+    private final ThreadLocal<Scratch> scratches;
+    // Identifies the file in OpenFiles, which holds the OS level lock until close().
+    private final Object fileKey;
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    /**
+     * @param fileKey what OpenFiles.fileKey(...) returns for the file fc was opened on.
+     */
+    protected EvergreenStore(FileChannel fc, Object fileKey, int capacity, int maxNameSizeInBytes, long dataSizeInBytes) throws IOException {
+        this.fileKey = fileKey;
+        // Always shared, so EXCLUSIVE and SINGLE_WRITER opens of the file fail while this is open.
+        OpenFiles.open(fileKey, fc, true);
+        try {
+            if(capacity<=0 || maxNameSizeInBytes<=0 || dataSizeInBytes<=0) {
+                throw new IllegalArgumentException("Capacity, max name size and data size must be positive.");
+            }
+            this.capacity = capacity;
+            this.maxNameSizeInBytes = maxNameSizeInBytes;
+            // +1 so that probing always finds an empty slot.
+            this.directorySlots = (int) Math.ceil(capacity/LOAD_FACTOR)+1;
+            this.entrySize = align8(ENTRY_NAME_OFFSET+maxNameSizeInBytes);
+            this.slabs = (int) Math.min(Integer.MAX_VALUE, (dataSizeInBytes+SLAB_SIZE-1)/SLAB_SIZE);
+
+            // Slabs start at a page boundary, blocks never straddle more pages than they have to.
+            this.slabsOffset = (DIRECTORY_OFFSET+(long)directorySlots*entrySize+4095) & ~4095L;
+            final long fileSize = slabsOffset+(long)slabs*SLAB_SIZE;
+            if(fileSize>Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Store would take "+fileSize+" bytes, more than can be mapped at once.");
+            }
+
+            this.mmb = fc.map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+            this.baseAddress = UnsafeUtils.getAddress(mmb);
+            this.storeLock = new MappedLock(theUnsafe, baseAddress+STORE_LOCK_OFFSET, LOCK_LEASE_MILLIS);
+            this.scratches = ThreadLocal.withInitial(() -> new Scratch(maxNameSizeInBytes));
+
+            initialize();
+        } catch (IOException | RuntimeException | Error e) {
+            try {
+                OpenFiles.close(fileKey);
+            } catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Lets go of the file: the OS level lock is released once no other instance of this JVM has the file open, and
+     * so is the channel. The store, and every object got from it, must not be used afterwards. Closing again does nothing.
+     */
+    @Override
+    public void close() throws IOException {
+        if(closed.compareAndSet(false, true)) {
+            OpenFiles.close(fileKey);
+        }
+    }
+
+    private void initialize() throws IOException {
+        storeLock.lock();
+        try {
+            final int magic = theUnsafe.getInt(baseAddress+MAGIC_OFFSET);
+            if(magic==0) {
+                // Zeroed directory slots are empty and zeroed size classes have no slab yet.
+                theUnsafe.putInt(baseAddress+VERSION_OFFSET, FORMAT_VERSION);
+                theUnsafe.putInt(baseAddress+CAPACITY_OFFSET, capacity);
+                theUnsafe.putInt(baseAddress+MAX_NAME_SIZE_OFFSET, maxNameSizeInBytes);
+                theUnsafe.putInt(baseAddress+SLABS_OFFSET, slabs);
+                theUnsafe.putInt(baseAddress+DIRECTORY_SLOTS_OFFSET, directorySlots);
+                // Magic goes last, so it is only there once everything else is.
+                theUnsafe.putInt(baseAddress+MAGIC_OFFSET, MAGIC);
+                return;
+            }
+            if(magic!=MAGIC) {
+                throw new IOException("File holds another kind of Evergreen (magic 0x"+Integer.toHexString(magic)+").");
+            }
+            final int version = theUnsafe.getInt(baseAddress+VERSION_OFFSET);
+            if(version!=FORMAT_VERSION) {
+                throw new IOException("Unsupported file format version "+version+", expected "+FORMAT_VERSION+".");
+            }
+            if(theUnsafe.getInt(baseAddress+CAPACITY_OFFSET)!=capacity
+                    || theUnsafe.getInt(baseAddress+MAX_NAME_SIZE_OFFSET)!=maxNameSizeInBytes
+                    || theUnsafe.getInt(baseAddress+SLABS_OFFSET)!=slabs
+                    || theUnsafe.getInt(baseAddress+DIRECTORY_SLOTS_OFFSET)!=directorySlots) {
+                throw new IOException("File was created with a capacity of "+theUnsafe.getInt(baseAddress+CAPACITY_OFFSET)
+                        +", max name size of "+theUnsafe.getInt(baseAddress+MAX_NAME_SIZE_OFFSET)
+                        +" and "+theUnsafe.getInt(baseAddress+SLABS_OFFSET)+" slabs, which don't match the ones requested.");
+            }
+        } finally {
+            storeLock.unlock();
+        }
+    }
+
+    /**
+     * Same as open(name, maxInstanceSizeInBytes, initializer, codec), with the instance written using Java
+     * serialization.
+     */
+    public <T extends Serializable> Evergreen<T> open(String name, int maxInstanceSizeInBytes, Supplier<T> initializer) throws IOException {
+        return open(name, maxInstanceSizeInBytes, initializer, Codecs.javaSerialization());
+    }
+
+    /**
+     * Finds the object with the given name, allocating it if it doesn't exist yet. Handles are kept, opening the same
+     * name again in this JVM is a hash map lookup.
+     * @param maxInstanceSizeInBytes must match the size the object was created with, if it already exists.
+     * @param initializer provides the instance stored in case the object doesn't exist yet.
+     * @throws IOException if the object exists with another max instance size.
+     * @throws IllegalArgumentException if the name is longer than the max name size, or the instance is bigger than
+     *                                  a slab.
+     * @throws IllegalStateException if the store has no room left for the object.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> Evergreen<T> open(String name, int maxInstanceSizeInBytes, Supplier<T> initializer, EvergreenCodec<T> codec) throws IOException {
+        final StoredEvergreen<?> handle = handles.get(name);
+        if(handle!=null) {
+            checkMaxSize(name, handle.maxInstanceSizeInBytes, maxInstanceSizeInBytes);
+            return (Evergreen<T>) handle;
+        }
+        final int blockSize = blockSizeFor(maxInstanceSizeInBytes);
+        final Scratch scratch = scratches.get();
+        final int nameLength = scratch.encodeName(name, maxNameSizeInBytes);
+        final int hash = EvergreenMap.hash(scratch.name, nameLength);
+
+        long blockOffset = lookup(hash, scratch, nameLength, maxInstanceSizeInBytes);
+        if(blockOffset==0L) {
+            blockOffset = allocate(hash, scratch, nameLength, maxInstanceSizeInBytes, blockSize, initializer, codec);
+        }
+        final StoredEvergreen<T> opened = new StoredEvergreen<>(theUnsafe, mmb, baseAddress+blockOffset,
+                maxInstanceSizeInBytes+CLASS_DECLARATION_OVERHEAD, maxInstanceSizeInBytes, codec, LOCK_LEASE_MILLIS);
+        final StoredEvergreen<?> raced = handles.putIfAbsent(name, opened);
+        return raced==null ? opened : (Evergreen<T>) raced;
+    }
+
+    /**
+     * @return true if an object with the given name was ever opened in this store, by any process.
+     */
+    public boolean contains(String name) throws IOException {
+        if(handles.containsKey(name)) {
+            return true;
+        }
+        final Scratch scratch = scratches.get();
+        final int nameLength = scratch.encodeName(name, maxNameSizeInBytes);
+        return lookup(EvergreenMap.hash(scratch.name, nameLength), scratch, nameLength, -1)!=0L;
+    }
+
+    /**
+     * @return how many objects the store holds.
+     */
+    public int size() {
+        return theUnsafe.getInt(baseAddress+DIRECTORY_SIZE_OFFSET);
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * Optimistic directory lookup, retried if the directory sequence moved and done under the store lock after too
+     * many attempts.
+     * @param maxInstanceSizeInBytes checked against the one the object was created with, unless negative.
+     * @return the offset of the object's block, or 0 if there is no object with that name.
+     */
+    private long lookup(int hash, Scratch scratch, int nameLength, int maxInstanceSizeInBytes) throws IOException {
+        final long sequenceAddress = baseAddress+DIRECTORY_SEQUENCE_OFFSET;
+        for(int attempt=0 ; attempt<MAX_OPTIMISTIC_READ_ATTEMPTS ; attempt++) {
+            final long before = theUnsafe.getLong(sequenceAddress);
+            if((before & 1)!=0) {
+                // Directory write in progress.
+                theUnsafe.loadFence();
+                continue;
+            }
+            theUnsafe.loadFence();
+            final int index = find(hash, scratch, nameLength);
+            final long entry = entryAddress(Math.max(index, 0));
+            final long blockOffset = theUnsafe.getLong(entry+ENTRY_BLOCK_OFFSET);
+            final int storedMaxSize = theUnsafe.getInt(entry+ENTRY_MAX_SIZE_OFFSET);
+            theUnsafe.loadFence();
+            if(theUnsafe.getLong(sequenceAddress)==before) {
+                if(index<0) {
+                    return 0L;
+                }
+                checkMaxSize(scratch.nameString(nameLength), storedMaxSize, maxInstanceSizeInBytes);
+                return blockOffset;
+            }
+        }
+
+        storeLock.lock();
+        try {
+            final int index = find(hash, scratch, nameLength);
+            if(index<0) {
+                return 0L;
+            }
+            final long entry = entryAddress(index);
+            checkMaxSize(scratch.nameString(nameLength), theUnsafe.getInt(entry+ENTRY_MAX_SIZE_OFFSET), maxInstanceSizeInBytes);
+            return theUnsafe.getLong(entry+ENTRY_BLOCK_OFFSET);
+        } finally {
+            storeLock.unlock();
+        }
+    }
+
+    /**
+     * Takes a block of the right size class and writes the initial instance to it, then publishes it in the
+     * directory. Unless some other process did it first, in which case its block is returned.
+     */
+    private <T> long allocate(int hash, Scratch scratch, int nameLength, int maxInstanceSizeInBytes, int blockSize,
+                              Supplier<T> initializer, EvergreenCodec<T> codec) throws IOException {
+        storeLock.lock();
+        try {
+            int index = find(hash, scratch, nameLength);
+            if(index>=0) {
+                final long entry = entryAddress(index);
+                checkMaxSize(scratch.nameString(nameLength), theUnsafe.getInt(entry+ENTRY_MAX_SIZE_OFFSET), maxInstanceSizeInBytes);
+                return theUnsafe.getLong(entry+ENTRY_BLOCK_OFFSET);
+            }
+            final long sizeAddress = baseAddress+DIRECTORY_SIZE_OFFSET;
+            if(theUnsafe.getInt(sizeAddress)>=capacity) {
+                throw new IllegalStateException("Store already holds its capacity of "+capacity+" objects.");
+            }
+            final long blockOffset = takeBlock(blockSize);
+
+            // Nobody can see the block before the directory points to it, so it is written without its lock.
+            StoredEvergreen.initialize(theUnsafe, baseAddress+blockOffset, maxInstanceSizeInBytes+CLASS_DECLARATION_OVERHEAD,
+                    initializer.get(), codec);
+
+            final long entry = entryAddress(-index-1);
+            beginWrite();
+            try {
+                theUnsafe.copyMemory(scratch.name, 0, entry+ENTRY_NAME_OFFSET, nameLength);
+                theUnsafe.putInt(entry+ENTRY_NAME_LENGTH_OFFSET, nameLength);
+                theUnsafe.putInt(entry+ENTRY_MAX_SIZE_OFFSET, maxInstanceSizeInBytes);
+                theUnsafe.putLong(entry+ENTRY_BLOCK_OFFSET, blockOffset);
+                theUnsafe.putInt(entry+ENTRY_HASH_OFFSET, hash);
+                theUnsafe.putInt(entry+ENTRY_STATE_OFFSET, FULL);
+                theUnsafe.putInt(sizeAddress, theUnsafe.getInt(sizeAddress)+1);
+            } finally {
+                endWrite();
+            }
+            return blockOffset;
+        } finally {
+            storeLock.unlock();
+        }
+    }
+
+    /**
+     * Must hold the store lock. Carves the next block out of the slab of the size class, starting a new slab if
+     * needed. Taking a block and failing to publish it afterwards only leaks the block.
+     * @return the file offset of the block.
+     */
+    private long takeBlock(int blockSize) {
+        final long sizeClassAddress = baseAddress+SIZE_CLASSES_OFFSET
+                +Integer.numberOfTrailingZeros(blockSize/MIN_BLOCK_SIZE)*SIZE_CLASS_ENTRY_SIZE;
+        int slab = theUnsafe.getInt(sizeClassAddress+SIZE_CLASS_SLAB_OFFSET)-1;
+        int block = theUnsafe.getInt(sizeClassAddress+SIZE_CLASS_NEXT_BLOCK_OFFSET);
+        if(slab<0 || block>=SLAB_SIZE/blockSize) {
+            final long nextFreeSlabAddress = baseAddress+NEXT_FREE_SLAB_OFFSET;
+            slab = theUnsafe.getInt(nextFreeSlabAddress);
+            if(slab>=slabs) {
+                throw new IllegalStateException("Store has no free slab left for a block of "+blockSize+" bytes.");
+            }
+            theUnsafe.putInt(nextFreeSlabAddress, slab+1);
+            theUnsafe.putInt(sizeClassAddress+SIZE_CLASS_SLAB_OFFSET, slab+1);
+            block = 0;
+        }
+        theUnsafe.putInt(sizeClassAddress+SIZE_CLASS_NEXT_BLOCK_OFFSET, block+1);
+        return slabsOffset+(long)slab*SLAB_SIZE+(long)block*blockSize;
+    }
+
+    /**
+     * Probes the directory for the encoded name in the scratch.
+     * @return the index of the slot holding the name, or -(index of the first empty slot)-1 if it is not there.
+     */
+    private int find(int hash, Scratch scratch, int nameLength) {
+        int index = (int) ((hash & 0xFFFFFFFFL) % directorySlots);
+        // Bounded, optimistic readers may be probing a directory that is being written under their feet.
+        for(int probe=0 ; probe<directorySlots ; probe++) {
+            final long entry = entryAddress(index);
+            if(theUnsafe.getInt(entry+ENTRY_STATE_OFFSET)==EMPTY) {
+                return -index-1;
+            }
+            if(theUnsafe.getInt(entry+ENTRY_HASH_OFFSET)==hash
+                    && theUnsafe.getInt(entry+ENTRY_NAME_LENGTH_OFFSET)==nameLength
+                    && nameEquals(entry, scratch, nameLength)) {
+                return index;
+            }
+            index = index+1==directorySlots ? 0 : index+1;
+        }
+        return -directorySlots-1;
+    }
+
+    private boolean nameEquals(long entry, Scratch scratch, int nameLength) {
+        theUnsafe.copyMemory(entry+ENTRY_NAME_OFFSET, scratch.nameCompare, 0, nameLength);
+        for(int i=0 ; i<nameLength ; i++) {
+            if(scratch.nameCompare[i]!=scratch.name[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void beginWrite() {
+        final long sequenceAddress = baseAddress+DIRECTORY_SEQUENCE_OFFSET;
+        // A writer that died mid-write leaves the sequence odd, round it down so we still end up even.
+        theUnsafe.putLong(sequenceAddress, (theUnsafe.getLong(sequenceAddress) & ~1L)+1);
+        theUnsafe.storeFence();
+    }
+
+    private void endWrite() {
+        final long sequenceAddress = baseAddress+DIRECTORY_SEQUENCE_OFFSET;
+        theUnsafe.storeFence();
+        theUnsafe.putLong(sequenceAddress, theUnsafe.getLong(sequenceAddress)+1);
+    }
+
+    private long entryAddress(int index) {
+        return baseAddress+DIRECTORY_OFFSET+(long)index*entrySize;
+    }
+
+    private static void checkMaxSize(String name, int storedMaxSize, int maxInstanceSizeInBytes) throws IOException {
+        if(maxInstanceSizeInBytes>=0 && storedMaxSize!=maxInstanceSizeInBytes) {
+            throw new IOException("Object '"+name+"' was created with a max instance size of "+storedMaxSize
+                    +" bytes but "+maxInstanceSizeInBytes+" bytes were requested.");
+        }
+    }
+
+    /**
+     * @return the size class of the blocks holding objects of the given max instance size.
+     */
+    private static int blockSizeFor(int maxInstanceSizeInBytes) {
+        final long needed = (long)StoredEvergreen.PAYLOAD_OFFSET+maxInstanceSizeInBytes+CLASS_DECLARATION_OVERHEAD;
+        if(maxInstanceSizeInBytes<0 || needed>SLAB_SIZE) {
+            throw new IllegalArgumentException("Max instance size must be between 0 and "
+                    +(SLAB_SIZE-StoredEvergreen.PAYLOAD_OFFSET-CLASS_DECLARATION_OVERHEAD)+" bytes, got "+maxInstanceSizeInBytes
+                    +". Bigger objects need a file of their own, see EvergreenFactory.create(...).");
+        }
+        return Math.max(MIN_BLOCK_SIZE, Integer.highestOneBit((int) needed-1)<<1);
+    }
+
+    private static int align8(int value) {
+        return (value+7) & ~7;
+    }
+
+    /**
+     * Per thread buffers where names are encoded, so they can be compared against the directory.
+     */
+    private static final class Scratch {
+        final byte[] name;
+        final byte[] nameCompare;
+
+        Scratch(int maxNameSizeInBytes) {
+            this.name = new byte[maxNameSizeInBytes];
+            this.nameCompare = new byte[maxNameSizeInBytes];
+        }
+
+        int encodeName(String name, int maxNameSizeInBytes) {
+            final byte[] encoded = name.getBytes(StandardCharsets.UTF_8);
+            if(encoded.length>maxNameSizeInBytes) {
+                throw new IllegalArgumentException("Name '"+name+"' takes "+encoded.length+" bytes, more than the "
+                        +maxNameSizeInBytes+" allowed.");
+            }
+            System.arraycopy(encoded, 0, this.name, 0, encoded.length);
+            return encoded.length;
+        }
+
+        String nameString(int nameLength) {
+            return new String(name, 0, nameLength, StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package io.github.metabrain.evergreen;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Atomically reads and writes several EvergreenImpl at once, for invariants spanning more than one file.
+ *
+ * Locks are taken one object after the other in a global order, that of the random id each file gets in its header,
+ * so two transactions (or a transaction and a plain getAndPut) never wait on each other in a cycle, no matter which
+ * process or JVM runs them. Each lock is taken with the usual spin, yield and park backoff, holding the ones taken
+ * before it. That is on purpose rather than trying the whole set at once and letting go of everything when one is
+ * busy: the order already rules out deadlocks, and backing off would keep a transaction over hot objects starving
+ * behind the plain getAndPut calls on any one of them. Transactions over disjoint sets of objects run in parallel.
+ *
+ * The body gets and puts instances through the Context, puts are only staged. Once the body returns every staged
+ * instance is checked to fit, growing growable files right then, and then written, all before any lock is
+ * released, so whoever takes the locks (other transactions, getAndPut, locked reads) sees either none of the writes
+ * or all of them. Optimistic readers don't lock, they see each object's write as soon as it's published. If the body
+ * throws, or a staged instance doesn't fit, nothing is written. Once writing starts only I/O can still fail (e.g.
+ * forcing the journal with Durability.JOURNALED), in which case the objects before the failing one in the lock order
+ * keep their new instance and the rest their old one: there is no journal spanning several files to roll back with.
+ * The body must not call the objects directly, their locks are already held.
+ */
+public final class EvergreenTransaction {
+
+    private final EvergreenImpl<?>[] objects;
+
+    private EvergreenTransaction(EvergreenImpl<?>[] objects) {
+        this.objects = objects;
+    }
+
+    /**
+     * @param objects the objects the transaction may touch, no two of them on the same file. Sorting them happens
+     *                once here, keep the transaction around to run it many times.
+     * @throws IllegalArgumentException if two objects map the same file, since its lock would be taken twice.
+     */
+    public static EvergreenTransaction of(EvergreenImpl<?>... objects) {
+        final EvergreenImpl<?>[] sorted = objects.clone();
+        Arrays.sort(sorted, Comparator.comparingLong(EvergreenImpl::fileId));
+        for(int i=1 ; i<sorted.length ; i++) {
+            if(sorted[i].fileId()==sorted[i-1].fileId()) {
+                throw new IllegalArgumentException("Two of the objects map the same file.");
+            }
+        }
+        return new EvergreenTransaction(sorted);
+    }
+
+    /**
+     * Runs the body with every object locked and writes whatever it put.
+     * @return whatever the body returned.
+     * @throws java.nio.BufferOverflowException if a staged instance doesn't fit its file, nothing was written.
+     * @throws IOException if writing failed partway, see the class comment.
+     */
+    public <R> R execute(Body<R> body) throws IOException, ClassNotFoundException {
+        try {
+            return execute(body, false, 0L);
+        } catch (TimeoutException e) {
+            throw new AssertionError("Untimed operations never time out.", e);
+        }
+    }
+
+    /**
+     * Same as execute(...), but gives up if the locks can't all be taken before the timeout elapses.
+     * @throws TimeoutException if some lock couldn't be taken in time, the body was not run.
+     * @throws java.io.InterruptedIOException if interrupted while waiting.
+     */
+    public <R> R execute(Body<R> body, long timeout, TimeUnit unit) throws IOException, ClassNotFoundException, TimeoutException {
+        return execute(body, true, System.nanoTime()+unit.toNanos(timeout));
+    }
+
+    private <R> R execute(Body<R> body, boolean timed, long deadline) throws IOException, ClassNotFoundException, TimeoutException {
+        int locked = 0;
+        final long[] sequences = new long[objects.length];
+        try {
+            for( ; locked<objects.length ; locked++) {
+                objects[locked].acquire(timed, deadline);
+            }
+
+            final Context context = new Context(this);
+            final R result = body.apply(context);
+            for(EvergreenImpl<?> object : objects) {
+                context.prepareWrite(object);
+            }
+            for(int i=0 ; i<objects.length ; i++) {
+                sequences[i] = context.write(objects[i]);
+            }
+            return result;
+        } finally {
+            // Durability is dealt with once every lock is released, like getAndPut(...) does.
+            while(locked>0) {
+                objects[--locked].release();
+            }
+            for(int i=0 ; i<objects.length ; i++) {
+                if(sequences[i]!=0L) {
+                    objects[i].written(sequences[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs inside the transaction, may read the objects and stage new instances for them.
+     */
+    @FunctionalInterface
+    public interface Body<R> {
+        R apply(Context context) throws IOException, ClassNotFoundException;
+    }
+
+    /**
+     * What the body of a transaction sees. Only valid while the body runs, and only from the thread running it.
+     */
+    public static final class Context {
+        private final EvergreenTransaction transaction;
+        // Instances read or put so far, by object.
+        private final Map<EvergreenImpl<?>, Object> instances = new IdentityHashMap<>();
+        private final Map<EvergreenImpl<?>, Boolean> staged = new IdentityHashMap<>();
+
+        private Context(EvergreenTransaction transaction) {
+            this.transaction = transaction;
+        }
+
+        /**
+         * @return the instance stored in the object, or the one put in this transaction if any.
+         */
+        @SuppressWarnings("unchecked")
+        public <T> T get(EvergreenImpl<T> object) throws IOException, ClassNotFoundException {
+            check(object);
+            if(instances.containsKey(object)) {
+                return (T) instances.get(object);
+            }
+            final T instance = object.get0(false);
+            instances.put(object, instance);
+            return instance;
+        }
+
+        /**
+         * Stages the instance, it gets written once the body returns.
+         */
+        public <T> void put(EvergreenImpl<T> object, T instance) {
+            check(object);
+            instances.put(object, instance);
+            staged.put(object, Boolean.TRUE);
+        }
+
+        private void check(EvergreenImpl<?> object) {
+            for(EvergreenImpl<?> locked : transaction.objects) {
+                if(locked==object) {
+                    return;
+                }
+            }
+            throw new IllegalArgumentException("Object is not part of the transaction.");
+        }
+
+        @SuppressWarnings("unchecked")
+        private <T> void prepareWrite(EvergreenImpl<T> object) throws IOException {
+            if(staged.containsKey(object)) {
+                object.prepareWrite((T) instances.get(object));
+            }
+        }
+
+        /**
+         * @return the sequence the staged instance was published with, or 0 if nothing was put.
+         */
+        @SuppressWarnings("unchecked")
+        private <T> long write(EvergreenImpl<T> object) throws IOException {
+            return staged.containsKey(object) ? object.write((T) instances.get(object)) : 0L;
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package io.github.metabrain.evergreen;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of durations in nanos. Buckets split every power of two in 4, so any value is reported within
+ * 25% of what was recorded, from 1ns up to Long.MAX_VALUE, in a fixed 256 buckets. Every bucket is a LongAdder, so
+ * threads recording concurrently don't fight over the same cache line.
+ */
+final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 2;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = 256;
+
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0L);
+
+    LatencyHistogram() {
+        for(int i=0 ; i<BUCKETS ; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    void record(long nanos) {
+        final long value = Math.max(0L, nanos);
+        buckets[indexOf(value)].increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    LatencySnapshot snapshot() {
+        final long[] counts = new long[BUCKETS];
+        long count = 0;
+        for(int i=0 ; i<BUCKETS ; i++) {
+            counts[i] = buckets[i].sum();
+            count += counts[i];
+        }
+        final long maxNanos = max.get();
+        return new LatencySnapshot(count,
+                count==0 ? 0L : sum.sum()/count,
+                percentile(counts, count, 0.50, maxNanos),
+                percentile(counts, count, 0.90, maxNanos),
+                percentile(counts, count, 0.99, maxNanos),
+                percentile(counts, count, 0.999, maxNanos),
+                maxNanos);
+    }
+
+    void reset() {
+        for(LongAdder bucket : buckets) {
+            bucket.reset();
+        }
+        sum.reset();
+        max.reset();
+    }
+
+    /**
+     * @return the highest value the bucket holding the given percentile may contain, never more than the max seen.
+     */
+    private static long percentile(long[] counts, long count, double percentile, long maxNanos) {
+        if(count==0) {
+            return 0L;
+        }
+        final long rank = (long) Math.ceil(percentile*count);
+        long seen = 0;
+        for(int i=0 ; i<BUCKETS ; i++) {
+            seen += counts[i];
+            if(seen>=rank) {
+                return Math.min(highestValueIn(i), maxNanos);
+            }
+        }
+        return maxNanos;
+    }
+
+    static int indexOf(long value) {
+        if(value<SUB_BUCKETS) {
+            return (int) value;
+        }
+        final int exponent = 63-Long.numberOfLeadingZeros(value);
+        final int subBucket = (int) (value >>> (exponent-SUB_BUCKET_BITS)) & (SUB_BUCKETS-1);
+        return SUB_BUCKETS*(exponent-SUB_BUCKET_BITS+1)+subBucket;
+    }
+
+    static long highestValueIn(int index) {
+        if(index<SUB_BUCKETS) {
+            return index;
+        }
+        final int exponent = index/SUB_BUCKETS+SUB_BUCKET_BITS-1;
+        final long lowest = (long) (SUB_BUCKETS+index%SUB_BUCKETS) << (exponent-SUB_BUCKET_BITS);
+        return lowest+(1L << (exponent-SUB_BUCKET_BITS))-1;
+    }
+}
@@ -0,0 +1,185 @@
+package io.github.metabrain.evergreen;
+
+import io.github.metabrain.evergreen.unsafe.IUnsafe;
+
+import java.util.concurrent.TimeUnit;
+
+import static java.util.concurrent.locks.LockSupport.parkNanos;
+
+/**
+ * Inter-process lock living in a memory mapped file. It takes 16 bytes: the lock word, holding the pid of the owner
+ * process (0 when unlocked), followed by the lease, the time in millis at which the owner took the lock.
+ *
+ * Waiters spin for a little while, then yield, then park with a bounded exponential backoff, so a long held lock
+ * doesn't burn whole cores. While parked they also check if the owner died holding the lock: if the lease is expired
+ * and the owner process is known to be gone, the waiter takes the lock over straight from it, so the file doesn't stay
+ * wedged forever and whoever gets it knows to clean up after the dead owner, see tookOverFromDeadOwner(). When its
+ * liveness can't be told (no ProcessHandle nor /proc), the lock is never cleared automatically, forceUnlock() is left
+ * for that. Pids are only meaningful within one pid namespace, processes sharing a file from different containers
+ * should share their pid namespace too.
+ *
+ * The lock is not reentrant, and it doesn't tell apart threads of the same JVM, that is up to the caller.
+ */
+final class MappedLock {
+
+    static final int UNLOCKED = 0;
+    static final int SIZE = 16;
+
+    private static final int LEASE_OFFSET = 0x8;
+
+    // Spinning only makes sense if the owner can be running on another core meanwhile.
+    private static final int SPINS = Runtime.getRuntime().availableProcessors()>1 ? 128 : 0;
+    private static final int YIELDS = 16;
+    private static final long MIN_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(1);
+    private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final IUnsafe unsafe;
+    private final long lockAddress;
+    private final long leaseAddress;
+    private final long leaseMillis;
+    private final EvergreenMetrics metrics;
+    // Only touched by whoever holds the lock, right after taking it.
+    private boolean tookOver;
+
+    /**
+     * @param lockAddress address of the lock word, followed by the lease. Should be 8 bytes aligned.
+     * @param leaseMillis how long the owner is trusted to hold the lock before its liveness gets checked.
+     */
+    MappedLock(IUnsafe unsafe, long lockAddress, long leaseMillis) {
+        this(unsafe, lockAddress, leaseMillis, null);
+    }
+
+    /**
+     * @param metrics where to count CAS failures, spins, yields and parks, or null.
+     */
+    MappedLock(IUnsafe unsafe, long lockAddress, long leaseMillis, EvergreenMetrics metrics) {
+        this.unsafe = unsafe;
+        this.lockAddress = lockAddress;
+        this.leaseAddress = lockAddress+LEASE_OFFSET;
+        this.leaseMillis = leaseMillis;
+        this.metrics = metrics;
+    }
+
+    void lock() {
+        acquire(false, 0L);
+    }
+
+    /**
+     * @return false if the lock couldn't be taken before the timeout elapsed.
+     */
+    boolean tryLock(long timeout, TimeUnit unit) {
+        return tryLockUntil(System.nanoTime()+unit.toNanos(timeout));
+    }
+
+    /**
+     * @param deadline as given by System.nanoTime().
+     * @return false if the lock couldn't be taken before the deadline.
+     */
+    boolean tryLockUntil(long deadline) {
+        return acquire(true, deadline);
+    }
+
+    void unlock() {
+        // no need to check previous value since it was locked to us so nobody could have touched it... In theory...
+        unsafe.putInt(lockAddress, UNLOCKED);
+    }
+
+    /**
+     * Only meaningful to whoever holds the lock.
+     * @return true if the lock was taken straight from an owner that died holding it, so whatever it protects may
+     * have been left halfway through a change.
+     */
+    boolean tookOverFromDeadOwner() {
+        return tookOver;
+    }
+
+    /**
+     * @return the pid of the process currently holding the lock, or 0 if unlocked.
+     */
+    int owner() {
+        return unsafe.getInt(lockAddress);
+    }
+
+    /**
+     * Unconditionally clears the lock, whoever holds it. Only meant for recovering files whose owner is known to be
+     * gone, if the owner is still alive both it and the next one to lock will think they own it.
+     * @return the pid of the process that was holding the lock, or 0 if it wasn't locked.
+     */
+    int forceUnlock() {
+        while(true) {
+            final int owner = unsafe.getInt(lockAddress);
+            if(owner==UNLOCKED || unsafe.compareAndSwapInt(lockAddress, owner, UNLOCKED)) {
+                return owner;
+            }
+        }
+    }
+
+    private boolean acquire(boolean timed, long deadline) {
+        final int pid = Processes.pid();
+        long parkNanos = MIN_PARK_NANOS;
+        int casFailures = 0;
+        for(int attempt=0 ; ; attempt++) {
+            if(unsafe.getInt(lockAddress)==UNLOCKED) {
+                if(unsafe.compareAndSwapInt(lockAddress, UNLOCKED, pid)) {
+                    unsafe.putLong(leaseAddress, System.currentTimeMillis());
+                    tookOver = false;
+                    recordContention(attempt, casFailures);
+                    return true;
+                }
+                casFailures++;
+            }
+            if(timed && System.nanoTime()-deadline>=0) {
+                recordContention(attempt, casFailures);
+                return false;
+            }
+
+            if(attempt<SPINS) {
+                Processes.onSpinWait();
+            } else if(attempt<SPINS+YIELDS) {
+                Thread.yield();
+            } else {
+                if(takeOverIfOwnerIsDead(pid)) {
+                    recordContention(attempt, casFailures);
+                    return true;
+                }
+                parkNanos(timed ? Math.min(parkNanos, Math.max(1L, deadline-System.nanoTime())) : parkNanos);
+                parkNanos = Math.min(parkNanos<<1, MAX_PARK_NANOS);
+            }
+        }
+    }
+
+    /**
+     * @param waits how many times we backed off, which tells how many of them were spins, yields and parks.
+     */
+    private void recordContention(int waits, int casFailures) {
+        if(metrics!=null && (waits>0 || casFailures>0)) {
+            final int spins = Math.min(waits, SPINS);
+            final int yields = Math.min(waits-spins, YIELDS);
+            metrics.lockContended(casFailures, spins, yields, waits-spins-yields);
+        }
+    }
+
+    /**
+     * Rather than clearing the lock, which would let anyone take it without knowing what was left behind.
+     * @return true if the lock is now ours.
+     */
+    private boolean takeOverIfOwnerIsDead(int pid) {
+        final int owner = unsafe.getInt(lockAddress);
+        if(owner==UNLOCKED || owner==pid) {
+            return false;
+        }
+        final long lease = unsafe.getLong(leaseAddress);
+        if(System.currentTimeMillis()-lease<leaseMillis) {
+            return false;
+        }
+        // Expired lease alone is not enough, the owner may just be slow. If there's no way to know, keep waiting:
+        // stealing the lock from a live owner would let two writers in.
+        if(Processes.liveness(owner)==Processes.DEAD && unsafe.getLong(leaseAddress)==lease
+                && unsafe.compareAndSwapInt(lockAddress, owner, pid)) {
+            unsafe.putLong(leaseAddress, System.currentTimeMillis());
+            tookOver = true;
+            return true;
+        }
+        return false;
+    }
+}
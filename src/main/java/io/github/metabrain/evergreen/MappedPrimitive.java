@@ -0,0 +1,77 @@
+package io.github.metabrain.evergreen;
+
+import io.github.metabrain.evergreen.unsafe.IUnsafe;
+import io.github.metabrain.evergreen.unsafe.UnsafeUtils;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.function.LongConsumer;
+
+/**
+ * Common file handling of the primitive Evergreens (EvergreenInt, EvergreenLong and EvergreenDouble).
+ *
+ * The value lives alone in its own cache line at a fixed offset and is only ever touched with atomic operations, so
+ * there is no lock word, no codec and no sequence involved. The lock in the header is only used to initialize the file.
+ */
+abstract class MappedPrimitive {
+
+    private static final int FORMAT_VERSION = 1;
+
+    // OFFSETS FOR MEMORY MAPPED FILE
+    private static final int MAGIC_OFFSET = 0x0;
+    private static final int VERSION_OFFSET = 0x4;
+    private static final int LOCK_OFFSET = 0x40;
+    private static final int VALUE_OFFSET = 0x80;
+    private static final int FILE_SIZE = 0xC0;
+
+    private static final long INIT_LOCK_LEASE_MILLIS = 10000;
+
+    protected static final IUnsafe theUnsafe = UnsafeUtils.getSafeUnsafe();
+
+    // Keeps the mapping alive for as long as this object is.
+    private final MappedByteBuffer mmb;
+    protected final long valueAddress;
+
+    /**
+     * @param magic identifies the kind of primitive stored, opening a file of another kind fails.
+     * @param initializer writes the initial value at the given address, only called if the file wasn't initialized yet.
+     */
+    protected MappedPrimitive(FileChannel fc, int magic, LongConsumer initializer) throws IOException {
+        this.mmb = fc.map(FileChannel.MapMode.READ_WRITE, 0, FILE_SIZE);
+        final long baseAddress = UnsafeUtils.getAddress(mmb);
+        this.valueAddress = baseAddress+VALUE_OFFSET;
+
+        final int storedMagic = theUnsafe.getInt(baseAddress+MAGIC_OFFSET);
+        if(storedMagic==magic) {
+            // Already initialized, which is the common case and needs no locking at all.
+            validateVersion(baseAddress);
+            return;
+        }
+
+        MappedLock initLock = new MappedLock(theUnsafe, baseAddress+LOCK_OFFSET, INIT_LOCK_LEASE_MILLIS);
+        initLock.lock();
+        try {
+            final int magicNow = theUnsafe.getInt(baseAddress+MAGIC_OFFSET);
+            if(magicNow==0) {
+                initializer.accept(valueAddress);
+                theUnsafe.putInt(baseAddress+VERSION_OFFSET, FORMAT_VERSION);
+                // Magic goes last, so it is only there once everything else is.
+                theUnsafe.putInt(baseAddress+MAGIC_OFFSET, magic);
+            } else if(magicNow!=magic) {
+                throw new IOException("File holds another kind of Evergreen (magic 0x"+Integer.toHexString(magicNow)+").");
+            } else {
+                validateVersion(baseAddress);
+            }
+        } finally {
+            initLock.unlock();
+        }
+    }
+
+    private static void validateVersion(long baseAddress) throws IOException {
+        final int version = theUnsafe.getInt(baseAddress+VERSION_OFFSET);
+        if(version!=FORMAT_VERSION) {
+            throw new IOException("Unsupported file format version "+version+", expected "+FORMAT_VERSION+".");
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package io.github.metabrain.evergreen;
+
+/**
+ * How EvergreenImpl's plain loads and stores of the file (lock word, sequence, lengths...) are ordered with the rest.
+ * CAS operations and explicit fences are full ones either way.
+ */
+public enum MemoryOrdering {
+    /**
+     * Every load and store is volatile. Stores pay for a full fence.
+     */
+    VOLATILE,
+    /**
+     * Loads acquire and stores release, which is all the lock and seqlock protocols need. Releasing the lock and
+     * publishing the sequence skip the full fence a volatile store costs. Built on VarHandle fences on Java 9+, on
+     * Unsafe ordered stores on Java 8.
+     */
+    ACQUIRE_RELEASE
+}
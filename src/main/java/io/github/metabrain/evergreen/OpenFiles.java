@@ -0,0 +1,118 @@
+package io.github.metabrain.evergreen;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * OS level locks on the files EvergreenImpl instances of this JVM have open, which is what keeps an exclusive open
+ * from succeeding while anyone else has the file open, and the other way around. Shared instances hold a shared lock
+ * and exclusive ones an exclusive lock, both over the whole file. Stores, maps, queues and records are always shared.
+ *
+ * FileLocks belong to the whole JVM and can't overlap, so shared instances of the same file don't each take their own:
+ * the first one takes it and the others join. On some systems closing any channel of a file drops every lock the
+ * JVM holds on it, so channels are only closed once the last instance of their file is closed. That goes for the
+ * channels of opens that failed because of an instance of this JVM too, they are closed along with its own.
+ */
+final class OpenFiles {
+
+    // Guarded by lock. Only non-blocking tryLock calls are made while holding it.
+    private static final Map<Object, OpenFile> files = new HashMap<>();
+    private static final ReentrantLock lock = new ReentrantLock();
+
+    private OpenFiles() {
+        throw new AssertionError("No instance for you!");
+    }
+
+    /**
+     * @return what identifies the file no matter the path it is opened with (device and inode where available).
+     */
+    static Object fileKey(String filepath) throws IOException {
+        final File file = new File(filepath);
+        final Object key = Files.readAttributes(file.toPath(), BasicFileAttributes.class).fileKey();
+        return key!=null ? key : file.getCanonicalPath();
+    }
+
+    /**
+     * @param shared false for EXCLUSIVE and SINGLE_WRITER instances.
+     * @throws IOException if the file is open in a way that conflicts, in this JVM or another process.
+     */
+    static void open(Object fileKey, FileChannel fc, boolean shared) throws IOException {
+        lock.lock();
+        try {
+            final OpenFile file = files.get(fileKey);
+            if(file!=null) {
+                file.channels.add(fc);
+                if(!file.shared || !shared) {
+                    throw new IOException("File is already open"+(file.shared ? "" : " exclusively")+" by this JVM.");
+                }
+                file.instances++;
+                return;
+            }
+            final FileLock fileLock;
+            try {
+                fileLock = fc.tryLock(0L, Long.MAX_VALUE, shared);
+            } catch (OverlappingFileLockException e) {
+                throw new IOException("File is already locked by this JVM.", e);
+            }
+            if(fileLock==null) {
+                // Nobody in this JVM has the file open, closing the channel can't drop anyone's lock.
+                fc.close();
+                throw new IOException(shared
+                        ? "File is open exclusively by another process."
+                        : "File is already open by another process.");
+            }
+            files.put(fileKey, new OpenFile(fileLock, shared, fc));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Releases the lock and closes every channel of the file if this was the last instance of the file still open,
+     * must be called once per successful open(...).
+     */
+    static void close(Object fileKey) throws IOException {
+        final OpenFile file;
+        lock.lock();
+        try {
+            file = files.get(fileKey);
+            if(file==null || --file.instances>0) {
+                return;
+            }
+            files.remove(fileKey);
+        } finally {
+            lock.unlock();
+        }
+        try {
+            file.fileLock.release();
+        } finally {
+            for(FileChannel channel : file.channels) {
+                channel.close();
+            }
+        }
+    }
+
+    private static final class OpenFile {
+        final FileLock fileLock;
+        final boolean shared;
+        // Every channel opened on the file, kept open until the last instance is closed.
+        final List<FileChannel> channels = new ArrayList<>();
+        int instances = 1;
+
+        OpenFile(FileLock fileLock, boolean shared, FileChannel fc) {
+            this.fileLock = fileLock;
+            this.shared = shared;
+            channels.add(fc);
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package io.github.metabrain.evergreen;
+
+/**
+ * Who else may have the file open at the same time, which decides what an EvergreenImpl has to lock on every write.
+ */
+public enum OpenMode {
+    /**
+     * Any number of instances, in any number of processes. Writers take the in-JVM guard and then the lock in the file.
+     * Each holds a shared OS level FileLock until closed, so the file can't be opened exclusively meanwhile.
+     */
+    SHARED,
+    /**
+     * Only this instance has the file open, enforced with an exclusive OS level FileLock held until it is closed.
+     * Opening the file again fails, exclusively or shared and from any process, and so does opening it while any
+     * shared instance has it open. Writers only take the in-JVM guard,
+     * the lock in the file is never touched after the file is opened.
+     */
+    EXCLUSIVE,
+    /**
+     * Same as EXCLUSIVE, and on top of that a single thread ever writes, which the caller guarantees. No lock at all
+     * is taken, writers just bump the seqlock sequence. Readers of other threads only read optimistically, retrying
+     * for as long as it takes, so ReadMode.LOCKED isn't allowed.
+     */
+    SINGLE_WRITER
+}
@@ -0,0 +1,102 @@
+package io.github.metabrain.evergreen;
+
+import java.io.File;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.management.ManagementFactory;
+import java.util.Optional;
+
+/**
+ * Process related helpers that need to work from Java 8 onwards.
+ */
+final class Processes {
+    // prevents instantiation
+    private Processes() {
+        throw new AssertionError("No instance for you!");
+    }
+
+    /** Liveness of another process can't be found out on this machine. */
+    static final int UNKNOWN = -1;
+    static final int DEAD = 0;
+    static final int ALIVE = 1;
+
+    private static final int PID = currentPid();
+
+    // ProcessHandle.of(long) and ProcessHandle.isAlive(), only there on Java 9+.
+    private static final MethodHandle PROCESS_HANDLE_OF;
+    private static final MethodHandle PROCESS_HANDLE_IS_ALIVE;
+    static {
+        MethodHandle of = null;
+        MethodHandle isAlive = null;
+        try {
+            Class<?> processHandle = Class.forName("java.lang.ProcessHandle");
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            of = lookup.findStatic(processHandle, "of", MethodType.methodType(Optional.class, long.class));
+            isAlive = lookup.findVirtual(processHandle, "isAlive", MethodType.methodType(boolean.class));
+        } catch (Exception ignored) {}
+        PROCESS_HANDLE_OF = of;
+        PROCESS_HANDLE_IS_ALIVE = isAlive;
+    }
+
+    // Thread.onSpinWait(), only there on Java 9+.
+    private static final MethodHandle ON_SPIN_WAIT;
+    static {
+        MethodHandle onSpinWait = null;
+        try {
+            onSpinWait = MethodHandles.publicLookup().findStatic(Thread.class, "onSpinWait", MethodType.methodType(void.class));
+        } catch (Exception ignored) {}
+        ON_SPIN_WAIT = onSpinWait;
+    }
+
+    /**
+     * @return the pid of this JVM, never 0 so it can be used as a lock word.
+     */
+    static int pid() {
+        return PID;
+    }
+
+    /**
+     * @return ALIVE, DEAD or UNKNOWN.
+     */
+    static int liveness(int pid) {
+        if(pid==PID) {
+            return ALIVE;
+        }
+        if(PROCESS_HANDLE_OF!=null) {
+            try {
+                Optional<?> handle = (Optional<?>) PROCESS_HANDLE_OF.invoke((long) pid);
+                return handle.isPresent() && (boolean) PROCESS_HANDLE_IS_ALIVE.invoke(handle.get()) ? ALIVE : DEAD;
+            } catch (Throwable ignored) {}
+        }
+        // Linux & friends on Java 8.
+        if(new File("/proc/self").exists()) {
+            return new File("/proc/"+pid).exists() ? ALIVE : DEAD;
+        }
+        return UNKNOWN;
+    }
+
+    /**
+     * Thread.onSpinWait() when available, nothing otherwise.
+     */
+    static void onSpinWait() {
+        if(ON_SPIN_WAIT!=null) {
+            try {
+                ON_SPIN_WAIT.invokeExact();
+            } catch (Throwable ignored) {}
+        }
+    }
+
+    private static int currentPid() {
+        // "pid@hostname" on every JVM we know of.
+        final String name = ManagementFactory.getRuntimeMXBean().getName();
+        try {
+            int pid = Integer.parseInt(name.substring(0, name.indexOf('@')));
+            if(pid!=0) {
+                return pid;
+            }
+        } catch (RuntimeException ignored) {}
+        // Can't tell, pick something that is very unlikely to clash with another process.
+        return (int) (System.nanoTime() | 0x40000000);
+    }
+}
@@ -0,0 +1,16 @@
+package io.github.metabrain.evergreen;
+
+/**
+ * Who may offer messages to an EvergreenQueue. Either way there is a single consumer at a time.
+ */
+public enum QueueMode {
+    /**
+     * Single producer, single consumer. The producer claims slots without any CAS, so it is up to the caller to make
+     * sure there is only ever one producing thread across every process attached to the file.
+     */
+    SPSC,
+    /**
+     * Multiple producers, single consumer. Producers claim slots with a CAS on the tail sequence.
+     */
+    MPSC
+}
@@ -0,0 +1,33 @@
+package io.github.metabrain.evergreen;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * Per thread scratch space where optimistic reads copy the instance bytes before decoding them.
+ */
+final class ReadBuffer {
+    final byte[] bytes;
+    private final ByteBuffer buffer;
+    private final CRC32 crc = new CRC32();
+
+    ReadBuffer(int capacity) {
+        this.bytes = new byte[capacity];
+        this.buffer = ByteBuffer.wrap(bytes);
+    }
+
+    /**
+     * @return the buffer positioned at the first byte and limited to the given length.
+     */
+    ByteBuffer view(int length) {
+        buffer.clear();
+        buffer.limit(length);
+        return buffer;
+    }
+
+    int checksum(int length) {
+        crc.reset();
+        crc.update(bytes, 0, length);
+        return (int) crc.getValue();
+    }
+}
@@ -0,0 +1,16 @@
+package io.github.metabrain.evergreen;
+
+/**
+ * How Evergreen.get() synchronizes with writers.
+ */
+public enum ReadMode {
+    /**
+     * Readers take the file lock, just like writers do. Readers serialize behind each other.
+     */
+    LOCKED,
+    /**
+     * Readers never take the file lock. They copy the instance and retry only if the write sequence in the file header
+     * changed meanwhile (seqlock). Readers scale with cores and JVMs, writers are never held back by them.
+     */
+    OPTIMISTIC
+}
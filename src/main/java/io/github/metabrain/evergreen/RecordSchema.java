@@ -0,0 +1,171 @@
+package io.github.metabrain.evergreen;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Fixed layout of an EvergreenRecord: named int, long, double and fixed length byte fields, laid out in the order they
+ * were added. Every field is aligned to its own size (bytes fields to 8), so primitive fields can be read, written and
+ * CAS'd atomically straight in the mapped file.
+ *
+ * Resolve fields once with field(name) and keep the Field around, EvergreenRecord's accessors take it directly so no
+ * lookup happens per access.
+ */
+public final class RecordSchema {
+
+    public enum FieldType {
+        INT(4), LONG(8), DOUBLE(8), BYTES(8);
+
+        final int alignment;
+
+        FieldType(int alignment) {
+            this.alignment = alignment;
+        }
+    }
+
+    public static final class Field {
+        final RecordSchema schema;
+        private final String name;
+        final FieldType type;
+        final int offset;
+        final int length;
+
+        private Field(RecordSchema schema, String name, FieldType type, int offset, int length) {
+            this.schema = schema;
+            this.name = name;
+            this.type = type;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public FieldType getType() {
+            return type;
+        }
+
+        /** Offset of the field from the start of the record. */
+        public int getOffset() {
+            return offset;
+        }
+
+        /** Size of the field in bytes. */
+        public int getLength() {
+            return length;
+        }
+
+        @Override
+        public String toString() {
+            return name+":"+type+"["+length+"]@"+offset;
+        }
+    }
+
+    private final Map<String, Field> fields = new LinkedHashMap<>();
+    private final int size;
+    private final int fingerprint;
+
+    private RecordSchema(Builder builder) {
+        final CRC32 crc = new CRC32();
+        int offset = 0;
+        for(int i=0 ; i<builder.names.size() ; i++) {
+            final FieldType type = builder.types.get(i);
+            final int length = builder.lengths.get(i);
+            offset = (offset+type.alignment-1) & -type.alignment;
+            final Field field = new Field(this, builder.names.get(i), type, offset, length);
+            fields.put(field.getName(), field);
+            offset += length;
+            crc.update((field.getName()+":"+type+":"+length+";").getBytes(StandardCharsets.UTF_8));
+        }
+        this.size = (offset+7) & ~7;
+        this.fingerprint = (int) crc.getValue();
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * @throws IllegalArgumentException if the schema has no field with that name.
+     */
+    public Field field(String name) {
+        final Field field = fields.get(name);
+        if(field==null) {
+            throw new IllegalArgumentException("Schema has no field named '"+name+"'.");
+        }
+        return field;
+    }
+
+    public List<Field> fields() {
+        return Collections.unmodifiableList(new ArrayList<>(fields.values()));
+    }
+
+    /** Bytes taken by a record, padding included. */
+    public int size() {
+        return size;
+    }
+
+    /** Hash of the names, types and lengths of the fields, stored in the file to detect layout mismatches. */
+    int fingerprint() {
+        return fingerprint;
+    }
+
+    @Override
+    public String toString() {
+        return fields.values().toString();
+    }
+
+    public static final class Builder {
+        private final List<String> names = new ArrayList<>();
+        private final List<FieldType> types = new ArrayList<>();
+        private final List<Integer> lengths = new ArrayList<>();
+
+        private Builder() {
+        }
+
+        public Builder addInt(String name) {
+            return add(name, FieldType.INT, 4);
+        }
+
+        public Builder addLong(String name) {
+            return add(name, FieldType.LONG, 8);
+        }
+
+        public Builder addDouble(String name) {
+            return add(name, FieldType.DOUBLE, 8);
+        }
+
+        /**
+         * @param length bytes always read and written as a whole, shorter contents must be padded by the caller.
+         */
+        public Builder addBytes(String name, int length) {
+            if(length<=0) {
+                throw new IllegalArgumentException("Bytes field '"+name+"' needs a positive length, got "+length+".");
+            }
+            return add(name, FieldType.BYTES, length);
+        }
+
+        private Builder add(String name, FieldType type, int length) {
+            if(names.contains(name)) {
+                throw new IllegalArgumentException("Schema already has a field named '"+name+"'.");
+            }
+            names.add(name);
+            types.add(type);
+            lengths.add(length);
+            return this;
+        }
+
+        public RecordSchema build() {
+            if(names.isEmpty()) {
+                throw new IllegalStateException("Schema has no fields.");
+            }
+            return new RecordSchema(this);
+        }
+    }
+}
@@ -0,0 +1,270 @@
+package io.github.metabrain.evergreen;
+
+import io.github.metabrain.evergreen.codec.EvergreenCodec;
+import io.github.metabrain.evergreen.unsafe.IUnsafe;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/**
+ * Handle of an object living in a block of an EvergreenStore. Same seqlock as a single slot EvergreenImpl: readers
+ * copy the instance optimistically, writers take the block's own lock word and keep the sequence odd while writing.
+ *
+ * Instances are encoded on the heap before the block is touched, so one that doesn't fit leaves the stored one as is.
+ */
+final class StoredEvergreen<T> implements Evergreen<T> {
+
+    private static final int MAX_OPTIMISTIC_READ_ATTEMPTS = 64;
+
+    // OFFSETS INSIDE A BLOCK
+    private static final int LOCK_OFFSET = 0x0;
+    private static final int SEQUENCE_OFFSET = 0x10;
+    private static final int LENGTH_OFFSET = 0x18;
+    static final int PAYLOAD_OFFSET = 0x40;
+
+    final int maxInstanceSizeInBytes;
+    private final IUnsafe unsafe;
+    // Keeps the mapping alive for as long as the handle is, even if the store isn't referenced anymore.
+    private final MappedByteBuffer mmb;
+    private final long sequenceAddress;
+    private final long lengthAddress;
+    private final long payloadAddress;
+    private final int payloadCapacity;
+    private final EvergreenCodec<T> codec;
+    private final MappedLock fileLock;
+    // Threads of this JVM sharing the handle queue here, the lock word doesn't tell them apart.
+    private final ReentrantLock guard = new ReentrantLock();
+    private final ThreadLocal<Scratch> scratches;
+
+    StoredEvergreen(IUnsafe unsafe, MappedByteBuffer mmb, long blockAddress, int payloadCapacity, int maxInstanceSizeInBytes,
+                    EvergreenCodec<T> codec, long lockLeaseMillis) {
+        this.unsafe = unsafe;
+        this.mmb = mmb;
+        this.sequenceAddress = blockAddress+SEQUENCE_OFFSET;
+        this.lengthAddress = blockAddress+LENGTH_OFFSET;
+        this.payloadAddress = blockAddress+PAYLOAD_OFFSET;
+        this.payloadCapacity = payloadCapacity;
+        this.maxInstanceSizeInBytes = maxInstanceSizeInBytes;
+        this.codec = codec;
+        this.fileLock = new MappedLock(unsafe, blockAddress+LOCK_OFFSET, lockLeaseMillis);
+        this.scratches = ThreadLocal.withInitial(() -> new Scratch(payloadCapacity));
+    }
+
+    /**
+     * Writes the initial instance of a block nobody can see yet.
+     */
+    static <T> void initialize(IUnsafe unsafe, long blockAddress, int payloadCapacity, T instance, EvergreenCodec<T> codec) throws IOException {
+        final Scratch scratch = new Scratch(payloadCapacity);
+        final int length = scratch.encode(codec, instance);
+        unsafe.copyMemory(scratch.bytes, 0, blockAddress+PAYLOAD_OFFSET, length);
+        unsafe.putInt(blockAddress+LENGTH_OFFSET, length);
+    }
+
+    public T get() throws IOException, ClassNotFoundException {
+        try {
+            return get(false, 0L);
+        } catch (TimeoutException e) {
+            throw new AssertionError("Untimed operations never time out.", e);
+        }
+    }
+
+    public T get(long timeout, TimeUnit unit) throws IOException, ClassNotFoundException, TimeoutException {
+        return get(true, System.nanoTime()+unit.toNanos(timeout));
+    }
+
+    private T get(boolean timed, long deadline) throws IOException, ClassNotFoundException, TimeoutException {
+        final Scratch scratch = scratches.get();
+        for(int attempt=0 ; attempt<MAX_OPTIMISTIC_READ_ATTEMPTS ; attempt++) {
+            final long before = unsafe.getLong(sequenceAddress);
+            if((before & 1)!=0) {
+                // Write in progress.
+                unsafe.loadFence();
+                continue;
+            }
+            unsafe.loadFence();
+            final int length = unsafe.getInt(lengthAddress);
+            if(length<0 || length>payloadCapacity) {
+                // Torn length, the sequence check would tell us anyway but we can't copy garbage lengths.
+                continue;
+            }
+            unsafe.copyMemory(payloadAddress, scratch.bytes, 0, length);
+            unsafe.loadFence();
+            if(unsafe.getLong(sequenceAddress)==before) {
+                return codec.decode(scratch.view(length));
+            }
+        }
+
+        acquire(timed, deadline);
+        try {
+            return read(scratch);
+        } finally {
+            release();
+        }
+    }
+
+    public void put(T instance) throws IOException {
+        try {
+            put(instance, false, 0L);
+        } catch (TimeoutException e) {
+            throw new AssertionError("Untimed operations never time out.", e);
+        }
+    }
+
+    public void put(T instance, long timeout, TimeUnit unit) throws IOException, TimeoutException {
+        put(instance, true, System.nanoTime()+unit.toNanos(timeout));
+    }
+
+    private void put(T instance, boolean timed, long deadline) throws IOException, TimeoutException {
+        final Scratch scratch = scratches.get();
+        final int length = scratch.encode(codec, instance);
+        acquire(timed, deadline);
+        try {
+            write(scratch, length);
+        } finally {
+            release();
+        }
+    }
+
+    public T getAndPut(Function<T, T> getAndPutFunction) throws IOException, ClassNotFoundException {
+        try {
+            return getAndPut(getAndPutFunction, false, 0L);
+        } catch (TimeoutException e) {
+            throw new AssertionError("Untimed operations never time out.", e);
+        }
+    }
+
+    public T getAndPut(Function<T, T> getAndPutFunction, long timeout, TimeUnit unit) throws IOException, ClassNotFoundException, TimeoutException {
+        return getAndPut(getAndPutFunction, true, System.nanoTime()+unit.toNanos(timeout));
+    }
+
+    private T getAndPut(Function<T, T> getAndPutFunction, boolean timed, long deadline) throws IOException, ClassNotFoundException, TimeoutException {
+        final Scratch scratch = scratches.get();
+        acquire(timed, deadline);
+        try {
+            final T result = getAndPutFunction.apply(read(scratch));
+            write(scratch, scratch.encode(codec, result));
+            return result;
+        } finally {
+            release();
+        }
+    }
+
+    public List<T> getAndPutAll(List<Function<T, T>> getAndPutFunctions) throws IOException, ClassNotFoundException {
+        try {
+            return getAndPutAll(getAndPutFunctions, false, 0L);
+        } catch (TimeoutException e) {
+            throw new AssertionError("Untimed operations never time out.", e);
+        }
+    }
+
+    public List<T> getAndPutAll(List<Function<T, T>> getAndPutFunctions, long timeout, TimeUnit unit) throws IOException, ClassNotFoundException, TimeoutException {
+        return getAndPutAll(getAndPutFunctions, true, System.nanoTime()+unit.toNanos(timeout));
+    }
+
+    private List<T> getAndPutAll(List<Function<T, T>> getAndPutFunctions, boolean timed, long deadline) throws IOException, ClassNotFoundException, TimeoutException {
+        final List<T> results = new ArrayList<>(getAndPutFunctions.size());
+        if(getAndPutFunctions.isEmpty()) {
+            return results;
+        }
+        final Scratch scratch = scratches.get();
+        acquire(timed, deadline);
+        try {
+            T current = read(scratch);
+            for(Function<T, T> getAndPutFunction : getAndPutFunctions) {
+                current = getAndPutFunction.apply(current);
+                results.add(current);
+            }
+            write(scratch, scratch.encode(codec, current));
+            return results;
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * Must hold the lock.
+     */
+    private T read(Scratch scratch) throws IOException, ClassNotFoundException {
+        final int length = unsafe.getInt(lengthAddress);
+        if(length<0 || length>payloadCapacity) {
+            throw new IOException("Corrupted block, stored length is "+length+".");
+        }
+        unsafe.copyMemory(payloadAddress, scratch.bytes, 0, length);
+        return codec.decode(scratch.view(length));
+    }
+
+    /**
+     * Writer side of the seqlock, must hold the lock.
+     */
+    private void write(Scratch scratch, int length) {
+        // A writer that died mid-write leaves the sequence odd, round it down so we still end up even.
+        final long sequence = unsafe.getLong(sequenceAddress) & ~1L;
+        unsafe.putLong(sequenceAddress, sequence+1);
+        unsafe.storeFence();
+        unsafe.copyMemory(scratch.bytes, 0, payloadAddress, length);
+        unsafe.putInt(lengthAddress, length);
+        unsafe.storeFence();
+        unsafe.putLong(sequenceAddress, sequence+2);
+    }
+
+    /**
+     * Takes the in-JVM guard and then the block lock, see EvergreenImpl.acquire(...).
+     */
+    private void acquire(boolean timed, long deadline) throws InterruptedIOException, TimeoutException {
+        if(!timed) {
+            guard.lock();
+            fileLock.lock();
+            return;
+        }
+
+        try {
+            if(!guard.tryLock(deadline-System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                throw new TimeoutException("Timed out waiting for other threads of this JVM using the same object.");
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while waiting for other threads of this JVM using the same object.");
+        }
+        if(!fileLock.tryLockUntil(deadline)) {
+            guard.unlock();
+            throw new TimeoutException("Timed out waiting for the object lock, currently held by process "+fileLock.owner()+".");
+        }
+    }
+
+    private void release() {
+        fileLock.unlock();
+        guard.unlock();
+    }
+
+    /**
+     * Per thread buffer where instances are encoded before being copied to the block, and copied to before decoding.
+     */
+    private static final class Scratch {
+        final byte[] bytes;
+        private final ByteBuffer buffer;
+
+        Scratch(int capacity) {
+            this.bytes = new byte[capacity];
+            this.buffer = ByteBuffer.wrap(bytes);
+        }
+
+        <T> int encode(EvergreenCodec<T> codec, T instance) throws IOException {
+            buffer.clear();
+            codec.encode(instance, buffer);
+            return buffer.position();
+        }
+
+        ByteBuffer view(int length) {
+            buffer.clear();
+            buffer.limit(length);
+            return buffer;
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package io.github.metabrain.evergreen.codec;
+
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * InputStream and DataInput reading straight from a ByteBuffer, such as the one handed to EvergreenCodec.decode(...),
+ * so stream based deserializers need no intermediate byte[]. Reads start at the buffer's position and stop at its
+ * limit, which for Evergreen buffers is the end of the stored instance. Reading a value past it throws EOFException.
+ *
+ * Multi-byte values use the byte order of the buffer (big endian unless changed), the same as DataInputStream does.
+ */
+public final class ByteBufferInputStream extends InputStream implements DataInput {
+
+    private final ByteBuffer src;
+
+    public ByteBufferInputStream(ByteBuffer src) {
+        this.src = src;
+    }
+
+    /** The buffer read from, positioned right after the last byte read. */
+    public ByteBuffer buffer() {
+        return src;
+    }
+
+    @Override
+    public int read() {
+        return src.hasRemaining() ? src.get() & 0xFF : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+        if(len==0) {
+            return 0;
+        }
+        if(!src.hasRemaining()) {
+            return -1;
+        }
+        final int n = Math.min(len, src.remaining());
+        src.get(b, off, n);
+        return n;
+    }
+
+    @Override
+    public long skip(long n) {
+        final int skipped = (int) Math.max(0L, Math.min(n, src.remaining()));
+        src.position(src.position()+skipped);
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return src.remaining();
+    }
+
+    @Override
+    public void readFully(byte[] b) throws EOFException {
+        readFully(b, 0, b.length);
+    }
+
+    @Override
+    public void readFully(byte[] b, int off, int len) throws EOFException {
+        require(len);
+        src.get(b, off, len);
+    }
+
+    @Override
+    public int skipBytes(int n) {
+        return (int) skip(n);
+    }
+
+    @Override
+    public boolean readBoolean() throws EOFException {
+        return readByte()!=0;
+    }
+
+    @Override
+    public byte readByte() throws EOFException {
+        require(1);
+        return src.get();
+    }
+
+    @Override
+    public int readUnsignedByte() throws EOFException {
+        return readByte() & 0xFF;
+    }
+
+    @Override
+    public short readShort() throws EOFException {
+        require(2);
+        return src.getShort();
+    }
+
+    @Override
+    public int readUnsignedShort() throws EOFException {
+        return readShort() & 0xFFFF;
+    }
+
+    @Override
+    public char readChar() throws EOFException {
+        require(2);
+        return src.getChar();
+    }
+
+    @Override
+    public int readInt() throws EOFException {
+        require(4);
+        return src.getInt();
+    }
+
+    @Override
+    public long readLong() throws EOFException {
+        require(8);
+        return src.getLong();
+    }
+
+    @Override
+    public float readFloat() throws EOFException {
+        require(4);
+        return src.getFloat();
+    }
+
+    @Override
+    public double readDouble() throws EOFException {
+        require(8);
+        return src.getDouble();
+    }
+
+    /**
+     * Same as DataInputStream.readLine(), bytes are taken as ISO-8859-1 characters.
+     */
+    @Override
+    public String readLine() {
+        if(!src.hasRemaining()) {
+            return null;
+        }
+        final StringBuilder sb = new StringBuilder();
+        while(src.hasRemaining()) {
+            final char c = (char) (src.get() & 0xFF);
+            if(c=='\n') {
+                break;
+            }
+            if(c=='\r') {
+                if(src.hasRemaining() && src.get(src.position())=='\n') {
+                    src.get();
+                }
+                break;
+            }
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public String readUTF() throws IOException {
+        return DataInputStream.readUTF(this);
+    }
+
+    private void require(int bytes) throws EOFException {
+        if(src.remaining()<bytes) {
+            throw new EOFException("Needed "+bytes+" more bytes but only "+src.remaining()+" are left.");
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package io.github.metabrain.evergreen.codec;
+
+import java.io.DataOutput;
+import java.io.OutputStream;
+import java.io.UTFDataFormatException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * OutputStream and DataOutput writing straight into a ByteBuffer, such as the one handed to EvergreenCodec.encode(...),
+ * so stream based serializers need no intermediate byte[]. Writes start at the buffer's position and may go up to its
+ * limit, which for Evergreen buffers is the max instance size. Going past it throws BufferOverflowException, as the
+ * codec contract asks for, rather than IOException.
+ *
+ * Multi-byte values use the byte order of the buffer (big endian unless changed), the same as DataOutputStream does
+ * by default.
+ */
+public final class ByteBufferOutputStream extends OutputStream implements DataOutput {
+
+    private final ByteBuffer dst;
+
+    public ByteBufferOutputStream(ByteBuffer dst) {
+        this.dst = dst;
+    }
+
+    /** The buffer written to, positioned right after the last byte written. */
+    public ByteBuffer buffer() {
+        return dst;
+    }
+
+    @Override
+    public void write(int b) {
+        dst.put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        dst.put(b, off, len);
+    }
+
+    @Override
+    public void writeBoolean(boolean v) {
+        dst.put((byte) (v ? 1 : 0));
+    }
+
+    @Override
+    public void writeByte(int v) {
+        dst.put((byte) v);
+    }
+
+    @Override
+    public void writeShort(int v) {
+        dst.putShort((short) v);
+    }
+
+    @Override
+    public void writeChar(int v) {
+        dst.putChar((char) v);
+    }
+
+    @Override
+    public void writeInt(int v) {
+        dst.putInt(v);
+    }
+
+    @Override
+    public void writeLong(long v) {
+        dst.putLong(v);
+    }
+
+    @Override
+    public void writeFloat(float v) {
+        dst.putFloat(v);
+    }
+
+    @Override
+    public void writeDouble(double v) {
+        dst.putDouble(v);
+    }
+
+    @Override
+    public void writeBytes(String s) {
+        if(dst.remaining()<s.length()) {
+            throw new BufferOverflowException();
+        }
+        for(int i=0 ; i<s.length() ; i++) {
+            dst.put((byte) s.charAt(i));
+        }
+    }
+
+    @Override
+    public void writeChars(String s) {
+        if(dst.remaining()<2*s.length()) {
+            throw new BufferOverflowException();
+        }
+        for(int i=0 ; i<s.length() ; i++) {
+            dst.putChar(s.charAt(i));
+        }
+    }
+
+    /**
+     * Modified UTF-8 prefixed by its length, exactly like DataOutputStream.writeUTF(...).
+     */
+    @Override
+    public void writeUTF(String s) throws UTFDataFormatException {
+        int utfLength = 0;
+        for(int i=0 ; i<s.length() ; i++) {
+            final char c = s.charAt(i);
+            utfLength += c>=0x0001 && c<=0x007F ? 1 : c>0x07FF ? 3 : 2;
+        }
+        if(utfLength>0xFFFF) {
+            throw new UTFDataFormatException("Encoded string too long: "+utfLength+" bytes.");
+        }
+        if(dst.remaining()<2+utfLength) {
+            throw new BufferOverflowException();
+        }
+        dst.putShort((short) utfLength);
+        for(int i=0 ; i<s.length() ; i++) {
+            final char c = s.charAt(i);
+            if(c>=0x0001 && c<=0x007F) {
+                dst.put((byte) c);
+            } else if(c>0x07FF) {
+                dst.put((byte) (0xE0 | ((c>>12) & 0x0F)));
+                dst.put((byte) (0x80 | ((c>>6) & 0x3F)));
+                dst.put((byte) (0x80 | (c & 0x3F)));
+            } else {
+                dst.put((byte) (0xC0 | ((c>>6) & 0x1F)));
+                dst.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package io.github.metabrain.evergreen.codec;
+
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+
+/**
+ * Built-in codecs. Boxed primitives are written as their raw binary value, Strings and byte[] are written as an int
+ * length (-1 for null) followed by their contents. None of them allocate when encoding.
+ */
+final public class Codecs {
+    // prevents instantiation
+    private Codecs() {
+        throw new AssertionError("No instance for you!");
+    }
+
+    private static final int NULL_LENGTH = -1;
+
+    private static final EvergreenCodec<?> JAVA_SERIALIZATION = new JavaSerializationCodec<>();
+
+    private static final EvergreenCodec<Integer> INTEGER = new EvergreenCodec<Integer>() {
+        @Override
+        public void encode(Integer instance, ByteBuffer dst) {
+            dst.putInt(instance);
+        }
+
+        @Override
+        public Integer decode(ByteBuffer src) {
+            return src.getInt();
+        }
+    };
+
+    private static final EvergreenCodec<Long> LONG = new EvergreenCodec<Long>() {
+        @Override
+        public void encode(Long instance, ByteBuffer dst) {
+            dst.putLong(instance);
+        }
+
+        @Override
+        public Long decode(ByteBuffer src) {
+            return src.getLong();
+        }
+    };
+
+    private static final EvergreenCodec<Short> SHORT = new EvergreenCodec<Short>() {
+        @Override
+        public void encode(Short instance, ByteBuffer dst) {
+            dst.putShort(instance);
+        }
+
+        @Override
+        public Short decode(ByteBuffer src) {
+            return src.getShort();
+        }
+    };
+
+    private static final EvergreenCodec<Byte> BYTE = new EvergreenCodec<Byte>() {
+        @Override
+        public void encode(Byte instance, ByteBuffer dst) {
+            dst.put(instance);
+        }
+
+        @Override
+        public Byte decode(ByteBuffer src) {
+            return src.get();
+        }
+    };
+
+    private static final EvergreenCodec<Character> CHARACTER = new EvergreenCodec<Character>() {
+        @Override
+        public void encode(Character instance, ByteBuffer dst) {
+            dst.putChar(instance);
+        }
+
+        @Override
+        public Character decode(ByteBuffer src) {
+            return src.getChar();
+        }
+    };
+
+    private static final EvergreenCodec<Boolean> BOOLEAN = new EvergreenCodec<Boolean>() {
+        @Override
+        public void encode(Boolean instance, ByteBuffer dst) {
+            dst.put(instance ? (byte)1 : (byte)0);
+        }
+
+        @Override
+        public Boolean decode(ByteBuffer src) {
+            return src.get()!=0;
+        }
+    };
+
+    private static final EvergreenCodec<Float> FLOAT = new EvergreenCodec<Float>() {
+        @Override
+        public void encode(Float instance, ByteBuffer dst) {
+            dst.putFloat(instance);
+        }
+
+        @Override
+        public Float decode(ByteBuffer src) {
+            return src.getFloat();
+        }
+    };
+
+    private static final EvergreenCodec<Double> DOUBLE = new EvergreenCodec<Double>() {
+        @Override
+        public void encode(Double instance, ByteBuffer dst) {
+            dst.putDouble(instance);
+        }
+
+        @Override
+        public Double decode(ByteBuffer src) {
+            return src.getDouble();
+        }
+    };
+
+    private static final EvergreenCodec<String> STRING = new EvergreenCodec<String>() {
+        @Override
+        public void encode(String instance, ByteBuffer dst) {
+            if(instance==null) {
+                dst.putInt(NULL_LENGTH);
+                return;
+            }
+            final int length = instance.length();
+            dst.putInt(length);
+            for(int i=0 ; i<length ; i++) {
+                dst.putChar(instance.charAt(i));
+            }
+        }
+
+        @Override
+        public String decode(ByteBuffer src) {
+            final int length = src.getInt();
+            if(length==NULL_LENGTH) {
+                return null;
+            }
+            char[] chars = new char[length];
+            for(int i=0 ; i<length ; i++) {
+                chars[i] = src.getChar();
+            }
+            return new String(chars);
+        }
+    };
+
+    private static final EvergreenCodec<byte[]> BYTE_ARRAY = new EvergreenCodec<byte[]>() {
+        @Override
+        public void encode(byte[] instance, ByteBuffer dst) {
+            if(instance==null) {
+                dst.putInt(NULL_LENGTH);
+                return;
+            }
+            dst.putInt(instance.length);
+            dst.put(instance);
+        }
+
+        @Override
+        public byte[] decode(ByteBuffer src) {
+            final int length = src.getInt();
+            if(length==NULL_LENGTH) {
+                return null;
+            }
+            byte[] bytes = new byte[length];
+            src.get(bytes);
+            return bytes;
+        }
+    };
+
+    /**
+     * @return the fallback codec, which uses plain Java serialization.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T extends Serializable> EvergreenCodec<T> javaSerialization() {
+        return (EvergreenCodec<T>) JAVA_SERIALIZATION;
+    }
+
+    public static EvergreenCodec<Integer> integers() {
+        return INTEGER;
+    }
+
+    public static EvergreenCodec<Long> longs() {
+        return LONG;
+    }
+
+    public static EvergreenCodec<Short> shorts() {
+        return SHORT;
+    }
+
+    public static EvergreenCodec<Byte> bytes() {
+        return BYTE;
+    }
+
+    public static EvergreenCodec<Character> characters() {
+        return CHARACTER;
+    }
+
+    public static EvergreenCodec<Boolean> booleans() {
+        return BOOLEAN;
+    }
+
+    public static EvergreenCodec<Float> floats() {
+        return FLOAT;
+    }
+
+    public static EvergreenCodec<Double> doubles() {
+        return DOUBLE;
+    }
+
+    public static EvergreenCodec<String> strings() {
+        return STRING;
+    }
+
+    public static EvergreenCodec<byte[]> byteArrays() {
+        return BYTE_ARRAY;
+    }
+}
@@ -0,0 +1,30 @@
+package io.github.metabrain.evergreen.codec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes and decodes the instance kept by an Evergreen straight against the memory mapped buffer.
+ *
+ * Implementations are free to write whatever binary layout they want, as long as decode(...) is able to read back what
+ * encode(...) wrote. The buffers handed over are views of the mapped file, so no intermediate byte[] is needed.
+ * Stream based serializers can wrap them in ByteBufferOutputStream/ByteBufferInputStream, which are DataOutput and
+ * DataInput as well.
+ */
+public interface EvergreenCodec<T> {
+    /**
+     * Writes the instance starting at the current position of the buffer, leaving the position right after the last
+     * byte written.
+     * @param instance the instance to encode.
+     * @param dst buffer whose limit is the maximum number of bytes the instance may take.
+     * @throws java.nio.BufferOverflowException if the encoded instance does not fit in the buffer.
+     */
+    void encode(T instance, ByteBuffer dst) throws IOException;
+
+    /**
+     * Reads an instance starting at the current position of the buffer.
+     * @param src buffer positioned at the first byte written by encode(...).
+     * @return the decoded instance.
+     */
+    T decode(ByteBuffer src) throws IOException, ClassNotFoundException;
+}
@@ -0,0 +1,29 @@
+package io.github.metabrain.evergreen.codec;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/**
+ * Default fallback codec, uses plain Java serialization. Works for any Serializable instance. The object streams write
+ * to and read from the buffer directly, see ByteBufferOutputStream/ByteBufferInputStream, but still allocate their own
+ * block buffers and handle tables per operation, so prefer one of the other codecs in Codecs whenever possible.
+ */
+public class JavaSerializationCodec<T extends Serializable> implements EvergreenCodec<T> {
+
+    protected JavaSerializationCodec() {}
+
+    @Override
+    public void encode(T instance, ByteBuffer dst) throws IOException {
+        // Too big instances throw BufferOverflowException right from the stream, as soon as they reach the limit.
+        ObjectOutputStream os = new ObjectOutputStream(new ByteBufferOutputStream(dst));
+        os.writeObject(instance);
+        os.flush();
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public T decode(ByteBuffer src) throws IOException, ClassNotFoundException {
+        ObjectInputStream is = new ObjectInputStream(new ByteBufferInputStream(src));
+        return (T) is.readObject();
+    }
+}
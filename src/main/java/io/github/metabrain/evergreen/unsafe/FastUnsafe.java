@@ -19,4 +19,14 @@ public class FastUnsafe implements IUnsafe {
         theUnsafe.putInt(null, address, val);
     }
 
+    @Override
+    public long getLong(long address) {
+        return theUnsafe.getLong(null, address);
+    }
+
+    @Override
+    public void putLong(long address, long val) {
+        theUnsafe.putLong(null, address, val);
+    }
+
 }
@@ -13,4 +13,40 @@ public interface IUnsafe {
     default boolean compareAndSwapInt(long address, int oldVal, int newVal) {
         return theUnsafe.compareAndSwapInt(null, address, oldVal, newVal);
     }
+
+    long getLong(long address);
+    void putLong(long address, long val);
+    default boolean compareAndSwapLong(long address, long oldVal, long newVal) {
+        return theUnsafe.compareAndSwapLong(null, address, oldVal, newVal);
+    }
+
+    default int getAndAddInt(long address, int delta) {
+        return theUnsafe.getAndAddInt(null, address, delta);
+    }
+
+    default long getAndAddLong(long address, long delta) {
+        return theUnsafe.getAndAddLong(null, address, delta);
+    }
+
+    /** Loads before the fence are not reordered with loads and stores after it. */
+    default void loadFence() {
+        theUnsafe.loadFence();
+    }
+
+    /** Stores before the fence are not reordered with loads and stores after it. */
+    default void storeFence() {
+        theUnsafe.storeFence();
+    }
+
+    default void copyMemory(long srcAddress, byte[] dst, int dstOffset, int length) {
+        theUnsafe.copyMemory(null, srcAddress, dst, Unsafe.ARRAY_BYTE_BASE_OFFSET+dstOffset, length);
+    }
+
+    default void copyMemory(byte[] src, int srcOffset, long dstAddress, int length) {
+        theUnsafe.copyMemory(src, Unsafe.ARRAY_BYTE_BASE_OFFSET+srcOffset, null, dstAddress, length);
+    }
+
+    default void copyMemory(long srcAddress, long dstAddress, long length) {
+        theUnsafe.copyMemory(srcAddress, dstAddress, length);
+    }
 }
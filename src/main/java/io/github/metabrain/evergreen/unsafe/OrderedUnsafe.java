@@ -0,0 +1,34 @@
+package io.github.metabrain.evergreen.unsafe;
+
+/**
+ * Acquire loads and release stores: cheaper than volatile on the unlock and publish paths (no full fence after the
+ * store), and enough for the lock word and seqlock protocols which bring their own fences where they need them.
+ *
+ * This is the Java 8 version, built on Unsafe's volatile loads and ordered (lazySet) stores. On Java 9 and later the
+ * multi-release jar replaces it with one built on VarHandle fences, see src/main/java9.
+ */
+public class OrderedUnsafe implements IUnsafe {
+
+    protected OrderedUnsafe() {}
+
+    @Override
+    public int getInt(long address) {
+        return theUnsafe.getIntVolatile(null, address);
+    }
+
+    @Override
+    public void putInt(long address, int val) {
+        theUnsafe.putOrderedInt(null, address, val);
+    }
+
+    @Override
+    public long getLong(long address) {
+        return theUnsafe.getLongVolatile(null, address);
+    }
+
+    @Override
+    public void putLong(long address, long val) {
+        theUnsafe.putOrderedLong(null, address, val);
+    }
+
+}
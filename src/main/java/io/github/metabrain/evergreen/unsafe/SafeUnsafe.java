@@ -19,4 +19,14 @@ public class SafeUnsafe implements IUnsafe {
         theUnsafe.putIntVolatile(null, address, val);
     }
 
+    @Override
+    public long getLong(long address) {
+        return theUnsafe.getLongVolatile(null, address);
+    }
+
+    @Override
+    public void putLong(long address, long val) {
+        theUnsafe.putLongVolatile(null, address, val);
+    }
+
 }
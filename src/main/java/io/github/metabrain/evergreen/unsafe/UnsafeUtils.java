@@ -3,6 +3,7 @@ package io.github.metabrain.evergreen.unsafe;
 import sun.misc.Unsafe;
 
 import java.lang.reflect.Field;
+import java.nio.Buffer;
 
 /**
  * Created by meta on 10/10/2015.
@@ -28,6 +29,15 @@ final public class UnsafeUtils {
         theUnsafe = (Unsafe) obj;
     }
 
+    private static final long BUFFER_ADDRESS_OFFSET;
+    static {
+        try {
+            BUFFER_ADDRESS_OFFSET = theUnsafe.objectFieldOffset(Buffer.class.getDeclaredField("address"));
+        } catch (NoSuchFieldException e) {
+            throw new RuntimeException("java.nio.Buffer address field not found in this machine!", e);
+        }
+    }
+
     public static Unsafe getUnsafe() {
         if(theUnsafe==null) {
             try {
@@ -42,6 +52,17 @@ final public class UnsafeUtils {
         return theUnsafe;
     }
 
+    /**
+     * Off heap address of a direct (or memory mapped) buffer. Reads java.nio.Buffer's address field through Unsafe
+     * instead of casting to sun.nio.ch.DirectBuffer, which is not exported on newer JDKs.
+     */
+    public static long getAddress(Buffer buffer) {
+        if(!buffer.isDirect()) {
+            throw new IllegalArgumentException("Buffer is not direct, it has no off heap address.");
+        }
+        return theUnsafe.getLong(buffer, BUFFER_ADDRESS_OFFSET);
+    }
+
     public static IUnsafe getFastUnsafe() {
         return new FastUnsafe();
     }
@@ -50,5 +71,12 @@ final public class UnsafeUtils {
         return new SafeUnsafe();
     }
 
+    /**
+     * Acquire loads and release stores, see OrderedUnsafe. Built on VarHandle fences on Java 9+.
+     */
+    public static IUnsafe getOrderedUnsafe() {
+        return new OrderedUnsafe();
+    }
+
 
 }
@@ -0,0 +1,52 @@
+package io.github.metabrain.evergreen.unsafe;
+
+import java.lang.invoke.VarHandle;
+
+/**
+ * Acquire loads and release stores, Java 9+ version of the class (packaged under META-INF/versions/9 of the
+ * multi-release jar). Plain accesses paired with VarHandle acquire/release fences, which only constrain the compiler
+ * on x86 and map to the lighter one-way barriers elsewhere, instead of the volatile loads of the Java 8 version.
+ *
+ * Addresses still go through Unsafe, VarHandles can't reach arbitrary off-heap addresses before MemorySegment.
+ */
+public class OrderedUnsafe implements IUnsafe {
+
+    protected OrderedUnsafe() {}
+
+    @Override
+    public int getInt(long address) {
+        final int val = theUnsafe.getInt(null, address);
+        VarHandle.acquireFence();
+        return val;
+    }
+
+    @Override
+    public void putInt(long address, int val) {
+        VarHandle.releaseFence();
+        theUnsafe.putInt(null, address, val);
+    }
+
+    @Override
+    public long getLong(long address) {
+        final long val = theUnsafe.getLong(null, address);
+        VarHandle.acquireFence();
+        return val;
+    }
+
+    @Override
+    public void putLong(long address, long val) {
+        VarHandle.releaseFence();
+        theUnsafe.putLong(null, address, val);
+    }
+
+    @Override
+    public void loadFence() {
+        VarHandle.acquireFence();
+    }
+
+    @Override
+    public void storeFence() {
+        VarHandle.releaseFence();
+    }
+
+}
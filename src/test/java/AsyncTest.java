@@ -0,0 +1,87 @@
+import io.github.metabrain.evergreen.AsyncEvergreen;
+import io.github.metabrain.evergreen.EvergreenFactory;
+import io.github.metabrain.evergreen.EvergreenImpl;
+import io.github.metabrain.evergreen.codec.Codecs;
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+public class AsyncTest {
+
+    @Test
+    public void thousandsOfCallersTest() throws Exception {
+        String fname = TestFiles.tempFile();
+        AsyncEvergreen<Long> counter = EvergreenFactory.async(EvergreenFactory.create(fname, 8, () -> 0L, Codecs.longs()));
+        List<CompletableFuture<Long>> results = new ArrayList<>();
+        for(int i=0 ; i<10000 ; i++) {
+            results.add(counter.getAndPut((got) -> got+1));
+        }
+        CompletableFuture.allOf(results.toArray(new CompletableFuture[0])).get(30, TimeUnit.SECONDS);
+
+        // Every increment saw a distinct value, and they were applied in the order they were called.
+        for(int i=0 ; i<results.size() ; i++) {
+            Assert.assertEquals(Long.valueOf(i+1), results.get(i).get());
+        }
+        Assert.assertEquals(Long.valueOf(10000), counter.get().get(5, TimeUnit.SECONDS));
+        Assert.assertEquals(Long.valueOf(10000), EvergreenFactory.create(fname, 8, () -> 0L, Codecs.longs()).get());
+    }
+
+    @Test
+    public void failingFunctionOnlyFailsItsOwnFutureTest() throws Exception {
+        AsyncEvergreen<Integer> async = EvergreenFactory.async(EvergreenFactory.create(TestFiles.tempFile(), 4, () -> 0, Codecs.integers()));
+        CompletableFuture<Void> put = async.put(10);
+        CompletableFuture<Integer> failing = async.getAndPut((got) -> { throw new IllegalStateException("boom"); });
+        CompletableFuture<Integer> after = async.getAndPut((got) -> got*2);
+
+        put.get(5, TimeUnit.SECONDS);
+        Assert.assertEquals(Integer.valueOf(20), after.get(5, TimeUnit.SECONDS));
+        try {
+            failing.get(5, TimeUnit.SECONDS);
+            Assert.fail();
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        Assert.assertEquals(Integer.valueOf(20), async.get().get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void customExecutorTest() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            EvergreenImpl<String> mmo = EvergreenFactory.create(TestFiles.tempFile(), 64, () -> "initial", Codecs.strings());
+            AsyncEvergreen<String> async = EvergreenFactory.async(mmo, executor);
+            String thread = executor.submit(() -> Thread.currentThread().getName()).get();
+            Assert.assertEquals(thread, async.getAndPut((got) -> Thread.currentThread().getName()).get(5, TimeUnit.SECONDS));
+            Assert.assertEquals(thread, mmo.get());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void rejectingExecutorFailsFuturesTest() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        executor.shutdown();
+        AsyncEvergreen<Integer> async = EvergreenFactory.async(EvergreenFactory.create(TestFiles.tempFile(), 4, () -> 0, Codecs.integers()), executor);
+
+        // The second write must not be left waiting on a drain that was never scheduled.
+        for(CompletableFuture<?> future : Arrays.asList(async.put(1), async.getAndPut((got) -> got+1), async.get())) {
+            try {
+                future.get(5, TimeUnit.SECONDS);
+                Assert.fail();
+            } catch (ExecutionException e) {
+                Assert.assertTrue(e.getCause() instanceof RejectedExecutionException);
+            }
+        }
+    }
+}
@@ -0,0 +1,56 @@
+import io.github.metabrain.evergreen.CacheMode;
+import io.github.metabrain.evergreen.Evergreen;
+import io.github.metabrain.evergreen.EvergreenFactory;
+import io.github.metabrain.evergreen.EvergreenOptions;
+import io.github.metabrain.evergreen.ReadMode;
+import io.github.metabrain.evergreen.codec.Codecs;
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+public class CacheTest {
+
+    @Test
+    public void sharedInstanceIsReusedUntilSomeoneWritesTest() throws IOException, ClassNotFoundException {
+        for(ReadMode readMode : ReadMode.values()) {
+            String fname = TestFiles.tempFile();
+            EvergreenOptions options = new EvergreenOptions().withReadMode(readMode).withCacheMode(CacheMode.SHARED_INSTANCE);
+            Evergreen<byte[]> reader = EvergreenFactory.create(fname, 64, () -> new byte[]{1, 2, 3}, Codecs.byteArrays(), options);
+            Evergreen<byte[]> writer = EvergreenFactory.create(fname, 64, () -> new byte[0], Codecs.byteArrays());
+
+            byte[] first = reader.get();
+            Assert.assertTrue(Arrays.equals(new byte[]{1, 2, 3}, first));
+            Assert.assertSame(first, reader.get());
+
+            writer.put(new byte[]{4, 5});
+            byte[] second = reader.get();
+            Assert.assertTrue(Arrays.equals(new byte[]{4, 5}, second));
+            Assert.assertSame(second, reader.get());
+
+            // Our own writes invalidate the cache just the same.
+            reader.put(new byte[]{6});
+            Assert.assertTrue(Arrays.equals(new byte[]{6}, reader.get()));
+        }
+    }
+
+    @Test
+    public void defensiveCopiesAreFreshInstancesTest() throws IOException, ClassNotFoundException {
+        for(ReadMode readMode : ReadMode.values()) {
+            String fname = TestFiles.tempFile();
+            EvergreenOptions options = new EvergreenOptions().withReadMode(readMode).withCacheMode(CacheMode.DEFENSIVE_COPY);
+            Evergreen<byte[]> reader = EvergreenFactory.create(fname, 64, () -> new byte[]{1, 2, 3}, Codecs.byteArrays(), options);
+            Evergreen<byte[]> writer = EvergreenFactory.create(fname, 64, () -> new byte[0], Codecs.byteArrays());
+
+            byte[] first = reader.get();
+            first[0] = 42;
+            byte[] again = reader.get();
+            Assert.assertNotSame(first, again);
+            Assert.assertTrue(Arrays.equals(new byte[]{1, 2, 3}, again));
+
+            writer.put(new byte[]{4, 5});
+            Assert.assertTrue(Arrays.equals(new byte[]{4, 5}, reader.get()));
+        }
+    }
+}
@@ -0,0 +1,91 @@
+import io.github.metabrain.evergreen.ChangeListener;
+import io.github.metabrain.evergreen.EvergreenFactory;
+import io.github.metabrain.evergreen.EvergreenImpl;
+import io.github.metabrain.evergreen.codec.Codecs;
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class ChangeTest {
+
+    @Test
+    public void awaitChangeSeesWritesOfOtherInstancesTest() throws Exception {
+        String fname = TestFiles.tempFile();
+        EvergreenImpl<Integer> waiter = EvergreenFactory.create(fname, 4, () -> 0, Codecs.integers());
+        EvergreenImpl<Integer> writer = EvergreenFactory.create(fname, 4, () -> 0, Codecs.integers());
+        long version = waiter.getWriteSequence();
+
+        Thread writing = new Thread(() -> {
+            try {
+                Thread.sleep(50);
+                writer.put(42);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        writing.start();
+        long changed = waiter.awaitChange(version, 5, TimeUnit.SECONDS);
+        writing.join();
+        Assert.assertEquals(version+1, changed);
+        Assert.assertEquals(Integer.valueOf(42), waiter.get());
+
+        // Already stale, no waiting at all.
+        Assert.assertEquals(changed, waiter.awaitChange(version));
+    }
+
+    @Test(expected = TimeoutException.class)
+    public void awaitChangeTimesOutTest() throws IOException, TimeoutException {
+        EvergreenImpl<Integer> mmo = EvergreenFactory.create(TestFiles.tempFile(), 4, () -> 0, Codecs.integers());
+        mmo.awaitChange(mmo.getWriteSequence(), 20, TimeUnit.MILLISECONDS);
+    }
+
+    @Test
+    public void awaitChangeIsInterruptibleTest() throws Exception {
+        EvergreenImpl<Integer> mmo = EvergreenFactory.create(TestFiles.tempFile(), 4, () -> 0, Codecs.integers());
+        AtomicReference<Throwable> thrown = new AtomicReference<>();
+        Thread waiting = new Thread(() -> {
+            try {
+                mmo.awaitChange(mmo.getWriteSequence());
+            } catch (Throwable t) {
+                thrown.set(t);
+            }
+        });
+        waiting.start();
+        Thread.sleep(50);
+        waiting.interrupt();
+        waiting.join(5000);
+        Assert.assertTrue(thrown.get() instanceof InterruptedIOException);
+    }
+
+    @Test
+    public void listenersGetNewInstancesTest() throws Exception {
+        String fname = TestFiles.tempFile();
+        EvergreenImpl<String> listened = EvergreenFactory.create(fname, 16, () -> "initial", Codecs.strings());
+        EvergreenImpl<String> writer = EvergreenFactory.create(fname, 16, () -> "initial", Codecs.strings());
+        BlockingQueue<String> seen = new LinkedBlockingQueue<>();
+        ChangeListener<String> listener = (instance, version) -> seen.add(instance+"@"+version);
+        listened.addChangeListener(listener);
+
+        writer.put("first");
+        Assert.assertEquals("first@2", seen.poll(5, TimeUnit.SECONDS));
+        writer.put("second");
+        Assert.assertEquals("second@3", seen.poll(5, TimeUnit.SECONDS));
+
+        Assert.assertTrue(listened.removeChangeListener(listener));
+        Thread.sleep(300);
+        writer.put("third");
+        Assert.assertNull(seen.poll(300, TimeUnit.MILLISECONDS));
+
+        // Registering again starts watching again.
+        listened.addChangeListener(listener);
+        writer.put("fourth");
+        Assert.assertEquals("fourth@5", seen.poll(5, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,167 @@
+import io.github.metabrain.evergreen.Evergreen;
+import io.github.metabrain.evergreen.EvergreenFactory;
+import io.github.metabrain.evergreen.codec.ByteBufferInputStream;
+import io.github.metabrain.evergreen.codec.ByteBufferOutputStream;
+import io.github.metabrain.evergreen.codec.Codecs;
+import io.github.metabrain.evergreen.codec.EvergreenCodec;
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.UUID;
+import java.util.function.Supplier;
+
+public class CodecTest {
+
+    private static final class Point {
+        final int x;
+        final int y;
+
+        Point(int x, int y) {
+            this.x = x;
+            this.y = y;
+        }
+    }
+
+    private static final EvergreenCodec<Point> POINT_CODEC = new EvergreenCodec<Point>() {
+        @Override
+        public void encode(Point instance, ByteBuffer dst) {
+            dst.putInt(instance.x);
+            dst.putInt(instance.y);
+        }
+
+        @Override
+        public Point decode(ByteBuffer src) {
+            return new Point(src.getInt(), src.getInt());
+        }
+    };
+
+    @Test
+    public void integerCodecCASTest() throws IOException, ClassNotFoundException {
+        final int totalIncrements = 10000;
+
+        Evergreen<Integer> mmo = create(4, () -> 0, Codecs.integers());
+
+        int integer = -1;
+        for(int op=0 ; op<totalIncrements ; op++) {
+            integer = mmo.getAndPut((got) -> got+1);
+        }
+
+        Assert.assertEquals(totalIncrements, integer);
+    }
+
+    @Test
+    public void initializerIsUsedOnFreshFileTest() throws IOException, ClassNotFoundException {
+        Evergreen<Long> mmo = create(8, () -> 42L, Codecs.longs());
+
+        Assert.assertEquals(42L, (long)mmo.get());
+    }
+
+    @Test
+    public void builtInCodecsTest() throws IOException, ClassNotFoundException {
+        Assert.assertEquals(Double.valueOf(Math.PI), putAndGet(8, 0.0, Math.PI, Codecs.doubles()));
+        Assert.assertEquals(Boolean.TRUE, putAndGet(1, false, true, Codecs.booleans()));
+        Assert.assertEquals(Character.valueOf('x'), putAndGet(2, 'a', 'x', Codecs.characters()));
+        Assert.assertEquals("evergreen \u00e9\u00e8", putAndGet(64, "", "evergreen \u00e9\u00e8", Codecs.strings()));
+        Assert.assertNull(putAndGet(64, "", null, Codecs.strings()));
+
+        byte[] bytes = {1, 2, 3, 4, 5};
+        Assert.assertTrue(java.util.Arrays.equals(bytes, putAndGet(16, new byte[0], bytes, Codecs.byteArrays())));
+    }
+
+    @Test
+    public void userCodecTest() throws IOException, ClassNotFoundException {
+        Point point = putAndGet(8, new Point(0, 0), new Point(3, -7), POINT_CODEC);
+
+        Assert.assertEquals(3, point.x);
+        Assert.assertEquals(-7, point.y);
+    }
+
+    @Test
+    public void streamsOverMappedBufferTest() throws IOException, ClassNotFoundException {
+        EvergreenCodec<Point> streamCodec = new EvergreenCodec<Point>() {
+            @Override
+            public void encode(Point instance, ByteBuffer dst) throws IOException {
+                DataOutput out = new ByteBufferOutputStream(dst);
+                out.writeUTF("point \u00e9\u20ac");
+                out.writeInt(instance.x);
+                out.writeLong(instance.y);
+            }
+
+            @Override
+            public Point decode(ByteBuffer src) throws IOException {
+                DataInput in = new ByteBufferInputStream(src);
+                Assert.assertEquals("point \u00e9\u20ac", in.readUTF());
+                return new Point(in.readInt(), (int) in.readLong());
+            }
+        };
+        Point point = putAndGet(64, new Point(0, 0), new Point(5, -9), streamCodec);
+
+        Assert.assertEquals(5, point.x);
+        Assert.assertEquals(-9, point.y);
+    }
+
+    @Test
+    public void streamsStayWithinBufferTest() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(16);
+        buffer.limit(6);
+        ByteBufferOutputStream out = new ByteBufferOutputStream(buffer);
+        out.writeInt(42);
+        try {
+            out.writeInt(43);
+            Assert.fail();
+        } catch (BufferOverflowException e) {
+            // Expected, only 2 bytes left.
+        }
+
+        buffer.flip();
+        ByteBufferInputStream in = new ByteBufferInputStream(buffer);
+        Assert.assertEquals(42, in.readInt());
+        try {
+            in.readInt();
+            Assert.fail();
+        } catch (EOFException e) {
+            // Expected, nothing else was written.
+        }
+        Assert.assertEquals(-1, in.read());
+    }
+
+    @Test(expected = BufferOverflowException.class)
+    public void javaSerializationOverflowTest() throws IOException {
+        File f = File.createTempFile("EvergreenTestFile_"+ UUID.randomUUID(),"mmf");
+        f.deleteOnExit();
+        EvergreenFactory.create(f.getAbsolutePath(), 128, () -> "small").put(new String(new char[1000]));
+    }
+
+    @Test
+    public void reopenKeepsValueTest() throws IOException, ClassNotFoundException {
+        File f = File.createTempFile("EvergreenTestFile_"+ UUID.randomUUID(),"mmf");
+        f.delete();
+        String fname = f.getAbsolutePath();
+
+        EvergreenFactory.create(fname, 64, () -> "first", Codecs.strings()).put("second");
+        Evergreen<String> reopened = EvergreenFactory.create(fname, 64, () -> "first", Codecs.strings());
+
+        Assert.assertEquals("second", reopened.get());
+
+        f.delete();
+    }
+
+    private static <T> Evergreen<T> create(int size, Supplier<T> initializer, EvergreenCodec<T> codec) throws IOException {
+        File f = File.createTempFile("EvergreenTestFile_"+ UUID.randomUUID(),"mmf");
+        f.deleteOnExit();
+        return EvergreenFactory.create(f.getAbsolutePath(), size, initializer, codec);
+    }
+
+    private static <T> T putAndGet(int size, T initial, T put, EvergreenCodec<T> codec) throws IOException, ClassNotFoundException {
+        Evergreen<T> mmo = create(size, () -> initial, codec);
+        mmo.put(put);
+        return mmo.get();
+    }
+}
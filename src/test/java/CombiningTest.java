@@ -0,0 +1,100 @@
+import io.github.metabrain.evergreen.EvergreenFactory;
+import io.github.metabrain.evergreen.EvergreenImpl;
+import io.github.metabrain.evergreen.EvergreenOptions;
+import io.github.metabrain.evergreen.codec.Codecs;
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+
+public class CombiningTest {
+
+    private final static int N_THREADS = 8;
+
+    @Test
+    public void everyCallerGetsItsOwnResultTest() throws IOException, ClassNotFoundException, InterruptedException {
+        final int increments = 20000;
+        EvergreenImpl<Integer> mmo = EvergreenFactory.create(TestFiles.tempFile(), 4, () -> 0, Codecs.integers(),
+                new EvergreenOptions().withCombining(true));
+
+        Set<Integer> results = ConcurrentHashMap.newKeySet();
+        AtomicReference<Exception> failure = new AtomicReference<>();
+        CountDownLatch endLatch = new CountDownLatch(N_THREADS);
+        for(int t=0 ; t<N_THREADS ; t++) {
+            new Thread(() -> {
+                try {
+                    for(int i=0 ; i<increments ; i++) {
+                        // Timed and untimed callers get combined alike.
+                        Integer got = i%2==0
+                                ? mmo.getAndPut((val) -> val+1)
+                                : mmo.getAndPut((val) -> val+1, 10, TimeUnit.SECONDS);
+                        if(!results.add(got)) {
+                            throw new IllegalStateException("Result "+got+" handed out twice.");
+                        }
+                    }
+                } catch (Exception e) {
+                    failure.set(e);
+                } finally {
+                    endLatch.countDown();
+                }
+            }).start();
+        }
+        endLatch.await();
+
+        Assert.assertNull(failure.get());
+        Assert.assertEquals(N_THREADS*increments, (int)mmo.get());
+        Assert.assertEquals(N_THREADS*increments, results.size());
+    }
+
+    @Test
+    public void throwingFunctionOnlyFailsItsCallerTest() throws IOException, ClassNotFoundException {
+        EvergreenImpl<Integer> mmo = EvergreenFactory.create(TestFiles.tempFile(), 4, () -> 0, Codecs.integers(),
+                new EvergreenOptions().withCombining(true));
+
+        try {
+            mmo.getAndPut((val) -> {
+                throw new IllegalArgumentException("nope");
+            });
+            Assert.fail("Function threw, so should getAndPut.");
+        } catch (IllegalArgumentException e) {
+            Assert.assertEquals("nope", e.getMessage());
+        }
+        Assert.assertEquals(1, (int)mmo.getAndPut((val) -> val+1));
+    }
+
+    @Test
+    public void getAndPutAllWritesOnceTest() throws IOException, ClassNotFoundException {
+        EvergreenImpl<Integer> mmo = EvergreenFactory.create(TestFiles.tempFile(), 4, () -> 10, Codecs.integers());
+        long before = mmo.getWriteSequence();
+
+        List<Function<Integer, Integer>> functions = Arrays.asList((val) -> val+1, (val) -> val*2, (val) -> val-3);
+        Assert.assertEquals(Arrays.asList(11, 22, 19), mmo.getAndPutAll(functions));
+        Assert.assertEquals(19, (int)mmo.get());
+        Assert.assertEquals(before+1, mmo.getWriteSequence());
+    }
+
+    @Test
+    public void getAndPutAllIsAllOrNothingTest() throws IOException, ClassNotFoundException, TimeoutException {
+        EvergreenImpl<Integer> mmo = EvergreenFactory.create(TestFiles.tempFile(), 4, () -> 10, Codecs.integers());
+
+        List<Function<Integer, Integer>> functions = Arrays.asList((val) -> val+1, (val) -> {
+            throw new IllegalStateException();
+        });
+        try {
+            mmo.getAndPutAll(functions, 1, TimeUnit.SECONDS);
+            Assert.fail("Second function threw, so should getAndPutAll.");
+        } catch (IllegalStateException e) {
+            // Expected.
+        }
+        Assert.assertEquals(10, (int)mmo.get());
+    }
+}
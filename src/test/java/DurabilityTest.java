@@ -0,0 +1,164 @@
+import io.github.metabrain.evergreen.Durability;
+import io.github.metabrain.evergreen.EvergreenFactory;
+import io.github.metabrain.evergreen.EvergreenImpl;
+import io.github.metabrain.evergreen.EvergreenOptions;
+import io.github.metabrain.evergreen.codec.Codecs;
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+public class DurabilityTest {
+
+    // See EvergreenImpl. With a max size of 64, a payload slot takes 64+128 bytes and the journal follows slot 0.
+    private static final int SEQUENCE_OFFSET = 0x80;
+    private static final int OBJ_START_OFFSET = 0xC0;
+    private static final int JOURNAL_OFFSET = OBJ_START_OFFSET+192;
+    private static final int JOURNAL_PAYLOAD_OFFSET = JOURNAL_OFFSET+0x40;
+    private static final int LOCK_OFFSET = 0x40;
+
+    // Way above any pid_max.
+    private static final int DEAD_PID = Integer.MAX_VALUE-1;
+
+    @Test
+    public void everyModeReadsItsOwnWritesTest() throws IOException, ClassNotFoundException {
+        for(Durability durability : Durability.values()) {
+            for(int slots=1 ; slots<=2 ; slots++) {
+                String fname = TestFiles.tempFile();
+                EvergreenImpl<String> mmo = EvergreenFactory.create(fname, 64, () -> "0", Codecs.strings(),
+                        new EvergreenOptions().withDurability(durability).withPayloadSlots(slots).withChecksum(true));
+                for(int i=1 ; i<=10 ; i++) {
+                    mmo.put(Integer.toString(i));
+                    Assert.assertEquals(Integer.toString(i), mmo.get());
+                }
+                Assert.assertEquals("11", mmo.getAndPut((got) -> Integer.toString(Integer.parseInt(got)+1)));
+                Assert.assertEquals("11", EvergreenFactory.create(fname, 64, () -> "0", Codecs.strings()).get());
+            }
+        }
+    }
+
+    @Test
+    public void writesAreForcedAsRequestedTest() throws IOException, InterruptedException {
+        EvergreenImpl<Integer> groupCommit = EvergreenFactory.create(TestFiles.tempFile(), 4, () -> 0, Codecs.integers(),
+                new EvergreenOptions().withDurability(Durability.GROUP_COMMIT).withMetrics(true));
+        groupCommit.getMetrics().reset();
+        groupCommit.put(1);
+        Assert.assertEquals(1, groupCommit.getMetrics().getForce().getCount());
+
+        EvergreenImpl<Integer> journaled = EvergreenFactory.create(TestFiles.tempFile(), 4, () -> 0, Codecs.integers(),
+                new EvergreenOptions().withDurability(Durability.JOURNALED).withMetrics(true));
+        journaled.getMetrics().reset();
+        journaled.put(1);
+        // Commit record, then the instance itself.
+        Assert.assertEquals(2, journaled.getMetrics().getForce().getCount());
+
+        EvergreenImpl<Integer> periodic = EvergreenFactory.create(TestFiles.tempFile(), 4, () -> 0, Codecs.integers(),
+                new EvergreenOptions().withDurability(Durability.PERIODIC).withForceInterval(10, TimeUnit.MILLISECONDS).withMetrics(true));
+        periodic.put(1);
+        long deadline = System.currentTimeMillis()+5000;
+        while(periodic.getMetrics().getForce().getCount()==0 && System.currentTimeMillis()<deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertTrue(periodic.getMetrics().getForce().getCount()>0);
+    }
+
+    @Test(expected = IOException.class)
+    public void journaledNeedsAJournalTest() throws IOException {
+        String fname = TestFiles.tempFile();
+        EvergreenFactory.create(fname, 4, () -> 0, Codecs.integers());
+        EvergreenFactory.create(fname, 4, () -> 0, Codecs.integers(), new EvergreenOptions().withDurability(Durability.JOURNALED));
+    }
+
+    @Test
+    public void incompleteCommitRecordIsRolledBackTest() throws IOException, ClassNotFoundException {
+        String fname = TestFiles.tempFile();
+        EvergreenFactory.create(fname, 64, () -> "initial", Codecs.strings(),
+                new EvergreenOptions().withDurability(Durability.JOURNALED)).put("written");
+
+        // Crash while writing the commit record: sequence made it to disk, the rest didn't.
+        try(RandomAccessFile raf = new RandomAccessFile(fname, "rw")) {
+            MappedByteBuffer mmb = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+            mmb.order(ByteOrder.nativeOrder());
+            mmb.putLong(JOURNAL_OFFSET, mmb.getLong(SEQUENCE_OFFSET)+2);
+            mmb.putInt(JOURNAL_OFFSET+0x10, 0xBAD);
+        }
+
+        EvergreenImpl<String> reopened = EvergreenFactory.create(fname, 64, () -> "initial", Codecs.strings());
+        Assert.assertEquals("written", reopened.get());
+    }
+
+    @Test
+    public void completeCommitRecordIsReplayedTest() throws IOException, ClassNotFoundException {
+        String fname = TestFiles.tempFile();
+        EvergreenFactory.create(fname, 64, () -> "initial", Codecs.strings(),
+                new EvergreenOptions().withDurability(Durability.JOURNALED)).put("written");
+
+        tearJournaledWrite(fname, "journaled");
+
+        EvergreenImpl<String> reopened = EvergreenFactory.create(fname, 64, () -> "initial", Codecs.strings());
+        Assert.assertEquals("journaled", reopened.get());
+    }
+
+    @Test
+    public void takingOverFromDeadWriterReplaysJournalTest() throws IOException, ClassNotFoundException {
+        String fname = TestFiles.tempFile();
+        EvergreenOptions options = new EvergreenOptions().withDurability(Durability.JOURNALED)
+                .withLockLease(10, TimeUnit.MILLISECONDS);
+        EvergreenImpl<String> open = EvergreenFactory.create(fname, 64, () -> "initial", Codecs.strings(), options);
+        open.put("written");
+
+        // Another process dies holding the lock, with the journal complete and the slot half copied.
+        tearJournaledWrite(fname, "journaled");
+        ByteBuffer lock = ByteBuffer.allocate(16).order(ByteOrder.nativeOrder());
+        lock.putInt(0, DEAD_PID);
+        lock.putLong(8, System.currentTimeMillis()-1000);
+        try(RandomAccessFile raf = new RandomAccessFile(fname, "rw")) {
+            raf.getChannel().write(lock, LOCK_OFFSET);
+        }
+
+        // Already open, so only taking the lock over can replay the journal.
+        Assert.assertEquals("journaled!", open.getAndPut((got) -> got+"!"));
+        Assert.assertEquals("journaled!", open.get());
+    }
+
+    /**
+     * Crash after the commit record was on disk, halfway through copying the instance to its slot.
+     */
+    private static void tearJournaledWrite(String fname, String instance) throws IOException {
+        try(RandomAccessFile raf = new RandomAccessFile(fname, "rw")) {
+            MappedByteBuffer mmb = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+            mmb.order(ByteOrder.nativeOrder());
+            long sequence = mmb.getLong(SEQUENCE_OFFSET)+2;
+
+            ByteBuffer payload = ByteBuffer.allocate(64);
+            Codecs.strings().encode(instance, payload);
+            payload.flip();
+            int length = payload.remaining();
+            CRC32 crc = new CRC32();
+            crc.update(payload.duplicate());
+            int payloadChecksum = (int) crc.getValue();
+            mmb.position(JOURNAL_PAYLOAD_OFFSET);
+            mmb.put(payload);
+
+            ByteBuffer record = ByteBuffer.allocate(16).order(ByteOrder.nativeOrder());
+            record.putLong(sequence).putInt(length).putInt(payloadChecksum).flip();
+            crc.reset();
+            crc.update(record);
+            mmb.putInt(JOURNAL_OFFSET+0x8, length);
+            mmb.putInt(JOURNAL_OFFSET+0xC, payloadChecksum);
+            mmb.putLong(JOURNAL_OFFSET, sequence);
+            mmb.putInt(JOURNAL_OFFSET+0x10, (int) crc.getValue());
+
+            // Torn copy, the seqlock is left odd.
+            mmb.putLong(SEQUENCE_OFFSET, sequence-1);
+            mmb.put(OBJ_START_OFFSET+4, (byte) 0x7F);
+        }
+    }
+}
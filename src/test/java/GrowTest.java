@@ -0,0 +1,160 @@
+import io.github.metabrain.evergreen.Durability;
+import io.github.metabrain.evergreen.EvergreenFactory;
+import io.github.metabrain.evergreen.EvergreenImpl;
+import io.github.metabrain.evergreen.EvergreenOptions;
+import io.github.metabrain.evergreen.OpenMode;
+import io.github.metabrain.evergreen.ReadMode;
+import io.github.metabrain.evergreen.codec.Codecs;
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class GrowTest {
+
+    @Test
+    public void growsPastMaxSizeTest() throws IOException, ClassNotFoundException {
+        String fname = TestFiles.tempFile();
+        EvergreenImpl<String> mmo = EvergreenFactory.create(fname, 16, () -> "small", Codecs.strings(),
+                new EvergreenOptions().withGrowable(true).withChecksum(true));
+        String big = repeat('x', 1000);
+        mmo.put(big);
+        Assert.assertEquals(big, mmo.get());
+        Assert.assertTrue(mmo.getMaxInstanceSizeInBytes()>=1000);
+        Assert.assertEquals(2L, mmo.getWriteSequence());
+
+        // Once resized, the size in the file wins even for instances that can't grow themselves.
+        EvergreenImpl<String> reopened = EvergreenFactory.create(fname, 16, () -> "other", Codecs.strings());
+        Assert.assertEquals(big, reopened.get());
+    }
+
+    @Test(expected = BufferOverflowException.class)
+    public void notGrowableOverflowsTest() throws IOException {
+        EvergreenFactory.create(TestFiles.tempFile(), 16, () -> "small", Codecs.strings()).put(repeat('x', 1000));
+    }
+
+    @Test
+    public void otherInstancesRemapTest() throws IOException, ClassNotFoundException {
+        for(ReadMode readMode : ReadMode.values()) {
+            for(int slots : new int[]{1, 3}) {
+                String fname = TestFiles.tempFile();
+                EvergreenImpl<String> grower = EvergreenFactory.create(fname, 16, () -> "small", Codecs.strings(),
+                        new EvergreenOptions().withGrowable(true).withPayloadSlots(slots));
+                EvergreenImpl<String> other = EvergreenFactory.create(fname, 16, () -> "other", Codecs.strings(),
+                        new EvergreenOptions().withReadMode(readMode));
+                Assert.assertEquals("small", other.get());
+
+                String big = repeat('y', 5000);
+                grower.put(big);
+                Assert.assertEquals(big, other.get());
+
+                // The other instance writes to the new layout too, even bigger than it was opened for.
+                String medium = repeat('z', 3000);
+                other.put(medium);
+                Assert.assertEquals(medium, grower.get());
+                Assert.assertEquals(repeat('z', 3001), other.getAndPut((got) -> got+"z"));
+                Assert.assertEquals(repeat('z', 3001), grower.get());
+            }
+        }
+    }
+
+    @Test
+    public void compactShrinksFileTest() throws IOException, ClassNotFoundException {
+        String fname = TestFiles.tempFile();
+        EvergreenImpl<String> mmo = EvergreenFactory.create(fname, 64, () -> "small", Codecs.strings(),
+                new EvergreenOptions().withGrowable(true).withPayloadSlots(2));
+        EvergreenImpl<String> other = EvergreenFactory.create(fname, 64, () -> "other", Codecs.strings());
+        long initialLength = new File(fname).length();
+
+        mmo.put(repeat('x', 100000));
+        long grownLength = new File(fname).length();
+        Assert.assertTrue(grownLength>200000);
+
+        mmo.put("small again");
+        mmo.compact();
+        // Other instances may still read the old layout, the file only shrinks once opened exclusively.
+        Assert.assertEquals(grownLength, new File(fname).length());
+        Assert.assertEquals(mmo.getMaxInstanceSizeInBytes(), other.getMaxInstanceSizeInBytes());
+        Assert.assertTrue(mmo.getMaxInstanceSizeInBytes()<64);
+        Assert.assertEquals("small again", mmo.get());
+        Assert.assertEquals("small again", other.get());
+        mmo.close();
+        other.close();
+        EvergreenImpl<String> exclusive = EvergreenFactory.create(fname, 64, () -> "other", Codecs.strings(),
+                new EvergreenOptions().withGrowable(true).withOpenMode(OpenMode.EXCLUSIVE));
+        Assert.assertTrue(new File(fname).length()<initialLength);
+        Assert.assertEquals("small again", exclusive.get());
+
+        // Compacting didn't take the ability to grow away.
+        exclusive.put(repeat('x', 100000));
+        Assert.assertEquals(repeat('x', 100000), exclusive.get());
+        exclusive.close();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void compactNeedsGrowableTest() throws IOException {
+        EvergreenFactory.create(TestFiles.tempFile(), 64, () -> "small", Codecs.strings()).compact();
+    }
+
+    @Test
+    public void journaledGrowsTest() throws IOException, ClassNotFoundException {
+        String fname = TestFiles.tempFile();
+        EvergreenImpl<String> mmo = EvergreenFactory.create(fname, 16, () -> "small", Codecs.strings(),
+                new EvergreenOptions().withGrowable(true).withDurability(Durability.JOURNALED));
+        String big = repeat('j', 2000);
+        mmo.put(big);
+        mmo.put(big+"j");
+
+        EvergreenImpl<String> reopened = EvergreenFactory.create(fname, 16, () -> "other", Codecs.strings(),
+                new EvergreenOptions().withDurability(Durability.JOURNALED));
+        Assert.assertEquals(big+"j", reopened.get());
+    }
+
+    @Test
+    public void readersNeverSeeResizesHalfwayTest() throws Exception {
+        String fname = TestFiles.tempFile();
+        String small = "small";
+        String big = repeat('b', 20000);
+        EvergreenImpl<String> resizer = EvergreenFactory.create(fname, 16, () -> small, Codecs.strings(),
+                new EvergreenOptions().withGrowable(true).withChecksum(true));
+        EvergreenImpl<String> reader = EvergreenFactory.create(fname, 16, () -> small, Codecs.strings());
+
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread readerThread = new Thread(() -> {
+            try {
+                while(!done.get()) {
+                    String got = reader.get();
+                    if(!small.equals(got) && !big.equals(got)) {
+                        throw new AssertionError("Read a torn instance of length "+got.length());
+                    }
+                }
+            } catch (Throwable t) {
+                failure.set(t);
+            }
+        });
+        readerThread.start();
+        for(int i=0 ; i<200 ; i++) {
+            resizer.put(big);
+            resizer.put(small);
+            resizer.compact();
+        }
+        done.set(true);
+        readerThread.join();
+        if(failure.get()!=null) {
+            throw new AssertionError(failure.get());
+        }
+    }
+
+    private static String repeat(char c, int times) {
+        StringBuilder sb = new StringBuilder(times);
+        for(int i=0 ; i<times ; i++) {
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,120 @@
+import io.github.metabrain.evergreen.EvergreenFactory;
+import io.github.metabrain.evergreen.EvergreenImpl;
+import io.github.metabrain.evergreen.EvergreenOptions;
+import io.github.metabrain.evergreen.codec.Codecs;
+import io.github.metabrain.evergreen.codec.EvergreenCodec;
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+public class HeaderTest {
+
+    // Where the instance bytes start in the file, see EvergreenImpl.
+    private static final int OBJ_START_OFFSET = 0xC0;
+
+    @Test(expected = IOException.class)
+    public void mismatchedMaxSizeFailsTest() throws IOException {
+        String fname = TestFiles.tempFile();
+
+        EvergreenFactory.create(fname, 4, () -> 0, Codecs.integers());
+        EvergreenFactory.create(fname, 8, () -> 0, Codecs.integers());
+    }
+
+    @Test
+    public void writeSequenceIncreasesTest() throws IOException, ClassNotFoundException {
+        EvergreenImpl<Integer> mmo = EvergreenFactory.create(TestFiles.tempFile(), 4, () -> 0, Codecs.integers());
+
+        long before = mmo.getWriteSequence();
+        mmo.put(1);
+        mmo.getAndPut((got) -> got+1);
+
+        Assert.assertEquals(before+2, mmo.getWriteSequence());
+        Assert.assertEquals(2, (int)mmo.get());
+    }
+
+    // Keeps no length of its own and takes whatever the buffer has left, so only the header tells where it ends.
+    private static final EvergreenCodec<byte[]> REMAINING_BYTES = new EvergreenCodec<byte[]>() {
+        @Override
+        public void encode(byte[] instance, ByteBuffer dst) {
+            dst.put(instance);
+        }
+
+        @Override
+        public byte[] decode(ByteBuffer src) {
+            byte[] bytes = new byte[src.remaining()];
+            src.get(bytes);
+            return bytes;
+        }
+    };
+
+    @Test
+    public void onlyLivePayloadIsDecodedTest() throws IOException, ClassNotFoundException {
+        EvergreenImpl<byte[]> mmo = EvergreenFactory.create(TestFiles.tempFile(), 1024, () -> new byte[1000], REMAINING_BYTES);
+
+        mmo.put(new byte[]{7});
+
+        Assert.assertEquals(1, mmo.get().length);
+    }
+
+    @Test
+    public void corruptedChecksumIsDetectedTest() throws IOException, ClassNotFoundException {
+        String fname = TestFiles.tempFile();
+        EvergreenOptions options = new EvergreenOptions().withChecksum(true);
+
+        EvergreenFactory.create(fname, 64, () -> "initial", Codecs.strings(), options).put("written");
+
+        // Flip a byte of the stored instance behind Evergreen's back.
+        try(RandomAccessFile raf = new RandomAccessFile(fname, "rw")) {
+            raf.seek(OBJ_START_OFFSET+5);
+            raf.write(0x7F);
+        }
+
+        // Corrupted instance gets replaced by the initializer one.
+        Assert.assertEquals("initial", EvergreenFactory.create(fname, 64, () -> "initial", Codecs.strings()).get());
+    }
+
+    @Test
+    public void legacyFileIsNotOverwrittenTest() throws IOException, ClassNotFoundException {
+        String fname = TestFiles.tempFile();
+        // What Evergreen 1.0 leaves in a file: its lock word, then the serialized instance at 0x10.
+        ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+        try(ObjectOutputStream os = new ObjectOutputStream(serialized)) {
+            os.writeObject(42);
+        }
+        try(RandomAccessFile raf = new RandomAccessFile(fname, "rw")) {
+            raf.seek(0x10);
+            raf.write(serialized.toByteArray());
+        }
+        byte[] before = Files.readAllBytes(new File(fname).toPath());
+
+        try {
+            EvergreenFactory.create(fname, 64, () -> 0, Codecs.integers());
+            Assert.fail("Opening a 1.0 file should have failed.");
+        } catch (IOException e) {
+            Assert.assertTrue(e.getMessage().contains("1.0"));
+        }
+        Assert.assertTrue(Arrays.equals(before, Files.readAllBytes(new File(fname).toPath())));
+    }
+
+    @Test
+    public void otherEvergreenIsNotOverwrittenTest() throws IOException {
+        String fname = TestFiles.tempFile();
+        EvergreenFactory.createLong(fname, 7L);
+
+        try {
+            EvergreenFactory.create(fname, 64, () -> 0, Codecs.integers());
+            Assert.fail("Opening an EvergreenLong file should have failed.");
+        } catch (IOException e) {
+            // Expected.
+        }
+        Assert.assertEquals(7L, EvergreenFactory.createLong(fname, 0L).get());
+    }
+}
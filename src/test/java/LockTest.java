@@ -0,0 +1,92 @@
+import io.github.metabrain.evergreen.EvergreenFactory;
+import io.github.metabrain.evergreen.EvergreenImpl;
+import io.github.metabrain.evergreen.EvergreenOptions;
+import io.github.metabrain.evergreen.codec.Codecs;
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+public class LockTest {
+
+    // Where the lock word and its lease live in the file, see EvergreenImpl.
+    private static final int LOCK_OFFSET = 0x40;
+
+    // init, always alive.
+    private static final int LIVE_PID = 1;
+    // Way above any pid_max.
+    private static final int DEAD_PID = Integer.MAX_VALUE-1;
+
+    @Test
+    public void timedOperationsTimeOutTest() throws IOException, ClassNotFoundException {
+        String fname = TestFiles.tempFile();
+        EvergreenImpl<Integer> mmo = EvergreenFactory.create(fname, 4, () -> 0, Codecs.integers());
+
+        holdLock(fname, LIVE_PID, System.currentTimeMillis());
+
+        try {
+            mmo.put(1, 50, TimeUnit.MILLISECONDS);
+            Assert.fail("put should have timed out");
+        } catch (TimeoutException expected) {}
+        try {
+            mmo.getAndPut((got) -> got+1, 50, TimeUnit.MILLISECONDS);
+            Assert.fail("getAndPut should have timed out");
+        } catch (TimeoutException expected) {}
+
+        // Optimistic readers don't care about the lock.
+        Assert.assertEquals(0, (int)mmo.get());
+    }
+
+    @Test
+    public void deadOwnerIsRecoveredTest() throws IOException, ClassNotFoundException, TimeoutException {
+        String fname = TestFiles.tempFile();
+        EvergreenOptions options = new EvergreenOptions().withLockLease(10, TimeUnit.MILLISECONDS);
+        EvergreenImpl<Integer> mmo = EvergreenFactory.create(fname, 4, () -> 0, Codecs.integers(), options);
+
+        holdLock(fname, DEAD_PID, System.currentTimeMillis()-1000);
+
+        Assert.assertEquals(1, (int)mmo.getAndPut((got) -> got+1, 5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void forceClearLockTest() throws IOException, ClassNotFoundException {
+        String fname = TestFiles.tempFile();
+        EvergreenImpl<Integer> mmo = EvergreenFactory.create(fname, 4, () -> 0, Codecs.integers());
+
+        holdLock(fname, LIVE_PID, System.currentTimeMillis());
+
+        Assert.assertEquals(LIVE_PID, mmo.forceClearLock());
+        Assert.assertEquals(0, mmo.forceClearLock());
+        Assert.assertEquals(1, (int)mmo.getAndPut((got) -> got+1));
+    }
+
+    @Test
+    public void throwingFunctionReleasesLockTest() throws IOException, ClassNotFoundException, TimeoutException {
+        EvergreenImpl<Integer> mmo = EvergreenFactory.create(TestFiles.tempFile(), 4, () -> 0, Codecs.integers());
+
+        try {
+            mmo.getAndPut((got) -> { throw new IllegalStateException(); });
+            Assert.fail("function should have thrown");
+        } catch (IllegalStateException expected) {}
+
+        mmo.put(7, 1, TimeUnit.SECONDS);
+        Assert.assertEquals(7, (int)mmo.get());
+    }
+
+    /**
+     * Pretends another process holds the lock of the file.
+     */
+    private static void holdLock(String fname, int pid, long lease) throws IOException {
+        ByteBuffer lock = ByteBuffer.allocate(16).order(ByteOrder.nativeOrder());
+        lock.putInt(0, pid);
+        lock.putLong(8, lease);
+        try(RandomAccessFile raf = new RandomAccessFile(fname, "rw")) {
+            raf.getChannel().write(lock, LOCK_OFFSET);
+        }
+    }
+}
@@ -0,0 +1,137 @@
+import io.github.metabrain.evergreen.EvergreenFactory;
+import io.github.metabrain.evergreen.EvergreenMap;
+import io.github.metabrain.evergreen.codec.Codecs;
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+public class MapTest {
+
+    private final static int N_CORES = Runtime.getRuntime().availableProcessors();
+
+    @Test
+    public void simpleMapTest() throws IOException, ClassNotFoundException {
+        EvergreenMap<String, String> map = EvergreenFactory.createMap(TestFiles.tempFile(), 100, 64, 64);
+
+        for(int i=0 ; i<10 ; i++) {
+            map.put("k-"+i, "v-"+i);
+        }
+        map.put("k-3", "replaced");
+
+        Assert.assertEquals(10, map.size());
+        Assert.assertEquals("v-0", map.get("k-0"));
+        Assert.assertEquals("replaced", map.get("k-3"));
+        Assert.assertNull(map.get("missing"));
+        Assert.assertTrue(map.containsKey("k-9"));
+        Assert.assertFalse(map.containsKey("k-10"));
+    }
+
+    @Test
+    public void matchesHashMapUnderRandomOperationsTest() throws IOException, ClassNotFoundException {
+        final int keys = 2000;
+        EvergreenMap<Integer, Long> map = EvergreenFactory.createMap(TestFiles.tempFile(), keys, 4, 8, Codecs.integers(), Codecs.longs());
+        Map<Integer, Long> expected = new HashMap<>();
+
+        Random random = new Random(42);
+        for(int op=0 ; op<100000 ; op++) {
+            int key = random.nextInt(keys);
+            switch(random.nextInt(3)) {
+                case 0:
+                    long value = random.nextLong();
+                    map.put(key, value);
+                    expected.put(key, value);
+                    break;
+                case 1:
+                    Assert.assertEquals(expected.remove(key)!=null, map.remove(key));
+                    break;
+                default:
+                    Assert.assertEquals(expected.get(key), map.get(key));
+            }
+        }
+
+        Assert.assertEquals(expected.size(), map.size());
+        Map<Integer, Long> iterated = new HashMap<>();
+        map.forEach(iterated::put);
+        Assert.assertEquals(expected, iterated);
+    }
+
+    @Test
+    public void parallelComputeOnSameFileTest() throws IOException, ClassNotFoundException, InterruptedException {
+        final int keys = 64;
+        final int incrementsPerThread = 20000;
+        final int threads = Math.max(2, N_CORES);
+        String fname = TestFiles.tempFile();
+
+        CountDownLatch endLatch = new CountDownLatch(threads);
+        Runnable fun = () -> {
+            try {
+                EvergreenMap<Integer, Integer> map = EvergreenFactory.createMap(fname, keys, 4, 4, Codecs.integers(), Codecs.integers());
+                for(int op=0 ; op<incrementsPerThread ; op++) {
+                    map.compute(op%keys, (k, v) -> v==null ? 1 : v+1);
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            } finally {
+                endLatch.countDown();
+            }
+        };
+        for(int i=0 ; i<threads ; i++) {
+            new Thread(fun).start();
+        }
+        endLatch.await();
+
+        EvergreenMap<Integer, Integer> map = EvergreenFactory.createMap(fname, keys, 4, 4, Codecs.integers(), Codecs.integers());
+        int total = 0;
+        for(int key=0 ; key<keys ; key++) {
+            total += map.get(key);
+        }
+        Assert.assertEquals(threads*incrementsPerThread, total);
+    }
+
+    @Test
+    public void computeToNullRemovesTest() throws IOException, ClassNotFoundException {
+        EvergreenMap<String, Integer> map = EvergreenFactory.createMap(TestFiles.tempFile(), 10, 32, 4, Codecs.strings(), Codecs.integers());
+
+        map.put("a", 1);
+        Assert.assertNull(map.compute("a", (k, v) -> null));
+
+        Assert.assertEquals(0, map.size());
+        Assert.assertFalse(map.containsKey("a"));
+    }
+
+    @Test(expected = IOException.class)
+    public void mismatchedSizesFailTest() throws IOException {
+        String fname = TestFiles.tempFile();
+
+        EvergreenFactory.createMap(fname, 10, 32, 4, Codecs.strings(), Codecs.integers());
+        EvergreenFactory.createMap(fname, 10, 32, 8, Codecs.strings(), Codecs.integers());
+    }
+
+    @Test
+    public void reentrantComputeIsRejectedTest() throws IOException, ClassNotFoundException {
+        EvergreenMap<String, Integer> map = EvergreenFactory.createMap(TestFiles.tempFile(), 64, 32, 8, Codecs.strings(), Codecs.integers());
+        map.put("a", 1);
+
+        try {
+            map.compute("b", (k, v) -> {
+                try {
+                    return map.get("a");
+                } catch (IOException | ClassNotFoundException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            Assert.fail("Calling the map from its compute function should have failed.");
+        } catch (IllegalStateException e) {
+            // Expected.
+        }
+
+        // Nothing was written, and the map is still usable from this thread.
+        Assert.assertNull(map.get("b"));
+        Assert.assertEquals(1, (int)map.get("a"));
+    }
+}
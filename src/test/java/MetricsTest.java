@@ -0,0 +1,65 @@
+import io.github.metabrain.evergreen.CacheMode;
+import io.github.metabrain.evergreen.EvergreenFactory;
+import io.github.metabrain.evergreen.EvergreenImpl;
+import io.github.metabrain.evergreen.EvergreenMetrics;
+import io.github.metabrain.evergreen.EvergreenOptions;
+import io.github.metabrain.evergreen.codec.Codecs;
+import junit.framework.Assert;
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.UUID;
+
+public class MetricsTest {
+
+    @Test
+    public void disabledByDefaultTest() throws IOException {
+        Assert.assertNull(EvergreenFactory.create(TestFiles.tempFile(), 4, () -> 0, Codecs.integers()).getMetrics());
+    }
+
+    @Test
+    public void operationsAreCountedTest() throws IOException, ClassNotFoundException {
+        EvergreenImpl<byte[]> mmo = EvergreenFactory.create(TestFiles.tempFile(), 64, () -> new byte[8], Codecs.byteArrays(),
+                new EvergreenOptions().withMetrics(true).withCacheMode(CacheMode.SHARED_INSTANCE));
+        EvergreenMetrics metrics = mmo.getMetrics();
+        metrics.reset();
+
+        mmo.put(new byte[16]);
+        mmo.get();
+        mmo.get();
+        mmo.getAndPut((got) -> new byte[32]);
+
+        Assert.assertEquals(1, metrics.getPuts());
+        Assert.assertEquals(2, metrics.getGets());
+        Assert.assertEquals(1, metrics.getCacheHits());
+        Assert.assertEquals(1, metrics.getGetAndPuts());
+        // Lengths are prefixed by an int.
+        Assert.assertEquals(20+36, metrics.getBytesWritten());
+        Assert.assertEquals(20+20, metrics.getBytesRead());
+        Assert.assertEquals(2, metrics.getEncode().getCount());
+        Assert.assertEquals(2, metrics.getDecode().getCount());
+        Assert.assertEquals(2, metrics.getLockWait().getCount());
+        Assert.assertEquals(2, metrics.getLockHold().getCount());
+        Assert.assertTrue(metrics.getLockHold().getP50Nanos()<=metrics.getLockHold().getMaxNanos());
+    }
+
+    @Test
+    public void exposedOverJmxTest() throws Exception {
+        EvergreenImpl<Integer> mmo = EvergreenFactory.create(TestFiles.tempFile(), 4, () -> 0, Codecs.integers(),
+                new EvergreenOptions().withMetrics(true));
+        ObjectName name = mmo.getMetrics().register("MetricsTest-"+UUID.randomUUID());
+        try {
+            mmo.put(1);
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            Assert.assertEquals(1L, server.getAttribute(name, "Puts"));
+            Assert.assertEquals(1L, ((CompositeData) server.getAttribute(name, "LockHold")).get("count"));
+        } finally {
+            mmo.getMetrics().unregister();
+        }
+        Assert.assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+    }
+}
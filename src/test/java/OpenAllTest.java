@@ -0,0 +1,89 @@
+import io.github.metabrain.evergreen.EvergreenFactory;
+import io.github.metabrain.evergreen.EvergreenImpl;
+import io.github.metabrain.evergreen.EvergreenOptions;
+import io.github.metabrain.evergreen.OpenMode;
+import io.github.metabrain.evergreen.codec.Codecs;
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+public class OpenAllTest {
+
+    @Test
+    public void opensEveryFileInOrderTest() throws IOException, ClassNotFoundException {
+        List<String> fnames = new ArrayList<>();
+        for(int i=0 ; i<200 ; i++) {
+            fnames.add(TestFiles.tempFile());
+        }
+        // Half of them exist already.
+        for(int i=0 ; i<fnames.size() ; i+=2) {
+            EvergreenFactory.create(fnames.get(i), 8, () -> 0L, Codecs.longs()).put((long) i);
+        }
+
+        EvergreenOptions options = new EvergreenOptions().withLazyOpen(true).withPrefault(true);
+        List<EvergreenImpl<Long>> opened = EvergreenFactory.openAll(fnames, 8, () -> -1L, Codecs.longs(), options);
+        Assert.assertEquals(fnames.size(), opened.size());
+        for(int i=0 ; i<opened.size() ; i++) {
+            Assert.assertEquals(Long.valueOf(i%2==0 ? i : -1L), opened.get(i).get());
+        }
+        Assert.assertTrue(EvergreenFactory.openAll(new ArrayList<>(), 8, () -> -1L, Codecs.longs(), options).isEmpty());
+    }
+
+    @Test(expected = IOException.class)
+    public void failsIfAnyFileFailsTest() throws IOException {
+        List<String> fnames = new ArrayList<>();
+        for(int i=0 ; i<10 ; i++) {
+            fnames.add(TestFiles.tempFile());
+        }
+        EvergreenFactory.create(fnames.get(7), 16, () -> 0L, Codecs.longs());
+        EvergreenFactory.openAll(fnames, 8, () -> 0L, Codecs.longs(), new EvergreenOptions());
+    }
+
+    @Test
+    public void failureClosesWhateverOpenedTest() throws IOException {
+        List<String> fnames = new ArrayList<>();
+        for(int i=0 ; i<10 ; i++) {
+            fnames.add(TestFiles.tempFile());
+        }
+        EvergreenFactory.create(fnames.get(7), 16, () -> 0L, Codecs.longs()).close();
+        EvergreenOptions exclusive = new EvergreenOptions().withOpenMode(OpenMode.EXCLUSIVE);
+        try {
+            EvergreenFactory.openAll(fnames, 8, () -> 0L, Codecs.longs(), exclusive);
+            Assert.fail();
+        } catch (IOException e) {
+            // Expected.
+        }
+
+        // None of the others was left holding its lock.
+        fnames.remove(7);
+        for(EvergreenImpl<Long> opened : EvergreenFactory.openAll(fnames, 8, () -> 0L, Codecs.longs(), exclusive)) {
+            opened.close();
+        }
+    }
+
+    @Test
+    public void lazyOpenDefersDecodingTest() throws IOException, ClassNotFoundException {
+        String fname = TestFiles.tempFile();
+        EvergreenFactory.create(fname, 64, () -> "stored", Codecs.strings(), new EvergreenOptions().withChecksum(true));
+        // Scribble over the stored characters, keeping the header intact.
+        try(RandomAccessFile raf = new RandomAccessFile(fname, "rw")) {
+            raf.seek(0xC4);
+            raf.writeInt(Integer.MAX_VALUE);
+        }
+
+        EvergreenImpl<String> lazy = EvergreenFactory.create(fname, 64, () -> "fresh", Codecs.strings(),
+                new EvergreenOptions().withLazyOpen(true));
+        try {
+            lazy.get();
+            Assert.fail();
+        } catch (IOException e) {
+            // Expected, nobody checked the instance while opening.
+        }
+        // Eager opens still replace what can't be decoded.
+        Assert.assertEquals("fresh", EvergreenFactory.create(fname, 64, () -> "fresh", Codecs.strings()).get());
+    }
+}
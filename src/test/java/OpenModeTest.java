@@ -0,0 +1,153 @@
+import io.github.metabrain.evergreen.EvergreenFactory;
+import io.github.metabrain.evergreen.EvergreenImpl;
+import io.github.metabrain.evergreen.EvergreenOptions;
+import io.github.metabrain.evergreen.OpenMode;
+import io.github.metabrain.evergreen.ReadMode;
+import io.github.metabrain.evergreen.codec.Codecs;
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class OpenModeTest {
+
+    private final static int N_CORES = Runtime.getRuntime().availableProcessors();
+
+    @Test
+    public void exclusiveCanOnlyBeOpenedOnceTest() throws IOException, ClassNotFoundException {
+        String fname = TestFiles.tempFile();
+        EvergreenImpl<Integer> exclusive = EvergreenFactory.create(fname, 4, () -> 1, Codecs.integers(),
+                new EvergreenOptions().withOpenMode(OpenMode.EXCLUSIVE));
+        for(OpenMode openMode : OpenMode.values()) {
+            try {
+                EvergreenFactory.create(fname, 4, () -> 2, Codecs.integers(), new EvergreenOptions().withOpenMode(openMode));
+                Assert.fail(openMode+" open should have failed.");
+            } catch (IOException e) {
+                // Expected.
+            }
+        }
+        Assert.assertEquals(Integer.valueOf(1), exclusive.get());
+    }
+
+    @Test
+    public void exclusiveFailsWhileSharedIsOpenTest() throws IOException, ClassNotFoundException {
+        String fname = TestFiles.tempFile();
+        EvergreenImpl<Integer> shared = EvergreenFactory.create(fname, 4, () -> 1, Codecs.integers());
+        EvergreenImpl<Integer> otherShared = EvergreenFactory.create(fname, 4, () -> 2, Codecs.integers());
+        for(OpenMode openMode : new OpenMode[]{OpenMode.EXCLUSIVE, OpenMode.SINGLE_WRITER}) {
+            try {
+                EvergreenFactory.create(fname, 4, () -> 3, Codecs.integers(), new EvergreenOptions().withOpenMode(openMode));
+                Assert.fail(openMode+" open should have failed.");
+            } catch (IOException e) {
+                // Expected.
+            }
+        }
+        // Only once the last shared instance is closed.
+        shared.close();
+        try {
+            EvergreenFactory.create(fname, 4, () -> 3, Codecs.integers(), new EvergreenOptions().withOpenMode(OpenMode.EXCLUSIVE));
+            Assert.fail("Exclusive open should have failed.");
+        } catch (IOException e) {
+            // Expected.
+        }
+        otherShared.put(4);
+        Assert.assertEquals(Integer.valueOf(4), otherShared.get());
+        otherShared.close();
+        EvergreenImpl<Integer> exclusive = EvergreenFactory.create(fname, 4, () -> 3, Codecs.integers(),
+                new EvergreenOptions().withOpenMode(OpenMode.EXCLUSIVE));
+        Assert.assertEquals(Integer.valueOf(4), exclusive.get());
+        exclusive.close();
+    }
+
+    @Test
+    public void closingExclusiveLetsTheFileBeOpenedAgainTest() throws IOException, ClassNotFoundException {
+        String fname = TestFiles.tempFile();
+        EvergreenImpl<Integer> exclusive = EvergreenFactory.create(fname, 4, () -> 1, Codecs.integers(),
+                new EvergreenOptions().withOpenMode(OpenMode.EXCLUSIVE));
+        exclusive.put(2);
+        exclusive.close();
+        // Does nothing the second time around.
+        exclusive.close();
+        EvergreenImpl<Integer> shared = EvergreenFactory.create(fname, 4, () -> 3, Codecs.integers());
+        Assert.assertEquals(Integer.valueOf(2), shared.get());
+        shared.close();
+        EvergreenImpl<Integer> again = EvergreenFactory.create(fname, 4, () -> 3, Codecs.integers(),
+                new EvergreenOptions().withOpenMode(OpenMode.SINGLE_WRITER));
+        Assert.assertEquals(Integer.valueOf(2), again.get());
+        again.close();
+    }
+
+    @Test
+    public void exclusiveIncrementsFromManyThreadsTest() throws Exception {
+        final int threads = Math.max(2, N_CORES);
+        final int increments = 10000;
+        EvergreenImpl<Long> counter = EvergreenFactory.create(TestFiles.tempFile(), 8, () -> 0L, Codecs.longs(),
+                new EvergreenOptions().withOpenMode(OpenMode.EXCLUSIVE));
+        List<Thread> workers = new ArrayList<>();
+        for(int t=0 ; t<threads ; t++) {
+            workers.add(new Thread(() -> {
+                try {
+                    for(int i=0 ; i<increments ; i++) {
+                        counter.getAndPut((got) -> got+1);
+                    }
+                } catch (IOException | ClassNotFoundException e) {
+                    throw new RuntimeException(e);
+                }
+            }));
+        }
+        workers.forEach(Thread::start);
+        for(Thread worker : workers) {
+            worker.join();
+        }
+        Assert.assertEquals(Long.valueOf((long)threads*increments), counter.get());
+    }
+
+    @Test
+    public void singleWriterReadersNeverSeeTornWritesTest() throws Exception {
+        for(int slots : new int[]{1, 2}) {
+            EvergreenImpl<String> mmo = EvergreenFactory.create(TestFiles.tempFile(), 2048, () -> repeat('a', 1000), Codecs.strings(),
+                    new EvergreenOptions().withOpenMode(OpenMode.SINGLE_WRITER).withPayloadSlots(slots));
+            AtomicBoolean done = new AtomicBoolean();
+            AtomicReference<Throwable> failure = new AtomicReference<>();
+            Thread reader = new Thread(() -> {
+                try {
+                    while(!done.get()) {
+                        String got = mmo.get();
+                        if(got.length()!=1000 || !got.equals(repeat(got.charAt(0), 1000))) {
+                            throw new AssertionError("Read a torn instance starting with "+got.charAt(0));
+                        }
+                    }
+                } catch (Throwable t) {
+                    failure.set(t);
+                }
+            });
+            reader.start();
+            for(int i=0 ; i<20000 ; i++) {
+                mmo.put(repeat((char) ('a'+i%26), 1000));
+            }
+            done.set(true);
+            reader.join();
+            if(failure.get()!=null) {
+                throw new AssertionError(failure.get());
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void singleWriterNeedsOptimisticReadsTest() throws IOException {
+        EvergreenFactory.create(TestFiles.tempFile(), 4, () -> 0, Codecs.integers(),
+                new EvergreenOptions().withOpenMode(OpenMode.SINGLE_WRITER).withReadMode(ReadMode.LOCKED));
+    }
+
+    private static String repeat(char c, int times) {
+        StringBuilder sb = new StringBuilder(times);
+        for(int i=0 ; i<times ; i++) {
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+}
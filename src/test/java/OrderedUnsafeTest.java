@@ -0,0 +1,69 @@
+import io.github.metabrain.evergreen.Evergreen;
+import io.github.metabrain.evergreen.EvergreenFactory;
+import io.github.metabrain.evergreen.EvergreenOptions;
+import io.github.metabrain.evergreen.MemoryOrdering;
+import io.github.metabrain.evergreen.codec.Codecs;
+import io.github.metabrain.evergreen.unsafe.OrderedUnsafe;
+import junit.framework.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Also run by the test-packaged-jar execution against the multi-release jar, where OrderedUnsafe is the Java 9+ one.
+ */
+public class OrderedUnsafeTest {
+
+    private final static int N_CORES = Runtime.getRuntime().availableProcessors();
+
+    @Test
+    public void packagedJarRunsTheVersionedClassTest() throws IOException {
+        Assume.assumeTrue(Boolean.getBoolean("evergreen.test.packagedJar"));
+
+        Assert.assertTrue(OrderedUnsafe.class.getProtectionDomain().getCodeSource().getLocation().getPath().endsWith(".jar"));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try(InputStream in = OrderedUnsafe.class.getResourceAsStream("OrderedUnsafe.class")) {
+            byte[] buffer = new byte[4096];
+            int read;
+            while((read = in.read(buffer))>0) {
+                bytes.write(buffer, 0, read);
+            }
+        }
+        // Only the Java 9+ version refers to VarHandle.
+        Assert.assertTrue(new String(bytes.toByteArray(), StandardCharsets.ISO_8859_1).contains("java/lang/invoke/VarHandle"));
+    }
+
+    @Test
+    public void parallelGetAndPutOnSameFileTest() throws IOException, InterruptedException, ClassNotFoundException {
+        final int incrementsPerThread = 20000;
+        final int threads = Math.max(2, N_CORES);
+        final String fname = TestFiles.tempFile();
+        final EvergreenOptions options = new EvergreenOptions().withMemoryOrdering(MemoryOrdering.ACQUIRE_RELEASE);
+
+        CountDownLatch endLatch = new CountDownLatch(threads);
+        Runnable fun = () -> {
+            try {
+                // One instance per thread, just like separate processes would have.
+                Evergreen<Integer> counter = EvergreenFactory.create(fname, 4, () -> 0, Codecs.integers(), options);
+                for(int op=0 ; op<incrementsPerThread ; op++) {
+                    counter.getAndPut((got) -> got+1);
+                }
+            } catch (IOException | ClassNotFoundException e) {
+                e.printStackTrace();
+            } finally {
+                endLatch.countDown();
+            }
+        };
+        for(int i=0 ; i<threads ; i++) {
+            new Thread(fun).start();
+        }
+        endLatch.await();
+
+        Assert.assertEquals(threads*incrementsPerThread, (int)EvergreenFactory.create(fname, 4, () -> 0, Codecs.integers(), options).get());
+    }
+}
@@ -0,0 +1,64 @@
+import io.github.metabrain.evergreen.EvergreenFactory;
+import io.github.metabrain.evergreen.EvergreenImpl;
+import io.github.metabrain.evergreen.EvergreenOptions;
+import io.github.metabrain.evergreen.codec.Codecs;
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+public class PayloadSlotsTest {
+
+    // Where the first payload slot starts in the file, see EvergreenImpl. Slots are cache line aligned.
+    private static final int OBJ_START_OFFSET = 0xC0;
+
+    @Test
+    public void writesRotateThroughSlotsTest() throws IOException, ClassNotFoundException {
+        for(int slots=1 ; slots<=7 ; slots++) {
+            EvergreenImpl<String> mmo = EvergreenFactory.create(TestFiles.tempFile(), 64, () -> "0", Codecs.strings(),
+                    new EvergreenOptions().withPayloadSlots(slots).withChecksum(true));
+            for(int i=1 ; i<=20 ; i++) {
+                mmo.put(Integer.toString(i));
+                Assert.assertEquals(Integer.toString(i), mmo.get());
+            }
+            Assert.assertEquals("21", mmo.getAndPut((got) -> Integer.toString(Integer.parseInt(got)+1)));
+        }
+    }
+
+    @Test
+    public void slotsAreTakenFromTheFileTest() throws IOException, ClassNotFoundException {
+        String fname = TestFiles.tempFile();
+        EvergreenFactory.create(fname, 64, () -> "initial", Codecs.strings(), new EvergreenOptions().withPayloadSlots(3))
+                .put("written");
+
+        // Opened with the default single slot, but the file knows better.
+        EvergreenImpl<String> reopened = EvergreenFactory.create(fname, 64, () -> "other", Codecs.strings());
+        Assert.assertEquals("written", reopened.get());
+        reopened.put("again");
+        Assert.assertEquals("again", reopened.get());
+    }
+
+    @Test
+    public void garbageInInactiveSlotIsNeverSeenTest() throws IOException, ClassNotFoundException {
+        String fname = TestFiles.tempFile();
+        EvergreenImpl<String> mmo = EvergreenFactory.create(fname, 64, () -> "initial", Codecs.strings(),
+                new EvergreenOptions().withPayloadSlots(2).withChecksum(true));
+        // Initial instance went to slot 1, this one to slot 0.
+        mmo.put("written");
+
+        // A writer crashing halfway through the next write leaves slot 1 half written.
+        try(RandomAccessFile raf = new RandomAccessFile(fname, "rw")) {
+            raf.seek(OBJ_START_OFFSET+(64+128));
+            raf.write(new byte[]{0x7F, 0x7F, 0x7F, 0x7F});
+        }
+
+        Assert.assertEquals("written", mmo.get());
+        Assert.assertEquals("written", EvergreenFactory.create(fname, 64, () -> "initial", Codecs.strings()).get());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void tooManySlotsFailsTest() throws IOException {
+        EvergreenFactory.create(TestFiles.tempFile(), 4, () -> 0, Codecs.integers(), new EvergreenOptions().withPayloadSlots(8));
+    }
+}
@@ -0,0 +1,151 @@
+import io.github.metabrain.evergreen.EvergreenDouble;
+import io.github.metabrain.evergreen.EvergreenFactory;
+import io.github.metabrain.evergreen.EvergreenInt;
+import io.github.metabrain.evergreen.EvergreenLong;
+import io.github.metabrain.evergreen.EvergreenLongAdder;
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+
+public class PrimitiveTest {
+
+    private final static int N_CORES = Runtime.getRuntime().availableProcessors();
+
+    @Test
+    public void parallelLongIncrementsOnSameFileTest() throws IOException, InterruptedException {
+        final int incrementsPerThread = 1000000;
+        final int threads = Math.max(2, N_CORES);
+        String fname = TestFiles.tempFile();
+
+        CountDownLatch endLatch = new CountDownLatch(threads);
+        Runnable fun = () -> {
+            try {
+                // One mapping per thread, just like separate processes would have.
+                EvergreenLong counter = EvergreenFactory.createLong(fname, 0L);
+                for(int op=0 ; op<incrementsPerThread ; op++) {
+                    counter.incrementAndGet();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                endLatch.countDown();
+            }
+        };
+        long start = System.nanoTime();
+        for(int i=0 ; i<threads ; i++) {
+            new Thread(fun).start();
+        }
+        endLatch.await();
+        long end = System.nanoTime();
+
+        long result = EvergreenFactory.createLong(fname, 0L).get();
+        Assert.assertEquals((long)threads*incrementsPerThread, result);
+        System.out.println("Average throughput of "+(long)(result/((end-start)/1000000000.0))+" ops per seconds");
+    }
+
+    @Test
+    public void intOperationsTest() throws IOException {
+        EvergreenInt value = EvergreenFactory.createInt(TestFiles.tempFile(), 5);
+
+        Assert.assertEquals(5, value.get());
+        Assert.assertEquals(6, value.incrementAndGet());
+        Assert.assertEquals(16, value.addAndGet(10));
+        Assert.assertFalse(value.compareAndSet(5, 1));
+        Assert.assertTrue(value.compareAndSet(16, 1));
+        Assert.assertEquals(1, value.getAndUpdate((prev) -> prev*3));
+        Assert.assertEquals(3, value.get());
+    }
+
+    @Test
+    public void doubleOperationsTest() throws IOException {
+        EvergreenDouble value = EvergreenFactory.createDouble(TestFiles.tempFile(), 0.5);
+
+        Assert.assertEquals(0.5, value.get());
+        Assert.assertEquals(2.0, value.addAndGet(1.5));
+        Assert.assertTrue(value.compareAndSet(2.0, -1.0));
+        Assert.assertEquals(-1.0, value.getAndUpdate(Math::abs));
+        Assert.assertEquals(1.0, value.get());
+    }
+
+    @Test
+    public void valueSurvivesReopenTest() throws IOException {
+        String fname = TestFiles.tempFile();
+
+        EvergreenFactory.createLong(fname, 1L).addAndGet(41L);
+
+        Assert.assertEquals(42L, EvergreenFactory.createLong(fname, 1L).get());
+    }
+
+    @Test(expected = IOException.class)
+    public void otherKindOfFileFailsTest() throws IOException {
+        String fname = TestFiles.tempFile();
+
+        EvergreenFactory.createLong(fname, 1L);
+        EvergreenFactory.createInt(fname, 1);
+    }
+
+    @Test
+    public void parallelLongAdderIncrementsOnSameFileTest() throws IOException, InterruptedException {
+        final int incrementsPerThread = 1000000;
+        final int threads = Math.max(2, N_CORES);
+        String fname = TestFiles.tempFile();
+
+        CountDownLatch endLatch = new CountDownLatch(threads);
+        Runnable fun = () -> {
+            try {
+                // One mapping per thread, just like separate processes would have.
+                EvergreenLongAdder counter = EvergreenFactory.createLongAdder(fname);
+                for(int op=0 ; op<incrementsPerThread ; op++) {
+                    counter.increment();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                endLatch.countDown();
+            }
+        };
+        long start = System.nanoTime();
+        for(int i=0 ; i<threads ; i++) {
+            new Thread(fun).start();
+        }
+        endLatch.await();
+        long end = System.nanoTime();
+
+        long result = EvergreenFactory.createLongAdder(fname).sum();
+        Assert.assertEquals((long)threads*incrementsPerThread, result);
+        System.out.println("Average throughput of "+(long)(result/((end-start)/1000000000.0))+" ops per seconds");
+    }
+
+    @Test
+    public void longAdderOperationsTest() throws IOException {
+        String fname = TestFiles.tempFile();
+        EvergreenLongAdder adder = EvergreenFactory.createLongAdder(fname, 8);
+
+        adder.add(40L);
+        adder.increment();
+        adder.increment();
+        adder.decrement();
+        Assert.assertEquals(41L, adder.sum());
+        Assert.assertEquals(8, adder.getCellCount());
+
+        // Survives reopening, which picks up the cell count from the file.
+        EvergreenLongAdder reopened = EvergreenFactory.createLongAdder(fname);
+        Assert.assertEquals(8, reopened.getCellCount());
+        Assert.assertEquals(41L, reopened.sumThenReset());
+        Assert.assertEquals(0L, adder.sum());
+
+        adder.add(5L);
+        adder.reset();
+        Assert.assertEquals(0L, reopened.sum());
+    }
+
+    @Test(expected = IOException.class)
+    public void longAdderWithOtherCellCountFailsTest() throws IOException {
+        String fname = TestFiles.tempFile();
+
+        EvergreenFactory.createLongAdder(fname, 8);
+        EvergreenFactory.createLongAdder(fname, 16);
+    }
+}
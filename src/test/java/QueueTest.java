@@ -0,0 +1,118 @@
+import io.github.metabrain.evergreen.EvergreenFactory;
+import io.github.metabrain.evergreen.EvergreenQueue;
+import io.github.metabrain.evergreen.QueueMode;
+import io.github.metabrain.evergreen.codec.Codecs;
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+public class QueueTest {
+
+    private final static int N_CORES = Runtime.getRuntime().availableProcessors();
+
+    @Test
+    public void spscOrderTest() throws IOException, ClassNotFoundException {
+        EvergreenQueue<Integer> queue = EvergreenFactory.createQueue(TestFiles.tempFile(), 8, 4, Codecs.integers(), QueueMode.SPSC);
+
+        for(int round=0 ; round<100 ; round++) {
+            for(int i=0 ; i<8 ; i++) {
+                Assert.assertTrue(queue.offer(round*8+i));
+            }
+            Assert.assertFalse(queue.offer(-1));
+            for(int i=0 ; i<8 ; i++) {
+                Assert.assertEquals(round*8+i, (int)queue.poll());
+            }
+            Assert.assertNull(queue.poll());
+        }
+    }
+
+    @Test
+    public void mpscTest() throws IOException, ClassNotFoundException, InterruptedException {
+        final int producers = Math.max(2, N_CORES);
+        final int messagesPerProducer = 100000;
+        String fname = TestFiles.tempFile();
+        EvergreenQueue<Long> consumer = EvergreenFactory.createQueue(fname, 1024, 8, Codecs.longs(), QueueMode.MPSC);
+
+        CountDownLatch endLatch = new CountDownLatch(producers);
+        for(int p=0 ; p<producers ; p++) {
+            final long producer = p;
+            new Thread(() -> {
+                try {
+                    EvergreenQueue<Long> queue = EvergreenFactory.createQueue(fname, 1024, 8, Codecs.longs(), QueueMode.MPSC);
+                    for(long i=0 ; i<messagesPerProducer ; i++) {
+                        while(!queue.offer((producer<<32) | i)) {
+                            Thread.yield();
+                        }
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                } finally {
+                    endLatch.countDown();
+                }
+            }).start();
+        }
+
+        // Messages of each producer must come out in the order it offered them.
+        long[] next = new long[producers];
+        List<Long> batch = new ArrayList<>();
+        int received = 0;
+        while(received<producers*messagesPerProducer) {
+            batch.clear();
+            if(consumer.drainTo(batch, 256)==0) {
+                Thread.yield();
+            }
+            for(long message : batch) {
+                int producer = (int) (message>>>32);
+                Assert.assertEquals(next[producer]++, message & 0xFFFFFFFFL);
+                received++;
+            }
+        }
+        endLatch.await();
+        Assert.assertNull(consumer.poll());
+    }
+
+    @Test
+    public void consumerPositionSurvivesReopenTest() throws IOException, ClassNotFoundException {
+        String fname = TestFiles.tempFile();
+        EvergreenQueue<String> queue = EvergreenFactory.createQueue(fname, 16, 64, Codecs.strings(), QueueMode.MPSC);
+        queue.offer("first");
+        queue.offer("second");
+        queue.offer("third");
+        Assert.assertEquals("first", queue.poll());
+
+        EvergreenQueue<String> reopened = EvergreenFactory.createQueue(fname, 16, 64, Codecs.strings(), QueueMode.MPSC);
+        Assert.assertEquals(2, reopened.size());
+        Assert.assertEquals("second", reopened.poll());
+        Assert.assertEquals("third", reopened.poll());
+        Assert.assertNull(reopened.poll());
+    }
+
+    @Test
+    public void oversizedMessageIsSkippedTest() throws IOException, ClassNotFoundException {
+        EvergreenQueue<String> queue = EvergreenFactory.createQueue(TestFiles.tempFile(), 4, 16, Codecs.strings(), QueueMode.SPSC);
+
+        queue.offer("a");
+        try {
+            queue.offer("way too long to fit in sixteen bytes");
+            Assert.fail("offer should have overflowed");
+        } catch (BufferOverflowException expected) {}
+        queue.offer("b");
+
+        Assert.assertEquals("a", queue.poll());
+        Assert.assertEquals("b", queue.poll());
+        Assert.assertNull(queue.poll());
+    }
+
+    @Test(expected = IOException.class)
+    public void mismatchedModeFailsTest() throws IOException {
+        String fname = TestFiles.tempFile();
+
+        EvergreenFactory.createQueue(fname, 4, 16, Codecs.strings(), QueueMode.SPSC);
+        EvergreenFactory.createQueue(fname, 4, 16, Codecs.strings(), QueueMode.MPSC);
+    }
+}
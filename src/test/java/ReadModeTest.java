@@ -0,0 +1,97 @@
+import io.github.metabrain.evergreen.Evergreen;
+import io.github.metabrain.evergreen.EvergreenFactory;
+import io.github.metabrain.evergreen.EvergreenOptions;
+import io.github.metabrain.evergreen.MemoryOrdering;
+import io.github.metabrain.evergreen.ReadMode;
+import io.github.metabrain.evergreen.codec.Codecs;
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class ReadModeTest {
+
+    private final static int N_CORES = Runtime.getRuntime().availableProcessors();
+
+    @Test
+    public void optimisticReadsNeverSeeTornWritesTest() throws IOException, InterruptedException {
+        noTornReads(ReadMode.OPTIMISTIC);
+    }
+
+    @Test
+    public void lockedReadsNeverSeeTornWritesTest() throws IOException, InterruptedException {
+        noTornReads(ReadMode.LOCKED);
+    }
+
+    @Test
+    public void doubleBufferedReadsNeverSeeTornWritesTest() throws IOException, InterruptedException {
+        noTornReads(new EvergreenOptions().withPayloadSlots(2));
+    }
+
+    @Test
+    public void acquireReleaseReadsNeverSeeTornWritesTest() throws IOException, InterruptedException {
+        noTornReads(new EvergreenOptions().withMemoryOrdering(MemoryOrdering.ACQUIRE_RELEASE));
+        noTornReads(new EvergreenOptions().withMemoryOrdering(MemoryOrdering.ACQUIRE_RELEASE).withPayloadSlots(2));
+    }
+
+    /**
+     * A writer keeps storing arrays filled with a single value, readers check they never see a mix of two of them.
+     */
+    private static void noTornReads(ReadMode readMode) throws IOException, InterruptedException {
+        noTornReads(new EvergreenOptions().withReadMode(readMode));
+    }
+
+    private static void noTornReads(EvergreenOptions options) throws IOException, InterruptedException {
+        final int size = 4096;
+        final int writes = 20000;
+
+        File f = File.createTempFile("EvergreenTestFile_"+ UUID.randomUUID(),"mmf");
+        String fname = f.getAbsolutePath();
+
+        AtomicBoolean done = new AtomicBoolean(false);
+        AtomicReference<String> failure = new AtomicReference<>();
+        int readers = Math.max(2, N_CORES-1);
+        CountDownLatch endLatch = new CountDownLatch(readers);
+
+        Evergreen<byte[]> writer = EvergreenFactory.create(fname, size+4, () -> new byte[size], Codecs.byteArrays(), options);
+
+        Runnable read = () -> {
+            try {
+                Evergreen<byte[]> reader = EvergreenFactory.create(fname, size+4, () -> new byte[size], Codecs.byteArrays(), options);
+                while(!done.get()) {
+                    byte[] got = reader.get();
+                    for(byte b : got) {
+                        if(b!=got[0]) {
+                            failure.set("Torn read: "+b+" and "+got[0]);
+                            return;
+                        }
+                    }
+                }
+            } catch (Exception e) {
+                failure.set(e.toString());
+            } finally {
+                endLatch.countDown();
+            }
+        };
+        for(int i=0 ; i<readers ; i++) {
+            new Thread(read).start();
+        }
+
+        byte[] value = new byte[size];
+        for(int i=0 ; i<writes && failure.get()==null ; i++) {
+            Arrays.fill(value, (byte)i);
+            writer.put(value);
+        }
+        done.set(true);
+        endLatch.await();
+
+        Assert.assertNull(failure.get());
+        f.delete();
+    }
+}
@@ -0,0 +1,170 @@
+import io.github.metabrain.evergreen.EvergreenFactory;
+import io.github.metabrain.evergreen.EvergreenRecord;
+import io.github.metabrain.evergreen.RecordSchema;
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class RecordTest {
+
+    private final static int N_CORES = Runtime.getRuntime().availableProcessors();
+
+    private static final RecordSchema SCHEMA = RecordSchema.builder()
+            .addInt("count")
+            .addLong("id")
+            .addDouble("price")
+            .addBytes("symbol", 8)
+            .addInt("flags")
+            .build();
+    private static final RecordSchema.Field COUNT = SCHEMA.field("count");
+    private static final RecordSchema.Field ID = SCHEMA.field("id");
+    private static final RecordSchema.Field PRICE = SCHEMA.field("price");
+    private static final RecordSchema.Field SYMBOL = SCHEMA.field("symbol");
+    private static final RecordSchema.Field FLAGS = SCHEMA.field("flags");
+
+    @Test
+    public void fieldsAreAlignedTest() {
+        Assert.assertEquals(0, COUNT.getOffset());
+        Assert.assertEquals(8, ID.getOffset());
+        Assert.assertEquals(16, PRICE.getOffset());
+        Assert.assertEquals(24, SYMBOL.getOffset());
+        Assert.assertEquals(32, FLAGS.getOffset());
+        Assert.assertEquals(40, SCHEMA.size());
+    }
+
+    @Test
+    public void fieldOperationsSurviveReopenTest() throws IOException {
+        String fname = TestFiles.tempFile();
+        EvergreenRecord record = EvergreenFactory.createRecord(fname, SCHEMA, (r) -> r.setLong(ID, 7L));
+        Assert.assertEquals(7L, record.getLong(ID));
+        Assert.assertEquals(0, record.getInt(COUNT));
+
+        Assert.assertEquals(0, record.getAndAddInt(COUNT, 5));
+        Assert.assertTrue(record.compareAndSetLong(ID, 7L, 8L));
+        Assert.assertFalse(record.compareAndSetLong(ID, 7L, 9L));
+        record.setDouble(PRICE, 1.5);
+        Assert.assertEquals(1.5, record.getAndAddDouble(PRICE, 1.0));
+        Assert.assertTrue(record.compareAndSetDouble(PRICE, 2.5, 3.0));
+        record.setBytes(SYMBOL, "EVERGRN!".getBytes(StandardCharsets.US_ASCII), 0);
+
+        // The initializer only runs for new files.
+        EvergreenRecord reopened = EvergreenFactory.createRecord(fname, SCHEMA, (r) -> r.setLong(ID, -1L));
+        Assert.assertEquals(5, reopened.getInt(COUNT));
+        Assert.assertEquals(8L, reopened.getLong(ID));
+        Assert.assertEquals(3.0, reopened.getDouble(PRICE));
+        byte[] symbol = new byte[10];
+        reopened.getBytes(SYMBOL, symbol, 2);
+        Assert.assertEquals("EVERGRN!", new String(symbol, 2, 8, StandardCharsets.US_ASCII));
+        Assert.assertEquals(0, reopened.getInt(FLAGS));
+    }
+
+    @Test
+    public void misuseFailsTest() throws IOException {
+        EvergreenRecord record = EvergreenFactory.createRecord(TestFiles.tempFile(), SCHEMA);
+        RecordSchema other = RecordSchema.builder().addInt("count").build();
+        for(Runnable misuse : Arrays.<Runnable>asList(
+                () -> record.getLong(COUNT),
+                () -> record.getInt(other.field("count")),
+                () -> SCHEMA.field("missing"),
+                () -> RecordSchema.builder().addInt("a").addLong("a"))) {
+            try {
+                misuse.run();
+                Assert.fail();
+            } catch (IllegalArgumentException e) {
+                // Expected.
+            }
+        }
+        try {
+            record.getBytes(SYMBOL, new byte[8], 1);
+            Assert.fail();
+        } catch (IndexOutOfBoundsException e) {
+            // Expected.
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void schemaMismatchFailsTest() throws IOException {
+        String fname = TestFiles.tempFile();
+        EvergreenFactory.createRecord(fname, SCHEMA);
+        EvergreenFactory.createRecord(fname, RecordSchema.builder().addInt("count").addInt("id").build());
+    }
+
+    @Test
+    public void parallelFieldIncrementsTest() throws Exception {
+        String fname = TestFiles.tempFile();
+        final int threads = Math.max(2, N_CORES);
+        final int increments = 100000;
+        List<Thread> workers = new ArrayList<>();
+        for(int t=0 ; t<threads ; t++) {
+            // One mapping per thread, just like separate processes would have.
+            EvergreenRecord record = EvergreenFactory.createRecord(fname, SCHEMA);
+            workers.add(new Thread(() -> {
+                for(int i=0 ; i<increments ; i++) {
+                    record.getAndAddInt(COUNT, 1);
+                    record.getAndAddLong(ID, 2L);
+                }
+            }));
+        }
+        workers.forEach(Thread::start);
+        for(Thread worker : workers) {
+            worker.join();
+        }
+        EvergreenRecord record = EvergreenFactory.createRecord(fname, SCHEMA);
+        Assert.assertEquals(threads*increments, record.getInt(COUNT));
+        Assert.assertEquals(2L*threads*increments, record.getLong(ID));
+    }
+
+    @Test
+    public void readsNeverSeeUpdatesHalfwayTest() throws Exception {
+        String fname = TestFiles.tempFile();
+        EvergreenRecord writer = EvergreenFactory.createRecord(fname, SCHEMA);
+        EvergreenRecord reader = EvergreenFactory.createRecord(fname, SCHEMA);
+
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread readerThread = new Thread(() -> {
+            byte[] symbol = new byte[8];
+            try {
+                while(!done.get()) {
+                    // Every update keeps count, id and all symbol bytes equal.
+                    String seen = reader.read((r) -> {
+                        r.getBytes(SYMBOL, symbol, 0);
+                        return r.getInt(COUNT)+"/"+r.getLong(ID)+"/"+Arrays.toString(symbol);
+                    });
+                    String[] parts = seen.split("/");
+                    byte b = (byte) Integer.parseInt(parts[0]);
+                    byte[] expected = new byte[8];
+                    Arrays.fill(expected, b);
+                    if(Long.parseLong(parts[0])!=Long.parseLong(parts[1]) || !Arrays.toString(expected).equals(parts[2])) {
+                        throw new AssertionError("Read a torn record "+seen);
+                    }
+                }
+            } catch (Throwable t) {
+                failure.set(t);
+            }
+        });
+        readerThread.start();
+        byte[] symbol = new byte[8];
+        for(int i=0 ; i<200000 ; i++) {
+            final int value = i;
+            writer.update((r) -> {
+                r.setInt(COUNT, value);
+                Arrays.fill(symbol, (byte) value);
+                r.setBytes(SYMBOL, symbol, 0);
+                r.setLong(ID, value);
+            });
+        }
+        done.set(true);
+        readerThread.join();
+        if(failure.get()!=null) {
+            throw new AssertionError(failure.get());
+        }
+    }
+}
@@ -0,0 +1,159 @@
+import io.github.metabrain.evergreen.Evergreen;
+import io.github.metabrain.evergreen.EvergreenFactory;
+import io.github.metabrain.evergreen.EvergreenOptions;
+import io.github.metabrain.evergreen.EvergreenStore;
+import io.github.metabrain.evergreen.OpenMode;
+import io.github.metabrain.evergreen.codec.Codecs;
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+public class StoreTest {
+
+    private final static int N_CORES = Runtime.getRuntime().availableProcessors();
+
+    @Test
+    public void manyObjectsInOneFileTest() throws IOException, ClassNotFoundException {
+        String fname = TestFiles.tempFile();
+        EvergreenStore store = EvergreenFactory.createStore(fname, 5000, 32, 4*1024*1024);
+        for(int i=0 ; i<5000 ; i++) {
+            Evergreen<Integer> counter = store.open("counter-"+i, 4, () -> 0, Codecs.integers());
+            counter.put(i);
+        }
+        Assert.assertEquals(5000, store.size());
+        Assert.assertTrue(store.contains("counter-4999"));
+        Assert.assertFalse(store.contains("counter-5000"));
+
+        // Another store on the same file finds them through the directory.
+        EvergreenStore reopened = EvergreenFactory.createStore(fname, 5000, 32, 4*1024*1024);
+        for(int i=0 ; i<5000 ; i++) {
+            Assert.assertEquals(Integer.valueOf(i), reopened.open("counter-"+i, 4, () -> -1, Codecs.integers()).get());
+        }
+    }
+
+    @Test
+    public void objectsOfEverySizeClassTest() throws IOException, ClassNotFoundException {
+        EvergreenStore store = EvergreenFactory.createStore(TestFiles.tempFile(), 100, 32, 2*1024*1024);
+        List<Evergreen<String>> objects = new ArrayList<>();
+        for(int size : new int[]{0, 10, 100, 500, 1000, 5000, 30000, 60000}) {
+            objects.add(store.open("string-"+size, size, () -> "", Codecs.strings()));
+        }
+        for(int i=0 ; i<objects.size() ; i++) {
+            objects.get(i).put("object "+i);
+        }
+        for(int i=0 ; i<objects.size() ; i++) {
+            Assert.assertEquals("object "+i, objects.get(i).get());
+        }
+        Evergreen<String> biggest = objects.get(objects.size()-1);
+        char[] chars = new char[29000];
+        Arrays.fill(chars, 'x');
+        biggest.put(new String(chars));
+        Assert.assertEquals(29000, biggest.get().length());
+        Assert.assertEquals("object 6", objects.get(6).get());
+    }
+
+    @Test
+    public void serializableObjectsAndBatchesTest() throws IOException, ClassNotFoundException, TimeoutException {
+        EvergreenStore store = EvergreenFactory.createStore(TestFiles.tempFile(), 10, 16, 64*1024);
+        Evergreen<ArrayList<String>> list = store.open("list", 256, ArrayList::new);
+        list.getAndPut((got) -> { got.add("a"); return got; });
+        list.getAndPutAll(Arrays.asList((got) -> { got.add("b"); return got; }, (got) -> { got.add("c"); return got; }));
+        Assert.assertEquals(Arrays.asList("a", "b", "c"), list.get(100, TimeUnit.MILLISECONDS));
+        // Same handle when opened again.
+        Assert.assertSame(list, store.open("list", 256, ArrayList::new));
+    }
+
+    @Test(expected = IOException.class)
+    public void maxSizeMismatchFailsTest() throws IOException {
+        String fname = TestFiles.tempFile();
+        EvergreenFactory.createStore(fname, 10, 16, 64*1024).open("x", 8, () -> 0L, Codecs.longs());
+        EvergreenFactory.createStore(fname, 10, 16, 64*1024).open("x", 16, () -> 0L, Codecs.longs());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void fullStoreFailsTest() throws IOException {
+        EvergreenStore store = EvergreenFactory.createStore(TestFiles.tempFile(), 2, 16, 64*1024);
+        store.open("a", 4, () -> 0, Codecs.integers());
+        store.open("b", 4, () -> 0, Codecs.integers());
+        store.open("c", 4, () -> 0, Codecs.integers());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void tooLongNameFailsTest() throws IOException {
+        EvergreenFactory.createStore(TestFiles.tempFile(), 2, 4, 64*1024).open("too long", 4, () -> 0, Codecs.integers());
+    }
+
+    @Test
+    public void concurrentIncrementsAcrossStoresTest() throws Exception {
+        String fname = TestFiles.tempFile();
+        final int threads = Math.max(2, N_CORES);
+        final int increments = 2000;
+        List<Thread> workers = new ArrayList<>();
+        for(int t=0 ; t<threads ; t++) {
+            // Every thread maps the file on its own, like separate processes would.
+            EvergreenStore store = EvergreenFactory.createStore(fname, 16, 16, 64*1024);
+            workers.add(new Thread(() -> {
+                try {
+                    for(int i=0 ; i<increments ; i++) {
+                        store.open("counter-"+(i%4), 8, () -> 0L, Codecs.longs()).getAndPut((got) -> got+1);
+                    }
+                } catch (IOException | ClassNotFoundException e) {
+                    throw new RuntimeException(e);
+                }
+            }));
+        }
+        workers.forEach(Thread::start);
+        for(Thread worker : workers) {
+            worker.join();
+        }
+        EvergreenStore store = EvergreenFactory.createStore(fname, 16, 16, 64*1024);
+        long total = 0;
+        for(int i=0 ; i<4 ; i++) {
+            total += store.open("counter-"+i, 8, () -> 0L, Codecs.longs()).get();
+        }
+        Assert.assertEquals(threads*increments, total);
+        Assert.assertEquals(4, store.size());
+    }
+
+    @Test
+    public void closingTheLastStoreReleasesTheFileTest() throws IOException, ClassNotFoundException {
+        String fname = TestFiles.tempFile();
+        EvergreenStore store = EvergreenFactory.createStore(fname, 16, 16, 64*1024);
+        EvergreenStore other = EvergreenFactory.createStore(fname, 16, 16, 64*1024);
+        store.open("counter", 4, () -> 1, Codecs.integers());
+        assertExclusiveOpenFails(fname);
+
+        store.close();
+        // Does nothing the second time around.
+        store.close();
+        // The other store keeps the file, and its lock, open.
+        Assert.assertEquals(Integer.valueOf(1), other.open("counter", 4, () -> -1, Codecs.integers()).get());
+        assertExclusiveOpenFails(fname);
+
+        other.close();
+        // Nobody in this JVM has the file open anymore, so closing this channel can't drop anyone's lock.
+        try (FileChannel fc = new RandomAccessFile(fname, "rw").getChannel()) {
+            FileLock lock = fc.tryLock();
+            Assert.assertNotNull(lock);
+            lock.release();
+        }
+    }
+
+    private static void assertExclusiveOpenFails(String fname) {
+        try {
+            EvergreenFactory.create(fname, 4, () -> 0, Codecs.integers(), new EvergreenOptions().withOpenMode(OpenMode.EXCLUSIVE));
+            Assert.fail("Exclusive open should have failed.");
+        } catch (IOException e) {
+            Assert.assertTrue(e.getMessage(), e.getMessage().contains("already open"));
+        }
+    }
+}
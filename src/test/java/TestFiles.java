@@ -0,0 +1,22 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.UUID;
+
+/**
+ * Files for tests to map, removed once the JVM exits.
+ */
+final class TestFiles {
+
+    private TestFiles() {
+        throw new AssertionError("No instance for you!");
+    }
+
+    /**
+     * @return the path of a new empty file.
+     */
+    static String tempFile() throws IOException {
+        File f = File.createTempFile("EvergreenTestFile_"+UUID.randomUUID(),"mmf");
+        f.deleteOnExit();
+        return f.getAbsolutePath();
+    }
+}
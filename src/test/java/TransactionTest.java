@@ -0,0 +1,182 @@
+import io.github.metabrain.evergreen.EvergreenFactory;
+import io.github.metabrain.evergreen.Durability;
+import io.github.metabrain.evergreen.EvergreenImpl;
+import io.github.metabrain.evergreen.EvergreenOptions;
+import io.github.metabrain.evergreen.EvergreenTransaction;
+import io.github.metabrain.evergreen.codec.Codecs;
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+public class TransactionTest {
+
+    private final static int N_CORES = Runtime.getRuntime().availableProcessors();
+
+    @Test
+    public void transfersKeepTotalTest() throws Exception {
+        final int accounts = 4;
+        final int threads = Math.max(2, N_CORES);
+        final int transfers = 2000;
+        List<String> fnames = new ArrayList<>();
+        for(int i=0 ; i<accounts ; i++) {
+            fnames.add(TestFiles.tempFile());
+        }
+
+        List<Thread> workers = new ArrayList<>();
+        for(int t=0 ; t<threads ; t++) {
+            // Every thread opens the accounts on its own, like separate processes would.
+            List<EvergreenImpl<Long>> opened = new ArrayList<>();
+            for(String fname : fnames) {
+                opened.add(EvergreenFactory.create(fname, 8, () -> 1000L, Codecs.longs()));
+            }
+            final int seed = t;
+            workers.add(new Thread(() -> {
+                try {
+                    for(int i=0 ; i<transfers ; i++) {
+                        // Transfers in both directions between every pair, a deadlock if locks weren't ordered.
+                        EvergreenImpl<Long> from = opened.get((seed+i)%accounts);
+                        EvergreenImpl<Long> to = opened.get((seed+i+1+i%(accounts-1))%accounts);
+                        EvergreenTransaction.of(from, to).execute((context) -> {
+                            context.put(from, context.get(from)-1);
+                            context.put(to, context.get(to)+1);
+                            return null;
+                        });
+                    }
+                } catch (IOException | ClassNotFoundException e) {
+                    throw new RuntimeException(e);
+                }
+            }));
+        }
+        workers.forEach(Thread::start);
+        for(Thread worker : workers) {
+            worker.join(60000);
+            Assert.assertFalse("Transactions deadlocked.", worker.isAlive());
+        }
+
+        long total = 0;
+        for(String fname : fnames) {
+            total += EvergreenFactory.create(fname, 8, () -> 0L, Codecs.longs()).get();
+        }
+        Assert.assertEquals(accounts*1000L, total);
+    }
+
+    @Test
+    public void nothingIsWrittenOnFailureTest() throws IOException, ClassNotFoundException {
+        EvergreenImpl<String> small = EvergreenFactory.create(TestFiles.tempFile(), 4, () -> "a", Codecs.strings());
+        EvergreenImpl<String> other = EvergreenFactory.create(TestFiles.tempFile(), 64, () -> "b", Codecs.strings());
+        EvergreenTransaction transaction = EvergreenTransaction.of(small, other);
+
+        try {
+            transaction.execute((context) -> {
+                context.put(other, "changed");
+                throw new IllegalStateException("boom");
+            });
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            // Expected.
+        }
+        try {
+            transaction.execute((context) -> {
+                context.put(other, "changed");
+                context.put(small, new String(new char[1000]));
+                return null;
+            });
+            Assert.fail();
+        } catch (BufferOverflowException e) {
+            // Expected.
+        }
+        Assert.assertEquals("a", small.get());
+        Assert.assertEquals("b", other.get());
+
+        // Locks were released, and staged instances are what later gets return.
+        Assert.assertEquals("bc", transaction.execute((context) -> {
+            context.put(other, context.get(other)+"c");
+            return context.get(other);
+        }));
+        Assert.assertEquals("bc", other.get());
+    }
+
+    @Test
+    public void growableObjectsGrowBeforeAnythingIsWrittenTest() throws IOException, ClassNotFoundException {
+        String fname = TestFiles.tempFile();
+        EvergreenImpl<String> growable = EvergreenFactory.create(fname, 4, () -> "a", Codecs.strings(),
+                new EvergreenOptions().withGrowable(true).withDurability(Durability.JOURNALED));
+        EvergreenImpl<String> small = EvergreenFactory.create(TestFiles.tempFile(), 4, () -> "b", Codecs.strings());
+        EvergreenTransaction transaction = EvergreenTransaction.of(growable, small);
+        String big = new String(new char[1000]).replace('\0', 'c');
+
+        try {
+            transaction.execute((context) -> {
+                context.put(growable, big);
+                context.put(small, big);
+                return null;
+            });
+            Assert.fail();
+        } catch (BufferOverflowException e) {
+            // Expected.
+        }
+        // Whichever comes first in the lock order, the growable file may have grown but still holds the old instance.
+        Assert.assertEquals("a", growable.get());
+        Assert.assertEquals("b", small.get());
+
+        transaction.execute((context) -> {
+            context.put(growable, big);
+            context.put(small, "d");
+            return null;
+        });
+        Assert.assertEquals(big, growable.get());
+        Assert.assertEquals("d", small.get());
+        growable.close();
+        EvergreenImpl<String> reopened = EvergreenFactory.create(fname, 4, () -> "a", Codecs.strings(),
+                new EvergreenOptions().withGrowable(true).withDurability(Durability.JOURNALED));
+        Assert.assertEquals(big, reopened.get());
+    }
+
+    @Test
+    public void timesOutWhenLockedTest() throws Exception {
+        String fname = TestFiles.tempFile();
+        EvergreenImpl<Integer> first = EvergreenFactory.create(TestFiles.tempFile(), 4, () -> 0, Codecs.integers());
+        EvergreenImpl<Integer> second = EvergreenFactory.create(fname, 4, () -> 0, Codecs.integers());
+        EvergreenImpl<Integer> secondElsewhere = EvergreenFactory.create(fname, 4, () -> 0, Codecs.integers());
+
+        Thread holder = new Thread(() -> {
+            try {
+                secondElsewhere.getAndPut((got) -> {
+                    try {
+                        Thread.sleep(500);
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                    return got+1;
+                });
+            } catch (IOException | ClassNotFoundException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        holder.start();
+        Thread.sleep(100);
+        try {
+            EvergreenTransaction.of(first, second).execute((context) -> null, 50, TimeUnit.MILLISECONDS);
+            Assert.fail();
+        } catch (TimeoutException e) {
+            // Expected.
+        }
+        holder.join();
+        // Nothing left locked by the timed out transaction.
+        Assert.assertEquals(Integer.valueOf(1), first.getAndPut((got) -> got+1));
+        Assert.assertEquals(Integer.valueOf(2), second.getAndPut((got) -> got+1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void sameFileTwiceFailsTest() throws IOException {
+        String fname = TestFiles.tempFile();
+        EvergreenTransaction.of(EvergreenFactory.create(fname, 4, () -> 0, Codecs.integers()),
+                EvergreenFactory.create(fname, 4, () -> 0, Codecs.integers()));
+    }
+}